@@ -193,9 +193,10 @@ public class DeviceStateMonitor extends Handler {
     }
 
     /**
-     * @return True if low data is expected
+     * @return True if low data is expected, i.e. the device is in power save mode, or it is not
+     * charging, tethering, or used with the screen on.
      */
-    private boolean isLowDataExpected() {
+    public boolean isLowDataExpected() {
         return mIsPowerSaveOn || (!mIsCharging && !mIsTetheringOn && !mIsScreenOn);
     }
 
@@ -466,6 +466,11 @@ public class GsmCdmaPhone extends Phone {
         return mSST;
     }
 
+    @Override
+    public DeviceStateMonitor getDeviceStateMonitor() {
+        return mDeviceStateMonitor;
+    }
+
     @Override
     public CallTracker getCallTracker() {
         return mCT;
@@ -65,7 +65,6 @@ import android.text.TextUtils;
 import com.android.internal.R;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.util.NotificationChannelController;
-import com.android.internal.util.HexDump;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
@@ -206,6 +205,9 @@ public abstract class InboundSmsHandler extends StateMachine {
     /** Broadcasting state. Waits for current broadcast to complete before delivering next. */
     private final WaitingState mWaitingState = new WaitingState();
 
+    /** Segments of concatenated messages waiting in the raw table, to avoid re-reading them. */
+    private final SmsSegmentCache mSegmentCache = new SmsSegmentCache();
+
     /** Helper class to check whether storage is available for incoming messages. */
     protected SmsStorageMonitor mStorageMonitor;
 
@@ -809,69 +811,51 @@ public abstract class InboundSmsHandler extends StateMachine {
             block = BlockChecker.isBlocked(mContext, tracker.getDisplayAddress());
         } else {
             // multi-part message
-            Cursor cursor = null;
-            try {
-                // used by several query selection arguments
-                String address = tracker.getAddress();
-                String refNumber = Integer.toString(tracker.getReferenceNumber());
-                String count = Integer.toString(tracker.getMessageCount());
-
-                // query for all segments and broadcast message if we have all the parts
-                String[] whereArgs = {address, refNumber, count};
-                cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
-                        tracker.getQueryForSegments(), whereArgs, null);
-
-                int cursorCount = cursor.getCount();
-                if (cursorCount < messageCount) {
-                    // Wait for the other message parts to arrive. It's also possible for the last
-                    // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
-                    // earlier segments. In that case, the broadcast will be sent as soon as all
-                    // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
-                    // get a row count of 0 and return.
+            SmsSegmentCache.Segments segments = mSegmentCache.get(tracker);
+            if (segments == null) {
+                segments = loadSegmentsFromRawTable(tracker);
+                if (segments == null) {
                     return false;
                 }
-
-                // All the parts are in place, deal with them
-                pdus = new byte[messageCount][];
-                while (cursor.moveToNext()) {
-                    // subtract offset to convert sequence to 0-based array index
-                    int index = cursor.getInt(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                            .get(SEQUENCE_COLUMN)) - tracker.getIndexOffset();
-
-                    pdus[index] = HexDump.hexStringToByteArray(cursor.getString(
-                            PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING.get(PDU_COLUMN)));
-
-                    // Read the destination port from the first segment (needed for CDMA WAP PDU).
-                    // It's not a bad idea to prefer the port from the first segment in other cases.
-                    if (index == 0 && !cursor.isNull(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                            .get(DESTINATION_PORT_COLUMN))) {
-                        int port = cursor.getInt(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                                .get(DESTINATION_PORT_COLUMN));
-                        // strip format flags and convert to real port number, or -1
-                        port = InboundSmsTracker.getRealDestPort(port);
-                        if (port != -1) {
-                            destPort = port;
-                        }
-                    }
-                    // check if display address should be blocked or not
-                    if (!block) {
-                        // Depending on the nature of the gateway, the display origination address
-                        // is either derived from the content of the SMS TP-OA field, or the TP-OA
-                        // field contains a generic gateway address and the from address is added
-                        // at the beginning in the message body. In that case only the first SMS
-                        // (part of Multi-SMS) comes with the display originating address which
-                        // could be used for block checking purpose.
-                        block = BlockChecker.isBlocked(mContext,
-                                cursor.getString(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                                        .get(DISPLAY_ADDRESS_COLUMN)));
+                if (!segments.isComplete()) {
+                    // Remember the segments stored so far; the ones still to come are added
+                    // as they are written to the raw table.
+                    if (segments.getReceivedCount() > 0) {
+                        mSegmentCache.put(tracker, segments);
                     }
+                    return false;
                 }
-            } catch (SQLException e) {
-                loge("Can't access multipart SMS database", e);
+            } else if (!segments.isComplete()) {
+                // Wait for the other message parts to arrive. It's also possible for the last
+                // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
+                // earlier segments. In that case, the broadcast will be sent as soon as all
+                // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
+                // find no segments and return.
                 return false;
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+            }
+
+            // All the parts are in place, deal with them
+            mSegmentCache.remove(tracker);
+            pdus = segments.getPdus();
+
+            // Read the destination port from the first segment (needed for CDMA WAP PDU).
+            // It's not a bad idea to prefer the port from the first segment in other cases.
+            int port = segments.getFirstSegmentDestPort();
+            if (port != -1) {
+                destPort = port;
+            }
+
+            // check if display address should be blocked or not
+            // Depending on the nature of the gateway, the display origination address
+            // is either derived from the content of the SMS TP-OA field, or the TP-OA
+            // field contains a generic gateway address and the from address is added
+            // at the beginning in the message body. In that case only the first SMS
+            // (part of Multi-SMS) comes with the display originating address which
+            // could be used for block checking purpose.
+            for (String displayAddress : segments.getDisplayAddresses()) {
+                if (BlockChecker.isBlocked(mContext, displayAddress)) {
+                    block = true;
+                    break;
                 }
             }
         }
@@ -934,6 +918,57 @@ public abstract class InboundSmsHandler extends StateMachine {
         return true;
     }
 
+    /**
+     * Load the segments of a multi-part message stored in the raw table so far.
+     * @param tracker the tracker of one of the message segments
+     * @return the stored segments, or null if the raw table could not be read
+     */
+    private SmsSegmentCache.Segments loadSegmentsFromRawTable(InboundSmsTracker tracker) {
+        Cursor cursor = null;
+        try {
+            // used by several query selection arguments
+            String address = tracker.getAddress();
+            String refNumber = Integer.toString(tracker.getReferenceNumber());
+            String count = Integer.toString(tracker.getMessageCount());
+
+            // query for all segments of the message
+            String[] whereArgs = {address, refNumber, count};
+            cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
+                    tracker.getQueryForSegments(), whereArgs, null);
+
+            SmsSegmentCache.Segments segments =
+                    new SmsSegmentCache.Segments(tracker.getMessageCount());
+            while (cursor.moveToNext()) {
+                // subtract offset to convert sequence to 0-based array index
+                int index = cursor.getInt(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                        .get(SEQUENCE_COLUMN)) - tracker.getIndexOffset();
+
+                byte[] pdu = InboundSmsTracker.getPdu(cursor,
+                        PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING.get(PDU_COLUMN));
+
+                int port = -1;
+                if (!cursor.isNull(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                        .get(DESTINATION_PORT_COLUMN))) {
+                    // strip format flags and convert to real port number, or -1
+                    port = InboundSmsTracker.getRealDestPort(cursor.getInt(
+                            PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                                    .get(DESTINATION_PORT_COLUMN)));
+                }
+
+                segments.add(index, pdu, port, cursor.getString(
+                        PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING.get(DISPLAY_ADDRESS_COLUMN)));
+            }
+            return segments;
+        } catch (SQLException e) {
+            loge("Can't access multipart SMS database", e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * Processes the message part while the credential-encrypted storage is still locked.
      *
@@ -1239,9 +1274,8 @@ public abstract class InboundSmsHandler extends StateMachine {
                     loge("address=" + address + " date=" + date + " messageBody=" +
                             messageBody);
                 }
-                String oldPduString = cursor.getString(PDU_COLUMN);
                 byte[] pdu = tracker.getPdu();
-                byte[] oldPdu = HexDump.hexStringToByteArray(oldPduString);
+                byte[] oldPdu = InboundSmsTracker.getPdu(cursor, PDU_COLUMN);
                 if (!Arrays.equals(oldPdu, tracker.getPdu())) {
                     loge("Warning: dup message segment PDU of length " + pdu.length
                             + " is different from existing PDU of length " + oldPdu.length);
@@ -1299,6 +1333,8 @@ public abstract class InboundSmsHandler extends StateMachine {
                 // set the delete selection args for multi-part message
                 String[] deleteWhereArgs = {address, refNumber, count};
                 tracker.setDeleteWhere(tracker.getQueryForSegments(), deleteWhereArgs);
+                // the row is in the raw table now, so it is safe to cache it
+                mSegmentCache.onSegmentStored(tracker);
             }
             return Intents.RESULT_SMS_HANDLED;
         } catch (Exception e) {
@@ -18,6 +18,7 @@ package com.android.internal.telephony;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.os.SystemProperties;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.HexDump;
@@ -78,6 +79,15 @@ public class InboundSmsTracker {
     /** Destination port mask (16-bit unsigned value on GSM and CDMA). */
     private static final int DEST_PORT_MASK = 0xffff;
 
+    /**
+     * Whether PDUs are written to the raw table as BLOBs. Older versions wrote hex strings,
+     * which take twice the space and must be decoded on every read; rows in either format are
+     * read transparently by {@link #getPdu(Cursor, int)}.
+     */
+    @VisibleForTesting
+    public static final boolean STORE_BINARY_PDU =
+            SystemProperties.getBoolean("persist.radio.sms_binary_pdu", true);
+
     @VisibleForTesting
     public static final String SELECT_BY_REFERENCE = "address=? AND reference_number=? AND "
             + "count=? AND (destination_port & " + DEST_PORT_FLAG_3GPP2_WAP_PDU
@@ -172,7 +182,7 @@ public class InboundSmsTracker {
      * @param cursor a Cursor pointing to the row to construct this SmsTracker for
      */
     public InboundSmsTracker(Cursor cursor, boolean isCurrentFormat3gpp2) {
-        mPdu = HexDump.hexStringToByteArray(cursor.getString(InboundSmsHandler.PDU_COLUMN));
+        mPdu = getPdu(cursor, InboundSmsHandler.PDU_COLUMN);
 
         if (cursor.isNull(InboundSmsHandler.DESTINATION_PORT_COLUMN)) {
             mDestPort = -1;
@@ -224,9 +234,26 @@ public class InboundSmsTracker {
         mMessageBody = cursor.getString(InboundSmsHandler.MESSAGE_BODY_COLUMN);
     }
 
+    /**
+     * Read a PDU from a row of the raw table, stored either as a BLOB or as a legacy hex string.
+     * @param cursor a Cursor pointing to the row
+     * @param column the index of the pdu column
+     * @return the PDU
+     */
+    public static byte[] getPdu(Cursor cursor, int column) {
+        if (cursor.getType(column) == Cursor.FIELD_TYPE_BLOB) {
+            return cursor.getBlob(column);
+        }
+        return HexDump.hexStringToByteArray(cursor.getString(column));
+    }
+
     public ContentValues getContentValues() {
         ContentValues values = new ContentValues();
-        values.put("pdu", HexDump.toHexString(mPdu));
+        if (STORE_BINARY_PDU) {
+            values.put("pdu", mPdu);
+        } else {
+            values.put("pdu", HexDump.toHexString(mPdu));
+        }
         values.put("date", mTimestamp);
         // Always set the destination port, since it now contains message format flags.
         // Port is a 16-bit value, or -1, so clear the upper bits before setting flags.
@@ -316,6 +343,10 @@ public class InboundSmsTracker {
         return mIs3gpp2;
     }
 
+    public boolean is3gpp2WapPdu() {
+        return mIs3gpp2WapPdu;
+    }
+
     public String getFormat() {
         return mIs3gpp2 ? SmsConstants.FORMAT_3GPP2 : SmsConstants.FORMAT_3GPP;
     }
@@ -1593,6 +1593,13 @@ public abstract class Phone extends Handler implements PhoneInternalInterface {
         return null;
     }
 
+    /**
+     * Retrieves the DeviceStateMonitor of the phone instance.
+     */
+    public DeviceStateMonitor getDeviceStateMonitor() {
+        return null;
+    }
+
     /**
     * Get call tracker
     */
@@ -3600,6 +3607,9 @@ public abstract class Phone extends Handler implements PhoneInternalInterface {
         pw.println(" mUiccApplication=" + mUiccApplication.get());
         pw.println(" mSmsStorageMonitor=" + mSmsStorageMonitor);
         pw.println(" mSmsUsageMonitor=" + mSmsUsageMonitor);
+        if (mSmsUsageMonitor != null) {
+            mSmsUsageMonitor.dump(fd, pw, args);
+        }
         pw.flush();
         pw.println(" mLooper=" + mLooper);
         pw.println(" mContext=" + mContext);
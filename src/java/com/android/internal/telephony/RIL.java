@@ -90,6 +90,7 @@ import com.android.internal.telephony.cdma.CdmaSmsBroadcastConfigInfo;
 import com.android.internal.telephony.dataconnection.DataCallResponse;
 import com.android.internal.telephony.dataconnection.DataProfile;
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
+import com.android.internal.telephony.metrics.LatencyHistogram;
 import com.android.internal.telephony.metrics.TelephonyMetrics;
 import com.android.internal.telephony.nano.TelephonyProto.SmsSession;
 import com.android.internal.telephony.uicc.IccUtils;
@@ -99,13 +100,16 @@ import java.io.DataInputStream;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static android.telephony.TelephonyManager.NETWORK_TYPE_UNKNOWN;
 import static android.telephony.TelephonyManager.NETWORK_TYPE_GPRS;
@@ -144,6 +148,10 @@ class RILRequest {
     String mClientId;
     // time in ms when RIL request was made
     long mStartTimeMs;
+    // per-phone latency recorder for this request type, null once the request has finished
+    LatencyHistogram mLatencyHistogram;
+    // callers coalesced onto this request, set once it is removed from the request list
+    ArrayList<Message> mCoalescedResults;
 
     /**
      * Retrieves a new RILRequest instance from the pool.
@@ -176,6 +184,8 @@ class RILRequest {
         rr.mWakeLockType = RIL.INVALID_WAKELOCK;
         rr.mWorkSource = null;
         rr.mStartTimeMs = SystemClock.elapsedRealtime();
+        rr.mLatencyHistogram = null;
+        rr.mCoalescedResults = null;
         if (result != null && result.getTarget() == null) {
             throw new NullPointerException("Message target must not be null");
         }
@@ -290,6 +300,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     static final boolean RILJ_LOGD = true;
     static final boolean RILJ_LOGV = false; // STOPSHIP if true
     static final int RIL_HISTOGRAM_BUCKET_COUNT = 5;
+    // Request types with an id at or above this are not tracked in the latency histograms
+    static final int RIL_LATENCY_HISTOGRAM_MAX_REQUEST = 256;
 
     /**
      * Wake lock timeout should be longer than the longest timeout in
@@ -302,6 +314,17 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     private static final int DEFAULT_BLOCKING_MESSAGE_RESPONSE_TIMEOUT_MS = 2000;
 
+    // How old an outstanding idempotent query may be for identical queries to attach to it;
+    // coalescing is off by default
+    private static final String PROPERTY_REQUEST_COALESCE_WINDOW_MS =
+            "persist.radio.coalesce_window_ms";
+    private static final int DEFAULT_REQUEST_COALESCE_WINDOW_MS = 0;
+
+    // Window for folding high-rate unsolicited indications; batching is off by default
+    private static final String PROPERTY_INDICATION_BATCH_WINDOW_MS =
+            "persist.radio.indication_batch_ms";
+    private static final int DEFAULT_INDICATION_BATCH_WINDOW_MS = 0;
+
     // Variables used to differentiate ack messages from request while calling clearWakeLock()
     public static final int INVALID_WAKELOCK = -1;
     public static final int FOR_WAKELOCK = 0;
@@ -322,9 +345,16 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     volatile int mWlSequenceNum = 0;
     volatile int mAckWlSequenceNum = 0;
 
-    SparseArray<RILRequest> mRequestList = new SparseArray<RILRequest>();
+    // Outstanding solicited requests keyed by serial; lock-free, see RilRequestTable
+    final RilRequestTable mRequestList = new RilRequestTable();
     static SparseArray<TelephonyHistogram> mRilTimeHistograms = new
             SparseArray<TelephonyHistogram>();
+    // Per-phone latency histograms indexed by request type, created on first use
+    final AtomicReferenceArray<LatencyHistogram> mRilLatencyHistograms =
+            new AtomicReferenceArray<LatencyHistogram>(RIL_LATENCY_HISTOGRAM_MAX_REQUEST);
+    // Weak references, so that RIL instances of removed phones can be collected
+    private static final CopyOnWriteArrayList<WeakReference<RIL>> sRilInstances =
+            new CopyOnWriteArrayList<WeakReference<RIL>>();
 
     Object[]     mLastNITZTimeInfo;
 
@@ -334,6 +364,9 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     final Integer mPhoneId;
     private List<String> mOldRilFeatures;
 
+    final RilRequestCoalescer mRequestCoalescer;
+    final RadioIndicationBatcher mIndicationBatcher;
+
     /* default work source which will blame phone process */
     private WorkSource mRILDefaultWorkSource;
 
@@ -381,6 +414,44 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         return list;
     }
 
+    /**
+     * @return the per-phone, per-request latency histograms of every RIL instance
+     */
+    public static List<LatencyHistogram> getRilLatencyHistograms() {
+        List<LatencyHistogram> list = new ArrayList<>();
+        for (WeakReference<RIL> ref : sRilInstances) {
+            RIL ril = ref.get();
+            if (ril == null) {
+                sRilInstances.remove(ref);
+                continue;
+            }
+            for (int i = 0; i < RIL_LATENCY_HISTOGRAM_MAX_REQUEST; i++) {
+                LatencyHistogram histogram = ril.mRilLatencyHistograms.get(i);
+                if (histogram != null) {
+                    list.add(histogram);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Drop the latency histograms of every RIL instance, once they are written to the metrics
+     * log. Requests in flight complete into the histograms they started with.
+     */
+    public static void resetRilLatencyHistograms() {
+        for (WeakReference<RIL> ref : sRilInstances) {
+            RIL ril = ref.get();
+            if (ril == null) {
+                sRilInstances.remove(ref);
+                continue;
+            }
+            for (int i = 0; i < RIL_LATENCY_HISTOGRAM_MAX_REQUEST; i++) {
+                ril.mRilLatencyHistograms.set(i, null);
+            }
+        }
+    }
+
     class RilHandler extends Handler {
         //***** Handler implementation
         @Override public void
@@ -400,17 +471,16 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                     // Note: Keep mRequestList so that delayed response
                     // can still be handled when response finally comes.
 
-                    synchronized (mRequestList) {
-                        if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
-                            if (RILJ_LOGD) {
-                                int count = mRequestList.size();
-                                Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
-                                        " mRequestList=" + count);
-                                for (int i = 0; i < count; i++) {
-                                    rr = mRequestList.valueAt(i);
-                                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                                            + requestToString(rr.mRequest));
-                                }
+                    if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
+                        if (RILJ_LOGD) {
+                            List<RILRequest> pending = mRequestList.snapshot();
+                            int count = pending.size();
+                            Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
+                                    " mRequestList=" + count);
+                            for (int i = 0; i < count; i++) {
+                                rr = pending.get(i);
+                                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                                        + requestToString(rr.mRequest));
                             }
                         }
                     }
@@ -433,13 +503,17 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                     }
 
                     //build a response if expected
+                    Object timeoutResponse = getResponseForTimedOutRILRequest(rr);
                     if (rr.mResult != null) {
-                        Object timeoutResponse = getResponseForTimedOutRILRequest(rr);
                         AsyncResult.forMessage( rr.mResult, timeoutResponse, null);
                         rr.mResult.sendToTarget();
                         mMetrics.writeOnRilTimeoutResponse(mPhoneId, rr.mSerial, rr.mRequest);
                     }
+                    // Callers attached to the request get the same response
+                    RilRequestCoalescer.deliver(mRequestCoalescer.onRequestRemoved(rr),
+                            timeoutResponse, null);
 
+                    abandonLatencyTracking(rr);
                     decrementWakeLock(rr);
                     rr.release();
                     break;
@@ -640,6 +714,12 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         mOemHookIndication = new OemHookIndication(this);
         mRilHandler = new RilHandler();
         mRadioProxyDeathRecipient = new RadioProxyDeathRecipient();
+        mIndicationBatcher = new RadioIndicationBatcher(
+                SystemProperties.getInt(PROPERTY_INDICATION_BATCH_WINDOW_MS,
+                        DEFAULT_INDICATION_BATCH_WINDOW_MS),
+                (unsolResponse, value) ->
+                        mRadioIndication.dispatchIndication(unsolResponse, value),
+                mRilHandler.getLooper());
 
         sRil = this;
 
@@ -694,11 +774,19 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         mAckWakeLockTimeout = SystemProperties.getInt(
                 TelephonyProperties.PROPERTY_WAKE_LOCK_TIMEOUT, DEFAULT_ACK_WAKE_LOCK_TIMEOUT_MS);
         mWakeLockCount = 0;
+        mRequestCoalescer = new RilRequestCoalescer(SystemProperties.getInt(
+                PROPERTY_REQUEST_COALESCE_WINDOW_MS, DEFAULT_REQUEST_COALESCE_WINDOW_MS));
         mRILDefaultWorkSource = new WorkSource(context.getApplicationInfo().uid,
                 context.getPackageName());
 
         TelephonyDevController tdc = TelephonyDevController.getInstance();
         tdc.registerRIL(this);
+        for (WeakReference<RIL> ref : sRilInstances) {
+            if (ref.get() == null) {
+                sRilInstances.remove(ref);
+            }
+        }
+        sRilInstances.add(new WeakReference<RIL>(this));
 
         // set radio callback; needed to set RadioIndication callback (should be done after
         // wakelock stuff is initialized above as callbacks are received on separate binder threads)
@@ -720,10 +808,26 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     private void addRequest(RILRequest rr) {
         acquireWakeLock(rr, FOR_WAKELOCK);
-        synchronized (mRequestList) {
-            rr.mStartTimeMs = SystemClock.elapsedRealtime();
-            mRequestList.append(rr.mSerial, rr);
+        rr.mStartTimeMs = SystemClock.elapsedRealtime();
+        rr.mLatencyHistogram = getLatencyHistogram(rr.mRequest);
+        if (rr.mLatencyHistogram != null) {
+            rr.mLatencyHistogram.onStart();
+        }
+        mRequestList.put(rr);
+        mRequestCoalescer.onRequestAdded(rr);
+    }
+
+    /**
+     * Attach the caller to an identical outstanding query, if possible.
+     *
+     * @return true if the caller will get the response of the outstanding query
+     */
+    private boolean coalesceRequest(int request, Message result) {
+        if (mRequestCoalescer.attach(request, result)) {
+            if (RILJ_LOGD) riljLog("[coalesced]> " + requestToString(request));
+            return true;
         }
+        return false;
     }
 
     private RILRequest obtainRequest(int request, Message result, WorkSource workSource) {
@@ -1156,6 +1260,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     @Override
     public void getSignalStrength(Message result) {
+        if (coalesceRequest(RIL_REQUEST_SIGNAL_STRENGTH, result)) return;
+
         IRadio radioProxy = getRadioProxy(result);
         if (radioProxy != null) {
             RILRequest rr = obtainRequest(RIL_REQUEST_SIGNAL_STRENGTH, result,
@@ -1173,6 +1279,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     @Override
     public void getVoiceRegistrationState(Message result) {
+        if (coalesceRequest(RIL_REQUEST_VOICE_REGISTRATION_STATE, result)) return;
+
         IRadio radioProxy = getRadioProxy(result);
         if (radioProxy != null) {
             RILRequest rr = obtainRequest(RIL_REQUEST_VOICE_REGISTRATION_STATE, result,
@@ -1190,6 +1298,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     @Override
     public void getDataRegistrationState(Message result) {
+        if (coalesceRequest(RIL_REQUEST_DATA_REGISTRATION_STATE, result)) return;
+
         IRadio radioProxy = getRadioProxy(result);
         if (radioProxy != null) {
             RILRequest rr = obtainRequest(RIL_REQUEST_DATA_REGISTRATION_STATE, result,
@@ -1207,6 +1317,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     @Override
     public void getOperator(Message result) {
+        if (coalesceRequest(RIL_REQUEST_OPERATOR, result)) return;
+
         IRadio radioProxy = getRadioProxy(result);
         if (radioProxy != null) {
             RILRequest rr = obtainRequest(RIL_REQUEST_OPERATOR, result,
@@ -1801,6 +1913,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     @Override
     public void getNetworkSelectionMode(Message result) {
+        if (coalesceRequest(RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE, result)) return;
+
         IRadio radioProxy = getRadioProxy(result);
         if (radioProxy != null) {
             RILRequest rr = obtainRequest(RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE, result,
@@ -3965,6 +4079,17 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * @param indicationType RadioIndicationType received
      */
     void processIndication(int indicationType) {
+        // Deliver folded indications that arrived earlier before this one
+        mIndicationBatcher.flush();
+        processBatchableIndication(indicationType);
+    }
+
+    /**
+     * Same as {@link #processIndication(int)}, for indications that may be folded by
+     * {@link RadioIndicationBatcher} and so do not need earlier folded indications delivered.
+     * @param indicationType RadioIndicationType received
+     */
+    void processBatchableIndication(int indicationType) {
         if (indicationType == RadioIndicationType.UNSOLICITED_ACK_EXP) {
             sendAck();
             if (RILJ_LOGD) riljLog("Unsol response received; Sending ack to ril.cpp");
@@ -3974,10 +4099,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     void processRequestAck(int serial) {
-        RILRequest rr;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-        }
+        RILRequest rr = mRequestList.get(serial);
         if (rr == null) {
             Rlog.w(RIL.RILJ_LOG_TAG, "processRequestAck: Unexpected solicited ack response! "
                     + "serial: " + serial);
@@ -4004,9 +4126,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = null;
 
         if (type == RadioResponseType.SOLICITED_ACK) {
-            synchronized (mRequestList) {
-                rr = mRequestList.get(serial);
-            }
+            rr = mRequestList.get(serial);
             if (rr == null) {
                 Rlog.w(RILJ_LOG_TAG, "Unexpected solicited ack response! sn: " + serial);
             } else {
@@ -4027,6 +4147,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
         // Time logging for RIL command and storing it in TelephonyHistogram.
         addToRilHistogram(rr);
+        rr.mCoalescedResults = mRequestCoalescer.onRequestRemoved(rr);
 
         if (type == RadioResponseType.SOLICITED_ACK_EXP) {
             sendAck();
@@ -4111,12 +4232,15 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         }
         mMetrics.writeOnRilSolicitedResponse(mPhoneId, rr.mSerial, responseInfo.error,
                 rr.mRequest, ret);
-        if (rr != null) {
-            if (responseInfo.type == RadioResponseType.SOLICITED) {
-                decrementWakeLock(rr);
-            }
-            rr.release();
+        if (rr.mCoalescedResults != null) {
+            RilRequestCoalescer.deliver(rr.mCoalescedResults, ret, responseInfo.error == 0
+                    ? null : CommandException.fromRilErrno(responseInfo.error));
+            rr.mCoalescedResults = null;
+        }
+        if (responseInfo.type == RadioResponseType.SOLICITED) {
+            decrementWakeLock(rr);
         }
+        rr.release();
     }
 
     /**
@@ -4282,37 +4406,30 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      */
     private void clearRequestList(int error, boolean loggable) {
         RILRequest rr;
-        synchronized (mRequestList) {
-            int count = mRequestList.size();
-            if (RILJ_LOGD && loggable) {
-                Rlog.d(RILJ_LOG_TAG, "clearRequestList " + " mWakeLockCount="
-                        + mWakeLockCount + " mRequestList=" + count);
-            }
+        List<RILRequest> removed = mRequestList.removeAll();
+        int count = removed.size();
+        if (RILJ_LOGD && loggable) {
+            Rlog.d(RILJ_LOG_TAG, "clearRequestList " + " mWakeLockCount="
+                    + mWakeLockCount + " mRequestList=" + count);
+        }
 
-            for (int i = 0; i < count; i++) {
-                rr = mRequestList.valueAt(i);
-                if (RILJ_LOGD && loggable) {
-                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                            + requestToString(rr.mRequest));
-                }
-                rr.onError(error, null);
-                decrementWakeLock(rr);
-                rr.release();
+        for (int i = 0; i < count; i++) {
+            rr = removed.get(i);
+            if (RILJ_LOGD && loggable) {
+                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                        + requestToString(rr.mRequest));
             }
-            mRequestList.clear();
+            rr.onError(error, null);
+            RilRequestCoalescer.deliver(mRequestCoalescer.onRequestRemoved(rr), null,
+                    CommandException.fromRilErrno(error));
+            abandonLatencyTracking(rr);
+            decrementWakeLock(rr);
+            rr.release();
         }
     }
 
     private RILRequest findAndRemoveRequestFromList(int serial) {
-        RILRequest rr = null;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-            if (rr != null) {
-                mRequestList.remove(serial);
-            }
-        }
-
-        return rr;
+        return mRequestList.remove(serial);
     }
 
     private void addToRilHistogram(RILRequest rr) {
@@ -4329,6 +4446,32 @@ public final class RIL extends BaseCommands implements CommandsInterface {
             }
             entry.addTimeTaken(totalTime);
         }
+
+        // Per-phone histogram; lock-free and allocation-free on the response path
+        if (rr.mLatencyHistogram != null) {
+            rr.mLatencyHistogram.onComplete(totalTime);
+            rr.mLatencyHistogram = null;
+        }
+    }
+
+    private void abandonLatencyTracking(RILRequest rr) {
+        if (rr.mLatencyHistogram != null) {
+            rr.mLatencyHistogram.onAbandon();
+            rr.mLatencyHistogram = null;
+        }
+    }
+
+    private LatencyHistogram getLatencyHistogram(int request) {
+        if (request < 0 || request >= RIL_LATENCY_HISTOGRAM_MAX_REQUEST) {
+            return null;
+        }
+        LatencyHistogram histogram = mRilLatencyHistograms.get(request);
+        if (histogram == null) {
+            mRilLatencyHistograms.compareAndSet(request, null,
+                    new LatencyHistogram(mPhoneId == null ? 0 : mPhoneId, request));
+            histogram = mRilLatencyHistograms.get(request);
+        }
+        return histogram;
     }
 
     RadioCapability makeStaticRadioCapability() {
@@ -4957,15 +5100,23 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         pw.println("RIL: " + this);
         pw.println(" mWakeLock=" + mWakeLock);
         pw.println(" mWakeLockTimeout=" + mWakeLockTimeout);
-        synchronized (mRequestList) {
-            synchronized (mWakeLock) {
-                pw.println(" mWakeLockCount=" + mWakeLockCount);
-            }
-            int count = mRequestList.size();
-            pw.println(" mRequestList count=" + count);
-            for (int i = 0; i < count; i++) {
-                RILRequest rr = mRequestList.valueAt(i);
-                pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
+        synchronized (mWakeLock) {
+            pw.println(" mWakeLockCount=" + mWakeLockCount);
+        }
+        List<RILRequest> pending = mRequestList.snapshot();
+        int count = pending.size();
+        pw.println(" mRequestList count=" + count);
+        for (int i = 0; i < count; i++) {
+            RILRequest rr = pending.get(i);
+            pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
+        }
+        mRequestCoalescer.dump(pw);
+        mIndicationBatcher.dump(pw);
+        pw.println(" Request latency (ms):");
+        for (int i = 0; i < RIL_LATENCY_HISTOGRAM_MAX_REQUEST; i++) {
+            LatencyHistogram histogram = mRilLatencyHistograms.get(i);
+            if (histogram != null) {
+                pw.println("  " + requestToString(i) + ": " + histogram);
             }
         }
         pw.println(" mLastNITZTimeInfo=" + Arrays.toString(mLastNITZTimeInfo));
@@ -138,11 +138,12 @@ public class RadioIndication extends IRadioIndication.Stub {
      * @param indicationType RadioIndicationType
      */
     public void networkStateChanged(int indicationType) {
-        mRil.processIndication(indicationType);
+        mRil.processBatchableIndication(indicationType);
 
         if (RIL.RILJ_LOGD) mRil.unsljLog(RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED);
 
-        mRil.mNetworkStateRegistrants.notifyRegistrants();
+        if (mRil.mIndicationBatcher.offer(RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED, null)) return;
+        dispatchIndication(RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED, null);
     }
 
     public void newSms(int indicationType, ArrayList<Byte> pdu) {
@@ -222,15 +223,14 @@ public class RadioIndication extends IRadioIndication.Stub {
 
     public void currentSignalStrength(int indicationType,
                                       android.hardware.radio.V1_0.SignalStrength signalStrength) {
-        mRil.processIndication(indicationType);
+        mRil.processBatchableIndication(indicationType);
 
         SignalStrength ss = RIL.convertHalSignalStrength(signalStrength, mRil.mPhoneId);
         // Note this is set to "verbose" because it happens frequently
         if (RIL.RILJ_LOGV) mRil.unsljLogvRet(RIL_UNSOL_SIGNAL_STRENGTH, ss);
 
-        if (mRil.mSignalStrengthRegistrant != null) {
-            mRil.mSignalStrengthRegistrant.notifyRegistrant(new AsyncResult (null, ss, null));
-        }
+        if (mRil.mIndicationBatcher.offer(RIL_UNSOL_SIGNAL_STRENGTH, ss)) return;
+        dispatchIndication(RIL_UNSOL_SIGNAL_STRENGTH, ss);
     }
 
     public void dataCallListChanged(int indicationType, ArrayList<SetupDataCallResult> dcList) {
@@ -625,13 +625,14 @@ public class RadioIndication extends IRadioIndication.Stub {
 
     public void cellInfoList(int indicationType,
                              ArrayList<android.hardware.radio.V1_0.CellInfo> records) {
-        mRil.processIndication(indicationType);
+        mRil.processBatchableIndication(indicationType);
 
         ArrayList<CellInfo> response = RIL.convertHalCellInfoList(records);
 
         if (RIL.RILJ_LOGD) mRil.unsljLogRet(RIL_UNSOL_CELL_INFO_LIST, response);
 
-        mRil.mRilCellInfoListRegistrants.notifyRegistrants(new AsyncResult (null, response, null));
+        if (mRil.mIndicationBatcher.offer(RIL_UNSOL_CELL_INFO_LIST, response)) return;
+        dispatchIndication(RIL_UNSOL_CELL_INFO_LIST, response);
     }
 
     /** Incremental network scan results */
@@ -641,11 +642,40 @@ public class RadioIndication extends IRadioIndication.Stub {
     }
 
     public void imsNetworkStateChanged(int indicationType) {
-        mRil.processIndication(indicationType);
+        mRil.processBatchableIndication(indicationType);
 
         if (RIL.RILJ_LOGD) mRil.unsljLog(RIL_UNSOL_RESPONSE_IMS_NETWORK_STATE_CHANGED);
 
-        mRil.mImsNetworkStateChangedRegistrants.notifyRegistrants();
+        if (mRil.mIndicationBatcher.offer(RIL_UNSOL_RESPONSE_IMS_NETWORK_STATE_CHANGED, null)) {
+            return;
+        }
+        dispatchIndication(RIL_UNSOL_RESPONSE_IMS_NETWORK_STATE_CHANGED, null);
+    }
+
+    /**
+     * Notify the registrants of an indication that {@link RadioIndicationBatcher} may fold.
+     * @param unsolResponse RIL_UNSOL_*
+     * @param value the latest payload of the indication
+     */
+    void dispatchIndication(int unsolResponse, Object value) {
+        switch (unsolResponse) {
+            case RIL_UNSOL_SIGNAL_STRENGTH:
+                if (mRil.mSignalStrengthRegistrant != null) {
+                    mRil.mSignalStrengthRegistrant.notifyRegistrant(
+                            new AsyncResult (null, value, null));
+                }
+                break;
+            case RIL_UNSOL_CELL_INFO_LIST:
+                mRil.mRilCellInfoListRegistrants.notifyRegistrants(
+                        new AsyncResult (null, value, null));
+                break;
+            case RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED:
+                mRil.mNetworkStateRegistrants.notifyRegistrants();
+                break;
+            case RIL_UNSOL_RESPONSE_IMS_NETWORK_STATE_CHANGED:
+                mRil.mImsNetworkStateChangedRegistrants.notifyRegistrants();
+                break;
+        }
     }
 
     public void subscriptionStatusChanged(int indicationType, boolean activate) {
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.RIL_UNSOL_CELL_INFO_LIST;
+import static com.android.internal.telephony.RILConstants.RIL_UNSOL_RESPONSE_IMS_NETWORK_STATE_CHANGED;
+import static com.android.internal.telephony.RILConstants.RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED;
+import static com.android.internal.telephony.RILConstants.RIL_UNSOL_SIGNAL_STRENGTH;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Folds bursts of high-rate unsolicited indications into a single latest-value delivery.
+ *
+ * During handovers the modem can send hundreds of signal strength, cell info and network state
+ * indications per second, and each one wakes up every registered Handler. When batching is
+ * enabled, the first indication of a foldable type starts a short window; later indications of
+ * the same type within the window replace the pending value, and only the latest one is
+ * delivered when the window closes.
+ *
+ * Indications that change state (call state, SMS, radio state...) are never batched. Callers
+ * must {@link #flush()} before delivering one of those, so that they are never delivered ahead
+ * of a foldable indication that arrived earlier.
+ *
+ * {@hide}
+ */
+class RadioIndicationBatcher {
+
+    /** Delivers a folded indication to its registrants */
+    interface Dispatcher {
+        void dispatchIndication(int unsolResponse, Object value);
+    }
+
+    @VisibleForTesting
+    static final int[] FOLDABLE_INDICATIONS = {
+        RIL_UNSOL_SIGNAL_STRENGTH,
+        RIL_UNSOL_CELL_INFO_LIST,
+        RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED,
+        RIL_UNSOL_RESPONSE_IMS_NETWORK_STATE_CHANGED,
+    };
+
+    private static final int EVENT_FLUSH = 1;
+
+    private final long mWindowMs;
+    private final Dispatcher mDispatcher;
+    private final Handler mHandler;
+
+    // All fields below are guarded by this
+    private final boolean[] mPending = new boolean[FOLDABLE_INDICATIONS.length];
+    private final Object[] mPendingValues = new Object[FOLDABLE_INDICATIONS.length];
+    private final long[] mReceived = new long[FOLDABLE_INDICATIONS.length];
+    private final long[] mFolded = new long[FOLDABLE_INDICATIONS.length];
+    private boolean mFlushScheduled = false;
+
+    // Lets flush() return without locking when nothing is pending
+    private volatile boolean mHasPending = false;
+
+    /**
+     * @param windowMs folding window in milliseconds, 0 to disable batching
+     * @param dispatcher delivers folded indications
+     * @param looper looper on which windows are closed
+     */
+    RadioIndicationBatcher(long windowMs, Dispatcher dispatcher, Looper looper) {
+        mWindowMs = windowMs;
+        mDispatcher = dispatcher;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == EVENT_FLUSH) {
+                    flush();
+                }
+            }
+        };
+    }
+
+    boolean isEnabled() {
+        return mWindowMs > 0;
+    }
+
+    /**
+     * Queue an indication for folded delivery.
+     *
+     * @param unsolResponse RIL_UNSOL_*
+     * @param value the indication payload, may be null
+     * @return true if the indication was queued, false if the caller must deliver it now
+     */
+    boolean offer(int unsolResponse, Object value) {
+        if (!isEnabled()) return false;
+        int index = indexOf(unsolResponse);
+        if (index < 0) return false;
+
+        synchronized (this) {
+            mReceived[index]++;
+            if (mPending[index]) {
+                mFolded[index]++;
+            }
+            mPending[index] = true;
+            mPendingValues[index] = value;
+            mHasPending = true;
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.sendEmptyMessageDelayed(EVENT_FLUSH, mWindowMs);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deliver every pending indication now.
+     */
+    void flush() {
+        if (!mHasPending) return;
+
+        synchronized (this) {
+            // Dispatching only posts messages to the registrants, so it is done under the lock
+            // to keep concurrent flushes from delivering values out of order.
+            for (int i = 0; i < FOLDABLE_INDICATIONS.length; i++) {
+                if (mPending[i]) {
+                    Object value = mPendingValues[i];
+                    mPending[i] = false;
+                    mPendingValues[i] = null;
+                    mDispatcher.dispatchIndication(FOLDABLE_INDICATIONS[i], value);
+                }
+            }
+            mHasPending = false;
+            if (mFlushScheduled) {
+                mFlushScheduled = false;
+                mHandler.removeMessages(EVENT_FLUSH);
+            }
+        }
+    }
+
+    /**
+     * @return number of indications of this type that were replaced by a later one
+     */
+    @VisibleForTesting
+    synchronized long getFoldedCount(int unsolResponse) {
+        int index = indexOf(unsolResponse);
+        return index < 0 ? 0 : mFolded[index];
+    }
+
+    /**
+     * @return number of indications of this type offered for batching
+     */
+    @VisibleForTesting
+    synchronized long getReceivedCount(int unsolResponse) {
+        int index = indexOf(unsolResponse);
+        return index < 0 ? 0 : mReceived[index];
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" Indication batching: window=" + mWindowMs + "ms");
+        if (!isEnabled()) return;
+        for (int i = 0; i < FOLDABLE_INDICATIONS.length; i++) {
+            pw.println("  " + RIL.responseToString(FOLDABLE_INDICATIONS[i])
+                    + ": received=" + mReceived[i]
+                    + " folded=" + mFolded[i]);
+        }
+    }
+
+    private static int indexOf(int unsolResponse) {
+        for (int i = 0; i < FOLDABLE_INDICATIONS.length; i++) {
+            if (FOLDABLE_INDICATIONS[i] == unsolResponse) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.AsyncResult;
+import android.os.Message;
+import android.os.SystemClock;
+import android.telephony.SignalStrength;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Coalesces identical idempotent RIL queries.
+ *
+ * Bursts of network state indications make ServiceStateTracker poll the operator, registration
+ * states and network selection mode over and over. When such a query is already outstanding and
+ * was sent less than the freshness window ago, a new caller is attached to it instead of sending
+ * another request to the modem, and gets the same response (or error) when it arrives.
+ *
+ * Only requests that take no arguments are coalesced, so the request type alone identifies
+ * identical requests. A freshness window of 0 disables coalescing, which is the default in RIL:
+ * a caller polling because the network state just changed may attach to a query sent before the
+ * change, and so get the state from before it.
+ *
+ * {@hide}
+ */
+class RilRequestCoalescer {
+    private static final int[] COALESCABLE_REQUESTS = {
+        RIL_REQUEST_SIGNAL_STRENGTH,
+        RIL_REQUEST_VOICE_REGISTRATION_STATE,
+        RIL_REQUEST_DATA_REGISTRATION_STATE,
+        RIL_REQUEST_OPERATOR,
+        RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE,
+    };
+
+    private static final class Outstanding {
+        final RILRequest mRequest;
+        final int mSerial;
+        final long mStartTimeMs;
+        final ArrayList<Message> mFollowers = new ArrayList<Message>();
+
+        Outstanding(RILRequest rr) {
+            mRequest = rr;
+            mSerial = rr.mSerial;
+            mStartTimeMs = rr.mStartTimeMs;
+        }
+    }
+
+    private final long mFreshnessWindowMs;
+
+    // All fields below are guarded by mOutstanding
+    private final SparseArray<Outstanding> mOutstanding = new SparseArray<Outstanding>();
+    private final SparseArray<long[]> mCounters = new SparseArray<long[]>();
+    private static final int COUNTER_SENT = 0;
+    private static final int COUNTER_SAVED = 1;
+
+    /**
+     * @param freshnessWindowMs how old an outstanding request may be for new callers to attach
+     */
+    RilRequestCoalescer(long freshnessWindowMs) {
+        mFreshnessWindowMs = freshnessWindowMs;
+        for (int request : COALESCABLE_REQUESTS) {
+            mCounters.put(request, new long[2]);
+        }
+    }
+
+    static boolean isCoalescable(int request) {
+        for (int coalescable : COALESCABLE_REQUESTS) {
+            if (coalescable == request) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Attach a caller to an outstanding request of the same type, if there is a fresh one.
+     *
+     * @param request RIL_REQUEST_*
+     * @param result message to send the response to, may be null
+     * @return true if the caller was attached and no request must be sent
+     */
+    boolean attach(int request, Message result) {
+        if (mFreshnessWindowMs <= 0 || !isCoalescable(request)) return false;
+
+        synchronized (mOutstanding) {
+            Outstanding outstanding = mOutstanding.get(request);
+            if (outstanding == null
+                    || SystemClock.elapsedRealtime() - outstanding.mStartTimeMs
+                            > mFreshnessWindowMs) {
+                return false;
+            }
+            if (result != null) {
+                outstanding.mFollowers.add(result);
+            }
+            mCounters.get(request)[COUNTER_SAVED]++;
+        }
+        return true;
+    }
+
+    /**
+     * Record a request that was just added to the request list, so that identical requests can
+     * attach to it. Replaces any older outstanding request of the same type.
+     */
+    void onRequestAdded(RILRequest rr) {
+        if (mFreshnessWindowMs <= 0 || !isCoalescable(rr.mRequest)) return;
+
+        synchronized (mOutstanding) {
+            mOutstanding.put(rr.mRequest, new Outstanding(rr));
+            mCounters.get(rr.mRequest)[COUNTER_SENT]++;
+        }
+    }
+
+    /**
+     * Stop attaching callers to a request that was removed from the request list.
+     *
+     * @return the callers attached to it, or null if there are none
+     */
+    ArrayList<Message> onRequestRemoved(RILRequest rr) {
+        if (mFreshnessWindowMs <= 0 || !isCoalescable(rr.mRequest)) return null;
+
+        synchronized (mOutstanding) {
+            Outstanding outstanding = mOutstanding.get(rr.mRequest);
+            if (outstanding == null || outstanding.mRequest != rr
+                    || outstanding.mSerial != rr.mSerial) {
+                return null;
+            }
+            mOutstanding.remove(rr.mRequest);
+            return outstanding.mFollowers.isEmpty() ? null : outstanding.mFollowers;
+        }
+    }
+
+    /**
+     * Send a response to the attached callers. Each caller gets its own copy of mutable results.
+     *
+     * @param followers callers returned by {@link #onRequestRemoved}
+     * @param ret the response
+     * @param ex the error, or null on success
+     */
+    static void deliver(ArrayList<Message> followers, Object ret, Throwable ex) {
+        if (followers == null) return;
+        for (Message msg : followers) {
+            AsyncResult.forMessage(msg, copyResult(ret), ex);
+            msg.sendToTarget();
+        }
+    }
+
+    /**
+     * @return number of requests of this type sent to the modem with coalescing enabled
+     */
+    @VisibleForTesting
+    long getSentCount(int request) {
+        synchronized (mOutstanding) {
+            long[] counters = mCounters.get(request);
+            return counters == null ? 0 : counters[COUNTER_SENT];
+        }
+    }
+
+    /**
+     * @return number of modem round-trips saved by attaching callers to outstanding requests
+     */
+    @VisibleForTesting
+    long getSavedCount(int request) {
+        synchronized (mOutstanding) {
+            long[] counters = mCounters.get(request);
+            return counters == null ? 0 : counters[COUNTER_SAVED];
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" Request coalescing: freshness window=" + mFreshnessWindowMs + "ms");
+        synchronized (mOutstanding) {
+            for (int i = 0; i < mCounters.size(); i++) {
+                long[] counters = mCounters.valueAt(i);
+                pw.println("  " + RIL.requestToString(mCounters.keyAt(i))
+                        + ": sent=" + counters[COUNTER_SENT]
+                        + " saved=" + counters[COUNTER_SAVED]);
+            }
+        }
+    }
+
+    private static Object copyResult(Object ret) {
+        // ServiceStateTracker updates SignalStrength objects in place, and arrays are easy to
+        // modify by accident. HIDL registration state structs are only ever read.
+        if (ret instanceof SignalStrength) {
+            return new SignalStrength((SignalStrength) ret);
+        } else if (ret instanceof String[]) {
+            return ((String[]) ret).clone();
+        } else if (ret instanceof int[]) {
+            return ((int[]) ret).clone();
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of outstanding solicited RIL requests keyed by serial number.
+ *
+ * Requests are sent from arbitrary client threads and answered on HIDL binder threads, so the
+ * table is accessed concurrently from both sides. Serials are handed out sequentially by
+ * {@link RILRequest}, which makes {@code serial & mask} a good slot index: requests are placed
+ * in an open-addressed ring with compare-and-set and removed the same way, without taking a
+ * monitor. Entries are immutable holders, so a slot can never be confused with a later request
+ * that reuses the same pooled {@link RILRequest} object.
+ *
+ * If every slot of the ring is taken (which means the modem has not answered a few hundred
+ * requests) further requests go to a locked overflow map until the ring drains.
+ *
+ * {@hide}
+ */
+class RilRequestTable {
+    @VisibleForTesting
+    static final int DEFAULT_CAPACITY = 256;
+
+    private static final class Entry {
+        final int mSerial;
+        final RILRequest mRequest;
+
+        Entry(int serial, RILRequest request) {
+            mSerial = serial;
+            mRequest = request;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> mSlots;
+    private final int mMask;
+    private final AtomicInteger mSize = new AtomicInteger(0);
+    // Longest probe distance used by any insert so far; lookups never need to look further.
+    private final AtomicInteger mMaxProbe = new AtomicInteger(0);
+
+    // Only used once the ring is full; guarded by itself.
+    private final SparseArray<RILRequest> mOverflow = new SparseArray<RILRequest>();
+    private volatile int mOverflowCount = 0;
+
+    RilRequestTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of ring slots, rounded up to a power of two
+     */
+    @VisibleForTesting
+    RilRequestTable(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mSlots = new AtomicReferenceArray<Entry>(size);
+        mMask = size - 1;
+    }
+
+    /**
+     * Adds a request, keyed by its current serial number.
+     */
+    void put(RILRequest rr) {
+        Entry entry = new Entry(rr.mSerial, rr);
+        int start = entry.mSerial & mMask;
+        for (int probe = 0; probe <= mMask; probe++) {
+            int index = (start + probe) & mMask;
+            if (mSlots.get(index) != null) continue;
+
+            raiseMaxProbe(probe);
+            if (mSlots.compareAndSet(index, null, entry)) {
+                mSize.incrementAndGet();
+                return;
+            }
+        }
+
+        synchronized (mOverflow) {
+            mOverflow.put(entry.mSerial, rr);
+            mOverflowCount = mOverflow.size();
+        }
+        mSize.incrementAndGet();
+    }
+
+    /**
+     * @return the request with the given serial, or null if it is not outstanding
+     */
+    RILRequest get(int serial) {
+        int start = serial & mMask;
+        int maxProbe = mMaxProbe.get();
+        for (int probe = 0; probe <= maxProbe; probe++) {
+            Entry entry = mSlots.get((start + probe) & mMask);
+            if (entry != null && entry.mSerial == serial) {
+                return entry.mRequest;
+            }
+        }
+
+        if (mOverflowCount > 0) {
+            synchronized (mOverflow) {
+                return mOverflow.get(serial);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the request with the given serial.
+     *
+     * @return the removed request, or null if it was not outstanding or another thread removed
+     * it first
+     */
+    RILRequest remove(int serial) {
+        int start = serial & mMask;
+        int maxProbe = mMaxProbe.get();
+        for (int probe = 0; probe <= maxProbe; probe++) {
+            int index = (start + probe) & mMask;
+            Entry entry = mSlots.get(index);
+            if (entry != null && entry.mSerial == serial) {
+                if (mSlots.compareAndSet(index, entry, null)) {
+                    mSize.decrementAndGet();
+                    return entry.mRequest;
+                }
+                return null;
+            }
+        }
+
+        if (mOverflowCount > 0) {
+            synchronized (mOverflow) {
+                RILRequest rr = mOverflow.get(serial);
+                if (rr != null) {
+                    mOverflow.remove(serial);
+                    mOverflowCount = mOverflow.size();
+                    mSize.decrementAndGet();
+                }
+                return rr;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes every outstanding request.
+     *
+     * @return the removed requests
+     */
+    List<RILRequest> removeAll() {
+        ArrayList<RILRequest> removed = new ArrayList<RILRequest>(mSize.get());
+        for (int i = 0; i <= mMask; i++) {
+            Entry entry = mSlots.getAndSet(i, null);
+            if (entry != null) {
+                mSize.decrementAndGet();
+                removed.add(entry.mRequest);
+            }
+        }
+
+        if (mOverflowCount > 0) {
+            synchronized (mOverflow) {
+                for (int i = 0; i < mOverflow.size(); i++) {
+                    mSize.decrementAndGet();
+                    removed.add(mOverflow.valueAt(i));
+                }
+                mOverflow.clear();
+                mOverflowCount = 0;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the outstanding requests at the time of the call, for logging and dumps. The
+     * table is not locked, so requests added or removed concurrently may or may not be included.
+     */
+    List<RILRequest> snapshot() {
+        ArrayList<RILRequest> list = new ArrayList<RILRequest>(mSize.get());
+        for (int i = 0; i <= mMask; i++) {
+            Entry entry = mSlots.get(i);
+            if (entry != null) {
+                list.add(entry.mRequest);
+            }
+        }
+
+        if (mOverflowCount > 0) {
+            synchronized (mOverflow) {
+                for (int i = 0; i < mOverflow.size(); i++) {
+                    list.add(mOverflow.valueAt(i));
+                }
+            }
+        }
+        return list;
+    }
+
+    int size() {
+        return mSize.get();
+    }
+
+    @VisibleForTesting
+    int getCapacity() {
+        return mMask + 1;
+    }
+
+    private void raiseMaxProbe(int probe) {
+        int current;
+        while (probe > (current = mMaxProbe.get())) {
+            if (mMaxProbe.compareAndSet(current, probe)) return;
+        }
+    }
+}
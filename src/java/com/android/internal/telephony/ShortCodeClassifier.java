@@ -0,0 +1,573 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Classifies a destination address against the short code patterns of a country in a single
+ * pass, using one DFA compiled from all the patterns.
+ *
+ * The patterns are the regular expressions of the short code XML files. Only the syntax used
+ * for phone numbers is supported: digits, \d, character classes of digits, ".", groups,
+ * alternations and the greedy or reluctant quantifiers. {@link #compile} returns null for a
+ * pattern with any other syntax, and the pattern must then be matched with
+ * {@link java.util.regex.Pattern}. A destination is classified as the first of the free,
+ * standard, premium and short code patterns that matches all of it, like
+ * {@link java.util.regex.Matcher#matches}.
+ *
+ * Instances are immutable and can be used from any thread.
+ */
+final class ShortCodeClassifier {
+    // Input symbols: the ASCII digits, the line terminators, which "." does not match, and
+    // any other character.
+    private static final int SYMBOL_LINE_TERMINATOR = 10;
+    private static final int SYMBOL_OTHER = 11;
+    private static final int SYMBOLS = 12;
+
+    private static final int MASK_DIGITS = (1 << 10) - 1;
+    private static final int MASK_ALL = (1 << SYMBOLS) - 1;
+    private static final int MASK_DOT = MASK_ALL & ~(1 << SYMBOL_LINE_TERMINATOR);
+
+    // Limits on the size of the automata, beyond which the patterns are left to
+    // java.util.regex.
+    private static final int MAX_REPETITIONS = 32;
+    private static final int MAX_NFA_STATES = 20000;
+    private static final int MAX_DFA_STATES = 4096;
+
+    private static final int DEAD_STATE = -1;
+
+    // Next state for each state and input symbol, the start state being 0
+    private final int[] mTransitions;
+    // Category of the destinations ending in each state
+    private final int[] mCategories;
+
+    private ShortCodeClassifier(int[] transitions, int[] categories) {
+        mTransitions = transitions;
+        mCategories = categories;
+    }
+
+    /**
+     * @return the category of the destination, one of the SmsUsageMonitor CATEGORY_* values
+     */
+    int classify(String destAddress) {
+        int state = 0;
+        for (int i = 0, length = destAddress.length(); i < length; i++) {
+            state = mTransitions[state * SYMBOLS + getSymbol(destAddress.charAt(i))];
+            if (state == DEAD_STATE) {
+                return SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE;
+            }
+        }
+        return mCategories[state];
+    }
+
+    /**
+     * @return the number of states of the DFA
+     */
+    int getStateCount() {
+        return mCategories.length;
+    }
+
+    private static int getSymbol(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        switch (c) {
+            case '\n':
+            case '\r':
+            case '\u0085':
+            case '\u2028':
+            case '\u2029':
+                return SYMBOL_LINE_TERMINATOR;
+            default:
+                return SYMBOL_OTHER;
+        }
+    }
+
+    /**
+     * Compiles the patterns of a country, any of which may be null.
+     *
+     * @return the classifier, or null if a pattern is not supported or the DFA is too large
+     */
+    static ShortCodeClassifier compile(String shortCodeRegex, String premiumShortCodeRegex,
+            String freeShortCodeRegex, String standardShortCodeRegex) {
+        // In the order the patterns are tried by SmsUsageMonitor
+        String[] regexes = {freeShortCodeRegex, standardShortCodeRegex, premiumShortCodeRegex,
+                shortCodeRegex};
+        int[] categories = {SmsUsageMonitor.CATEGORY_FREE_SHORT_CODE,
+                SmsUsageMonitor.CATEGORY_STANDARD_SHORT_CODE,
+                SmsUsageMonitor.CATEGORY_PREMIUM_SHORT_CODE,
+                SmsUsageMonitor.CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE};
+
+        Nfa nfa = new Nfa();
+        int start;
+        try {
+            start = nfa.newState();
+            for (int i = 0; i < regexes.length; i++) {
+                if (regexes[i] == null) {
+                    continue;
+                }
+                Node node = new Parser(regexes[i]).parse();
+                int patternStart = nfa.newState();
+                nfa.addEpsilon(start, patternStart);
+                nfa.setAccept(nfa.build(node, patternStart), i);
+            }
+        } catch (UnsupportedPatternException e) {
+            return null;
+        }
+        return toDfa(nfa, start, categories);
+    }
+
+    /*
+     * Subset construction of the DFA. A DFA state is accepting for the first pattern accepted
+     * by any of its NFA states.
+     */
+    private static ShortCodeClassifier toDfa(Nfa nfa, int start, int[] patternCategories) {
+        HashMap<BitSet, Integer> stateIds = new HashMap<BitSet, Integer>();
+        ArrayList<BitSet> states = new ArrayList<BitSet>();
+        BitSet startState = new BitSet();
+        startState.set(start);
+        nfa.closure(startState);
+        stateIds.put(startState, 0);
+        states.add(startState);
+
+        int[] transitions = new int[SYMBOLS * 16];
+        for (int id = 0; id < states.size(); id++) {
+            BitSet state = states.get(id);
+            for (int symbol = 0; symbol < SYMBOLS; symbol++) {
+                BitSet next = nfa.move(state, symbol);
+                int nextId;
+                if (next.isEmpty()) {
+                    nextId = DEAD_STATE;
+                } else {
+                    nfa.closure(next);
+                    Integer existingId = stateIds.get(next);
+                    if (existingId != null) {
+                        nextId = existingId;
+                    } else {
+                        if (states.size() >= MAX_DFA_STATES) {
+                            return null;
+                        }
+                        nextId = states.size();
+                        stateIds.put(next, nextId);
+                        states.add(next);
+                    }
+                }
+                int index = id * SYMBOLS + symbol;
+                if (index >= transitions.length) {
+                    int[] grown = new int[transitions.length * 2];
+                    System.arraycopy(transitions, 0, grown, 0, transitions.length);
+                    transitions = grown;
+                }
+                transitions[index] = nextId;
+            }
+        }
+
+        int[] compactTransitions = new int[states.size() * SYMBOLS];
+        System.arraycopy(transitions, 0, compactTransitions, 0, compactTransitions.length);
+        int[] categories = new int[states.size()];
+        for (int id = 0; id < states.size(); id++) {
+            int pattern = nfa.getAcceptedPattern(states.get(id));
+            categories[id] = pattern < 0
+                    ? SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE : patternCategories[pattern];
+        }
+        return new ShortCodeClassifier(compactTransitions, categories);
+    }
+
+    private static final class UnsupportedPatternException extends Exception {
+        UnsupportedPatternException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Node of the syntax tree of a pattern.
+     */
+    private static final class Node {
+        static final int TYPE_SET = 0;
+        static final int TYPE_CONCAT = 1;
+        static final int TYPE_ALTERNATION = 2;
+        static final int TYPE_REPEAT = 3;
+
+        final int type;
+        // TYPE_SET: symbols matched
+        int mask;
+        // TYPE_CONCAT and TYPE_ALTERNATION: the nodes, TYPE_REPEAT: the repeated node
+        final ArrayList<Node> children = new ArrayList<Node>();
+        // TYPE_REPEAT: number of repetitions, max being -1 if unbounded
+        int min;
+        int max;
+
+        Node(int type) {
+            this.type = type;
+        }
+
+        static Node set(int mask) {
+            Node node = new Node(TYPE_SET);
+            node.mask = mask;
+            return node;
+        }
+    }
+
+    /**
+     * Recursive descent parser for the supported subset of java.util.regex syntax.
+     */
+    private static final class Parser {
+        private final String mRegex;
+        private int mPos;
+
+        Parser(String regex) {
+            mRegex = regex;
+        }
+
+        Node parse() throws UnsupportedPatternException {
+            // Anchors at the ends are implied by a match of the whole destination
+            if (peek('^')) {
+                mPos++;
+            }
+            Node node = parseAlternation();
+            if (peek('$') && mPos == mRegex.length() - 1) {
+                mPos++;
+            }
+            if (mPos != mRegex.length()) {
+                throw unsupported();
+            }
+            return node;
+        }
+
+        private Node parseAlternation() throws UnsupportedPatternException {
+            Node alternation = new Node(Node.TYPE_ALTERNATION);
+            alternation.children.add(parseConcatenation());
+            while (peek('|')) {
+                mPos++;
+                alternation.children.add(parseConcatenation());
+            }
+            return alternation.children.size() == 1 ? alternation.children.get(0) : alternation;
+        }
+
+        private Node parseConcatenation() throws UnsupportedPatternException {
+            Node concatenation = new Node(Node.TYPE_CONCAT);
+            while (mPos < mRegex.length() && !peek('|') && !peek(')')
+                    && !(peek('$') && mPos == mRegex.length() - 1)) {
+                concatenation.children.add(parseRepeat(parseAtom()));
+            }
+            return concatenation;
+        }
+
+        private Node parseAtom() throws UnsupportedPatternException {
+            char c = mRegex.charAt(mPos++);
+            if (c >= '0' && c <= '9') {
+                return Node.set(1 << (c - '0'));
+            }
+            switch (c) {
+                case '.':
+                    return Node.set(MASK_DOT);
+                case '\\':
+                    return Node.set(parseEscape());
+                case '[':
+                    return Node.set(parseClass());
+                case '(':
+                    if (mRegex.startsWith("?:", mPos)) {
+                        mPos += 2;
+                    } else if (peek('?')) {
+                        // Lookaround, named groups and flags
+                        throw unsupported();
+                    }
+                    Node group = parseAlternation();
+                    expect(')');
+                    return group;
+                default:
+                    throw unsupported();
+            }
+        }
+
+        private int parseEscape() throws UnsupportedPatternException {
+            if (mPos >= mRegex.length()) {
+                throw unsupported();
+            }
+            char c = mRegex.charAt(mPos++);
+            switch (c) {
+                case 'd':
+                    return MASK_DIGITS;
+                case 'D':
+                    return MASK_ALL & ~MASK_DIGITS;
+                default:
+                    throw unsupported();
+            }
+        }
+
+        private int parseClass() throws UnsupportedPatternException {
+            boolean negated = false;
+            if (peek('^')) {
+                negated = true;
+                mPos++;
+            }
+            int mask = 0;
+            boolean first = true;
+            while (first || !peek(']')) {
+                first = false;
+                if (mPos >= mRegex.length()) {
+                    throw unsupported();
+                }
+                char c = mRegex.charAt(mPos++);
+                if (c == '\\') {
+                    mask |= parseEscape();
+                } else if (c >= '0' && c <= '9') {
+                    if (peek('-') && mPos + 1 < mRegex.length()
+                            && mRegex.charAt(mPos + 1) != ']') {
+                        char last = mRegex.charAt(mPos + 1);
+                        if (last < c || last > '9') {
+                            throw unsupported();
+                        }
+                        mPos += 2;
+                        for (char d = c; d <= last; d++) {
+                            mask |= 1 << (d - '0');
+                        }
+                    } else {
+                        mask |= 1 << (c - '0');
+                    }
+                } else {
+                    // Other characters, nested classes and class operators
+                    throw unsupported();
+                }
+            }
+            mPos++;
+            return negated ? MASK_ALL & ~mask : mask;
+        }
+
+        private Node parseRepeat(Node atom) throws UnsupportedPatternException {
+            if (mPos >= mRegex.length()) {
+                return atom;
+            }
+            int min;
+            int max;
+            char c = mRegex.charAt(mPos);
+            if (c == '?') {
+                min = 0;
+                max = 1;
+                mPos++;
+            } else if (c == '*') {
+                min = 0;
+                max = -1;
+                mPos++;
+            } else if (c == '+') {
+                min = 1;
+                max = -1;
+                mPos++;
+            } else if (c == '{') {
+                mPos++;
+                min = parseNumber();
+                if (peek(',')) {
+                    mPos++;
+                    max = peek('}') ? -1 : parseNumber();
+                } else {
+                    max = min;
+                }
+                expect('}');
+                if (max != -1 && max < min) {
+                    throw unsupported();
+                }
+            } else {
+                return atom;
+            }
+            // A reluctant quantifier matches the same destinations, a possessive one may not.
+            if (peek('?')) {
+                mPos++;
+            } else if (peek('+') || peek('*') || peek('{')) {
+                throw unsupported();
+            }
+            Node repeat = new Node(Node.TYPE_REPEAT);
+            repeat.children.add(atom);
+            repeat.min = min;
+            repeat.max = max;
+            return repeat;
+        }
+
+        private int parseNumber() throws UnsupportedPatternException {
+            int start = mPos;
+            while (mPos < mRegex.length() && mRegex.charAt(mPos) >= '0'
+                    && mRegex.charAt(mPos) <= '9') {
+                mPos++;
+            }
+            if (mPos == start || mPos - start > 2) {
+                throw unsupported();
+            }
+            int number = Integer.parseInt(mRegex.substring(start, mPos));
+            if (number > MAX_REPETITIONS) {
+                throw unsupported();
+            }
+            return number;
+        }
+
+        private boolean peek(char c) {
+            return mPos < mRegex.length() && mRegex.charAt(mPos) == c;
+        }
+
+        private void expect(char c) throws UnsupportedPatternException {
+            if (!peek(c)) {
+                throw unsupported();
+            }
+            mPos++;
+        }
+
+        private UnsupportedPatternException unsupported() {
+            return new UnsupportedPatternException("Unsupported pattern " + mRegex + " at "
+                    + mPos);
+        }
+    }
+
+    /**
+     * Thompson NFA of the patterns, each state having symbol and epsilon transitions.
+     */
+    private static final class Nfa {
+        private final ArrayList<int[]> mSymbolMasks = new ArrayList<int[]>();
+        private final ArrayList<int[]> mSymbolTargets = new ArrayList<int[]>();
+        private final ArrayList<int[]> mEpsilonTargets = new ArrayList<int[]>();
+        // Pattern accepted by each state, or -1
+        private final ArrayList<Integer> mAcceptedPatterns = new ArrayList<Integer>();
+
+        int newState() throws UnsupportedPatternException {
+            if (mAcceptedPatterns.size() >= MAX_NFA_STATES) {
+                throw new UnsupportedPatternException("Too many states");
+            }
+            mSymbolMasks.add(new int[0]);
+            mSymbolTargets.add(new int[0]);
+            mEpsilonTargets.add(new int[0]);
+            mAcceptedPatterns.add(-1);
+            return mAcceptedPatterns.size() - 1;
+        }
+
+        private static int[] append(int[] array, int value) {
+            int[] appended = new int[array.length + 1];
+            System.arraycopy(array, 0, appended, 0, array.length);
+            appended[array.length] = value;
+            return appended;
+        }
+
+        void addEpsilon(int from, int to) {
+            mEpsilonTargets.set(from, append(mEpsilonTargets.get(from), to));
+        }
+
+        void addSymbols(int from, int mask, int to) {
+            mSymbolMasks.set(from, append(mSymbolMasks.get(from), mask));
+            mSymbolTargets.set(from, append(mSymbolTargets.get(from), to));
+        }
+
+        void setAccept(int state, int pattern) {
+            mAcceptedPatterns.set(state, pattern);
+        }
+
+        /**
+         * Adds the states matching node from state from.
+         *
+         * @return the state after node
+         */
+        int build(Node node, int from) throws UnsupportedPatternException {
+            switch (node.type) {
+                case Node.TYPE_SET: {
+                    int to = newState();
+                    addSymbols(from, node.mask, to);
+                    return to;
+                }
+                case Node.TYPE_CONCAT: {
+                    int state = from;
+                    for (Node child : node.children) {
+                        state = build(child, state);
+                    }
+                    return state;
+                }
+                case Node.TYPE_ALTERNATION: {
+                    int end = newState();
+                    for (Node child : node.children) {
+                        int childStart = newState();
+                        addEpsilon(from, childStart);
+                        addEpsilon(build(child, childStart), end);
+                    }
+                    return end;
+                }
+                case Node.TYPE_REPEAT: {
+                    Node child = node.children.get(0);
+                    int state = from;
+                    for (int i = 0; i < node.min; i++) {
+                        state = build(child, state);
+                    }
+                    if (node.max == -1) {
+                        int loop = newState();
+                        addEpsilon(state, loop);
+                        addEpsilon(build(child, loop), loop);
+                        return loop;
+                    }
+                    int end = newState();
+                    addEpsilon(state, end);
+                    for (int i = node.min; i < node.max; i++) {
+                        state = build(child, state);
+                        addEpsilon(state, end);
+                    }
+                    return end;
+                }
+                default:
+                    throw new UnsupportedPatternException("Unknown node " + node.type);
+            }
+        }
+
+        /** Adds the states reachable through epsilon transitions. */
+        void closure(BitSet states) {
+            ArrayList<Integer> pending = new ArrayList<Integer>();
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                pending.add(s);
+            }
+            while (!pending.isEmpty()) {
+                int s = pending.remove(pending.size() - 1);
+                for (int to : mEpsilonTargets.get(s)) {
+                    if (!states.get(to)) {
+                        states.set(to);
+                        pending.add(to);
+                    }
+                }
+            }
+        }
+
+        /** @return the states reached from states on the symbol, without closure */
+        BitSet move(BitSet states, int symbol) {
+            BitSet next = new BitSet();
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                int[] masks = mSymbolMasks.get(s);
+                int[] targets = mSymbolTargets.get(s);
+                for (int i = 0; i < masks.length; i++) {
+                    if ((masks[i] & (1 << symbol)) != 0) {
+                        next.set(targets[i]);
+                    }
+                }
+            }
+            return next;
+        }
+
+        /** @return the first pattern accepted by any of the states, or -1 */
+        int getAcceptedPattern(BitSet states) {
+            int accepted = -1;
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                int pattern = mAcceptedPatterns.get(s);
+                if (pattern >= 0 && (accepted < 0 || pattern < accepted)) {
+                    accepted = pattern;
+                }
+            }
+            return accepted;
+        }
+    }
+}
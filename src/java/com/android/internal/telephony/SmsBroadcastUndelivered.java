@@ -19,16 +19,21 @@ package com.android.internal.telephony;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.ContentValues;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.preference.PreferenceManager;
 import android.telephony.Rlog;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.cdma.CdmaInboundSmsHandler;
 import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
+import com.android.internal.util.HexDump;
 
 import java.util.HashMap;
 import java.util.HashSet;
@@ -64,6 +69,18 @@ public class SmsBroadcastUndelivered {
             "display_originating_addr"
     };
 
+    /** Query projection for converting hex string PDUs to BLOBs. */
+    private static final String[] PDU_MIGRATION_PROJECTION = {
+            "_id",
+            "pdu"
+    };
+
+    /** Selects the rows that still hold a hex string PDU. */
+    private static final String SELECT_HEX_PDU = "typeof(pdu)='text'";
+
+    /** Shared preference set once the raw table PDUs have been converted to BLOBs. */
+    private static final String PREF_RAW_PDU_MIGRATED = "sms_raw_pdu_migrated_to_blob";
+
     private static SmsBroadcastUndelivered instance;
 
     /** Content resolver to use to access raw table from SmsProvider. */
@@ -99,6 +116,7 @@ public class SmsBroadcastUndelivered {
         public void run() {
             scanRawTable();
             InboundSmsHandler.cancelNewMessageNotification(context);
+            migrateRawTablePdus(context);
         }
     }
 
@@ -219,6 +237,61 @@ public class SmsBroadcastUndelivered {
         }
     }
 
+    /**
+     * Convert the hex string PDUs left in the raw table by older versions to BLOBs, once.
+     * Rows in either format can be read at any time, so this only reclaims space and saves
+     * decoding the remaining rows, and it can safely run while new messages are received.
+     */
+    private void migrateRawTablePdus(Context context) {
+        if (!InboundSmsTracker.STORE_BINARY_PDU) return;
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        if (sp.getBoolean(PREF_RAW_PDU_MIGRATED, false)) return;
+
+        long startTime = System.nanoTime();
+        int rows = migrateRawTablePdus(mResolver);
+        if (rows >= 0) {
+            sp.edit().putBoolean(PREF_RAW_PDU_MIGRATED, true).apply();
+            if (DBG) Rlog.d(TAG, "converted " + rows + " raw table PDUs to BLOBs in "
+                    + ((System.nanoTime() - startTime) / 1000000) + " ms");
+        }
+    }
+
+    /**
+     * Convert the hex string PDUs in the raw table to BLOBs.
+     * @return the number of rows converted, or -1 if the raw table could not be updated
+     */
+    @VisibleForTesting
+    static int migrateRawTablePdus(ContentResolver resolver) {
+        int rows = 0;
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(InboundSmsHandler.sRawUri, PDU_MIGRATION_PROJECTION,
+                    SELECT_HEX_PDU, null, null);
+            if (cursor == null) {
+                Rlog.e(TAG, "error getting raw table cursor for PDU conversion");
+                return -1;
+            }
+            ContentValues values = new ContentValues(1);
+            while (cursor.moveToNext()) {
+                String hexPdu = cursor.getString(1);
+                if (hexPdu == null) continue;
+                values.put("pdu", HexDump.hexStringToByteArray(hexPdu));
+                // Only convert the row if it was not changed in the meantime
+                rows += resolver.update(InboundSmsHandler.sRawUri, values,
+                        InboundSmsHandler.SELECT_BY_ID + " AND pdu=?",
+                        new String[]{Long.toString(cursor.getLong(0)), hexPdu});
+            }
+        } catch (SQLException | IllegalArgumentException | UnsupportedOperationException e) {
+            Rlog.e(TAG, "error converting raw table PDUs", e);
+            return -1;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
+
     /**
      * Send tracker to appropriate (3GPP or 3GPP2) inbound SMS handler for broadcast.
      */
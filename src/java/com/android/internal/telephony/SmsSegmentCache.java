@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * In-memory copy of the segments of concatenated SMS that are waiting in the raw table.
+ *
+ * The raw table stays the source of truth: segments are always written there first, and the
+ * cache is only a write-through copy that saves {@link InboundSmsHandler} from querying the
+ * table and decoding every stored PDU again each time a segment arrives. An entry is created
+ * from the raw table the first time a message is looked up, so segments stored before a
+ * process restart are still taken into account. The number of entries is bounded; messages
+ * whose entry was evicted simply fall back to the raw table.
+ *
+ * Not thread safe; only used from the InboundSmsHandler state machine thread.
+ */
+class SmsSegmentCache {
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 32;
+
+    /** Segments received so far for one concatenated message */
+    static class Segments {
+        private final byte[][] mPdus;
+        private final int[] mDestPorts;
+        private final String[] mDisplayAddresses;
+        private int mReceived;
+
+        Segments(int messageCount) {
+            mPdus = new byte[messageCount][];
+            mDestPorts = new int[messageCount];
+            mDisplayAddresses = new String[messageCount];
+        }
+
+        /**
+         * Add a segment. Segments with an invalid index are ignored.
+         * @param index 0-based index of the segment
+         * @param pdu the segment PDU
+         * @param destPort the real destination port of the segment, or -1
+         * @param displayAddress the display originating address of the segment
+         */
+        void add(int index, byte[] pdu, int destPort, String displayAddress) {
+            if (index < 0 || index >= mPdus.length || pdu == null) return;
+            if (mPdus[index] == null) {
+                mReceived++;
+            }
+            mPdus[index] = pdu;
+            mDestPorts[index] = destPort;
+            mDisplayAddresses[index] = displayAddress;
+        }
+
+        int getReceivedCount() {
+            return mReceived;
+        }
+
+        boolean isComplete() {
+            return mReceived == mPdus.length;
+        }
+
+        /** @return the segment PDUs, ordered by index */
+        byte[][] getPdus() {
+            return mPdus;
+        }
+
+        /**
+         * @return the destination port of the first segment, or -1 if it has none or was not
+         * received
+         */
+        int getFirstSegmentDestPort() {
+            return mPdus.length > 0 && mPdus[0] != null ? mDestPorts[0] : -1;
+        }
+
+        /** @return the display originating addresses, ordered by segment index */
+        String[] getDisplayAddresses() {
+            return mDisplayAddresses;
+        }
+    }
+
+    private static final class Key {
+        final String mAddress;
+        final int mReferenceNumber;
+        final int mMessageCount;
+        final boolean mIs3gpp2WapPdu;
+
+        Key(InboundSmsTracker tracker) {
+            mAddress = tracker.getAddress();
+            mReferenceNumber = tracker.getReferenceNumber();
+            mMessageCount = tracker.getMessageCount();
+            // 3GPP2 WAP segments are selected separately from other segments in the raw table
+            mIs3gpp2WapPdu = tracker.is3gpp2WapPdu();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return mReferenceNumber == other.mReferenceNumber
+                    && mMessageCount == other.mMessageCount
+                    && mIs3gpp2WapPdu == other.mIs3gpp2WapPdu
+                    && Objects.equals(mAddress, other.mAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mAddress, mReferenceNumber, mMessageCount, mIs3gpp2WapPdu);
+        }
+    }
+
+    private final LinkedHashMap<Key, Segments> mEntries =
+            new LinkedHashMap<Key, Segments>(16, 0.75f, true /* access order */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Segments> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * @return the cached segments of the tracker's message, or null if the raw table must be
+     * queried
+     */
+    Segments get(InboundSmsTracker tracker) {
+        Segments segments = mEntries.get(new Key(tracker));
+        if (segments != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return segments;
+    }
+
+    /**
+     * Cache the segments of the tracker's message, as loaded from the raw table.
+     */
+    void put(InboundSmsTracker tracker, Segments segments) {
+        mEntries.put(new Key(tracker), segments);
+    }
+
+    /**
+     * Add a segment that was just written to the raw table. Nothing is cached if the message has
+     * no entry yet: the entry will be loaded from the raw table, including this segment.
+     */
+    void onSegmentStored(InboundSmsTracker tracker) {
+        Segments segments = mEntries.get(new Key(tracker));
+        if (segments != null) {
+            segments.add(tracker.getSequenceNumber() - tracker.getIndexOffset(),
+                    tracker.getPdu(), tracker.getDestPort(), tracker.getDisplayAddress());
+        }
+    }
+
+    /**
+     * Forget the tracker's message, e.g. once it has been delivered.
+     */
+    void remove(InboundSmsTracker tracker) {
+        mEntries.remove(new Key(tracker));
+    }
+
+    @VisibleForTesting
+    int size() {
+        return mEntries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SmsSegmentCache{entries=" + mEntries.size() + " hits=" + mHits
+                + " misses=" + mMisses + "}";
+    }
+}
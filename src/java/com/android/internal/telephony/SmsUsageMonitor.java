@@ -33,6 +33,7 @@ import android.telephony.Rlog;
 import android.util.AtomicFile;
 import android.util.Xml;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.XmlUtils;
 
@@ -41,17 +42,20 @@ import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -111,17 +115,26 @@ public class SmsUsageMonitor {
     private final int mCheckPeriod;
     private final int mMaxAllowed;
 
-    private final HashMap<String, ArrayList<Long>> mSmsStamp =
-            new HashMap<String, ArrayList<Long>>();
+    /** Rate limiter of each app that sent SMS in the checking period, by package name. */
+    private final ConcurrentHashMap<String, SmsRateLimiter> mSmsRateLimiters =
+            new ConcurrentHashMap<String, SmsRateLimiter>();
+
+    /** Time after which the rate limiters of apps not sending SMS are removed. */
+    private final AtomicLong mNextRateLimiterSweepTime = new AtomicLong();
 
     /** Context for retrieving regexes from XML resource. */
     private final Context mContext;
 
-    /** Country code for the cached short code pattern matcher. */
-    private String mCurrentCountry;
+    /**
+     * Cached short code pattern matchers by country code, for the pattern file last modified
+     * at {@link #mPatternFileLastModified}. Countries without patterns map to
+     * {@link #NO_PATTERN_MATCHER}.
+     */
+    private final ConcurrentHashMap<String, ShortCodePatternMatcher> mPatternMatchers =
+            new ConcurrentHashMap<String, ShortCodePatternMatcher>();
 
-    /** Cached short code pattern matcher for {@link #mCurrentCountry}. */
-    private ShortCodePatternMatcher mCurrentPatternMatcher;
+    /** Short code pattern matcher of the last country checked. */
+    private volatile ShortCodePatternMatcher mCurrentPatternMatcher;
 
     /** Notice when the enabled setting changes - can be changed through gservices */
     private final AtomicBoolean mCheckEnabled = new AtomicBoolean(true);
@@ -133,7 +146,7 @@ public class SmsUsageMonitor {
     private final File mPatternFile = new File(SHORT_CODE_PATH);
 
     /** Last modified time for pattern file */
-    private long mPatternFileLastModified = 0;
+    private volatile long mPatternFileLastModified = 0;
 
     /** Directory for per-app SMS permission XML file. */
     private static final String SMS_POLICY_FILE_DIRECTORY = "/data/misc/sms";
@@ -182,8 +195,12 @@ public class SmsUsageMonitor {
 
     /**
      * SMS short code regex pattern matcher for a specific country.
+     *
+     * The patterns are compiled into a single {@link ShortCodeClassifier} when their syntax
+     * allows it, and matched one after the other with {@link Pattern} otherwise.
      */
     private static final class ShortCodePatternMatcher {
+        private final ShortCodeClassifier mClassifier;
         private final Pattern mShortCodePattern;
         private final Pattern mPremiumShortCodePattern;
         private final Pattern mFreeShortCodePattern;
@@ -191,6 +208,16 @@ public class SmsUsageMonitor {
 
         ShortCodePatternMatcher(String shortCodeRegex, String premiumShortCodeRegex,
                 String freeShortCodeRegex, String standardShortCodeRegex) {
+            mClassifier = ShortCodeClassifier.compile(shortCodeRegex, premiumShortCodeRegex,
+                    freeShortCodeRegex, standardShortCodeRegex);
+            if (mClassifier != null) {
+                mShortCodePattern = null;
+                mPremiumShortCodePattern = null;
+                mFreeShortCodePattern = null;
+                mStandardShortCodePattern = null;
+                return;
+            }
+            if (DBG) Rlog.d(TAG, "Short code patterns not compiled, using regex");
             mShortCodePattern = (shortCodeRegex != null ? Pattern.compile(shortCodeRegex) : null);
             mPremiumShortCodePattern = (premiumShortCodeRegex != null ?
                     Pattern.compile(premiumShortCodeRegex) : null);
@@ -201,6 +228,9 @@ public class SmsUsageMonitor {
         }
 
         int getNumberCategory(String phoneNumber) {
+            if (mClassifier != null) {
+                return mClassifier.classify(phoneNumber);
+            }
             if (mFreeShortCodePattern != null && mFreeShortCodePattern.matcher(phoneNumber)
                     .matches()) {
                 return CATEGORY_FREE_SHORT_CODE;
@@ -220,6 +250,58 @@ public class SmsUsageMonitor {
         }
     }
 
+    /** Placeholder in {@link #mPatternMatchers} for a country without patterns. */
+    private static final ShortCodePatternMatcher NO_PATTERN_MATCHER =
+            new ShortCodePatternMatcher(null, null, null, null);
+
+    /**
+     * Sliding window rate limiter of the SMS sent by an app. The send times in the checking
+     * period are kept in a ring of primitive timestamps, oldest first, which can't hold more
+     * than the maximum number of SMS allowed in the period. Access must be synchronized on the
+     * limiter.
+     */
+    private static final class SmsRateLimiter {
+        private final long[] mTimestamps;
+        // Index of the oldest timestamp, and number of timestamps
+        private int mHead;
+        private int mSize;
+        /** Set when the limiter is removed from {@link #mSmsRateLimiters}. */
+        boolean mRemoved;
+
+        SmsRateLimiter(int maxAllowed) {
+            mTimestamps = new long[Math.max(maxAllowed, 0)];
+        }
+
+        /** Remove the timestamps before the checking period. */
+        void removeExpiredTimestamps(long beginCheckPeriod) {
+            while (mSize > 0 && mTimestamps[mHead] < beginCheckPeriod) {
+                mHead = (mHead + 1) % mTimestamps.length;
+                mSize--;
+            }
+        }
+
+        /**
+         * @return true and add the timestamps of the new messages if they are under the limit
+         */
+        boolean isUnderLimit(long now, long beginCheckPeriod, int smsWaiting) {
+            removeExpiredTimestamps(beginCheckPeriod);
+            if (smsWaiting > mTimestamps.length - mSize) {
+                return false;
+            }
+            for (int i = 0; i < smsWaiting; i++) {
+                mTimestamps[(mHead + mSize) % mTimestamps.length] = now;
+                mSize++;
+            }
+            return true;
+        }
+
+        /** @return the number of messages sent since beginCheckPeriod */
+        int getCount(long beginCheckPeriod) {
+            removeExpiredTimestamps(beginCheckPeriod);
+            return mSize;
+        }
+    }
+
     /**
      * Observe the secure setting for enable flag
      */
@@ -289,7 +371,6 @@ public class SmsUsageMonitor {
         } catch (XmlPullParserException e) {
             Rlog.e(TAG, "XML parser exception reading short code pattern file", e);
         } finally {
-            mPatternFileLastModified = mPatternFile.lastModified();
             if (patternReader != null) {
                 try {
                     patternReader.close();
@@ -348,7 +429,7 @@ public class SmsUsageMonitor {
 
     /** Clear the SMS application list for disposal. */
     void dispose() {
-        mSmsStamp.clear();
+        mSmsRateLimiters.clear();
     }
 
     /**
@@ -362,16 +443,31 @@ public class SmsUsageMonitor {
      *  of new sms messages
      */
     public boolean check(String appName, int smsWaiting) {
-        synchronized (mSmsStamp) {
-            removeExpiredTimestamps();
+        return check(appName, smsWaiting, System.currentTimeMillis());
+    }
 
-            ArrayList<Long> sentList = mSmsStamp.get(appName);
-            if (sentList == null) {
-                sentList = new ArrayList<Long>();
-                mSmsStamp.put(appName, sentList);
+    @VisibleForTesting
+    boolean check(String appName, int smsWaiting, long now) {
+        long beginCheckPeriod = now - mCheckPeriod;
+        removeExpiredRateLimiters(now, beginCheckPeriod);
+
+        while (true) {
+            SmsRateLimiter limiter = mSmsRateLimiters.get(appName);
+            if (limiter == null) {
+                limiter = new SmsRateLimiter(mMaxAllowed);
+                SmsRateLimiter existing = mSmsRateLimiters.putIfAbsent(appName, limiter);
+                if (existing != null) {
+                    limiter = existing;
+                }
+            }
+            synchronized (limiter) {
+                // Retry with a new limiter if this one was just removed
+                if (!limiter.mRemoved) {
+                    if (VDBG) log("SMS send size=" + limiter.getCount(beginCheckPeriod)
+                            + " time=" + now);
+                    return limiter.isUnderLimit(now, beginCheckPeriod, smsWaiting);
+                }
             }
-
-            return isUnderLimit(sentList, smsWaiting);
         }
     }
 
@@ -390,43 +486,70 @@ public class SmsUsageMonitor {
      *  {@link #CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE}, or {@link #CATEGORY_PREMIUM_SHORT_CODE}.
      */
     public int checkDestination(String destAddress, String countryIso) {
-        synchronized (mSettingsObserverHandler) {
-            // always allow emergency numbers
-            if (PhoneNumberUtils.isEmergencyNumber(destAddress, countryIso)) {
-                if (DBG) Rlog.d(TAG, "isEmergencyNumber");
-                return CATEGORY_NOT_SHORT_CODE;
-            }
-            // always allow if the feature is disabled
-            if (!mCheckEnabled.get()) {
-                if (DBG) Rlog.e(TAG, "check disabled");
+        // always allow emergency numbers
+        if (PhoneNumberUtils.isEmergencyNumber(destAddress, countryIso)) {
+            if (DBG) Rlog.d(TAG, "isEmergencyNumber");
+            return CATEGORY_NOT_SHORT_CODE;
+        }
+        // always allow if the feature is disabled
+        if (!mCheckEnabled.get()) {
+            if (DBG) Rlog.e(TAG, "check disabled");
+            return CATEGORY_NOT_SHORT_CODE;
+        }
+
+        ShortCodePatternMatcher patternMatcher;
+        if (countryIso != null) {
+            patternMatcher = getPatternMatcher(countryIso);
+            mCurrentPatternMatcher = patternMatcher;
+        } else {
+            patternMatcher = mCurrentPatternMatcher;
+        }
+
+        if (patternMatcher != null && patternMatcher != NO_PATTERN_MATCHER) {
+            return patternMatcher.getNumberCategory(destAddress);
+        } else {
+            // Generic rule: numbers of 5 digits or less are considered potential short codes
+            Rlog.e(TAG, "No patterns for \"" + countryIso + "\": using generic short code rule");
+            if (destAddress.length() <= 5) {
+                return CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+            } else {
                 return CATEGORY_NOT_SHORT_CODE;
             }
+        }
+    }
 
-            if (countryIso != null) {
-                if (mCurrentCountry == null || !countryIso.equals(mCurrentCountry) ||
-                        mPatternFile.lastModified() != mPatternFileLastModified) {
-                    if (mPatternFile.exists()) {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
-                        mCurrentPatternMatcher = getPatternMatcherFromFile(countryIso);
-                    } else {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
-                        mCurrentPatternMatcher = getPatternMatcherFromResource(countryIso);
-                    }
-                    mCurrentCountry = countryIso;
-                }
+    /**
+     * Return the cached pattern matcher for the specified country, loading it if the country
+     * was not checked since the pattern file was last modified.
+     * @param country the country to search for
+     * @return the {@link ShortCodePatternMatcher}, or {@link #NO_PATTERN_MATCHER} if not found
+     */
+    private ShortCodePatternMatcher getPatternMatcher(String country) {
+        long lastModified = mPatternFile.lastModified();
+        ShortCodePatternMatcher patternMatcher = mPatternMatchers.get(country);
+        if (patternMatcher != null && lastModified == mPatternFileLastModified) {
+            return patternMatcher;
+        }
+        synchronized (mSettingsObserverHandler) {
+            if (lastModified != mPatternFileLastModified) {
+                mPatternMatchers.clear();
+                mPatternFileLastModified = lastModified;
             }
-
-            if (mCurrentPatternMatcher != null) {
-                return mCurrentPatternMatcher.getNumberCategory(destAddress);
-            } else {
-                // Generic rule: numbers of 5 digits or less are considered potential short codes
-                Rlog.e(TAG, "No patterns for \"" + countryIso + "\": using generic short code rule");
-                if (destAddress.length() <= 5) {
-                    return CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+            patternMatcher = mPatternMatchers.get(country);
+            if (patternMatcher == null) {
+                if (mPatternFile.exists()) {
+                    if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
+                    patternMatcher = getPatternMatcherFromFile(country);
                 } else {
-                    return CATEGORY_NOT_SHORT_CODE;
+                    if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
+                    patternMatcher = getPatternMatcherFromResource(country);
                 }
+                if (patternMatcher == null) {
+                    patternMatcher = NO_PATTERN_MATCHER;
+                }
+                mPatternMatchers.put(country, patternMatcher);
             }
+            return patternMatcher;
         }
     }
 
@@ -607,41 +730,44 @@ public class SmsUsageMonitor {
     }
 
     /**
-     * Remove keys containing only old timestamps. This can happen if an SMS app is used
-     * to send messages and then uninstalled.
+     * Remove the rate limiters containing only old timestamps, at most once per checking
+     * period. This can happen if an SMS app is used to send messages and then uninstalled.
      */
-    private void removeExpiredTimestamps() {
-        long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
-
-        synchronized (mSmsStamp) {
-            Iterator<Map.Entry<String, ArrayList<Long>>> iter = mSmsStamp.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, ArrayList<Long>> entry = iter.next();
-                ArrayList<Long> oldList = entry.getValue();
-                if (oldList.isEmpty() || oldList.get(oldList.size() - 1) < beginCheckPeriod) {
+    @VisibleForTesting
+    void removeExpiredRateLimiters(long now, long beginCheckPeriod) {
+        long nextSweepTime = mNextRateLimiterSweepTime.get();
+        if (now < nextSweepTime
+                || !mNextRateLimiterSweepTime.compareAndSet(nextSweepTime, now + mCheckPeriod)) {
+            return;
+        }
+        Iterator<SmsRateLimiter> iter = mSmsRateLimiters.values().iterator();
+        while (iter.hasNext()) {
+            SmsRateLimiter limiter = iter.next();
+            synchronized (limiter) {
+                if (limiter.getCount(beginCheckPeriod) == 0) {
+                    limiter.mRemoved = true;
                     iter.remove();
                 }
             }
         }
     }
 
-    private boolean isUnderLimit(ArrayList<Long> sent, int smsWaiting) {
-        Long ct = System.currentTimeMillis();
-        long beginCheckPeriod = ct - mCheckPeriod;
-
-        if (VDBG) log("SMS send size=" + sent.size() + " time=" + ct);
-
-        while (!sent.isEmpty() && sent.get(0) < beginCheckPeriod) {
-            sent.remove(0);
-        }
-
-        if ((sent.size() + smsWaiting) <= mMaxAllowed) {
-            for (int i = 0; i < smsWaiting; i++ ) {
-                sent.add(ct);
+    /**
+     * Dump the number of SMS each app sent in the checking period.
+     */
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
+        pw.println("SmsUsageMonitor: mCheckPeriod=" + mCheckPeriod + " mMaxAllowed="
+                + mMaxAllowed);
+        for (Map.Entry<String, SmsRateLimiter> entry : mSmsRateLimiters.entrySet()) {
+            SmsRateLimiter limiter = entry.getValue();
+            int count;
+            synchronized (limiter) {
+                count = limiter.getCount(beginCheckPeriod);
             }
-            return true;
+            pw.println("  " + entry.getKey() + ": " + count + "/" + mMaxAllowed);
         }
-        return false;
+        pw.flush();
     }
 
     private static void log(String msg) {
@@ -617,6 +617,17 @@ public class ApnSetting {
                 && xorEquals(this.mmsPort, other.mmsPort));
     }
 
+    /**
+     * Returns the fields that {@link #similar} requires to be equal. Two APN settings can only
+     * be similar if their keys are equal, and merging them keeps the key.
+     *
+     * @return a key to group APN settings that may be similar
+     */
+    Object getSimilarityKey() {
+        return Arrays.asList(apn, carrierEnabled, bearerBitmask, profileId, mvnoType,
+                mvnoMatchData);
+    }
+
     // check whether the types of two APN same (even only one type of each APN is same)
     private boolean typeSameAny(ApnSetting first, ApnSetting second) {
         if (VDBG) {
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.telephony.ServiceState;
+
+import com.android.internal.telephony.PhoneConstants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Immutable index of the APN settings loaded for the current operator, giving the APNs that can
+ * handle each APN type.
+ *
+ * {@link ApnSetting#canHandleType} compares the type strings of an APN with the requested type
+ * and the wildcards. The index evaluates it once per APN and type when the APN list is loaded,
+ * so selecting the APNs for a request only reads the candidates of the type and their bearer
+ * bitmasks. Candidates are in the order of the APN list.
+ *
+ * Types that are not in {@link #APN_TYPES} are not indexed, and fall back to a scan of the list.
+ */
+final class ApnSettingIndex {
+    /** APN types that are indexed */
+    private static final String[] APN_TYPES = {
+            PhoneConstants.APN_TYPE_DEFAULT,
+            PhoneConstants.APN_TYPE_MMS,
+            PhoneConstants.APN_TYPE_SUPL,
+            PhoneConstants.APN_TYPE_DUN,
+            PhoneConstants.APN_TYPE_HIPRI,
+            PhoneConstants.APN_TYPE_FOTA,
+            PhoneConstants.APN_TYPE_IMS,
+            PhoneConstants.APN_TYPE_CBS,
+            PhoneConstants.APN_TYPE_IA,
+            PhoneConstants.APN_TYPE_EMERGENCY,
+    };
+
+    private static final HashMap<String, Integer> TYPE_INDEXES = new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < APN_TYPES.length; i++) {
+            TYPE_INDEXES.put(APN_TYPES[i], i);
+        }
+    }
+
+    /** The list the index was built from */
+    private final List<ApnSetting> mApnSettings;
+    /** The APNs that can handle each type of APN_TYPES */
+    private final ApnSetting[][] mCandidates;
+    /** The bearer bitmasks of the candidates */
+    private final int[][] mBearerBitmasks;
+
+    /**
+     * @param apnSettings the APN settings to index, or null. The index is only valid as long
+     *        as the list is not modified.
+     */
+    ApnSettingIndex(List<ApnSetting> apnSettings) {
+        mApnSettings = apnSettings;
+        int size = apnSettings != null ? apnSettings.size() : 0;
+
+        // Bit i of the type mask of an APN is set if it can handle APN_TYPES[i]
+        int[] typeMasks = new int[size];
+        int[] candidateCounts = new int[APN_TYPES.length];
+        for (int apn = 0; apn < size; apn++) {
+            ApnSetting apnSetting = apnSettings.get(apn);
+            for (int type = 0; type < APN_TYPES.length; type++) {
+                if (apnSetting.canHandleType(APN_TYPES[type])) {
+                    typeMasks[apn] |= 1 << type;
+                    candidateCounts[type]++;
+                }
+            }
+        }
+
+        mCandidates = new ApnSetting[APN_TYPES.length][];
+        mBearerBitmasks = new int[APN_TYPES.length][];
+        for (int type = 0; type < APN_TYPES.length; type++) {
+            ApnSetting[] candidates = new ApnSetting[candidateCounts[type]];
+            int[] bearerBitmasks = new int[candidateCounts[type]];
+            int count = 0;
+            for (int apn = 0; apn < size; apn++) {
+                if ((typeMasks[apn] & (1 << type)) != 0) {
+                    candidates[count] = apnSettings.get(apn);
+                    bearerBitmasks[count] = candidates[count].bearerBitmask;
+                    count++;
+                }
+            }
+            mCandidates[type] = candidates;
+            mBearerBitmasks[type] = bearerBitmasks;
+        }
+    }
+
+    /**
+     * @return true if the index was built from the specified list
+     */
+    boolean isIndexOf(List<ApnSetting> apnSettings) {
+        return mApnSettings == apnSettings;
+    }
+
+    /**
+     * @param type the requested APN type
+     * @return the APNs that can handle the type, in the order of the APN list
+     */
+    ArrayList<ApnSetting> getApns(String type) {
+        int typeIndex = getTypeIndex(type);
+        if (typeIndex < 0) {
+            return scanApns(type, ServiceState.RIL_RADIO_TECHNOLOGY_UNKNOWN, false);
+        }
+        ApnSetting[] candidates = mCandidates[typeIndex];
+        ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>(candidates.length);
+        for (ApnSetting candidate : candidates) {
+            apns.add(candidate);
+        }
+        return apns;
+    }
+
+    /**
+     * @param type the requested APN type
+     * @param radioTech the radio technology the APNs must support
+     * @return the APNs that can handle the type on the radio technology, in the order of the
+     *         APN list
+     */
+    ArrayList<ApnSetting> getApns(String type, int radioTech) {
+        int typeIndex = getTypeIndex(type);
+        if (typeIndex < 0) {
+            return scanApns(type, radioTech, true);
+        }
+        ApnSetting[] candidates = mCandidates[typeIndex];
+        int[] bearerBitmasks = mBearerBitmasks[typeIndex];
+        ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>(candidates.length);
+        for (int i = 0; i < candidates.length; i++) {
+            if (ServiceState.bitmaskHasTech(bearerBitmasks[i], radioTech)) {
+                apns.add(candidates[i]);
+            }
+        }
+        return apns;
+    }
+
+    /**
+     * @return the index of type in APN_TYPES, or -1 if it is not indexed
+     */
+    private static int getTypeIndex(String type) {
+        Integer typeIndex = TYPE_INDEXES.get(type);
+        if (typeIndex == null) {
+            // ApnSetting#canHandleType ignores the case of the requested type
+            typeIndex = TYPE_INDEXES.get(type.toLowerCase(Locale.ROOT));
+        }
+        return typeIndex != null ? typeIndex : -1;
+    }
+
+    private ArrayList<ApnSetting> scanApns(String type, int radioTech, boolean checkRadioTech) {
+        ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>();
+        if (mApnSettings != null) {
+            for (ApnSetting apn : mApnSettings) {
+                if (apn.canHandleType(type) && (!checkRadioTech
+                        || ServiceState.bitmaskHasTech(apn.bearerBitmask, radioTech))) {
+                    apns.add(apn);
+                }
+            }
+        }
+        return apns;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ApnSettingIndex{");
+        for (int type = 0; type < APN_TYPES.length; type++) {
+            if (type > 0) sb.append(' ');
+            sb.append(APN_TYPES[type]).append('=').append(mCandidates[type].length);
+        }
+        return sb.append('}').toString();
+    }
+}
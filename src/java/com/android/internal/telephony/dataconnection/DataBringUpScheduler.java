@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Schedules the bring-up of the data connections of APN contexts, so that independent APN
+ * contexts are brought up concurrently up to the number of data calls the modem supports, and
+ * the others are deferred in priority order until a bring-up completes.
+ *
+ * A round of bring-ups starts with the first bring-up while none is in flight, and ends once
+ * no bring-up is in flight or deferred; its duration is the time to bring up all APN contexts.
+ *
+ * Bring-ups without a response expire after BRING_UP_TIMEOUT_MILLIS. The scheduler has no
+ * timer of its own, so its user checks again after getMillisUntilNextExpiry.
+ *
+ * APN contexts are identified by their APN type. Not thread safe; only used from the
+ * DcTracker thread.
+ */
+final class DataBringUpScheduler {
+    /** Bring-ups without a response for this long no longer hold a slot */
+    @VisibleForTesting
+    static final long BRING_UP_TIMEOUT_MILLIS = 3 * 60 * 1000;
+
+    private static final class BringUp {
+        final int mGeneration;
+        final long mStartMillis;
+        final boolean mExclusive;
+
+        BringUp(int generation, long startMillis, boolean exclusive) {
+            mGeneration = generation;
+            mStartMillis = startMillis;
+            mExclusive = exclusive;
+        }
+    }
+
+    private static final class Deferred {
+        final String mApnType;
+        final int mPriority;
+
+        Deferred(String apnType, int priority) {
+            mApnType = apnType;
+            mPriority = priority;
+        }
+    }
+
+    private final HashMap<String, BringUp> mInFlight = new HashMap<String, BringUp>();
+    /** Deferred bring-ups, highest priority first, and in the order deferred for equal ones */
+    private final ArrayList<Deferred> mDeferred = new ArrayList<Deferred>();
+
+    /** Start of the current round, or -1 if there is none */
+    private long mRoundStartMillis = -1;
+    private int mRoundApnCount;
+    private int mRoundConnectedCount;
+    private int mRoundMaxConcurrent;
+
+    private long mLastRoundMillis;
+    private int mLastRoundApnCount;
+    private int mLastRoundConnectedCount;
+    private int mLastRoundMaxConcurrent;
+
+    private int mRoundCount;
+    private int mDeferredCount;
+    private int mTimeoutCount;
+    private long mMaxRoundMillis;
+
+    /**
+     * @param now the current time, as returned by SystemClock.elapsedRealtime()
+     * @param maxConcurrent the maximum number of bring-ups in flight
+     * @param exclusive true if the bring-up must not be concurrent with any other
+     * @return true if a bring-up can start now
+     */
+    boolean canStart(long now, int maxConcurrent, boolean exclusive) {
+        expire(now);
+        for (BringUp bringUp : mInFlight.values()) {
+            if (bringUp.mExclusive) {
+                return false;
+            }
+        }
+        if (exclusive) {
+            return mInFlight.isEmpty();
+        }
+        return mInFlight.size() < Math.max(1, maxConcurrent);
+    }
+
+    /**
+     * Called when the bring-up of an APN context is requested. Replaces any bring-up in flight
+     * for the same APN context, and removes it from the deferred ones.
+     *
+     * @param apnType the APN type of the APN context
+     * @param generation the connection generation of the bring-up
+     * @param now the current time, as returned by SystemClock.elapsedRealtime()
+     * @param exclusive true if the bring-up must not be concurrent with any other
+     */
+    void onBringUpStarted(String apnType, int generation, long now, boolean exclusive) {
+        if (mRoundStartMillis < 0) {
+            mRoundStartMillis = now;
+            mRoundApnCount = 0;
+            mRoundConnectedCount = 0;
+            mRoundMaxConcurrent = 0;
+        }
+        removeDeferred(apnType);
+        if (mInFlight.put(apnType, new BringUp(generation, now, exclusive)) == null) {
+            mRoundApnCount++;
+        }
+        mRoundMaxConcurrent = Math.max(mRoundMaxConcurrent, mInFlight.size());
+    }
+
+    /**
+     * Called when the response to a bring-up is received.
+     *
+     * @param apnType the APN type of the APN context
+     * @param generation the connection generation of the bring-up
+     * @param success true if the data connection is connected
+     * @return true if the bring-up was in flight, false if it is unknown or obsolete
+     */
+    boolean onBringUpComplete(String apnType, int generation, boolean success) {
+        BringUp bringUp = mInFlight.get(apnType);
+        if (bringUp == null || bringUp.mGeneration != generation) {
+            return false;
+        }
+        mInFlight.remove(apnType);
+        if (success) {
+            mRoundConnectedCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Defer the bring-up of an APN context until a slot is available.
+     *
+     * @param apnType the APN type of the APN context
+     * @param priority the priority of the APN context, higher numbers first
+     */
+    void defer(String apnType, int priority) {
+        if (isDeferred(apnType)) {
+            return;
+        }
+        int index = 0;
+        while (index < mDeferred.size() && mDeferred.get(index).mPriority >= priority) {
+            index++;
+        }
+        mDeferred.add(index, new Deferred(apnType, priority));
+        mDeferredCount++;
+    }
+
+    boolean isDeferred(String apnType) {
+        for (Deferred deferred : mDeferred) {
+            if (deferred.mApnType.equals(apnType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void removeDeferred(String apnType) {
+        for (Iterator<Deferred> it = mDeferred.iterator(); it.hasNext(); ) {
+            if (it.next().mApnType.equals(apnType)) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the APN type of the highest priority deferred bring-up, or null if there is none
+     */
+    String peekDeferred() {
+        return mDeferred.isEmpty() ? null : mDeferred.get(0).mApnType;
+    }
+
+    /**
+     * Drop the bring-ups in flight and the deferred ones, and the current round.
+     */
+    void clear() {
+        mInFlight.clear();
+        mDeferred.clear();
+        mRoundStartMillis = -1;
+    }
+
+    /**
+     * @return the number of bring-ups in flight
+     */
+    int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    /**
+     * @param now the current time, as returned by SystemClock.elapsedRealtime()
+     * @return the time until the oldest bring-up in flight expires, or -1 if none is in flight
+     */
+    long getMillisUntilNextExpiry(long now) {
+        long next = -1;
+        for (BringUp bringUp : mInFlight.values()) {
+            long remaining = Math.max(0, bringUp.mStartMillis + BRING_UP_TIMEOUT_MILLIS - now);
+            if (next < 0 || remaining < next) {
+                next = remaining;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * End the current round if no bring-up is in flight or deferred.
+     *
+     * @param now the current time, as returned by SystemClock.elapsedRealtime()
+     * @return true if the round ended, see getLastRoundMillis
+     */
+    boolean finishRoundIfIdle(long now) {
+        expire(now);
+        if (mRoundStartMillis < 0 || !mInFlight.isEmpty() || !mDeferred.isEmpty()) {
+            return false;
+        }
+        mLastRoundMillis = now - mRoundStartMillis;
+        mLastRoundApnCount = mRoundApnCount;
+        mLastRoundConnectedCount = mRoundConnectedCount;
+        mLastRoundMaxConcurrent = mRoundMaxConcurrent;
+        mRoundCount++;
+        mMaxRoundMillis = Math.max(mMaxRoundMillis, mLastRoundMillis);
+        mRoundStartMillis = -1;
+        return true;
+    }
+
+    /**
+     * @return the time from the first bring-up of the last round to the response of its last
+     */
+    long getLastRoundMillis() {
+        return mLastRoundMillis;
+    }
+
+    /**
+     * @return the number of APN contexts brought up in the last round
+     */
+    int getLastRoundApnCount() {
+        return mLastRoundApnCount;
+    }
+
+    /**
+     * @return the number of APN contexts connected in the last round
+     */
+    int getLastRoundConnectedCount() {
+        return mLastRoundConnectedCount;
+    }
+
+    /**
+     * @return the largest number of bring-ups in flight at once in the last round
+     */
+    int getLastRoundMaxConcurrent() {
+        return mLastRoundMaxConcurrent;
+    }
+
+    private void expire(long now) {
+        for (Iterator<BringUp> it = mInFlight.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().mStartMillis >= BRING_UP_TIMEOUT_MILLIS) {
+                it.remove();
+                mTimeoutCount++;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("DataBringUpScheduler{inFlight=")
+                .append(mInFlight.keySet())
+                .append(" deferred=[");
+        for (int i = 0; i < mDeferred.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(mDeferred.get(i).mApnType);
+        }
+        return sb.append("] rounds=").append(mRoundCount)
+                .append(" lastRoundMs=").append(mLastRoundMillis)
+                .append(" lastRoundApns=").append(mLastRoundConnectedCount).append('/')
+                .append(mLastRoundApnCount)
+                .append(" lastRoundMaxConcurrent=").append(mLastRoundMaxConcurrent)
+                .append(" maxRoundMs=").append(mMaxRoundMillis)
+                .append(" deferrals=").append(mDeferredCount)
+                .append(" timeouts=").append(mTimeoutCount).append('}').toString();
+    }
+}
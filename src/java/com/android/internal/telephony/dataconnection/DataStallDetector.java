@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+
+/**
+ * Detects data stalls from packet counters, and picks when to sample them next.
+ *
+ * Each signal is a pair of sent and received packet counters, e.g. the TCP packets of all
+ * mobile interfaces. A signal is suspected of a stall when it sent packets without receiving
+ * any, and stalled when it sent at least the trigger count of packets since it last received
+ * one, for at least the minimum stall duration. Only trigger signals can detect a stall; the
+ * others, e.g. the counters of each interface, are only sampled for their statistics.
+ *
+ * Sampling is fast while a stall is suspected, so that short stalls are confirmed or cleared
+ * quickly, aggressive while the device is in use, and non-aggressive otherwise. It never gets
+ * slower than the non-aggressive interval, so that a stall starting after a long idle period
+ * is not detected later than with a fixed interval.
+ *
+ * Not thread safe; only used from the DcTracker thread.
+ */
+final class DataStallDetector {
+    /** Number of samples covered by the rolling statistics of each signal */
+    @VisibleForTesting
+    static final int WINDOW_SIZE = 12;
+
+    /** Nothing was sent or received */
+    static final int RESULT_IDLE = 0;
+    /** Packets were received, the data path works */
+    static final int RESULT_RECEIVED = 1;
+    /** Packets were sent without being answered, but not enough or not for long enough */
+    static final int RESULT_SUSPECTED = 2;
+    /** A trigger signal is stalled */
+    static final int RESULT_STALLED = 3;
+
+    /** Source of the packet counters of a signal */
+    interface PacketCounter {
+        /** @return the total number of packets sent, or -1 if unknown */
+        long getTxPackets();
+        /** @return the total number of packets received, or -1 if unknown */
+        long getRxPackets();
+    }
+
+    private static final class Signal {
+        final String mName;
+        final PacketCounter mCounter;
+        final boolean mTrigger;
+
+        long mTxPkts = -1;
+        long mRxPkts = -1;
+        long mSentSinceLastRecv;
+        /** Start of the first sample interval with packets sent but none received, or -1 */
+        long mUnansweredSinceMillis = -1;
+        /** Time of the first sample that saw packets sent but none received, or -1 */
+        long mSuspectedSinceMillis = -1;
+
+        /** Packets and duration of the last WINDOW_SIZE sample intervals, oldest first */
+        final long[] mTxDeltas = new long[WINDOW_SIZE];
+        final long[] mRxDeltas = new long[WINDOW_SIZE];
+        final long[] mIntervals = new long[WINDOW_SIZE];
+        int mWindowStart;
+        int mWindowCount;
+
+        Signal(String name, PacketCounter counter, boolean trigger) {
+            mName = name;
+            mCounter = counter;
+            mTrigger = trigger;
+        }
+
+        /**
+         * @return the result of the sample for this signal
+         */
+        int sample(long now, long lastSampleMillis, boolean countSent, long triggerPacketCount,
+                long minStallMillis) {
+            long txPkts = mCounter.getTxPackets();
+            long rxPkts = mCounter.getRxPackets();
+            long sent = txPkts - mTxPkts;
+            long received = rxPkts - mRxPkts;
+            boolean known = mTxPkts >= 0 && mRxPkts >= 0 && lastSampleMillis >= 0;
+            mTxPkts = txPkts;
+            mRxPkts = rxPkts;
+            if (!known || txPkts < 0 || rxPkts < 0 || sent < 0 || received < 0) {
+                // first sample, or the counters are unavailable or were reset
+                return RESULT_IDLE;
+            }
+            addToWindow(sent, received, now - lastSampleMillis);
+
+            if (received > 0) {
+                clearSuspicion();
+                return RESULT_RECEIVED;
+            }
+            if (sent > 0) {
+                if (!countSent) {
+                    // packets sent during a voice call are not answered on some networks
+                    clearSuspicion();
+                    return RESULT_IDLE;
+                }
+                if (mSentSinceLastRecv == 0) {
+                    mUnansweredSinceMillis = lastSampleMillis;
+                    mSuspectedSinceMillis = now;
+                }
+                mSentSinceLastRecv += sent;
+            }
+            if (mSentSinceLastRecv == 0) {
+                return RESULT_IDLE;
+            }
+            if (mSentSinceLastRecv >= triggerPacketCount
+                    && now - mUnansweredSinceMillis >= minStallMillis) {
+                return RESULT_STALLED;
+            }
+            return RESULT_SUSPECTED;
+        }
+
+        void clearSuspicion() {
+            mSentSinceLastRecv = 0;
+            mUnansweredSinceMillis = -1;
+            mSuspectedSinceMillis = -1;
+        }
+
+        private void addToWindow(long sent, long received, long interval) {
+            int index = (mWindowStart + mWindowCount) % WINDOW_SIZE;
+            if (mWindowCount < WINDOW_SIZE) {
+                mWindowCount++;
+            } else {
+                mWindowStart = (mWindowStart + 1) % WINDOW_SIZE;
+            }
+            mTxDeltas[index] = sent;
+            mRxDeltas[index] = received;
+            mIntervals[index] = interval;
+        }
+
+        @Override
+        public String toString() {
+            long txPkts = 0;
+            long rxPkts = 0;
+            long millis = 0;
+            int unanswered = 0;
+            for (int i = 0; i < mWindowCount; i++) {
+                int index = (mWindowStart + i) % WINDOW_SIZE;
+                txPkts += mTxDeltas[index];
+                rxPkts += mRxDeltas[index];
+                millis += mIntervals[index];
+                if (mTxDeltas[index] > 0 && mRxDeltas[index] == 0) {
+                    unanswered++;
+                }
+            }
+            return mName + (mTrigger ? "" : "(stats)") + "{tx=" + mTxPkts + " rx=" + mRxPkts
+                    + " sentSinceLastRecv=" + mSentSinceLastRecv
+                    + " window=" + mWindowCount + "/" + (millis / 1000) + "s"
+                    + " txPerMin=" + perMinute(txPkts, millis)
+                    + " rxPerMin=" + perMinute(rxPkts, millis)
+                    + " unanswered=" + unanswered + "}";
+        }
+
+        private static long perMinute(long packets, long millis) {
+            return millis > 0 ? packets * 60 * 1000 / millis : 0;
+        }
+    }
+
+    private final ArrayList<Signal> mSignals = new ArrayList<Signal>();
+
+    private long mLastSampleMillis = -1;
+    /** Time of the last detected stall, or -1 */
+    private long mLastStallMillis = -1;
+    private long mLastDetectionLatencyMillis;
+
+    private int mSampleCount;
+    private int mStallCount;
+    private long mTotalDetectionLatencyMillis;
+    private long mMaxDetectionLatencyMillis;
+
+    /**
+     * Add a signal, unless there is already a signal with the same name.
+     *
+     * @param name the name of the signal
+     * @param counter the packet counters of the signal
+     * @param trigger true if the signal can detect a stall, false if it is only sampled for
+     *        its statistics
+     */
+    void addSignal(String name, PacketCounter counter, boolean trigger) {
+        if (!hasSignal(name)) {
+            mSignals.add(new Signal(name, counter, trigger));
+        }
+    }
+
+    void removeSignal(String name) {
+        for (int i = 0; i < mSignals.size(); i++) {
+            if (mSignals.get(i).mName.equals(name)) {
+                mSignals.remove(i);
+                return;
+            }
+        }
+    }
+
+    boolean hasSignal(String name) {
+        for (Signal signal : mSignals) {
+            if (signal.mName.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    ArrayList<String> getSignalNames() {
+        ArrayList<String> names = new ArrayList<String>(mSignals.size());
+        for (Signal signal : mSignals) {
+            names.add(signal.mName);
+        }
+        return names;
+    }
+
+    /**
+     * Sample the packet counters of all signals.
+     *
+     * @param now the current time, as returned by SystemClock.elapsedRealtime()
+     * @param countSent false if the packets sent must not count towards a stall
+     * @param triggerPacketCount the number of packets sent since the last received packet
+     *        that detects a stall
+     * @param minStallMillis the minimum time that packets must be sent without any packet
+     *        received to detect a stall
+     * @return the result of the trigger signals: RESULT_STALLED if any of them is stalled,
+     *         else RESULT_SUSPECTED if any is suspected, else RESULT_RECEIVED if any received
+     *         packets, else RESULT_IDLE
+     */
+    int sample(long now, boolean countSent, long triggerPacketCount, long minStallMillis) {
+        int result = RESULT_IDLE;
+        long suspectedSinceMillis = Long.MAX_VALUE;
+        for (Signal signal : mSignals) {
+            int signalResult = signal.sample(now, mLastSampleMillis, countSent,
+                    triggerPacketCount, minStallMillis);
+            if (!signal.mTrigger) {
+                continue;
+            }
+            if (signalResult == RESULT_STALLED) {
+                suspectedSinceMillis = Math.min(suspectedSinceMillis,
+                        signal.mSuspectedSinceMillis);
+            }
+            result = Math.max(result, signalResult);
+        }
+        mLastSampleMillis = now;
+        mSampleCount++;
+
+        if (result == RESULT_STALLED) {
+            mLastStallMillis = now;
+            mLastDetectionLatencyMillis = now - suspectedSinceMillis;
+            mStallCount++;
+            mTotalDetectionLatencyMillis += mLastDetectionLatencyMillis;
+            mMaxDetectionLatencyMillis = Math.max(mMaxDetectionLatencyMillis,
+                    mLastDetectionLatencyMillis);
+        }
+        return result;
+    }
+
+    /**
+     * Called when a recovery action is taken, so that the next stall is only detected once
+     * the trigger count of packets is sent again without being answered.
+     */
+    void onRecovery() {
+        for (Signal signal : mSignals) {
+            signal.clearSuspicion();
+        }
+    }
+
+    /**
+     * @return the largest number of packets sent since the last received packet by a trigger
+     *         signal
+     */
+    long getSentSinceLastRecv() {
+        long sent = 0;
+        for (Signal signal : mSignals) {
+            if (signal.mTrigger) {
+                sent = Math.max(sent, signal.mSentSinceLastRecv);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * @return the time from the first sample that saw unanswered packets to the detection of
+     *         the last stall
+     */
+    long getLastDetectionLatencyMillis() {
+        return mLastDetectionLatencyMillis;
+    }
+
+    /**
+     * @param now the current time, as returned by SystemClock.elapsedRealtime()
+     * @return the time since the last stall was detected, or Long.MAX_VALUE if none was
+     */
+    long getMillisSinceLastStall(long now) {
+        return mLastStallMillis < 0 ? Long.MAX_VALUE : now - mLastStallMillis;
+    }
+
+    /**
+     * @param inUse true if the device is in use, e.g. the screen is on, or it is tethering
+     * @param recoveryPending true if the next recovery action is aggressive
+     * @param suspectDelayMillis the delay while a stall is suspected
+     * @param aggressiveDelayMillis the delay while the device is in use
+     * @param nonAggressiveDelayMillis the delay while the device is not in use
+     * @return the delay until the next sample
+     */
+    long getNextSampleDelayMillis(boolean inUse, boolean recoveryPending,
+            long suspectDelayMillis, long aggressiveDelayMillis, long nonAggressiveDelayMillis) {
+        if (getSentSinceLastRecv() > 0) {
+            return Math.min(suspectDelayMillis, aggressiveDelayMillis);
+        }
+        if (inUse || recoveryPending) {
+            return aggressiveDelayMillis;
+        }
+        return nonAggressiveDelayMillis;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("DataStallDetector{samples=").append(mSampleCount)
+                .append(" stalls=").append(mStallCount)
+                .append(" avgDetectionLatencyMs=")
+                .append(mStallCount > 0 ? mTotalDetectionLatencyMillis / mStallCount : 0)
+                .append(" maxDetectionLatencyMs=").append(mMaxDetectionLatencyMillis);
+        for (Signal signal : mSignals) {
+            sb.append(' ').append(signal);
+        }
+        return sb.append('}').toString();
+    }
+}
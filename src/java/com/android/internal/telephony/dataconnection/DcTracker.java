@@ -78,14 +78,17 @@ import com.android.internal.telephony.cdma.CdmaSubscriptionSourceManager;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CarrierActionAgent;
 import com.android.internal.telephony.DctConstants;
+import com.android.internal.telephony.DeviceStateMonitor;
 import com.android.internal.telephony.EventLogTags;
 import com.android.internal.telephony.GsmCdmaPhone;
+import com.android.internal.telephony.HardwareConfig;
 import com.android.internal.telephony.ITelephony;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.RILConstants;
 import com.android.internal.telephony.SettingsObserver;
+import com.android.internal.telephony.TelephonyDevController;
 import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.dataconnection.DataConnectionReasons.DataAllowedReasonType;
 import com.android.internal.telephony.dataconnection.DataConnectionReasons.DataDisallowedReasonType;
@@ -99,9 +102,13 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -144,6 +151,21 @@ public class DcTracker extends Handler {
     private static final int DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS_DEFAULT = 1000 * 60 * 6;
     // Default for the data stall alarm for aggressive stall detection
     private static final int DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS_DEFAULT = 1000 * 60;
+    // Settings.Global key and default for the data stall alarm while a stall is suspected
+    private static final String DATA_STALL_ALARM_SUSPECT_DELAY_IN_MS =
+            "data_stall_alarm_suspect_delay_in_ms";
+    private static final int DATA_STALL_ALARM_SUSPECT_DELAY_IN_MS_DEFAULT = 1000 * 15;
+    // Settings.Global key and default for the minimum time packets must be sent without any
+    // packet received to detect a stall
+    private static final String DATA_STALL_MIN_DURATION_IN_MS = "data_stall_min_duration_in_ms";
+    private static final int DATA_STALL_MIN_DURATION_IN_MS_DEFAULT = 1000 * 30;
+    // Data stall detector signals
+    private static final String DATA_STALL_SIGNAL_MOBILE_TCP = "mobile_tcp";
+    private static final String DATA_STALL_SIGNAL_IFACE_PREFIX = "iface:";
+    // Settings.Global key and default for the maximum number of data calls brought up at once,
+    // used when the modem does not report how many data calls it supports
+    private static final String DATA_BRING_UP_MAX_CONCURRENT = "data_bring_up_max_concurrent";
+    private static final int DATA_BRING_UP_MAX_CONCURRENT_DEFAULT = 4;
     // Tag for tracking stale alarms
     private static final String DATA_STALL_ALARM_TAG_EXTRA = "data.stall.alram.tag";
 
@@ -164,19 +186,57 @@ public class DcTracker extends Handler {
     private DcTesterFailBringUpAll mDcTesterFailBringUpAll;
     private DcController mDcc;
 
-    /** kept in sync with mApnContexts
-     * Higher numbers are higher priority and sorted so highest priority is first */
-    private final PriorityQueue<ApnContext>mPrioritySortedApnContexts =
-            new PriorityQueue<ApnContext>(5,
+    /** Sorts ApnContexts so that the highest priority is first */
+    private static final Comparator<ApnContext> APN_CONTEXT_PRIORITY_COMPARATOR =
             new Comparator<ApnContext>() {
                 public int compare(ApnContext c1, ApnContext c2) {
                     return c2.priority - c1.priority;
                 }
-            } );
+            };
+
+    /** kept in sync with mApnContexts
+     * Higher numbers are higher priority and sorted so highest priority is first */
+    private final PriorityQueue<ApnContext>mPrioritySortedApnContexts =
+            new PriorityQueue<ApnContext>(5, APN_CONTEXT_PRIORITY_COMPARATOR);
+
+    /** Limits the data calls brought up at once, see trySetupDataOrDefer */
+    private final DataBringUpScheduler mBringUpScheduler = new DataBringUpScheduler();
+    private final Runnable mBringUpExpiry = new Runnable() {
+        @Override
+        public void run() {
+            if (DBG) log("mBringUpExpiry: " + mBringUpScheduler);
+            bringUpDeferredApnContexts();
+        }
+    };
 
     /** allApns holds all apns */
     protected ArrayList<ApnSetting> mAllApnSettings = null;
 
+    /** Index of mAllApnSettings by APN type, see getApnSettingIndex */
+    private volatile ApnSettingIndex mApnSettingIndex = null;
+
+    /** Loads the APN database off the DcTracker thread when it changes, see onApnChanged */
+    private Handler mApnLoaderHandler;
+
+    /** Incremented for every APN list load, so that the results of older loads are dropped */
+    private int mApnLoadGeneration = 0;
+
+    /**
+     * True while an APN database change has not been handled yet, i.e. the connections have not
+     * been cleaned up on the updated APNs. Set by onApnChanged, and cleared by whichever load
+     * of the APN list is applied next, so that a load superseding the one started by
+     * onApnChanged still handles the change.
+     */
+    private boolean mApnChangePending = false;
+
+    /** The APN list and preferred APN the connections were set up with when the APNs changed */
+    private ArrayList<ApnSetting> mApnChangeOldApnSettings = null;
+    private ApnSetting mApnChangeOldPreferredApn = null;
+
+    /** Number of APN database loads by mApnLoaderHandler applied, and the time they took */
+    private int mApnBackgroundLoadCount = 0;
+    private long mApnBackgroundLoadMillis = 0;
+
     /** preferred apn */
     protected ApnSetting mPreferredApn = null;
 
@@ -380,6 +440,54 @@ public class DcTracker extends Handler {
         }
     }
 
+    /**
+     * TCP packets of all mobile interfaces, the signal used to detect data stalls.
+     */
+    private class MobileTcpPacketCounter implements DataStallDetector.PacketCounter {
+        private long mRxPkts = -1;
+
+        @Override
+        public long getTxPackets() {
+            return TrafficStats.getMobileTcpTxPackets();
+        }
+
+        @Override
+        public long getRxPackets() {
+            // The count is read at least once, so that the test hook also works when the
+            // property is set before the first sample
+            if (mRxPkts >= 0 && RADIO_TESTS
+                    && SystemProperties.getBoolean("radio.test.data.stall", false)) {
+                log("MobileTcpPacketCounter: radio.test.data.stall true received = 0;");
+                return mRxPkts;
+            }
+            mRxPkts = TrafficStats.getMobileTcpRxPackets();
+            return mRxPkts;
+        }
+    }
+
+    /**
+     * Packets of all protocols on one interface, sampled for the statistics of the data stall
+     * detector.
+     */
+    private static final class InterfacePacketCounter
+            implements DataStallDetector.PacketCounter {
+        private final String mIface;
+
+        InterfacePacketCounter(String iface) {
+            mIface = iface;
+        }
+
+        @Override
+        public long getTxPackets() {
+            return TrafficStats.getTxPackets(mIface);
+        }
+
+        @Override
+        public long getRxPackets() {
+            return TrafficStats.getRxPackets(mIface);
+        }
+    }
+
     private void onActionIntentReconnectAlarm(Intent intent) {
         Message msg = obtainMessage(DctConstants.EVENT_DATA_RECONNECT);
         msg.setData(intent.getExtras());
@@ -471,13 +579,15 @@ public class DcTracker extends Handler {
     private int mNetStatPollPeriod;
     private boolean mNetStatPollEnabled = false;
 
-    private TxRxSum mDataStallTxRxSum = new TxRxSum(0, 0);
+    private final DataStallDetector mDataStallDetector = new DataStallDetector();
+    // Interface of each connected data connection, read once per connection for the data
+    // stall detector
+    private final HashMap<DcAsyncChannel, String> mDataStallIfaces =
+            new HashMap<DcAsyncChannel, String>();
     // Used to track stale data stall alarms.
     private int mDataStallAlarmTag = (int) SystemClock.elapsedRealtime();
     // The current data stall alarm intent
     private PendingIntent mDataStallAlarmIntent = null;
-    // Number of packets sent since the last received packet
-    private long mSentSinceLastRecv;
     // Controls when a simple recovery attempt it to be tried
     private int mNoRecvPollCount = 0;
     // Reference counter for enabling fail fast
@@ -635,6 +745,13 @@ public class DcTracker extends Handler {
         mDcc = DcController.makeDcc(mPhone, this, dcHandler);
         mDcTesterFailBringUpAll = new DcTesterFailBringUpAll(mPhone, dcHandler);
 
+        HandlerThread apnLoaderThread = new HandlerThread("ApnLoaderThread");
+        apnLoaderThread.start();
+        mApnLoaderHandler = new Handler(apnLoaderThread.getLooper());
+
+        mDataStallDetector.addSignal(DATA_STALL_SIGNAL_MOBILE_TCP, new MobileTcpPacketCounter(),
+                true);
+
         mDataConnectionTracker = this;
         registerForAllEvents();
         update();
@@ -752,9 +869,12 @@ public class DcTracker extends Handler {
         mDcTesterFailBringUpAll.dispose();
 
         mPhone.getContext().getContentResolver().unregisterContentObserver(mApnObserver);
+        mApnLoaderHandler.getLooper().quitSafely();
         mApnContexts.clear();
         mApnContextsById.clear();
         mPrioritySortedApnContexts.clear();
+        mBringUpScheduler.clear();
+        removeCallbacks(mBringUpExpiry);
         unregisterForAllEvents();
 
         destroyDataConnections();
@@ -1435,7 +1555,12 @@ public class DcTracker extends Handler {
             log("setupDataOnConnectableApns: " + reason + " " + sb);
         }
 
-        for (ApnContext apnContext : mPrioritySortedApnContexts) {
+        // Iterating a PriorityQueue does not follow its order, so sort the ApnContexts to bring
+        // up the highest priority ones first when the bring-ups are limited
+        ArrayList<ApnContext> apnContexts = new ArrayList<ApnContext>(mPrioritySortedApnContexts);
+        Collections.sort(apnContexts, APN_CONTEXT_PRIORITY_COMPARATOR);
+
+        for (ApnContext apnContext : apnContexts) {
             if (VDBG) log("setupDataOnConnectableApns: apnContext " + apnContext);
 
             if (apnContext.getState() == DctConstants.State.FAILED
@@ -1449,11 +1574,132 @@ public class DcTracker extends Handler {
                 }
             }
             if (apnContext.isConnectable()) {
-                log("isConnectable() call trySetupData");
                 apnContext.setReason(reason);
+                log("isConnectable() call trySetupDataOrDefer");
+                trySetupDataOrDefer(apnContext);
+            }
+        }
+    }
+
+    /**
+     * Set up data for the ApnContext if the bring-up scheduler has a slot for it, else defer
+     * its bring-up until a slot is freed. Used by all the requests to set up data, so that
+     * they all count against the data calls the modem supports.
+     *
+     * @return true if the bring-up was deferred, else the result of trySetupData
+     */
+    private boolean trySetupDataOrDefer(ApnContext apnContext) {
+        if (apnContext.isConnectable() && !mBringUpScheduler.canStart(
+                SystemClock.elapsedRealtime(), getMaxConcurrentBringUps(),
+                isExclusiveBringUp(apnContext))) {
+            log("trySetupDataOrDefer: defer bring-up of " + apnContext.getApnType() + ", "
+                    + mBringUpScheduler);
+            mBringUpScheduler.defer(apnContext.getApnType(), apnContext.priority);
+            return true;
+        }
+        return trySetupData(apnContext);
+    }
+
+    /**
+     * Called when the response to a bring-up is received, to bring up the deferred ApnContexts
+     * that now have a slot.
+     */
+    private void onBringUpComplete(AsyncResult ar, boolean success) {
+        if (ar == null || !(ar.userObj instanceof Pair)) return;
+        Pair<ApnContext, Integer> pair = (Pair<ApnContext, Integer>) ar.userObj;
+        if (pair.first == null || !mBringUpScheduler.onBringUpComplete(
+                pair.first.getApnType(), pair.second, success)) {
+            return;
+        }
+        bringUpDeferredApnContexts();
+    }
+
+    /**
+     * Bring up the deferred ApnContexts that have a slot, drop the ones that are no longer
+     * connectable, and report the time to bring up all of them once there is none left.
+     * Called when a slot may have been freed: a bring-up completed or expired, a data
+     * connection disconnected, or a bring-up could not start.
+     */
+    private void bringUpDeferredApnContexts() {
+        final int maxBringUps = getMaxConcurrentBringUps();
+        String apnType;
+        while ((apnType = mBringUpScheduler.peekDeferred()) != null) {
+            ApnContext apnContext = mApnContexts.get(apnType);
+            if (apnContext != null && !mBringUpScheduler.canStart(SystemClock.elapsedRealtime(),
+                    maxBringUps, isExclusiveBringUp(apnContext))) {
+                break;
+            }
+            mBringUpScheduler.removeDeferred(apnType);
+            if (apnContext != null && apnContext.isConnectable()) {
+                if (DBG) log("bringUpDeferredApnContexts: bring up deferred " + apnType);
                 trySetupData(apnContext);
             }
         }
+
+        if (mBringUpScheduler.finishRoundIfIdle(SystemClock.elapsedRealtime())) {
+            log("bringUpDeferredApnContexts: all APNs brought up, " + mBringUpScheduler);
+            TelephonyMetrics.getInstance().writeDataBringUpEvent(mPhone.getPhoneId(),
+                    mBringUpScheduler.getLastRoundMillis(),
+                    mBringUpScheduler.getLastRoundApnCount(),
+                    mBringUpScheduler.getLastRoundConnectedCount(),
+                    mBringUpScheduler.getLastRoundMaxConcurrent());
+        }
+        scheduleBringUpExpiry();
+    }
+
+    /**
+     * Check the bring-ups again when the oldest one in flight expires, so that the deferred
+     * ApnContexts are brought up even if it never gets a response.
+     */
+    private void scheduleBringUpExpiry() {
+        removeCallbacks(mBringUpExpiry);
+        long delay = mBringUpScheduler.getMillisUntilNextExpiry(SystemClock.elapsedRealtime());
+        if (delay >= 0) {
+            postDelayed(mBringUpExpiry, delay);
+        }
+    }
+
+    /**
+     * @return the number of data calls that can be brought up at once, in addition to the data
+     *         connections already connected
+     */
+    private int getMaxConcurrentBringUps() {
+        if (isOnlySingleDcAllowed(mPhone.getServiceState().getRilDataRadioTechnology())) {
+            // setupData arbitrates between the ApnContexts, one at a time
+            return 1;
+        }
+        int maxDataCalls = 0;
+        int phoneId = mPhone.getPhoneId();
+        if (TelephonyDevController.getModemCount() > 0) {
+            TelephonyDevController tdc = TelephonyDevController.getInstance();
+            if (phoneId >= 0 && phoneId < tdc.getSimCount()) {
+                HardwareConfig modem = tdc.getModemForSim(phoneId);
+                if (modem != null) {
+                    maxDataCalls = modem.maxActiveDataCall;
+                }
+            }
+        }
+        if (maxDataCalls <= 0) {
+            maxDataCalls = Settings.Global.getInt(mResolver, DATA_BRING_UP_MAX_CONCURRENT,
+                    DATA_BRING_UP_MAX_CONCURRENT_DEFAULT);
+        }
+
+        HashSet<DcAsyncChannel> connected = new HashSet<DcAsyncChannel>();
+        for (ApnContext apnContext : mApnContexts.values()) {
+            if (apnContext.getState() == DctConstants.State.CONNECTED
+                    && apnContext.getDcAc() != null) {
+                connected.add(apnContext.getDcAc());
+            }
+        }
+        return Math.max(1, maxDataCalls - connected.size());
+    }
+
+    /**
+     * @return true if the bring-up of the ApnContext must not be concurrent with any other,
+     *         i.e. a DUN connection that can't share an existing connection, see setupData
+     */
+    private boolean isExclusiveBringUp(ApnContext apnContext) {
+        return PhoneConstants.APN_TYPE_DUN.equals(apnContext.getApnType()) && teardownForDun();
     }
 
     boolean isEmergency() {
@@ -1771,11 +2017,7 @@ public class DcTracker extends Handler {
 
         if (dunCandidates.isEmpty()) {
             if (!ArrayUtils.isEmpty(mAllApnSettings)) {
-                for (ApnSetting apn : mAllApnSettings) {
-                    if (apn.canHandleType(PhoneConstants.APN_TYPE_DUN)) {
-                        dunCandidates.add(apn);
-                    }
-                }
+                dunCandidates.addAll(getApnSettingIndex().getApns(PhoneConstants.APN_TYPE_DUN));
                 if (VDBG) log("fetchDunApn: dunCandidates from database: " + dunCandidates);
             }
         }
@@ -1899,10 +2141,14 @@ public class DcTracker extends Handler {
         return apn;
     }
 
-    protected ArrayList<ApnSetting> createApnList(Cursor cursor) {
+    /**
+     * May be called from the APN loader thread, so it must not read or modify the state of
+     * DcTracker.
+     * The MVNO APNs replace the MNO APNs if any of them matches the SIM records.
+     */
+    private ArrayList<ApnSetting> createApnList(Cursor cursor, IccRecords r) {
         ArrayList<ApnSetting> mnoApns = new ArrayList<ApnSetting>();
         ArrayList<ApnSetting> mvnoApns = new ArrayList<ApnSetting>();
-        IccRecords r = mIccRecords.get();
 
         if (cursor.moveToFirst()) {
             do {
@@ -1921,14 +2167,7 @@ public class DcTracker extends Handler {
             } while (cursor.moveToNext());
         }
 
-        ArrayList<ApnSetting> result;
-        if (mvnoApns.isEmpty()) {
-            result = mnoApns;
-            mMvnoMatched = false;
-        } else {
-            result = mvnoApns;
-            mMvnoMatched = true;
-        }
+        ArrayList<ApnSetting> result = mvnoApns.isEmpty() ? mnoApns : mvnoApns;
         if (DBG) log("createApnList: X result=" + result);
         return result;
     }
@@ -2052,6 +2291,10 @@ public class DcTracker extends Handler {
         apnContext.setState(DctConstants.State.CONNECTING);
         mPhone.notifyDataConnection(apnContext.getReason(), apnContext.getApnType());
 
+        mBringUpScheduler.onBringUpStarted(apnContext.getApnType(), generation,
+                SystemClock.elapsedRealtime(), isExclusiveBringUp(apnContext));
+        scheduleBringUpExpiry();
+
         Message msg = obtainMessage();
         msg.what = DctConstants.EVENT_DATA_SETUP_COMPLETE;
         msg.obj = new Pair<ApnContext, Integer>(apnContext, generation);
@@ -2134,21 +2377,86 @@ public class DcTracker extends Handler {
      * Handles changes to the APN database.
      */
     private void onApnChanged() {
-        DctConstants.State overallState = getOverallState();
-        boolean isDisconnected = (overallState == DctConstants.State.IDLE ||
-                overallState == DctConstants.State.FAILED);
-
         if (mPhone instanceof GsmCdmaPhone) {
             // The "current" may no longer be valid.  MMS depends on this to send properly. TBD
             ((GsmCdmaPhone)mPhone).updateCurrentCarrierInProvider();
         }
 
-        // TODO: It'd be nice to only do this if the changed entrie(s)
-        // match the current operator.
-        if (DBG) log("onApnChanged: createAllApnList and cleanUpAllConnections");
-        createAllApnList();
+        // Querying and parsing the APNs of the operator would block data setup on this
+        // thread, so the APNs are loaded by mApnLoaderHandler, and onApnSnapshotLoaded
+        // continues on this thread with the result.
+        if (!mApnChangePending) {
+            mApnChangePending = true;
+            mApnChangeOldApnSettings = mAllApnSettings;
+            mApnChangeOldPreferredApn = mPreferredApn;
+        }
+        final int generation = ++mApnLoadGeneration;
+        final String operator = mPhone.getOperatorNumeric();
+        final IccRecords r = mIccRecords.get();
+        if (DBG) log("onApnChanged: load APNs of " + operator + " generation=" + generation);
+        mApnLoaderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long startMs = SystemClock.elapsedRealtime();
+                final ApnSnapshot snapshot = loadApnSnapshot(operator, r);
+                final long loadMs = SystemClock.elapsedRealtime() - startMs;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onApnSnapshotLoaded(snapshot, generation, loadMs);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Handles the APNs loaded by onApnChanged.
+     *
+     * @param snapshot the APNs loaded from the database
+     * @param generation the value of mApnLoadGeneration when the load was started
+     * @param loadMillis the time the load took on the APN loader thread
+     */
+    private void onApnSnapshotLoaded(ApnSnapshot snapshot, int generation, long loadMillis) {
+        if (mIsDisposed || generation != mApnLoadGeneration) {
+            // the APN list was loaded again since this load was started, and that load handles
+            // the pending APN change
+            if (DBG) log("onApnSnapshotLoaded: drop generation=" + generation);
+            return;
+        }
+        mApnBackgroundLoadCount++;
+        mApnBackgroundLoadMillis += loadMillis;
+        if (DBG) {
+            log("onApnSnapshotLoaded: loaded in " + loadMillis + "ms off the DcTracker thread");
+        }
+
+        applyApnSnapshot(snapshot);
         setInitialAttachApn();
-        cleanUpConnectionsOnUpdatedApns(!isDisconnected, Phone.REASON_APN_CHANGED);
+        onPendingApnChangeApplied();
+    }
+
+    /**
+     * Cleans up the connections on the APNs updated since onApnChanged, once the APN list is
+     * loaded again, and sets up data on the updated APNs.
+     */
+    private void onPendingApnChangeApplied() {
+        if (!mApnChangePending) return;
+        mApnChangePending = false;
+        ArrayList<ApnSetting> oldApnSettings = mApnChangeOldApnSettings;
+        ApnSetting oldPreferredApn = mApnChangeOldPreferredApn;
+        mApnChangeOldApnSettings = null;
+        mApnChangeOldPreferredApn = null;
+
+        DctConstants.State overallState = getOverallState();
+        boolean isDisconnected = (overallState == DctConstants.State.IDLE ||
+                overallState == DctConstants.State.FAILED);
+
+        // Every APN context tries the preferred APN first, so if it changed they all need new
+        // waiting APNs. Otherwise only the ones that can use a changed APN do.
+        List<ApnSetting> changedApns = Objects.equals(oldPreferredApn, mPreferredApn)
+                ? getChangedApns(oldApnSettings, mAllApnSettings) : null;
+        if (DBG) log("onPendingApnChangeApplied: changedApns=" + changedApns);
+        cleanUpConnectionsOnUpdatedApns(!isDisconnected, Phone.REASON_APN_CHANGED, changedApns);
 
         // FIXME: See bug 17426028 maybe no conditional is needed.
         if (mPhone.getSubId() == SubscriptionManager.getDefaultDataSubscriptionId()) {
@@ -2488,7 +2796,7 @@ public class DcTracker extends Handler {
         if (cleanup) cleanUpConnection(true, apnContext);
         if (trySetup) {
             apnContext.resetErrorCodeRetries();
-            trySetupData(apnContext);
+            trySetupDataOrDefer(apnContext);
         }
     }
 
@@ -2602,7 +2910,7 @@ public class DcTracker extends Handler {
 
     private boolean onTrySetupData(ApnContext apnContext) {
         if (DBG) log("onTrySetupData: apnContext=" + apnContext);
-        return trySetupData(apnContext);
+        return trySetupDataOrDefer(apnContext);
     }
 
     /**
@@ -3186,6 +3494,8 @@ public class DcTracker extends Handler {
 
         if(DBG) log("onDisconnectDone: EVENT_DISCONNECT_DONE apnContext=" + apnContext);
         apnContext.setState(DctConstants.State.IDLE);
+        // The data connection may come back up on another interface
+        mDataStallIfaces.remove(apnContext.getDcAc());
 
         mPhone.notifyDataConnection(apnContext.getReason(), apnContext.getApnType());
 
@@ -3208,6 +3518,7 @@ public class DcTracker extends Handler {
                     notifyDataDisconnectComplete();
                     notifyAllDataDisconnected();
                 }
+                bringUpDeferredApnContexts();
                 return;
             }
         }
@@ -3256,6 +3567,8 @@ public class DcTracker extends Handler {
             notifyAllDataDisconnected();
         }
 
+        // The data call no longer counts against the data calls the modem supports
+        bringUpDeferredApnContexts();
     }
 
     /**
@@ -3363,20 +3676,38 @@ public class DcTracker extends Handler {
     }
 
     /**
-     * Based on the sim operator numeric, create a list for all possible
-     * Data Connections and setup the preferredApn.
+     * The APNs loaded from the database for an operator. Immutable, so that it can be handed
+     * from the APN loader thread to the DcTracker thread.
      */
-    protected void createAllApnList() {
-        mMvnoMatched = false;
-        mAllApnSettings = new ArrayList<>();
-        IccRecords r = mIccRecords.get();
-        String operator = mPhone.getOperatorNumeric();
+    private static final class ApnSnapshot {
+        final String mOperator;
+        /** The APNs of the operator, before the emergency APN is added and they are deduped */
+        final List<ApnSetting> mApns;
+        final boolean mMvnoMatched;
+
+        ApnSnapshot(String operator, ArrayList<ApnSetting> apns) {
+            mOperator = operator;
+            mApns = Collections.unmodifiableList(apns);
+            // createApnList returns either only MVNO APNs or only MNO APNs
+            mMvnoMatched = !apns.isEmpty() && apns.get(0).hasMvnoParams();
+        }
+    }
+
+    /**
+     * Query the APNs of the operator. Does not read or modify the state of DcTracker, so that
+     * it can be called from the APN loader thread.
+     *
+     * @param operator the operator numeric, or null
+     * @param r the SIM records used to match MVNO APNs, or null
+     */
+    private ApnSnapshot loadApnSnapshot(String operator, IccRecords r) {
+        ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>();
         if (operator != null) {
             String selection = Telephony.Carriers.NUMERIC + " = '" + operator + "'";
             // query only enabled apn.
             // carrier_enabled : 1 means enabled apn, 0 disabled apn.
             // selection += " and carrier_enabled = 1";
-            if (DBG) log("createAllApnList: selection=" + selection);
+            if (DBG) log("loadApnSnapshot: selection=" + selection);
 
             // ORDER BY Telephony.Carriers._ID ("_id")
             Cursor cursor = mPhone.getContext().getContentResolver().query(
@@ -3384,18 +3715,47 @@ public class DcTracker extends Handler {
 
             if (cursor != null) {
                 if (cursor.getCount() > 0) {
-                    mAllApnSettings = createApnList(cursor);
+                    apns = createApnList(cursor, r);
                 }
                 cursor.close();
             }
         }
+        return new ApnSnapshot(operator, apns);
+    }
+
+    /**
+     * Based on the sim operator numeric, create a list for all possible
+     * Data Connections and setup the preferredApn.
+     */
+    protected void createAllApnList() {
+        // drop the result of any load started by onApnChanged before, this load handles the
+        // pending APN change instead
+        mApnLoadGeneration++;
+        applyApnSnapshot(loadApnSnapshot(mPhone.getOperatorNumeric(), mIccRecords.get()));
+        if (mApnChangePending) {
+            if (DBG) log("createAllApnList: handle the pending APN change");
+            setInitialAttachApn();
+            onPendingApnChangeApplied();
+        }
+    }
+
+    /**
+     * Replace mAllApnSettings with the APNs of the snapshot and setup the preferredApn.
+     */
+    private void applyApnSnapshot(ApnSnapshot snapshot) {
+        mMvnoMatched = snapshot.mMvnoMatched;
+        mAllApnSettings = new ArrayList<ApnSetting>(snapshot.mApns);
+        String operator = snapshot.mOperator;
 
         addEmergencyApnSetting();
 
         dedupeApnSettings();
 
+        mApnSettingIndex = new ApnSettingIndex(mAllApnSettings);
+        if (DBG) log("applyApnSnapshot: " + mApnSettingIndex);
+
         if (mAllApnSettings.isEmpty()) {
-            if (DBG) log("createAllApnList: No APN found for carrier: " + operator);
+            if (DBG) log("applyApnSnapshot: No APN found for carrier: " + operator);
             mPreferredApn = null;
             // TODO: What is the right behavior?
             //notifyNoData(DataConnection.FailCause.MISSING_UNKNOWN_APN);
@@ -3405,39 +3765,76 @@ public class DcTracker extends Handler {
                 mPreferredApn = null;
                 setPreferredApn(-1);
             }
-            if (DBG) log("createAllApnList: mPreferredApn=" + mPreferredApn);
+            if (DBG) log("applyApnSnapshot: mPreferredApn=" + mPreferredApn);
         }
-        if (DBG) log("createAllApnList: X mAllApnSettings=" + mAllApnSettings);
+        if (DBG) log("applyApnSnapshot: X mAllApnSettings=" + mAllApnSettings);
 
         setDataProfilesAsNeeded();
     }
 
     protected void dedupeApnSettings() {
-        ArrayList<ApnSetting> resultApns = new ArrayList<ApnSetting>();
-
-        // coalesce APNs if they are similar enough to prevent
-        // us from bringing up two data calls with the same interface
-        int i = 0;
-        while (i < mAllApnSettings.size() - 1) {
-            ApnSetting first = mAllApnSettings.get(i);
-            ApnSetting second = null;
-            int j = i + 1;
-            while (j < mAllApnSettings.size()) {
-                second = mAllApnSettings.get(j);
-                if (first.similar(second)) {
-                    ApnSetting newApn = mergeApns(first, second);
-                    mAllApnSettings.set(i, newApn);
-                    first = newApn;
-                    mAllApnSettings.remove(j);
-                } else {
-                    j++;
+        // mAllApnSettings is modified in place
+        mApnSettingIndex = null;
+        dedupeApnSettings(mAllApnSettings);
+    }
+
+    /**
+     * Coalesce APNs if they are similar enough to prevent us from bringing up two data calls
+     * with the same interface. Each APN is merged with the following APNs that are similar to
+     * it, in the order of the list, and the merged APN takes the place of the first one.
+     *
+     * Only APNs with the same {@link ApnSetting#getSimilarityKey} can be similar, and merging
+     * keeps the key, so the APNs are merged within each group with the same key, without
+     * comparing APNs of different groups.
+     */
+    @VisibleForTesting
+    static void dedupeApnSettings(ArrayList<ApnSetting> apnSettings) {
+        int size = apnSettings.size();
+        HashMap<Object, ArrayList<Integer>> groups = new HashMap<Object, ArrayList<Integer>>();
+        for (int i = 0; i < size; i++) {
+            Object key = apnSettings.get(i).getSimilarityKey();
+            ArrayList<Integer> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Integer>(1);
+                groups.put(key, group);
+            }
+            group.add(i);
+        }
+        if (groups.size() == size) {
+            // no APNs can be similar
+            return;
+        }
+
+        boolean[] merged = new boolean[size];
+        for (ArrayList<Integer> group : groups.values()) {
+            int groupSize = group.size();
+            for (int first = 0; first < groupSize - 1; first++) {
+                int i = group.get(first);
+                if (merged[i]) continue;
+                ApnSetting apn = apnSettings.get(i);
+                for (int second = first + 1; second < groupSize; second++) {
+                    int j = group.get(second);
+                    if (!merged[j] && apn.similar(apnSettings.get(j))) {
+                        apn = mergeApns(apn, apnSettings.get(j));
+                        merged[j] = true;
+                    }
                 }
+                apnSettings.set(i, apn);
             }
-            i++;
         }
+
+        // remove the merged APNs, keeping the order of the others
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (!merged[i]) {
+                apnSettings.set(count++, apnSettings.get(i));
+            }
+        }
+        apnSettings.subList(count, size).clear();
     }
 
-    private ApnSetting mergeApns(ApnSetting dest, ApnSetting src) {
+    @VisibleForTesting
+    static ApnSetting mergeApns(ApnSetting dest, ApnSetting src) {
         int id = dest.id;
         ArrayList<String> resultTypes = new ArrayList<String>();
         resultTypes.addAll(Arrays.asList(dest.types));
@@ -3464,6 +3861,19 @@ public class DcTracker extends Handler {
                 dest.maxConnsTime, dest.mtu, dest.mvnoType, dest.mvnoMatchData);
     }
 
+    /**
+     * Return the index of mAllApnSettings by APN type. The index is built when the APN list is
+     * created, and built again if mAllApnSettings was replaced or modified since then.
+     */
+    private ApnSettingIndex getApnSettingIndex() {
+        ApnSettingIndex index = mApnSettingIndex;
+        if (index == null || !index.isIndexOf(mAllApnSettings)) {
+            index = new ApnSettingIndex(mAllApnSettings);
+            mApnSettingIndex = index;
+        }
+        return index;
+    }
+
     /** Return the DC AsyncChannel for the new data connection */
     private DcAsyncChannel createDataConnection() {
         if (DBG) log("createDataConnection E");
@@ -3563,22 +3973,23 @@ public class DcTracker extends Handler {
         }
         if (mAllApnSettings != null) {
             if (DBG) log("buildWaitingApns: mAllApnSettings=" + mAllApnSettings);
-            for (ApnSetting apn : mAllApnSettings) {
-                if (apn.canHandleType(requestedApnType)) {
+            ApnSettingIndex index = getApnSettingIndex();
+            if (DBG) {
+                ArrayList<ApnSetting> candidates = index.getApns(requestedApnType);
+                for (ApnSetting apn : candidates) {
                     if (ServiceState.bitmaskHasTech(apn.bearerBitmask, radioTech)) {
-                        if (DBG) log("buildWaitingApns: adding apn=" + apn);
-                        apnList.add(apn);
+                        log("buildWaitingApns: adding apn=" + apn);
                     } else {
-                        if (DBG) {
-                            log("buildWaitingApns: bearerBitmask:" + apn.bearerBitmask + " does " +
-                                    "not include radioTech:" + radioTech);
-                        }
+                        log("buildWaitingApns: bearerBitmask:" + apn.bearerBitmask + " does " +
+                                "not include radioTech:" + radioTech);
                     }
-                } else if (DBG) {
-                    log("buildWaitingApns: couldn't handle requested ApnType="
-                            + requestedApnType);
+                }
+                if (candidates.size() < mAllApnSettings.size()) {
+                    log("buildWaitingApns: " + (mAllApnSettings.size() - candidates.size())
+                            + " APNs couldn't handle requested ApnType=" + requestedApnType);
                 }
             }
+            apnList.addAll(index.getApns(requestedApnType, radioTech));
         } else {
             loge("mAllApnSettings is null!");
         }
@@ -3722,7 +4133,7 @@ public class DcTracker extends Handler {
                     ApnContext apnContext = mApnContextsById.get(DctConstants.APN_DEFAULT_ID);
                     if (apnContext != null) {
                         apnContext.setReason(Phone.REASON_PS_RESTRICT_ENABLED);
-                        trySetupData(apnContext);
+                        trySetupDataOrDefer(apnContext);
                     } else {
                         loge("**** Default ApnContext not found ****");
                         if (Build.IS_DEBUGGABLE) {
@@ -3734,7 +4145,11 @@ public class DcTracker extends Handler {
 
             case DctConstants.EVENT_TRY_SETUP_DATA:
                 if (msg.obj instanceof ApnContext) {
-                    onTrySetupData((ApnContext)msg.obj);
+                    if (!onTrySetupData((ApnContext)msg.obj)) {
+                        // e.g. on a reconnect alarm, no bring-up started to release the
+                        // deferred ApnContexts once complete
+                        bringUpDeferredApnContexts();
+                    }
                 } else if (msg.obj instanceof String) {
                     onTrySetupData((String)msg.obj);
                 } else {
@@ -3828,10 +4243,13 @@ public class DcTracker extends Handler {
 
             case DctConstants.EVENT_DATA_SETUP_COMPLETE:
                 onDataSetupComplete((AsyncResult) msg.obj);
+                onBringUpComplete((AsyncResult) msg.obj,
+                        ((AsyncResult) msg.obj).exception == null);
                 break;
 
             case DctConstants.EVENT_DATA_SETUP_COMPLETE_ERROR:
                 onDataSetupCompleteError((AsyncResult) msg.obj);
+                onBringUpComplete((AsyncResult) msg.obj, false);
                 break;
 
             case DctConstants.EVENT_DISCONNECT_DONE:
@@ -4211,10 +4629,9 @@ public class DcTracker extends Handler {
         pw.println(" mRxPkts=" + mRxPkts);
         pw.println(" mNetStatPollPeriod=" + mNetStatPollPeriod);
         pw.println(" mNetStatPollEnabled=" + mNetStatPollEnabled);
-        pw.println(" mDataStallTxRxSum=" + mDataStallTxRxSum);
+        pw.println(" mDataStallDetector=" + mDataStallDetector);
         pw.println(" mDataStallAlarmTag=" + mDataStallAlarmTag);
         pw.println(" mDataStallDetectionEnabled=" + mDataStallDetectionEnabled);
-        pw.println(" mSentSinceLastRecv=" + mSentSinceLastRecv);
         pw.println(" mNoRecvPollCount=" + mNoRecvPollCount);
         pw.println(" mResolver=" + mResolver);
         pw.println(" mIsWifiConnected=" + mIsWifiConnected);
@@ -4222,6 +4639,9 @@ public class DcTracker extends Handler {
         pw.println(" mAutoAttachOnCreation=" + mAutoAttachOnCreation.get());
         pw.println(" mIsScreenOn=" + mIsScreenOn);
         pw.println(" mUniqueIdGenerator=" + mUniqueIdGenerator);
+        pw.println(" mApnBackgroundLoadCount=" + mApnBackgroundLoadCount
+                + " mApnBackgroundLoadMillis=" + mApnBackgroundLoadMillis);
+        pw.println(" mBringUpScheduler=" + mBringUpScheduler);
         pw.println(" mDataRoamingLeakageLog= ");
         mDataRoamingLeakageLog.dump(fd, pw, args);
         pw.flush();
@@ -4372,6 +4792,7 @@ public class DcTracker extends Handler {
 
                 if(hasEmergencyApn == false) {
                     mAllApnSettings.add(mEmergencyApn);
+                    mApnSettingIndex = null;
                 } else {
                     log("addEmergencyApnSetting - E-APN setting is already present");
                 }
@@ -4397,11 +4818,25 @@ public class DcTracker extends Handler {
     }
 
     protected void cleanUpConnectionsOnUpdatedApns(boolean tearDown, String reason) {
+        cleanUpConnectionsOnUpdatedApns(tearDown, reason, null);
+    }
+
+    /**
+     * @param changedApns the APNs that changed since the waiting APNs were built, or null if
+     *        the waiting APNs of all APN contexts must be rebuilt
+     */
+    private void cleanUpConnectionsOnUpdatedApns(boolean tearDown, String reason,
+            List<ApnSetting> changedApns) {
         if (DBG) log("cleanUpConnectionsOnUpdatedApns: tearDown=" + tearDown);
         if (mAllApnSettings != null && mAllApnSettings.isEmpty()) {
             cleanUpAllConnections(tearDown, Phone.REASON_APN_CHANGED);
         } else {
             for (ApnContext apnContext : mApnContexts.values()) {
+                if (changedApns != null && !canAnyHandleType(changedApns,
+                        apnContext.getApnType())) {
+                    // none of the APNs of its type changed, so its waiting APNs are the same
+                    continue;
+                }
                 ArrayList<ApnSetting> currentWaitingApns = apnContext.getWaitingApns();
                 ArrayList<ApnSetting> waitingApns = buildWaitingApns(
                         apnContext.getApnType(),
@@ -4438,6 +4873,50 @@ public class DcTracker extends Handler {
         }
     }
 
+    private static boolean canAnyHandleType(List<ApnSetting> apns, String type) {
+        for (ApnSetting apn : apns) {
+            if (apn.canHandleType(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compare two APN lists. APNs are matched by id, so an APN that was edited is returned in
+     * both its old and new versions. APNs that share their id with another APN of the same
+     * list are always returned.
+     *
+     * @param oldApns the previous APN list, or null
+     * @param newApns the current APN list
+     * @return the APNs that are not equal to an APN of the other list
+     */
+    @VisibleForTesting
+    static ArrayList<ApnSetting> getChangedApns(List<ApnSetting> oldApns,
+            List<ApnSetting> newApns) {
+        ArrayList<ApnSetting> changedApns = new ArrayList<ApnSetting>();
+        HashMap<Integer, ApnSetting> oldApnsById = new HashMap<Integer, ApnSetting>();
+        if (oldApns != null) {
+            for (ApnSetting apn : oldApns) {
+                ApnSetting sameId = oldApnsById.put(apn.id, apn);
+                if (sameId != null) {
+                    changedApns.add(sameId);
+                }
+            }
+        }
+        for (ApnSetting apn : newApns) {
+            ApnSetting oldApn = oldApnsById.remove(apn.id);
+            if (oldApn == null || !oldApn.equals(apn)) {
+                changedApns.add(apn);
+                if (oldApn != null) {
+                    changedApns.add(oldApn);
+                }
+            }
+        }
+        changedApns.addAll(oldApnsById.values());
+        return changedApns;
+    }
+
     /**
      * Polling stuff
      */
@@ -4632,31 +5111,33 @@ public class DcTracker extends Handler {
         if (getOverallState() == DctConstants.State.CONNECTED) {
             // Go through a series of recovery steps, each action transitions to the next action
             final int recoveryAction = getRecoveryAction();
-            TelephonyMetrics.getInstance().writeDataStallEvent(mPhone.getPhoneId(), recoveryAction);
+            final long sentSinceLastRecv = mDataStallDetector.getSentSinceLastRecv();
+            TelephonyMetrics.getInstance().writeDataStallEvent(mPhone.getPhoneId(), recoveryAction,
+                    mDataStallDetector.getLastDetectionLatencyMillis());
             switch (recoveryAction) {
             case RecoveryAction.GET_DATA_CALL_LIST:
                 EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_GET_DATA_CALL_LIST,
-                        mSentSinceLastRecv);
+                        sentSinceLastRecv);
                 if (DBG) log("doRecovery() get data call list");
                 mPhone.mCi.getDataCallList(obtainMessage(DctConstants.EVENT_DATA_STATE_CHANGED));
                 putRecoveryAction(RecoveryAction.CLEANUP);
                 break;
             case RecoveryAction.CLEANUP:
-                EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_CLEANUP, mSentSinceLastRecv);
+                EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_CLEANUP, sentSinceLastRecv);
                 if (DBG) log("doRecovery() cleanup all connections");
                 cleanUpAllConnections(Phone.REASON_PDP_RESET);
                 putRecoveryAction(RecoveryAction.REREGISTER);
                 break;
             case RecoveryAction.REREGISTER:
                 EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_REREGISTER,
-                        mSentSinceLastRecv);
+                        sentSinceLastRecv);
                 if (DBG) log("doRecovery() re-register");
                 mPhone.getServiceStateTracker().reRegisterNetwork(null);
                 putRecoveryAction(RecoveryAction.RADIO_RESTART);
                 break;
             case RecoveryAction.RADIO_RESTART:
                 EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_RADIO_RESTART,
-                        mSentSinceLastRecv);
+                        sentSinceLastRecv);
                 if (DBG) log("restarting radio");
                 putRecoveryAction(RecoveryAction.RADIO_RESTART_WITH_PROP);
                 restartRadio();
@@ -4682,50 +5163,74 @@ public class DcTracker extends Handler {
                 throw new RuntimeException("doRecovery: Invalid recoveryAction=" +
                     recoveryAction);
             }
-            mSentSinceLastRecv = 0;
+            mDataStallDetector.onRecovery();
         }
     }
 
-    private void updateDataStallInfo() {
-        long sent, received;
+    /**
+     * Sample the packet counters of the data stall detector.
+     *
+     * @param hangWatchdogTrigger the number of packets sent since the last received packet
+     *        that detects a stall
+     * @return the result of DataStallDetector#sample
+     */
+    private int updateDataStallInfo(int hangWatchdogTrigger) {
+        updateDataStallInterfaceSignals();
 
-        TxRxSum preTxRxSum = new TxRxSum(mDataStallTxRxSum);
-        mDataStallTxRxSum.updateTxRxSum();
+        int minStallMillis = Settings.Global.getInt(mResolver,
+                DATA_STALL_MIN_DURATION_IN_MS, DATA_STALL_MIN_DURATION_IN_MS_DEFAULT);
+        // packets sent during a voice call do not count
+        int result = mDataStallDetector.sample(SystemClock.elapsedRealtime(),
+                isPhoneStateIdle(), hangWatchdogTrigger, minStallMillis);
 
-        if (VDBG_STALL) {
-            log("updateDataStallInfo: mDataStallTxRxSum=" + mDataStallTxRxSum +
-                    " preTxRxSum=" + preTxRxSum);
+        if (result == DataStallDetector.RESULT_RECEIVED) {
+            if (VDBG_STALL) log("updateDataStallInfo: IN");
+            putRecoveryAction(RecoveryAction.GET_DATA_CALL_LIST);
+        } else if (result == DataStallDetector.RESULT_IDLE) {
+            if (VDBG_STALL) log("updateDataStallInfo: NONE");
+        } else if (DBG) {
+            log("updateDataStallInfo: OUT mSentSinceLastRecv="
+                    + mDataStallDetector.getSentSinceLastRecv());
         }
+        if (VDBG_STALL) log("updateDataStallInfo: " + mDataStallDetector);
+        return result;
+    }
 
-        sent = mDataStallTxRxSum.txPkts - preTxRxSum.txPkts;
-        received = mDataStallTxRxSum.rxPkts - preTxRxSum.rxPkts;
+    /**
+     * Track the packets of the interface of each connected data connection, so that the stats
+     * of the data stall detector show which interface a stall is on. The link properties of a
+     * data connection are only read when it is first seen connected.
+     */
+    private void updateDataStallInterfaceSignals() {
+        if (!mDataStallDetectionEnabled) return;
 
-        if (RADIO_TESTS) {
-            if (SystemProperties.getBoolean("radio.test.data.stall", false)) {
-                log("updateDataStallInfo: radio.test.data.stall true received = 0;");
-                received = 0;
+        HashSet<DcAsyncChannel> connected = new HashSet<DcAsyncChannel>();
+        for (ApnContext apnContext : mApnContexts.values()) {
+            DcAsyncChannel dcac = apnContext.getDcAc();
+            if (dcac != null && apnContext.getState() == DctConstants.State.CONNECTED) {
+                connected.add(dcac);
             }
         }
-        if ( sent > 0 && received > 0 ) {
-            if (VDBG_STALL) log("updateDataStallInfo: IN/OUT");
-            mSentSinceLastRecv = 0;
-            putRecoveryAction(RecoveryAction.GET_DATA_CALL_LIST);
-        } else if (sent > 0 && received == 0) {
-            if (isPhoneStateIdle()) {
-                mSentSinceLastRecv += sent;
-            } else {
-                mSentSinceLastRecv = 0;
+        mDataStallIfaces.keySet().retainAll(connected);
+        for (DcAsyncChannel dcac : connected) {
+            if (!mDataStallIfaces.containsKey(dcac)) {
+                LinkProperties linkProperties = dcac.getLinkPropertiesSync();
+                mDataStallIfaces.put(dcac,
+                        linkProperties != null ? linkProperties.getInterfaceName() : null);
             }
-            if (DBG) {
-                log("updateDataStallInfo: OUT sent=" + sent +
-                        " mSentSinceLastRecv=" + mSentSinceLastRecv);
+        }
+        HashSet<String> ifaces = new HashSet<String>(mDataStallIfaces.values());
+        ifaces.remove(null);
+
+        for (String name : mDataStallDetector.getSignalNames()) {
+            if (name.startsWith(DATA_STALL_SIGNAL_IFACE_PREFIX) && !ifaces.contains(
+                    name.substring(DATA_STALL_SIGNAL_IFACE_PREFIX.length()))) {
+                mDataStallDetector.removeSignal(name);
             }
-        } else if (sent == 0 && received > 0) {
-            if (VDBG_STALL) log("updateDataStallInfo: IN");
-            mSentSinceLastRecv = 0;
-            putRecoveryAction(RecoveryAction.GET_DATA_CALL_LIST);
-        } else {
-            if (VDBG_STALL) log("updateDataStallInfo: NONE");
+        }
+        for (String iface : ifaces) {
+            mDataStallDetector.addSignal(DATA_STALL_SIGNAL_IFACE_PREFIX + iface,
+                    new InterfacePacketCounter(iface), false);
         }
     }
 
@@ -4747,23 +5252,35 @@ public class DcTracker extends Handler {
             }
             return;
         }
-        updateDataStallInfo();
-
         int hangWatchdogTrigger = Settings.Global.getInt(mResolver,
                 Settings.Global.PDP_WATCHDOG_TRIGGER_PACKET_COUNT,
                 NUMBER_SENT_PACKETS_OF_HANG);
 
+        int result = updateDataStallInfo(hangWatchdogTrigger);
+
         boolean suspectedStall = DATA_STALL_NOT_SUSPECTED;
-        if (mSentSinceLastRecv >= hangWatchdogTrigger) {
+        if (result == DataStallDetector.RESULT_STALLED) {
             if (DBG) {
-                log("onDataStallAlarm: tag=" + tag + " do recovery action=" + getRecoveryAction());
+                log("onDataStallAlarm: tag=" + tag + " do recovery action=" + getRecoveryAction()
+                        + " detectionLatency="
+                        + mDataStallDetector.getLastDetectionLatencyMillis() + "ms");
             }
             suspectedStall = DATA_STALL_SUSPECTED;
             sendMessage(obtainMessage(DctConstants.EVENT_DO_RECOVERY));
         } else {
             if (VDBG_STALL) {
-                log("onDataStallAlarm: tag=" + tag + " Sent " + String.valueOf(mSentSinceLastRecv) +
-                    " pkts since last received, < watchdogTrigger=" + hangWatchdogTrigger);
+                log("onDataStallAlarm: tag=" + tag + " Sent "
+                        + mDataStallDetector.getSentSinceLastRecv()
+                        + " pkts since last received, < watchdogTrigger=" + hangWatchdogTrigger);
+            }
+            if (result != DataStallDetector.RESULT_SUSPECTED
+                    && getRecoveryAction() != RecoveryAction.GET_DATA_CALL_LIST
+                    && mDataStallDetector.getMillisSinceLastStall(SystemClock.elapsedRealtime())
+                            >= getDataStallAlarmDelay(false)) {
+                // No stall for a whole non-aggressive period: the stall is over even if no
+                // packet was received since, so a new stall starts over from the first step.
+                if (DBG) log("onDataStallAlarm: no stall since last recovery, reset action");
+                putRecoveryAction(RecoveryAction.GET_DATA_CALL_LIST);
             }
         }
         startDataStallAlarm(suspectedStall);
@@ -4771,19 +5288,23 @@ public class DcTracker extends Handler {
 
     private void startDataStallAlarm(boolean suspectedStall) {
         int nextAction = getRecoveryAction();
-        int delayInMs;
+        long delayInMs;
 
         if (mDataStallDetectionEnabled && getOverallState() == DctConstants.State.CONNECTED) {
-            // If screen is on or data stall is currently suspected, set the alarm
-            // with an aggressive timeout.
-            if (mIsScreenOn || suspectedStall || RecoveryAction.isAggressiveRecovery(nextAction)) {
-                delayInMs = Settings.Global.getInt(mResolver,
-                        Settings.Global.DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS,
-                        DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+            if (suspectedStall) {
+                // Give the recovery action time to work before checking again
+                delayInMs = getDataStallAlarmDelay(true);
             } else {
-                delayInMs = Settings.Global.getInt(mResolver,
-                        Settings.Global.DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS,
-                        DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+                // Sample fast while a stall is suspected, aggressively while the device is in
+                // use or a recovery action is pending, and non-aggressively otherwise.
+                DeviceStateMonitor deviceStateMonitor = mPhone.getDeviceStateMonitor();
+                boolean inUse = mIsScreenOn || (deviceStateMonitor != null
+                        && !deviceStateMonitor.isLowDataExpected());
+                delayInMs = mDataStallDetector.getNextSampleDelayMillis(inUse,
+                        RecoveryAction.isAggressiveRecovery(nextAction),
+                        Settings.Global.getInt(mResolver, DATA_STALL_ALARM_SUSPECT_DELAY_IN_MS,
+                                DATA_STALL_ALARM_SUSPECT_DELAY_IN_MS_DEFAULT),
+                        getDataStallAlarmDelay(true), getDataStallAlarmDelay(false));
             }
 
             mDataStallAlarmTag += 1;
@@ -4804,6 +5325,17 @@ public class DcTracker extends Handler {
         }
     }
 
+    private int getDataStallAlarmDelay(boolean aggressive) {
+        if (aggressive) {
+            return Settings.Global.getInt(mResolver,
+                    Settings.Global.DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS,
+                    DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+        }
+        return Settings.Global.getInt(mResolver,
+                Settings.Global.DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS,
+                DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+    }
+
     private void stopDataStallAlarm() {
         if (VDBG_STALL) {
             log("stopDataStallAlarm: current tag=" + mDataStallAlarmTag +
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.gsm;
+
+import android.telephony.SmsCbLocation;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.metrics.TelephonyMetrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pages of concatenated 3GPP cell broadcasts waiting for assembly.
+ *
+ * Incomplete messages are dropped when they are older than {@link #EXPIRY_MILLIS}, when they
+ * are out of the current location, or, oldest first, when the store holds more than
+ * {@link #MAX_MESSAGES} messages or {@link #MAX_PDU_BYTES} bytes of pages. This keeps a storm
+ * of partially received emergency alerts from growing the store without bound. The pages
+ * received and dropped are counted, and reported to TelephonyMetrics by
+ * {@link #writeDroppedPages}.
+ *
+ * Not thread safe; only used from the GsmCellBroadcastHandler state machine thread.
+ */
+class SmsCbPageStore {
+    @VisibleForTesting
+    static final int MAX_MESSAGES = 32;
+    @VisibleForTesting
+    static final int MAX_PDU_BYTES = 16 * 1024;
+    /** Pages are repeated by the network, so the missing ones may come a few periods later. */
+    @VisibleForTesting
+    static final long EXPIRY_MILLIS = 30 * 60 * 1000;
+
+    /** Pages received so far for one concatenated message */
+    private static final class Pages {
+        final byte[][] mPdus;
+        final long mFirstPageTime;
+        int mReceived;
+        int mBytes;
+
+        Pages(int pageCount, long firstPageTime) {
+            mPdus = new byte[pageCount][];
+            mFirstPageTime = firstPageTime;
+        }
+    }
+
+    /** Counts of the pages received and dropped */
+    private static final class PageCounts {
+        int mPagesReceived;
+        int mMessagesCompleted;
+        int mDuplicatesDropped;
+        int mPagesExpired;
+        int mPagesEvicted;
+        int mPagesOutOfLocation;
+
+        PageCounts() {
+        }
+
+        PageCounts(PageCounts counts) {
+            mPagesReceived = counts.mPagesReceived;
+            mMessagesCompleted = counts.mMessagesCompleted;
+            mDuplicatesDropped = counts.mDuplicatesDropped;
+            mPagesExpired = counts.mPagesExpired;
+            mPagesEvicted = counts.mPagesEvicted;
+            mPagesOutOfLocation = counts.mPagesOutOfLocation;
+        }
+    }
+
+    /** Incomplete messages, in the order their first page was received */
+    private final LinkedHashMap<SmsCbConcatInfo, Pages> mMessages =
+            new LinkedHashMap<SmsCbConcatInfo, Pages>();
+    private int mPduBytes;
+
+    private final PageCounts mCounts = new PageCounts();
+    // The counts at the last call to writeDroppedPages
+    private PageCounts mReportedCounts = new PageCounts();
+
+    /**
+     * Add a page of a multi-page message.
+     *
+     * @param header the header of the page
+     * @param location the location of the message, relative to its geographical scope
+     * @param pdu the page PDU
+     * @param now the current time, as returned by SystemClock.elapsedRealtime()
+     * @return the PDUs of all pages, ordered by page index, if the message is now complete;
+     *         null otherwise
+     */
+    byte[][] addPage(SmsCbHeader header, SmsCbLocation location, byte[] pdu, long now) {
+        removeExpired(now);
+        mCounts.mPagesReceived++;
+
+        // Page parameter is one-based
+        int pageIndex = header.getPageIndex() - 1;
+        if (pageIndex < 0 || pageIndex >= header.getNumberOfPages()) {
+            throw new IllegalArgumentException("Invalid page index " + header.getPageIndex());
+        }
+
+        SmsCbConcatInfo concatInfo = new SmsCbConcatInfo(header, location);
+        Pages pages = mMessages.get(concatInfo);
+        if (pages == null) {
+            // This is the first page of this message, make room for all
+            // pages and keep until complete
+            pages = new Pages(header.getNumberOfPages(), now);
+            mMessages.put(concatInfo, pages);
+        } else if (pageIndex >= pages.mPdus.length) {
+            throw new IllegalArgumentException("Invalid page index " + header.getPageIndex());
+        }
+
+        if (pages.mPdus[pageIndex] != null) {
+            // The page is repeated by the network before the message is complete
+            mCounts.mDuplicatesDropped++;
+            return null;
+        }
+        pages.mPdus[pageIndex] = pdu;
+        pages.mReceived++;
+        pages.mBytes += pdu.length;
+        mPduBytes += pdu.length;
+
+        if (pages.mReceived < pages.mPdus.length) {
+            // Still missing pages
+            evictOldest();
+            return null;
+        }
+
+        // Message complete
+        mMessages.remove(concatInfo);
+        mPduBytes -= pages.mBytes;
+        mCounts.mMessagesCompleted++;
+        return pages.mPdus;
+    }
+
+    /**
+     * Remove messages that are out of scope of the current location. They would never be
+     * assembled, since pages of the same message received in another location don't match.
+     *
+     * @param plmn the current PLMN
+     * @param lac the current Location Area (GSM) or Service Area (UMTS)
+     * @param cid the current Cell ID
+     */
+    void removeOutOfLocation(String plmn, int lac, int cid) {
+        Iterator<Map.Entry<SmsCbConcatInfo, Pages>> iter = mMessages.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<SmsCbConcatInfo, Pages> entry = iter.next();
+            if (!entry.getKey().matchesLocation(plmn, lac, cid)) {
+                mCounts.mPagesOutOfLocation += removeMessage(iter, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the number of pages dropped before their message was complete
+     */
+    int getDroppedPageCount() {
+        return mCounts.mPagesExpired + mCounts.mPagesEvicted + mCounts.mPagesOutOfLocation;
+    }
+
+    /**
+     * Write the counts of the pages received and dropped since the previous call.
+     *
+     * @param metrics the TelephonyMetrics to write to
+     * @param phoneId the id of the phone receiving the pages
+     */
+    void writeDroppedPages(TelephonyMetrics metrics, int phoneId) {
+        metrics.writeCellBroadcastPagesDropped(phoneId,
+                mCounts.mPagesReceived - mReportedCounts.mPagesReceived,
+                mCounts.mMessagesCompleted - mReportedCounts.mMessagesCompleted,
+                mCounts.mDuplicatesDropped - mReportedCounts.mDuplicatesDropped,
+                mCounts.mPagesExpired - mReportedCounts.mPagesExpired,
+                mCounts.mPagesEvicted - mReportedCounts.mPagesEvicted,
+                mCounts.mPagesOutOfLocation - mReportedCounts.mPagesOutOfLocation);
+        mReportedCounts = new PageCounts(mCounts);
+    }
+
+    @VisibleForTesting
+    int size() {
+        return mMessages.size();
+    }
+
+    private void removeExpired(long now) {
+        // Messages are ordered by the time of their first page, so only the oldest ones
+        // need to be checked
+        Iterator<Pages> iter = mMessages.values().iterator();
+        while (iter.hasNext()) {
+            Pages pages = iter.next();
+            if (now - pages.mFirstPageTime < EXPIRY_MILLIS) {
+                break;
+            }
+            mCounts.mPagesExpired += removeMessage(iter, pages);
+        }
+    }
+
+    private void evictOldest() {
+        Iterator<Pages> iter = mMessages.values().iterator();
+        while (iter.hasNext() && (mMessages.size() > MAX_MESSAGES || mPduBytes > MAX_PDU_BYTES)) {
+            mCounts.mPagesEvicted += removeMessage(iter, iter.next());
+        }
+    }
+
+    /**
+     * Remove the current message of iter.
+     * @return the number of pages of the message that were received
+     */
+    private int removeMessage(Iterator<?> iter, Pages pages) {
+        iter.remove();
+        mPduBytes -= pages.mBytes;
+        return pages.mReceived;
+    }
+
+    @Override
+    public String toString() {
+        return "SmsCbPageStore{messages=" + mMessages.size() + " bytes=" + mPduBytes
+                + " pagesReceived=" + mCounts.mPagesReceived
+                + " messagesCompleted=" + mCounts.mMessagesCompleted
+                + " duplicatesDropped=" + mCounts.mDuplicatesDropped
+                + " pagesExpired=" + mCounts.mPagesExpired
+                + " pagesEvicted=" + mCounts.mPagesEvicted
+                + " pagesOutOfLocation=" + mCounts.mPagesOutOfLocation + "}";
+    }
+
+    /**
+     * Holds all info about a message page needed to assemble a complete concatenated message.
+     */
+    private static final class SmsCbConcatInfo {
+
+        private final SmsCbHeader mHeader;
+        private final SmsCbLocation mLocation;
+
+        SmsCbConcatInfo(SmsCbHeader header, SmsCbLocation location) {
+            mHeader = header;
+            mLocation = location;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mHeader.getSerialNumber() * 31) + mLocation.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof SmsCbConcatInfo) {
+                SmsCbConcatInfo other = (SmsCbConcatInfo)obj;
+
+                // Two pages match if they have the same serial number (which includes the
+                // geographical scope and update number), and both pages belong to the same
+                // location (PLMN, plus LAC and CID if these are part of the geographical scope).
+                return mHeader.getSerialNumber() == other.mHeader.getSerialNumber()
+                        && mLocation.equals(other.mLocation);
+            }
+
+            return false;
+        }
+
+        /**
+         * Compare the location code for this message to the current location code. The match is
+         * relative to the geographical scope of the message, which determines whether the LAC
+         * and Cell ID are saved in mLocation or set to -1 to match all values.
+         *
+         * @param plmn the current PLMN
+         * @param lac the current Location Area (GSM) or Service Area (UMTS)
+         * @param cid the current Cell ID
+         * @return true if this message is valid for the current location; false otherwise
+         */
+        public boolean matchesLocation(String plmn, int lac, int cid) {
+            return mLocation.isInLocationArea(plmn, lac, cid);
+        }
+    }
+}
@@ -25,6 +25,7 @@ import android.util.SparseIntArray;
 
 import com.android.internal.telephony.uicc.AdnRecord;
 import com.android.internal.telephony.uicc.AdnRecordCache;
+import com.android.internal.telephony.uicc.AdnRecordIndex;
 import com.android.internal.telephony.uicc.IccConstants;
 import com.android.internal.telephony.uicc.IccFileHandler;
 import com.android.internal.telephony.uicc.IccUtils;
@@ -45,6 +46,11 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
     private AdnRecordCache mAdnCache;
     private Object mLock = new Object();
     private ArrayList<AdnRecord> mPhoneBookRecords;
+    // Index of mPhoneBookRecords, or null if it is not built yet
+    private AdnRecordIndex mPhoneBookIndex;
+    // Position in mPhoneBookRecords for each ADN record. The key would be
+    // ADN's efid << 8 + record #
+    private SparseIntArray mPhoneBookPositions;
     private ArrayList<byte[]> mIapFileRecord;
     private ArrayList<byte[]> mEmailFileRecord;
 
@@ -117,10 +123,13 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         mAdnCache = cache;
         mEmailsForAdnRec = new SparseArray<ArrayList<String>>();
         mSfiEfidTable = new SparseIntArray();
+        mPhoneBookPositions = new SparseIntArray();
     }
 
     public void reset() {
         mPhoneBookRecords.clear();
+        mPhoneBookIndex = null;
+        mPhoneBookPositions.clear();
         mIapFileRecord = null;
         mEmailFileRecord = null;
         mPbrRecords = null;
@@ -161,11 +170,84 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
             }
 
             updatePhoneAdnRecord();
+            onPhoneBookRecordsLoaded();
             // All EF files are loaded, return all the records
         }
         return mPhoneBookRecords;
     }
 
+    // Load all phonebook related EFs from the SIM, and index the records to search them.
+    public AdnRecordIndex loadIndexFromUsim() {
+        synchronized (mLock) {
+            if (loadEfFilesFromUsim() == null) return null;
+
+            if (mPhoneBookIndex == null) {
+                mPhoneBookIndex = new AdnRecordIndex(mPhoneBookRecords);
+            }
+            return mPhoneBookIndex;
+        }
+    }
+
+    /**
+     * Replace a record in the phonebook after it was updated on the USIM, if the phonebook is
+     * loaded and the record comes from one of its ADN files.
+     *
+     * Only the ADN record is written, so the record keeps the emails read from EF_EMAIL. If
+     * the update asked for other emails, the phonebook no longer matches the USIM and is read
+     * again on the next load.
+     *
+     * @param adnEfid EF id of the ADN file
+     * @param recordNumber 1-based record number in the ADN file
+     * @param adn the record the update asked for
+     * @param written the record as written to the ADN file
+     */
+    public void onAdnRecordUpdated(int adnEfid, int recordNumber, AdnRecord adn,
+            AdnRecord written) {
+        synchronized (mLock) {
+            int position = mPhoneBookPositions.get(getAdnRecordKey(adnEfid, recordNumber), -1);
+            if (position < 0 || position >= mPhoneBookRecords.size()) return;
+
+            AdnRecord rec = new AdnRecord(adnEfid, recordNumber, written.getAlphaTag(),
+                    written.getNumber(), mPhoneBookRecords.get(position).getEmails());
+            if (!rec.isEqual(adn)) {
+                log("onAdnRecordUpdated: emails not written, reload phonebook");
+                invalidatePhoneBook();
+                return;
+            }
+
+            if (mPhoneBookIndex != null) {
+                mPhoneBookIndex.set(position, rec);
+            } else {
+                mPhoneBookRecords.set(position, rec);
+            }
+        }
+    }
+
+    // Drop the phonebook and the email records, so that they are read again from the USIM.
+    private void invalidatePhoneBook() {
+        mPhoneBookRecords.clear();
+        mPhoneBookIndex = null;
+        mPhoneBookPositions.clear();
+        mIapFileRecord = null;
+        mEmailFileRecord = null;
+        mEmailsForAdnRec.clear();
+        mRefreshCache = false;
+    }
+
+    // Called once mPhoneBookRecords are loaded from the ADN files.
+    private void onPhoneBookRecordsLoaded() {
+        mPhoneBookIndex = null;
+        mPhoneBookPositions.clear();
+        for (int i = 0; i < mPhoneBookRecords.size(); i++) {
+            AdnRecord rec = mPhoneBookRecords.get(i);
+            mPhoneBookPositions.put(getAdnRecordKey(rec.getEfid(), rec.getRecId()), i);
+        }
+    }
+
+    private static int getAdnRecordKey(int adnEfid, int recordNumber) {
+        return ((adnEfid & 0xFFFF) << 8) | ((recordNumber - 1) & 0xFF);
+    }
+
     // Refresh the phonebook cache.
     private void refreshCache() {
         if (mPbrRecords == null) return;
@@ -175,6 +257,7 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         for (int i = 0; i < numRecs; i++) {
             readAdnFileAndWait(i);
         }
+        onPhoneBookRecordsLoaded();
     }
 
     // Invalidate the phonebook cache.
@@ -184,7 +267,8 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
 
     // Read the phonebook reference file EF_PBR.
     private void readPbrFileAndWait() {
-        mFh.loadEFLinearFixedAll(EF_PBR, obtainMessage(EVENT_PBR_LOAD_DONE));
+        mFh.loadEFLinearFixedAll(EF_PBR, null, IccFileHandler.PHONEBOOK_READ_RECORD_WINDOW, 0,
+                obtainMessage(EVENT_PBR_LOAD_DONE));
         try {
             mLock.wait();
         } catch (InterruptedException e) {
@@ -245,7 +329,8 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
             }
 
             // Read the EFEmail file.
-            mFh.loadEFLinearFixedAll(emailEfid,
+            mFh.loadEFLinearFixedAll(emailEfid, null,
+                    IccFileHandler.PHONEBOOK_READ_RECORD_WINDOW, 0,
                     obtainMessage(EVENT_EMAIL_LOAD_DONE));
             try {
                 mLock.wait();
@@ -403,7 +488,8 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
 
     // Read Phonebook Index Admistration EF_IAP file
     private void readIapFileAndWait(int efid) {
-        mFh.loadEFLinearFixedAll(efid, obtainMessage(EVENT_IAP_LOAD_DONE));
+        mFh.loadEFLinearFixedAll(efid, null, IccFileHandler.PHONEBOOK_READ_RECORD_WINDOW, 0,
+                obtainMessage(EVENT_IAP_LOAD_DONE));
         try {
             mLock.wait();
         } catch (InterruptedException e) {
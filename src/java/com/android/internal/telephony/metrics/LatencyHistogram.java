@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.metrics;
+
+import com.android.internal.telephony.nano.TelephonyProto;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free latency recorder with log-linear buckets, in the style of an HDR histogram.
+ *
+ * Values below {@link #SUB_BUCKET_COUNT} ms are counted exactly; above that every power of two
+ * is split into {@link #SUB_BUCKET_COUNT} linear buckets, so reported percentiles are within
+ * about 6% of the real value. Recording never allocates or locks, which makes it safe to call
+ * from binder threads on the response path. The histogram also tracks how many operations are
+ * outstanding, for callers that report start and end separately.
+ */
+public class LatencyHistogram {
+
+    /** Category used for per-phone RIL request latency histograms in the telephony log */
+    public static final int CATEGORY_RIL_LATENCY = 2;
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /** Number of linear buckets per power of two */
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /** Largest value that is tracked precisely; larger values are clamped (about 4.6 hours) */
+    public static final long MAX_TRACKABLE_MS = (1L << 24) - 1;
+
+    private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_MS) + 1;
+
+    /** Phone id */
+    public final int phoneId;
+
+    /** Id of the measured operation, e.g. RIL_REQUEST_* */
+    public final int id;
+
+    private final AtomicIntegerArray mCounts = new AtomicIntegerArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong(0);
+    private final AtomicLong mTotalTimeMs = new AtomicLong(0);
+    private final AtomicLong mMinTimeMs = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMaxTimeMs = new AtomicLong(0);
+    private final AtomicInteger mInFlight = new AtomicInteger(0);
+    private final AtomicInteger mMaxInFlight = new AtomicInteger(0);
+
+    /**
+     * Constructor
+     *
+     * @param phoneId Phone id
+     * @param id Id of the measured operation
+     */
+    public LatencyHistogram(int phoneId, int id) {
+        this.phoneId = phoneId;
+        this.id = id;
+    }
+
+    /** Mark the start of an operation, raising the in-flight depth */
+    public void onStart() {
+        int depth = mInFlight.incrementAndGet();
+        int max;
+        while (depth > (max = mMaxInFlight.get())) {
+            if (mMaxInFlight.compareAndSet(max, depth)) break;
+        }
+    }
+
+    /**
+     * Mark the completion of an operation started with {@link #onStart()} and record its latency
+     *
+     * @param timeMs Time taken in milliseconds
+     */
+    public void onComplete(long timeMs) {
+        mInFlight.decrementAndGet();
+        record(timeMs);
+    }
+
+    /** Mark an operation started with {@link #onStart()} as abandoned without recording it */
+    public void onAbandon() {
+        mInFlight.decrementAndGet();
+    }
+
+    /**
+     * Record a sample
+     *
+     * @param timeMs Time taken in milliseconds
+     */
+    public void record(long timeMs) {
+        if (timeMs < 0) timeMs = 0;
+        if (timeMs > MAX_TRACKABLE_MS) timeMs = MAX_TRACKABLE_MS;
+
+        mCounts.incrementAndGet(bucketIndex(timeMs));
+        mTotalCount.incrementAndGet();
+        mTotalTimeMs.addAndGet(timeMs);
+
+        long current;
+        while (timeMs > (current = mMaxTimeMs.get())) {
+            if (mMaxTimeMs.compareAndSet(current, timeMs)) break;
+        }
+        while (timeMs < (current = mMinTimeMs.get())) {
+            if (mMinTimeMs.compareAndSet(current, timeMs)) break;
+        }
+    }
+
+    /** @return Number of recorded samples */
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    /** @return Smallest recorded sample, or 0 if there are none */
+    public long getMinTimeMs() {
+        long min = mMinTimeMs.get();
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    /** @return Largest recorded sample */
+    public long getMaxTimeMs() {
+        return mMaxTimeMs.get();
+    }
+
+    /** @return Average of the recorded samples, or 0 if there are none */
+    public long getAverageTimeMs() {
+        long count = mTotalCount.get();
+        return count == 0 ? 0 : mTotalTimeMs.get() / count;
+    }
+
+    /** @return Number of operations currently outstanding */
+    public int getInFlight() {
+        return mInFlight.get();
+    }
+
+    /** @return Largest number of operations that were outstanding at the same time */
+    public int getMaxInFlight() {
+        return mMaxInFlight.get();
+    }
+
+    /**
+     * Get the value at the given percentile. The result is the upper end of the bucket holding
+     * the percentile, capped at the largest recorded sample.
+     *
+     * @param percentile Percentile between 0 and 100
+     * @return Time in milliseconds, or 0 if there are no samples
+     */
+    public long getPercentileMs(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), getMaxTimeMs());
+            }
+        }
+        return getMaxTimeMs();
+    }
+
+    /**
+     * Write the histogram into a telephony log histogram entry
+     *
+     * @param proto The entry to fill
+     */
+    public void writeToProto(TelephonyProto.TelephonyHistogram proto) {
+        proto.category = CATEGORY_RIL_LATENCY;
+        proto.id = id;
+        proto.phoneId = phoneId;
+        proto.count = (int) Math.min(getCount(), Integer.MAX_VALUE);
+        proto.minTimeMillis = (int) getMinTimeMs();
+        proto.maxTimeMillis = (int) getMaxTimeMs();
+        proto.avgTimeMillis = (int) getAverageTimeMs();
+        proto.p50TimeMillis = (int) getPercentileMs(50);
+        proto.p95TimeMillis = (int) getPercentileMs(95);
+        proto.p99TimeMillis = (int) getPercentileMs(99);
+        proto.inFlight = getInFlight();
+        proto.maxInFlight = getMaxInFlight();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " p50=" + getPercentileMs(50)
+                + " p95=" + getPercentileMs(95)
+                + " p99=" + getPercentileMs(99)
+                + " max=" + getMaxTimeMs()
+                + " inFlight=" + getInFlight()
+                + " maxInFlight=" + getMaxInFlight();
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >> shift);
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long lower = (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -20,6 +20,8 @@ import static com.android.internal.telephony.nano.TelephonyProto.ImsCapabilities
 import static com.android.internal.telephony.nano.TelephonyProto.ImsConnectionState;
 import static com.android.internal.telephony.nano.TelephonyProto.RilDataCall;
 import static com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent;
+import static com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent.CellBroadcastPages;
+import static com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent.DataBringUp;
 import static com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent.ModemRestart;
 import static com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent.RilDeactivateDataCall;
 import static com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent.RilSetupDataCall;
@@ -75,6 +77,11 @@ public class TelephonyEventBuilder {
         return this;
     }
 
+    public TelephonyEventBuilder setDataStallDetectionLatency(long latencyMillis) {
+        mEvent.dataStallDetectionLatencyMillis = latencyMillis;
+        return this;
+    }
+
     public TelephonyEventBuilder setSetupDataCall(RilSetupDataCall request) {
         mEvent.type = TelephonyEvent.Type.DATA_CALL_SETUP;
         mEvent.setupDataCall = request;
@@ -111,6 +118,18 @@ public class TelephonyEventBuilder {
         return this;
     }
 
+    public TelephonyEventBuilder setDataBringUp(DataBringUp dataBringUp) {
+        mEvent.type = TelephonyEvent.Type.DATA_BRING_UP;
+        mEvent.dataBringUp = dataBringUp;
+        return this;
+    }
+
+    public TelephonyEventBuilder setCellBroadcastPages(CellBroadcastPages cellBroadcastPages) {
+        mEvent.type = TelephonyEvent.Type.CELL_BROADCAST_PAGES_DROPPED;
+        mEvent.cellBroadcastPages = cellBroadcastPages;
+        return this;
+    }
+
     public TelephonyEventBuilder setModemRestart(ModemRestart modemRestart) {
         mEvent.type = TelephonyEvent.Type.MODEM_RESTART;
         mEvent.modemRestart = modemRestart;
@@ -66,6 +66,8 @@ import com.android.internal.telephony.nano.TelephonyProto.TelephonyCallSession.E
 import com.android.internal.telephony.nano.TelephonyProto.TelephonyCallSession.Event.RilCall;
 import com.android.internal.telephony.nano.TelephonyProto.TelephonyCallSession.Event.RilCall.Type;
 import com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent;
+import com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent.CellBroadcastPages;
+import com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent.DataBringUp;
 import com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent.ModemRestart;
 import com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent.RilDeactivateDataCall;
 import com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent.RilSetupDataCall;
@@ -230,6 +232,10 @@ public class TelephonyMetrics {
                 return "DATA_STALL_ACTION";
             case TelephonyEvent.Type.MODEM_RESTART:
                 return "MODEM_RESTART";
+            case TelephonyEvent.Type.DATA_BRING_UP:
+                return "DATA_BRING_UP";
+            case TelephonyEvent.Type.CELL_BROADCAST_PAGES_DROPPED:
+                return "CELL_BROADCAST_PAGES_DROPPED";
             default:
                 return Integer.toString(event);
         }
@@ -430,6 +436,9 @@ public class TelephonyMetrics {
 
         mTelephonyEventsDropped = false;
 
+        // The latency histograms are kept by RIL, and start over with each log
+        RIL.resetRilLatencyHistograms();
+
         mStartSystemTimeMs = System.currentTimeMillis();
         mStartElapsedTimeMs = SystemClock.elapsedRealtime();
 
@@ -481,9 +490,12 @@ public class TelephonyMetrics {
         log.smsSessions = new SmsSession[mCompletedSmsSessions.size()];
         mCompletedSmsSessions.toArray(log.smsSessions);
 
-        // Build histogram. Currently we only support RIL histograms.
+        // Build histogram. Currently we only support RIL histograms. The histograms aggregated
+        // across phones come first, followed by the per-phone latency histograms.
         List<TelephonyHistogram> rilHistograms = RIL.getTelephonyRILTimingHistograms();
-        log.histograms = new TelephonyProto.TelephonyHistogram[rilHistograms.size()];
+        List<LatencyHistogram> latencyHistograms = RIL.getRilLatencyHistograms();
+        log.histograms = new TelephonyProto.TelephonyHistogram[rilHistograms.size()
+                + latencyHistograms.size()];
         for (int i = 0; i < rilHistograms.size(); i++) {
             log.histograms[i] = new TelephonyProto.TelephonyHistogram();
             TelephonyHistogram rilHistogram = rilHistograms.get(i);
@@ -499,6 +511,12 @@ public class TelephonyMetrics {
             histogramProto.bucketEndPoints = rilHistogram.getBucketEndPoints();
             histogramProto.bucketCounters = rilHistogram.getBucketCounters();
         }
+        for (int i = 0; i < latencyHistograms.size(); i++) {
+            TelephonyProto.TelephonyHistogram histogramProto =
+                    new TelephonyProto.TelephonyHistogram();
+            latencyHistograms.get(i).writeToProto(histogramProto);
+            log.histograms[rilHistograms.size() + i] = histogramProto;
+        }
 
         // Log the starting system time
         log.startTime = new TelephonyProto.Time();
@@ -819,10 +837,63 @@ public class TelephonyMetrics {
      *
      * @param phoneId Phone id
      * @param recoveryAction Data stall recovery action
+     * @param detectionLatencyMillis Time from the first packets sent without any packet
+     *                               received to the detection of the stall
+     */
+    public void writeDataStallEvent(int phoneId, int recoveryAction,
+                                    long detectionLatencyMillis) {
+        addTelephonyEvent(new TelephonyEventBuilder(phoneId)
+                .setDataStallRecoveryAction(recoveryAction)
+                .setDataStallDetectionLatency(detectionLatencyMillis).build());
+    }
+
+    /**
+     * Write data bring-up event
+     *
+     * @param phoneId Phone id
+     * @param durationMillis Time from the first setup data call request to the response of
+     *                       the last
+     * @param apnCount Number of APN types brought up
+     * @param connectedCount Number of APN types connected
+     * @param maxConcurrent Largest number of setup data call requests in flight at once
+     */
+    public void writeDataBringUpEvent(int phoneId, long durationMillis, int apnCount,
+                                      int connectedCount, int maxConcurrent) {
+        final DataBringUp dataBringUp = new DataBringUp();
+        dataBringUp.durationMillis = durationMillis;
+        dataBringUp.apnCount = apnCount;
+        dataBringUp.connectedCount = connectedCount;
+        dataBringUp.maxConcurrent = maxConcurrent;
+        addTelephonyEvent(new TelephonyEventBuilder(phoneId).setDataBringUp(dataBringUp).build());
+    }
+
+    /**
+     * Write cell broadcast pages dropped event
+     *
+     * @param phoneId Phone id
+     * @param pagesReceived Number of pages of multi-page messages received
+     * @param messagesCompleted Number of messages with all their pages received
+     * @param duplicatesDropped Number of pages received again before their message was
+     *                          complete
+     * @param pagesExpired Number of pages dropped because their message was not complete in
+     *                     time
+     * @param pagesEvicted Number of pages dropped to bound the incomplete messages
+     * @param pagesOutOfLocation Number of pages dropped because the location changed out of
+     *                           the scope of their message
      */
-    public void writeDataStallEvent(int phoneId, int recoveryAction) {
+    public void writeCellBroadcastPagesDropped(int phoneId, int pagesReceived,
+                                               int messagesCompleted, int duplicatesDropped,
+                                               int pagesExpired, int pagesEvicted,
+                                               int pagesOutOfLocation) {
+        final CellBroadcastPages cellBroadcastPages = new CellBroadcastPages();
+        cellBroadcastPages.pagesReceived = pagesReceived;
+        cellBroadcastPages.messagesCompleted = messagesCompleted;
+        cellBroadcastPages.duplicatesDropped = duplicatesDropped;
+        cellBroadcastPages.pagesExpired = pagesExpired;
+        cellBroadcastPages.pagesEvicted = pagesEvicted;
+        cellBroadcastPages.pagesOutOfLocation = pagesOutOfLocation;
         addTelephonyEvent(new TelephonyEventBuilder(phoneId)
-                .setDataStallRecoveryAction(recoveryAction).build());
+                .setCellBroadcastPages(cellBroadcastPages).build());
     }
 
     /**
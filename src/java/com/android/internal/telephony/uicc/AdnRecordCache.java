@@ -24,7 +24,6 @@ import android.util.SparseArray;
 import com.android.internal.telephony.gsm.UsimPhoneBookManager;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 
 /**
  * {@hide}
@@ -36,8 +35,8 @@ public class AdnRecordCache extends Handler implements IccConstants {
     private UsimPhoneBookManager mUsimPhoneBookManager;
 
     // Indexed by EF ID
-    SparseArray<ArrayList<AdnRecord>> mAdnLikeFiles
-        = new SparseArray<ArrayList<AdnRecord>>();
+    SparseArray<AdnRecordIndex> mAdnLikeFiles
+        = new SparseArray<AdnRecordIndex>();
 
     // People waiting for ADN-like files to be loaded
     SparseArray<ArrayList<Message>> mAdnLikeWaiters
@@ -98,7 +97,8 @@ public class AdnRecordCache extends Handler implements IccConstants {
      */
     public ArrayList<AdnRecord>
     getRecordsIfLoaded(int efid) {
-        return mAdnLikeFiles.get(efid);
+        AdnRecordIndex index = mAdnLikeFiles.get(efid);
+        return index == null ? null : index.getRecords();
     }
 
     /**
@@ -187,37 +187,29 @@ public class AdnRecordCache extends Handler implements IccConstants {
             return;
         }
 
-        ArrayList<AdnRecord>  oldAdnList;
+        AdnRecordIndex oldAdnIndex;
 
         if (efid == EF_PBR) {
-            oldAdnList = mUsimPhoneBookManager.loadEfFilesFromUsim();
+            oldAdnIndex = mUsimPhoneBookManager.loadIndexFromUsim();
         } else {
-            oldAdnList = getRecordsIfLoaded(efid);
+            oldAdnIndex = mAdnLikeFiles.get(efid);
         }
 
-        if (oldAdnList == null) {
+        if (oldAdnIndex == null) {
             sendErrorResponse(response, "Adn list not exist for EF:0x" +
                     Integer.toHexString(efid).toUpperCase());
             return;
         }
 
-        int index = -1;
-        int count = 1;
-        for (Iterator<AdnRecord> it = oldAdnList.iterator(); it.hasNext(); ) {
-            if (oldAdn.isEqual(it.next())) {
-                index = count;
-                break;
-            }
-            count++;
-        }
+        int index = oldAdnIndex.indexOf(oldAdn) + 1;
 
-        if (index == -1) {
+        if (index == 0) {
             sendErrorResponse(response, "Adn record don't exist for " + oldAdn);
             return;
         }
 
         if (efid == EF_PBR) {
-            AdnRecord foundAdn = oldAdnList.get(index-1);
+            AdnRecord foundAdn = oldAdnIndex.getRecords().get(index-1);
             efid = foundAdn.mEfid;
             extensionEF = foundAdn.mExtRecord;
             index = foundAdn.mRecordNumber;
@@ -341,7 +333,8 @@ public class AdnRecordCache extends Handler implements IccConstants {
                 mAdnLikeWaiters.delete(efid);
 
                 if (ar.exception == null) {
-                    mAdnLikeFiles.put(efid, (ArrayList<AdnRecord>) ar.result);
+                    mAdnLikeFiles.put(efid,
+                            new AdnRecordIndex((ArrayList<AdnRecord>) ar.result));
                 }
                 notifyWaiters(waiters, ar);
                 break;
@@ -352,8 +345,14 @@ public class AdnRecordCache extends Handler implements IccConstants {
                 AdnRecord adn = (AdnRecord) (ar.userObj);
 
                 if (ar.exception == null) {
-                    mAdnLikeFiles.get(efid).set(index - 1, adn);
-                    mUsimPhoneBookManager.invalidateCache();
+                    // Only the updated record is replaced in the cached EF and phonebook,
+                    // with the record as written to the EF
+                    AdnRecord written = new AdnRecord(efid, index, (byte[]) ar.result);
+                    AdnRecordIndex adnIndex = mAdnLikeFiles.get(efid);
+                    if (adnIndex != null) {
+                        adnIndex.set(index - 1, written);
+                    }
+                    mUsimPhoneBookManager.onAdnRecordUpdated(efid, index, adn, written);
                 }
 
                 Message response = mUserWriteResponse.get(efid);
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Index over the records of an ADN-like EF, to find a record without scanning the whole EF.
+ *
+ * Free records are kept in a bitmap, and the other records are indexed by number and by
+ * name. {@link #indexOf} finds the same record as scanning the records in order with
+ * {@link AdnRecord#isEqual}. The records are kept in the list the index was built from, which
+ * must only be changed through {@link #set}. As records can still be changed in place, e.g.
+ * when USIM emails are added to them, a record that is not found through the index is looked
+ * for in all the records.
+ *
+ * {@hide}
+ */
+public final class AdnRecordIndex {
+    private static final AdnRecord EMPTY_RECORD = new AdnRecord("", "");
+
+    private final ArrayList<AdnRecord> mRecords;
+    // Bit i is set if record i is free
+    private final BitSet mFreeRecords = new BitSet();
+    private final HashMap<String, TreeSet<Integer>> mIndexesByNumber =
+            new HashMap<String, TreeSet<Integer>>();
+    private final HashMap<String, TreeSet<Integer>> mIndexesByName =
+            new HashMap<String, TreeSet<Integer>>();
+
+    public AdnRecordIndex(ArrayList<AdnRecord> records) {
+        mRecords = records;
+        for (int i = 0, size = records.size(); i < size; i++) {
+            add(i, records.get(i));
+        }
+    }
+
+    /**
+     * @return the indexed records, which must not be changed directly
+     */
+    public synchronized ArrayList<AdnRecord> getRecords() {
+        return mRecords;
+    }
+
+    public synchronized int size() {
+        return mRecords.size();
+    }
+
+    /**
+     * @return the 0-based index of the first record equal to adn, or -1 if there is none. An
+     * empty adn finds the first free record.
+     */
+    public synchronized int indexOf(AdnRecord adn) {
+        if (isFree(adn)) {
+            for (int i = mFreeRecords.nextSetBit(0); i >= 0; i = mFreeRecords.nextSetBit(i + 1)) {
+                if (adn.isEqual(mRecords.get(i))) {
+                    return i;
+                }
+            }
+        } else {
+            TreeSet<Integer> candidates;
+            if (!isEmpty(adn.getNumber())) {
+                candidates = mIndexesByNumber.get(adn.getNumber());
+            } else {
+                candidates = mIndexesByName.get(key(adn.getAlphaTag()));
+            }
+            if (candidates != null) {
+                for (int index : candidates) {
+                    if (adn.isEqual(mRecords.get(index))) {
+                        return index;
+                    }
+                }
+            }
+        }
+
+        for (int i = 0, size = mRecords.size(); i < size; i++) {
+            if (adn.isEqual(mRecords.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replace a record, updating only the index entries of that record.
+     *
+     * @param index 0-based index of the record
+     */
+    public synchronized void set(int index, AdnRecord adn) {
+        remove(index, mRecords.get(index));
+        mRecords.set(index, adn);
+        add(index, adn);
+    }
+
+    /**
+     * @return the number of free records
+     */
+    public synchronized int getFreeCount() {
+        return mFreeRecords.cardinality();
+    }
+
+    private void add(int index, AdnRecord adn) {
+        if (isFree(adn)) {
+            mFreeRecords.set(index);
+            return;
+        }
+        addIndex(mIndexesByNumber, key(adn.getNumber()), index);
+        addIndex(mIndexesByName, key(adn.getAlphaTag()), index);
+    }
+
+    private void remove(int index, AdnRecord adn) {
+        // The record may have been changed in place since it was added
+        mFreeRecords.clear(index);
+        removeIndex(mIndexesByNumber, key(adn.getNumber()), index);
+        removeIndex(mIndexesByName, key(adn.getAlphaTag()), index);
+    }
+
+    private static void addIndex(HashMap<String, TreeSet<Integer>> indexes, String key,
+            int index) {
+        TreeSet<Integer> keyIndexes = indexes.get(key);
+        if (keyIndexes == null) {
+            keyIndexes = new TreeSet<Integer>();
+            indexes.put(key, keyIndexes);
+        }
+        keyIndexes.add(index);
+    }
+
+    private static void removeIndex(HashMap<String, TreeSet<Integer>> indexes, String key,
+            int index) {
+        TreeSet<Integer> keyIndexes = indexes.get(key);
+        if (keyIndexes != null) {
+            keyIndexes.remove(index);
+            if (keyIndexes.isEmpty()) {
+                indexes.remove(key);
+            }
+        }
+    }
+
+    /**
+     * A free record is one that an empty record is equal to, which is what inserting a record
+     * looks for.
+     */
+    private static boolean isFree(AdnRecord adn) {
+        return EMPTY_RECORD.isEqual(adn);
+    }
+
+    private static boolean isEmpty(String s) {
+        return s == null || s.length() == 0;
+    }
+
+    /** Names and numbers compare null equal to empty */
+    private static String key(String s) {
+        return s == null ? "" : s;
+    }
+}
@@ -46,9 +46,13 @@ public class AdnRecordLoader extends Handler {
     ArrayList<AdnRecord> mAdns; // only valid after EVENT_ADN_LOAD_ALL_DONE
 
     // Either an AdnRecord or a reference to adns depending
-    // if this is a load one or load all operation
+    // if this is a load one or load all operation, or the
+    // record written by an update operation
     Object mResult;
 
+    // The record being written by an update operation
+    byte[] mUpdateData;
+
     //***** Event Constants
 
     static final int EVENT_ADN_LOAD_DONE = 1;
@@ -109,6 +113,8 @@ public class AdnRecordLoader extends Handler {
          */
         mFh.loadEFLinearFixedAll(
                 ef, getEFPath(ef),
+                IccFileHandler.PHONEBOOK_READ_RECORD_WINDOW,
+                IccFileHandler.PHONEBOOK_MAX_TRAILING_EMPTY_RECORDS,
                 obtainMessage(EVENT_ADN_LOAD_ALL_DONE));
     }
 
@@ -122,7 +128,8 @@ public class AdnRecordLoader extends Handler {
      * @param extensionEF extension EF fileid
      * @param recordNumber 1-based record index
      * @param pin2 for CHV2 operations, must be null if pin2 is not needed
-     * @param response will be sent to its handler when completed
+     * @param response will be sent to its handler when completed,
+     *        with the bytes written to the EF record as result
      */
     public void
     updateEF(AdnRecord adn, int ef, int extensionEF, int recordNumber,
@@ -176,6 +183,7 @@ public class AdnRecordLoader extends Handler {
                     }
 
 
+                    mUpdateData = data;
                     mFh.updateEFLinearFixed(mEf, getEFPath(mEf), mRecordNumber,
                             data, mPin2, obtainMessage(EVENT_UPDATE_RECORD_DONE));
 
@@ -189,7 +197,7 @@ public class AdnRecordLoader extends Handler {
                                 ar.exception);
                     }
                     mPendingExtLoads = 0;
-                    mResult = null;
+                    mResult = mUpdateData;
                     break;
                 case EVENT_ADN_LOAD_DONE:
                     ar = (AsyncResult)(msg.obj);
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import java.util.Arrays;
+
+/**
+ * Decoder for a sequence of BER-TLV data objects, used for the access rules read from the ARA
+ * applet and from the PKCS15 files of the UICC.
+ *
+ * The data objects are decoded in place: tags and lengths are read from the bytes, and the data
+ * objects nested in a value are decoded with {@link #getValueDecoder}, without copying the data.
+ *
+ * Length encoding is in GPC_Specification_2.2.1: 11.1.5 APDU Message and Data Length.
+ * Length field could be either 1 byte if length < 128, or multiple bytes with first byte
+ * specifying how many bytes are used for length, followed by length bytes.
+ *
+ * Decoding errors throw IllegalArgumentException.
+ *
+ * {@hide}
+ */
+public final class BerTlvDecoder {
+    private static final int SINGLE_BYTE_MAX_LENGTH = 0x80;
+    private static final int MAX_LENGTH_BYTES = 3;
+    private static final int MAX_TAG_BYTES = 4;
+
+    private final byte[] mData;
+    private final int mEnd;
+    // Offset of the next data object
+    private int mOffset;
+
+    // The last decoded data object
+    private int mTag = -1;
+    private int mValueOffset;
+    private int mValueLength;
+
+    // Header of the next data object, see decodeHeader
+    private int mHeaderTag;
+    private int mHeaderValueOffset;
+    private int mHeaderValueLength;
+
+    public BerTlvDecoder(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public BerTlvDecoder(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("Invalid range " + offset + "+" + length);
+        }
+        mData = data;
+        mOffset = offset;
+        mEnd = offset + length;
+    }
+
+    /**
+     * @return true if there is data left to decode
+     */
+    public boolean hasNext() {
+        return mOffset < mEnd;
+    }
+
+    /**
+     * @return the tag of the next data object, without decoding it
+     */
+    public int peekTag() {
+        int tagEnd = decodeTagEnd(mOffset);
+        return decodeTag(mOffset, tagEnd);
+    }
+
+    /**
+     * @return the number of bytes of the next data object, including its tag and length. This
+     *         may be more than the data left if the data object is not complete.
+     */
+    public int peekEncodedLength() {
+        decodeHeader();
+        return mHeaderValueOffset + mHeaderValueLength - mOffset;
+    }
+
+    /**
+     * Decodes the next data object.
+     *
+     * @return the tag of the data object
+     */
+    public int next() {
+        decodeHeader();
+        if (mHeaderValueLength > mEnd - mHeaderValueOffset) {
+            throw new IllegalArgumentException("Not enough data.");
+        }
+        mTag = mHeaderTag;
+        mValueOffset = mHeaderValueOffset;
+        mValueLength = mHeaderValueLength;
+        mOffset = mValueOffset + mValueLength;
+        return mTag;
+    }
+
+    /**
+     * Decodes the next data object, which must have the given tag.
+     */
+    public void next(int tag) {
+        if (peekTag() != tag) {
+            throw new IllegalArgumentException("Tags don't match.");
+        }
+        next();
+    }
+
+    /**
+     * @return the tag of the last decoded data object
+     */
+    public int getTag() {
+        return mTag;
+    }
+
+    /**
+     * @return the number of bytes of the value of the last decoded data object
+     */
+    public int getValueLength() {
+        return mValueLength;
+    }
+
+    /**
+     * @return a copy of the value of the last decoded data object
+     */
+    public byte[] getValue() {
+        return Arrays.copyOfRange(mData, mValueOffset, mValueOffset + mValueLength);
+    }
+
+    /**
+     * @return true if the value of the last decoded data object is equal to value
+     */
+    public boolean valueEquals(byte[] value) {
+        if (value.length != mValueLength) {
+            return false;
+        }
+        for (int i = 0; i < mValueLength; i++) {
+            if (mData[mValueOffset + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a decoder for the data objects nested in the value of the last decoded data object
+     */
+    public BerTlvDecoder getValueDecoder() {
+        return new BerTlvDecoder(mData, mValueOffset, mValueLength);
+    }
+
+    /*
+     * Decodes the tag and length of the next data object, without checking that its value is
+     * complete.
+     */
+    private void decodeHeader() {
+        int tagEnd = decodeTagEnd(mOffset);
+        mHeaderTag = decodeTag(mOffset, tagEnd);
+        if (tagEnd >= mEnd) {
+            throw new IllegalArgumentException("No length.");
+        }
+        int firstByte = mData[tagEnd] & 0xFF;
+        int lengthEnd = tagEnd + 1;
+        int length;
+        if (firstByte < SINGLE_BYTE_MAX_LENGTH) {
+            length = firstByte;
+        } else {
+            int numBytes = firstByte - SINGLE_BYTE_MAX_LENGTH;
+            if (numBytes == 0 || numBytes > MAX_LENGTH_BYTES) {
+                throw new IllegalArgumentException("Invalid length.");
+            }
+            if (numBytes > mEnd - lengthEnd) {
+                throw new IllegalArgumentException("No length.");
+            }
+            length = 0;
+            for (int i = 0; i < numBytes; i++) {
+                length = (length << 8) | (mData[lengthEnd++] & 0xFF);
+            }
+        }
+        mHeaderValueOffset = lengthEnd;
+        mHeaderValueLength = length;
+    }
+
+    /*
+     * Returns the offset after the tag starting at offset. A tag whose first byte has the 5
+     * low bits set is followed by tag bytes, the last one having bit 8 cleared.
+     */
+    private int decodeTagEnd(int offset) {
+        if (offset >= mEnd) {
+            throw new IllegalArgumentException("No tag.");
+        }
+        int end = offset + 1;
+        if ((mData[offset] & 0x1F) == 0x1F) {
+            do {
+                if (end >= mEnd) {
+                    throw new IllegalArgumentException("Incomplete tag.");
+                }
+            } while ((mData[end++] & 0x80) != 0);
+        }
+        if (end - offset > MAX_TAG_BYTES) {
+            throw new IllegalArgumentException("Tag too long.");
+        }
+        return end;
+    }
+
+    private int decodeTag(int offset, int end) {
+        int tag = 0;
+        for (int i = offset; i < end; i++) {
+            tag = (tag << 8) | (mData[i] & 0xFF);
+        }
+        return tag;
+    }
+}
@@ -17,10 +17,16 @@
 package com.android.internal.telephony.uicc;
 
 import android.os.*;
+import android.text.TextUtils;
 
 import com.android.internal.telephony.CommandsInterface;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 
 /**
  * {@hide}
@@ -39,6 +45,25 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     // from TS 11.11 9.2.5
     static protected final int READ_RECORD_MODE_ABSOLUTE = 4;
 
+    /**
+     * Number of READ RECORD requests kept outstanding when loading all the records of the
+     * phonebook EFs, so that the next record is already requested when a record is received.
+     */
+    public static final int PHONEBOOK_READ_RECORD_WINDOW =
+            SystemProperties.getInt("persist.radio.pb_read_window", 4);
+
+    /**
+     * Number of trailing empty ADN records after which the rest of an ADN EF is not read,
+     * or 0 to read all the records. Off by default as some cards do not store contacts
+     * contiguously.
+     */
+    public static final int PHONEBOOK_MAX_TRAILING_EMPTY_RECORDS =
+            SystemProperties.getInt("persist.radio.adn_stop_after_empty", 0);
+
+    /** Whether the structure of EFs is kept to skip GET RESPONSE on later reads */
+    static final boolean EF_METADATA_CACHE_ENABLED =
+            SystemProperties.getBoolean("persist.radio.ef_metadata_cache", true);
+
     //***** types of files  TS 11.11 9.3
     static protected final int EF_TYPE_TRANSPARENT = 0;
     static protected final int EF_TYPE_LINEAR_FIXED = 1;
@@ -93,12 +118,51 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     static protected final int EVENT_READ_ICON_DONE = 10;
     /** Finished retrieving size of record for EFimg now. */
     static protected final int EVENT_GET_RECORD_SIZE_IMG_DONE = 11;
+    /** Size of records for linear-fixed EF known from the cache; now load all. */
+    static protected final int EVENT_LOAD_ALL_CACHED_SIZE = 12;
+    /** The card was refreshed; the structure of the EFs may have changed. */
+    static protected final int EVENT_ICC_REFRESH = 13;
 
      // member variables
     protected final CommandsInterface mCi;
     protected final UiccCardApplication mParentApp;
     protected final String mAid;
 
+    /**
+     * Structure of the EFs of the application read so far, by path and EF id. Cleared when
+     * the card is refreshed and when the application goes away.
+     */
+    private final HashMap<String, EfMetadata> mEfMetadata = new HashMap<String, EfMetadata>();
+    private int mEfMetadataHits;
+    private int mEfMetadataMisses;
+
+    /** Structure of an EF, as returned by GET RESPONSE */
+    static class EfMetadata {
+        final int mEfid;
+        final int mStructure;
+        final int mFileSize;
+        final int mRecordSize;
+
+        EfMetadata(int efid, byte[] data) {
+            mEfid = efid;
+            mStructure = data[RESPONSE_DATA_STRUCTURE];
+            mFileSize = ((data[RESPONSE_DATA_FILE_SIZE_1] & 0xff) << 8)
+                    + (data[RESPONSE_DATA_FILE_SIZE_2] & 0xff);
+            mRecordSize = data[RESPONSE_DATA_RECORD_LENGTH] & 0xff;
+        }
+
+        int getCountRecords() {
+            return mFileSize / mRecordSize;
+        }
+
+        @Override
+        public String toString() {
+            return "EfMetadata{efid=" + Integer.toHexString(mEfid)
+                    + " structure=" + mStructure + " fileSize=" + mFileSize
+                    + " recordSize=" + mRecordSize + "}";
+        }
+    }
+
     static class LoadLinearFixedContext {
 
         int mEfid;
@@ -110,6 +174,17 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
 
         ArrayList<byte[]> results;
 
+        // For "load all": mRecordNum is the next record to request
+        int mWindow = 1;
+        int mMaxTrailingEmptyRecords = 0;
+        int mPendingRecords;
+        byte[][] mRecords;
+        // Number of records received in order from the first, and last non-empty one of those
+        int mInOrderRecords;
+        int mLastNonEmptyRecord;
+        boolean mStopped;
+        boolean mDone;
+
         LoadLinearFixedContext(int efid, int recordNum, Message onLoaded) {
             mEfid = efid;
             mRecordNum = recordNum;
@@ -150,9 +225,16 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         mParentApp = app;
         mAid = aid;
         mCi = ci;
+        if (EF_METADATA_CACHE_ENABLED) {
+            mCi.registerForIccRefresh(this, EVENT_ICC_REFRESH, null);
+        }
     }
 
     public void dispose() {
+        if (EF_METADATA_CACHE_ENABLED) {
+            mCi.unregisterForIccRefresh(this);
+        }
+        invalidateEfMetadata();
     }
 
     //***** Public Methods
@@ -170,6 +252,19 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
      */
     public void loadEFLinearFixed(int fileid, String path, int recordNum, Message onLoaded) {
         String efPath = (path == null) ? getEFPath(fileid) : path;
+        EfMetadata metadata = getEfMetadata(fileid, efPath, EF_TYPE_LINEAR_FIXED);
+        if (metadata != null) {
+            LoadLinearFixedContext lc =
+                    new LoadLinearFixedContext(fileid, recordNum, efPath, onLoaded);
+            lc.mRecordSize = metadata.mRecordSize;
+            lc.mCountRecords = metadata.getCountRecords();
+            mCi.iccIOForApp(COMMAND_READ_RECORD, fileid, efPath,
+                    recordNum, READ_RECORD_MODE_ABSOLUTE,
+                    lc.mRecordSize, null, null, mAid,
+                    obtainMessage(EVENT_READ_RECORD_DONE, lc));
+            return;
+        }
+
         Message response
                 = obtainMessage(EVENT_GET_RECORD_SIZE_DONE,
                         new LoadLinearFixedContext(fileid, recordNum, efPath, onLoaded));
@@ -224,6 +319,13 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
      */
     public void getEFLinearRecordSize(int fileid, String path, Message onLoaded) {
         String efPath = (path == null) ? getEFPath(fileid) : path;
+        EfMetadata metadata = getEfMetadata(fileid, efPath, EF_TYPE_LINEAR_FIXED);
+        if (metadata != null) {
+            int[] recordSize = new int[] {metadata.mRecordSize, metadata.mFileSize,
+                    metadata.getCountRecords()};
+            sendResult(onLoaded, recordSize, null);
+            return;
+        }
         Message response
                 = obtainMessage(EVENT_GET_EF_LINEAR_RECORD_SIZE_DONE,
                         new LoadLinearFixedContext(fileid, efPath, onLoaded));
@@ -255,9 +357,42 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
      *
      */
     public void loadEFLinearFixedAll(int fileid, String path, Message onLoaded) {
+        loadEFLinearFixedAll(fileid, path, 1, 0, onLoaded);
+    }
+
+    /**
+     * Load all records from a SIM Linear Fixed EF, keeping several READ RECORD
+     * requests outstanding
+     *
+     * @param fileid EF id
+     * @param path Path of the EF on the card
+     * @param window maximum number of outstanding READ RECORD requests, 1 to
+     *        request each record once the previous one is received
+     * @param maxTrailingEmptyRecords if not 0, stop reading once this many
+     *        empty records (all bytes 0xff) follow the last non-empty record;
+     *        records that are not read are reported as empty
+     * @param onLoaded
+     *
+     * ((AsyncResult)(onLoaded.obj)).result is an ArrayList<byte[]> with all the
+     * records of the EF, in order
+     *
+     */
+    public void loadEFLinearFixedAll(int fileid, String path, int window,
+            int maxTrailingEmptyRecords, Message onLoaded) {
         String efPath = (path == null) ? getEFPath(fileid) : path;
-        Message response = obtainMessage(EVENT_GET_RECORD_SIZE_DONE,
-                        new LoadLinearFixedContext(fileid, efPath, onLoaded));
+        LoadLinearFixedContext lc = new LoadLinearFixedContext(fileid, efPath, onLoaded);
+        lc.mWindow = Math.max(window, 1);
+        lc.mMaxTrailingEmptyRecords = Math.max(maxTrailingEmptyRecords, 0);
+        EfMetadata metadata = getEfMetadata(fileid, efPath, EF_TYPE_LINEAR_FIXED);
+        if (metadata != null) {
+            lc.mRecordSize = metadata.mRecordSize;
+            lc.mCountRecords = metadata.getCountRecords();
+            // Records are requested from the handler, which keeps track of the window
+            sendMessage(obtainMessage(EVENT_LOAD_ALL_CACHED_SIZE, lc));
+            return;
+        }
+
+        Message response = obtainMessage(EVENT_GET_RECORD_SIZE_DONE, lc);
 
         mCi.iccIOForApp(COMMAND_GET_RESPONSE, fileid, efPath,
                         0, 0, GET_RESPONSE_EF_SIZE_BYTES, null, null, mAid, response);
@@ -287,6 +422,12 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
      */
 
     public void loadEFTransparent(int fileid, Message onLoaded) {
+        EfMetadata metadata = getEfMetadata(fileid, getEFPath(fileid), EF_TYPE_TRANSPARENT);
+        if (metadata != null) {
+            loadEFTransparent(fileid, metadata.mFileSize, onLoaded);
+            return;
+        }
+
         Message response = obtainMessage(EVENT_GET_BINARY_SIZE_DONE,
                         fileid, 0, onLoaded);
 
@@ -402,6 +543,153 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         response.sendToTarget();
     }
 
+    private static String getEfMetadataKey(int efid, String path) {
+        return path + "/" + Integer.toHexString(efid);
+    }
+
+    /**
+     * @return the structure of an EF read before, or null if it is not known or the EF is not
+     * of the given structure
+     */
+    private EfMetadata getEfMetadata(int efid, String path, int structure) {
+        if (!EF_METADATA_CACHE_ENABLED) {
+            return null;
+        }
+        synchronized (mEfMetadata) {
+            EfMetadata metadata = mEfMetadata.get(getEfMetadataKey(efid, path));
+            if (metadata != null && metadata.mStructure == structure) {
+                mEfMetadataHits++;
+                return metadata;
+            }
+            mEfMetadataMisses++;
+            return null;
+        }
+    }
+
+    /**
+     * Keep the structure of an EF from its GET RESPONSE.
+     */
+    private void putEfMetadata(int efid, String path, byte[] data) {
+        if (!EF_METADATA_CACHE_ENABLED) {
+            return;
+        }
+        synchronized (mEfMetadata) {
+            mEfMetadata.put(getEfMetadataKey(efid, path), new EfMetadata(efid, data));
+        }
+    }
+
+    /**
+     * Forget the structure of an EF, under all paths.
+     */
+    public void invalidateEfMetadata(int efid) {
+        synchronized (mEfMetadata) {
+            Iterator<EfMetadata> it = mEfMetadata.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().mEfid == efid) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the structure of all the EFs.
+     */
+    public void invalidateEfMetadata() {
+        synchronized (mEfMetadata) {
+            mEfMetadata.clear();
+        }
+    }
+
+    private void onIccRefresh(IccRefreshResponse refreshResponse) {
+        if (refreshResponse == null) {
+            return;
+        }
+        if (!TextUtils.isEmpty(refreshResponse.aid) && !refreshResponse.aid.equals(mAid)) {
+            // This is for different app. Ignore.
+            return;
+        }
+        if (refreshResponse.refreshResult == IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE) {
+            invalidateEfMetadata(refreshResponse.efId);
+        } else {
+            invalidateEfMetadata();
+        }
+    }
+
+    /**
+     * Request the records of a linear fixed EF once its record size is known.
+     */
+    private void readRecords(LoadLinearFixedContext lc, String path) {
+        if (lc.mLoadAll) {
+            lc.results = new ArrayList<byte[]>(lc.mCountRecords);
+            lc.mRecords = new byte[lc.mCountRecords][];
+            if (lc.mCountRecords == 0) {
+                sendResult(lc.mOnLoaded, lc.results, null);
+                return;
+            }
+            requestRecords(lc, path);
+            return;
+        }
+
+        mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
+                lc.mRecordNum,
+                READ_RECORD_MODE_ABSOLUTE,
+                lc.mRecordSize, null, null, mAid,
+                obtainMessage(EVENT_READ_RECORD_DONE, lc));
+    }
+
+    /**
+     * Request the next records of a "load all", up to the window of the load.
+     */
+    private void requestRecords(LoadLinearFixedContext lc, String path) {
+        while (!lc.mStopped && lc.mPendingRecords < lc.mWindow
+                && lc.mRecordNum <= lc.mCountRecords) {
+            mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
+                    lc.mRecordNum,
+                    READ_RECORD_MODE_ABSOLUTE,
+                    lc.mRecordSize, null, null, mAid,
+                    obtainMessage(EVENT_READ_RECORD_DONE, lc.mRecordNum, 0, lc));
+            lc.mRecordNum++;
+            lc.mPendingRecords++;
+        }
+    }
+
+    /**
+     * Keep a record of a "load all".
+     * @return true once all the records to read were received
+     */
+    private boolean onRecordReceived(LoadLinearFixedContext lc, int recordNum, byte[] data) {
+        lc.mPendingRecords--;
+        if (recordNum >= 1 && recordNum <= lc.mCountRecords) {
+            lc.mRecords[recordNum - 1] = data;
+        }
+
+        if (lc.mMaxTrailingEmptyRecords > 0) {
+            while (lc.mInOrderRecords < lc.mCountRecords
+                    && lc.mRecords[lc.mInOrderRecords] != null) {
+                if (!isEmptyRecord(lc.mRecords[lc.mInOrderRecords])) {
+                    lc.mLastNonEmptyRecord = lc.mInOrderRecords + 1;
+                }
+                lc.mInOrderRecords++;
+            }
+            if (lc.mInOrderRecords - lc.mLastNonEmptyRecord >= lc.mMaxTrailingEmptyRecords) {
+                lc.mStopped = true;
+            }
+        }
+
+        return lc.mPendingRecords == 0
+                && (lc.mStopped || lc.mRecordNum > lc.mCountRecords);
+    }
+
+    private static boolean isEmptyRecord(byte[] data) {
+        for (byte b : data) {
+            if (b != (byte) 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private boolean processException(Message response, AsyncResult ar) {
         IccException iccException;
         boolean flag = false;
@@ -460,6 +748,8 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                        + (data[RESPONSE_DATA_FILE_SIZE_2] & 0xff);
                 recordSize[2] = recordSize[1] / recordSize[0];
 
+                putEfMetadata(lc.mEfid, lc.mPath, data);
+
                 sendResult(response, recordSize, null);
                 break;
 
@@ -493,19 +783,26 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
 
                 lc.mCountRecords = size / lc.mRecordSize;
 
-                 if (lc.mLoadAll) {
-                     lc.results = new ArrayList<byte[]>(lc.mCountRecords);
-                 }
-
                  if (path == null) {
                      path = getEFPath(lc.mEfid);
                  }
-                 mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
-                         lc.mRecordNum,
-                         READ_RECORD_MODE_ABSOLUTE,
-                         lc.mRecordSize, null, null, mAid,
-                         obtainMessage(EVENT_READ_RECORD_DONE, lc));
+
+                 if (msg.what == EVENT_GET_RECORD_SIZE_DONE) {
+                     putEfMetadata(lc.mEfid, path, data);
+                 }
+                 readRecords(lc, path);
                  break;
+            case EVENT_LOAD_ALL_CACHED_SIZE:
+                lc = (LoadLinearFixedContext) msg.obj;
+                response = lc.mOnLoaded;
+                readRecords(lc, lc.mPath);
+                break;
+            case EVENT_ICC_REFRESH:
+                ar = (AsyncResult) msg.obj;
+                if (ar.exception == null) {
+                    onIccRefresh((IccRefreshResponse) ar.result);
+                }
+                break;
             case EVENT_GET_BINARY_SIZE_DONE:
                 ar = (AsyncResult)msg.obj;
                 response = (Message) ar.userObj;
@@ -535,6 +832,8 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 size = ((data[RESPONSE_DATA_FILE_SIZE_1] & 0xff) << 8)
                        + (data[RESPONSE_DATA_FILE_SIZE_2] & 0xff);
 
+                putEfMetadata(fileid, getEFPath(fileid), data);
+
                 mCi.iccIOForApp(COMMAND_READ_BINARY, fileid, getEFPath(fileid),
                                 0, 0, size, null, null, mAid,
                                 obtainMessage(EVENT_READ_BINARY_DONE,
@@ -550,30 +849,35 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 response = lc.mOnLoaded;
                 path = lc.mPath;
 
+                if (lc.mDone) {
+                    // Outstanding record of a load that already failed
+                    response = null;
+                    break;
+                }
+
                 if (processException(response, (AsyncResult) msg.obj)) {
+                    lc.mDone = lc.mLoadAll;
                     break;
                 }
 
                 if (!lc.mLoadAll) {
                     sendResult(response, result.payload, null);
-                } else {
-                    lc.results.add(result.payload);
-
-                    lc.mRecordNum++;
-
-                    if (lc.mRecordNum > lc.mCountRecords) {
-                        sendResult(response, lc.results, null);
-                    } else {
-                        if (path == null) {
-                            path = getEFPath(lc.mEfid);
+                } else if (onRecordReceived(lc, msg.arg1, result.payload)) {
+                    // Records that were not read are empty
+                    for (byte[] record : lc.mRecords) {
+                        if (record == null) {
+                            record = new byte[lc.mRecordSize];
+                            Arrays.fill(record, (byte) 0xff);
                         }
-
-                        mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
-                                    lc.mRecordNum,
-                                    READ_RECORD_MODE_ABSOLUTE,
-                                    lc.mRecordSize, null, null, mAid,
-                                    obtainMessage(EVENT_READ_RECORD_DONE, lc));
+                        lc.results.add(record);
+                    }
+                    lc.mDone = true;
+                    sendResult(response, lc.results, null);
+                } else {
+                    if (path == null) {
+                        path = getEFPath(lc.mEfid);
                     }
+                    requestRecords(lc, path);
                 }
 
             break;
@@ -634,6 +938,20 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         return null;
     }
 
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("IccFileHandler: " + this);
+        synchronized (mEfMetadata) {
+            int lookups = mEfMetadataHits + mEfMetadataMisses;
+            pw.println(" mEfMetadata: size=" + mEfMetadata.size() + " hits=" + mEfMetadataHits
+                    + " misses=" + mEfMetadataMisses + " hitRate="
+                    + (lookups == 0 ? 0 : mEfMetadataHits * 100 / lookups) + "%");
+            for (String key : mEfMetadata.keySet()) {
+                pw.println("  " + key + "=" + mEfMetadata.get(key));
+            }
+        }
+        pw.flush();
+    }
+
     protected abstract String getEFPath(int efid);
     protected abstract void logd(String s);
     protected abstract void loge(String s);
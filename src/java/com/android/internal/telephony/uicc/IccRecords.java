@@ -65,6 +65,8 @@ public abstract class IccRecords extends Handler implements IccConstants {
     // ***** Cached SIM State; cleared on channel close
 
     protected boolean mRecordsRequested = false; // true if we've made requests for the sim records
+    // true while records published from a snapshot are read again from the card
+    protected boolean mRecordsLoadedFromSnapshot = false;
 
     protected String mIccId;  // Includes only decimals (no hex)
     protected String mFullIccId;  // Includes hex characters in ICCID
@@ -290,7 +292,7 @@ public abstract class IccRecords extends Handler implements IccConstants {
         Registrant r = new Registrant(h, what, obj);
         mRecordsLoadedRegistrants.add(r);
 
-        if (mRecordsToLoad == 0 && mRecordsRequested == true) {
+        if (getRecordsLoaded()) {
             r.notifyRegistrant(new AsyncResult(null, null, null));
         }
     }
@@ -460,6 +462,13 @@ public abstract class IccRecords extends Handler implements IccConstants {
         mSpn = spn;
     }
 
+    /**
+     * @return the service provider name read from the card, without any override
+     */
+    protected String getSimServiceProviderName() {
+        return mSpn;
+    }
+
     /**
      * Set voice mail number to SIM record
      *
@@ -528,7 +537,7 @@ public abstract class IccRecords extends Handler implements IccConstants {
     }
 
     public boolean getRecordsLoaded() {
-        if (mRecordsToLoad == 0 && mRecordsRequested == true) {
+        if ((mRecordsToLoad == 0 && mRecordsRequested == true) || mRecordsLoadedFromSnapshot) {
             return true;
         } else {
             return false;
@@ -806,6 +815,7 @@ public abstract class IccRecords extends Handler implements IccConstants {
                     + ((Registrant)mNetworkSelectionModeAutomaticRegistrants.get(i)).getHandler());
         }
         pw.println(" mRecordsRequested=" + mRecordsRequested);
+        pw.println(" mRecordsLoadedFromSnapshot=" + mRecordsLoadedFromSnapshot);
         pw.println(" mRecordsToLoad=" + mRecordsToLoad);
         pw.println(" mRdnCache=" + mAdnCache);
 
@@ -23,6 +23,7 @@ import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.os.AsyncResult;
 import android.os.Message;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.Rlog;
@@ -41,6 +42,7 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 
 /**
  * {@hide}
@@ -93,6 +95,23 @@ public class SIMRecords extends IccRecords {
 
     UsimServiceTable mUsimServiceTable;
 
+    // ***** Snapshot of the records, see SimRecordSnapshot
+
+    // Snapshot of the card, published once the IMSI is read from the card, then kept while the
+    // other records are read again from the card
+    private SimRecordSnapshot mSnapshot;
+    // Records read from the card so far by the current fetch
+    private SimRecordSnapshot mNewSnapshot;
+    // Keys of the records read from the card and processed before the snapshot was published
+    private final HashSet<Integer> mRecordsProcessedBeforeSnapshot = new HashSet<Integer>();
+    // true while records of a snapshot are being processed
+    private boolean mReplayingSnapshot;
+    private long mFetchStartTimeMs;
+    // Time from the start of the last fetch until the records were published
+    private long mRecordsLoadTimeMs = -1;
+    // Time from the start of the last fetch until all records were read from the card
+    private long mRecordsReadTimeMs = -1;
+
     @Override
     public String toString() {
         return "SimRecords: " + super.toString()
@@ -172,6 +191,7 @@ public class SIMRecords extends IccRecords {
     private static final int EVENT_GET_HPLMN_W_ACT_DONE = 39 + SIM_RECORD_EVENT_BASE;
     private static final int EVENT_GET_EHPLMN_DONE = 40 + SIM_RECORD_EVENT_BASE;
     private static final int EVENT_GET_FPLMN_DONE = 41 + SIM_RECORD_EVENT_BASE;
+    private static final int EVENT_GET_ICCID_FOR_SNAPSHOT_DONE = 42 + SIM_RECORD_EVENT_BASE;
 
     // TODO: Possibly move these to IccRecords.java
     private static final int SYSTEM_EVENT_BASE = 0x100;
@@ -281,6 +301,11 @@ public class SIMRecords extends IccRecords {
         mFplmns = null;
         mEhplmns = null;
 
+        mSnapshot = null;
+        mNewSnapshot = null;
+        mRecordsProcessedBeforeSnapshot.clear();
+        mRecordsLoadedFromSnapshot = false;
+
         mAdnCache.reset();
 
         log("SIMRecords: onRadioOffOrNotAvailable set 'gsm.sim.operator.numeric' to operator=null");
@@ -654,6 +679,12 @@ public class SIMRecords extends IccRecords {
             return;
         }
 
+        if (!shouldProcessRecord(msg)) {
+            // Already processed from the snapshot
+            onRecordLoaded();
+            return;
+        }
+
         try {
             switch (msg.what) {
                 case EVENT_APP_READY:
@@ -727,12 +758,21 @@ public class SIMRecords extends IccRecords {
                                 imsi.substring(0, 3 + mMncLength), false);
                     }
                     mImsiReadyRegistrants.notifyRegistrants();
+
+                    if (mSnapshot != null && mImsi != null && !mRecordsLoadedFromSnapshot) {
+                        publishSnapshot(mSnapshot);
+                    }
                     break;
 
                 case EVENT_GET_MBI_DONE:
                     boolean isValidMbdn;
                     isRecordLoadResponse = true;
 
+                    if (mReplayingSnapshot) {
+                        // The mailbox is only read from the card
+                        break;
+                    }
+
                     ar = (AsyncResult) msg.obj;
                     data = (byte[]) ar.result;
 
@@ -913,6 +953,13 @@ public class SIMRecords extends IccRecords {
                     log("iccid: " + SubscriptionInfo.givePrintableIccid(mFullIccId));
                     break;
 
+                case EVENT_GET_ICCID_FOR_SNAPSHOT_DONE:
+                    ar = (AsyncResult) msg.obj;
+                    onIccIdForSnapshotLoaded(ar);
+                    // Then process the ICCID like any other record
+                    handleMessage(obtainMessage(EVENT_GET_ICCID_DONE, ar));
+                    break;
+
 
                 case EVENT_GET_AD_DONE:
                     try {
@@ -1555,7 +1602,9 @@ public class SIMRecords extends IccRecords {
         if (DBG) log("onRecordLoaded " + mRecordsToLoad + " requested: " + mRecordsRequested);
 
         if (mRecordsToLoad == 0 && mRecordsRequested == true) {
-            onAllRecordsLoaded();
+            if (onAllRecordsRead()) {
+                onAllRecordsLoaded();
+            }
         } else if (mRecordsToLoad < 0) {
             loge("recordsToLoad <0, programmer error suspected");
             mRecordsToLoad = 0;
@@ -1708,11 +1757,37 @@ public class SIMRecords extends IccRecords {
 
         if (DBG) log("fetchSimRecords " + mRecordsToLoad);
 
+        mFetchStartTimeMs = SystemClock.elapsedRealtime();
+        mSnapshot = null;
+        mNewSnapshot = null;
+        mRecordsProcessedBeforeSnapshot.clear();
+        mRecordsLoadedFromSnapshot = false;
+
+        if (SimRecordSnapshot.ENABLED && mIccId == null) {
+            // The records of a new card: read the ICCID first to find its snapshot
+            mFh.loadEFTransparent(EF_ICCID, obtainMessage(EVENT_GET_ICCID_FOR_SNAPSHOT_DONE));
+            mRecordsToLoad++;
+            return;
+        }
+        if (SimRecordSnapshot.ENABLED) {
+            mNewSnapshot = new SimRecordSnapshot(mFullIccId);
+        }
+
+        loadSimRecords(true);
+    }
+
+    /**
+     * Request all the records of the card.
+     * @param loadIccId whether EF_ICCID is read as well
+     */
+    private void loadSimRecords(boolean loadIccId) {
         mCi.getIMSIForApp(mParentApp.getAid(), obtainMessage(EVENT_GET_IMSI_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_ICCID, obtainMessage(EVENT_GET_ICCID_DONE));
-        mRecordsToLoad++;
+        if (loadIccId) {
+            mFh.loadEFTransparent(EF_ICCID, obtainMessage(EVENT_GET_ICCID_DONE));
+            mRecordsToLoad++;
+        }
 
         // FIXME should examine EF[MSISDN]'s capability configuration
         // to determine which is the voice/data/fax line
@@ -1807,6 +1882,214 @@ public class SIMRecords extends IccRecords {
         if (DBG) log("fetchSimRecords " + mRecordsToLoad + " requested: " + mRecordsRequested);
     }
 
+    /**
+     * Look up the snapshot of the card once its ICCID is read, and request all the other
+     * records. If the card has a snapshot its records are published once the IMSI is read from
+     * the card; the records read from the card after that are then only processed if they
+     * differ from the snapshot.
+     */
+    private void onIccIdForSnapshotLoaded(AsyncResult ar) {
+        if (ar.exception == null && ar.result != null) {
+            byte[] data = (byte[]) ar.result;
+            String fullIccId = IccUtils.bchToString(data, 0, data.length);
+            mNewSnapshot = new SimRecordSnapshot(fullIccId);
+            mSnapshot = SimRecordSnapshot.load(mContext, mParentApp.getPhoneId(), fullIccId);
+        }
+
+        loadSimRecords(false);
+    }
+
+    /**
+     * Process the records of a snapshot as if they were read from the card, and publish them.
+     * Called once the IMSI is read from the card; the records read from the card before are
+     * not replayed.
+     */
+    private void publishSnapshot(SimRecordSnapshot snapshot) {
+        if (DBG) log("publishSnapshot " + snapshot);
+
+        // Records are published below, not as the last replayed record is processed
+        mRecordsRequested = false;
+        mReplayingSnapshot = true;
+        try {
+            // In the order of fetchSimRecords()
+            replayRecord(snapshot, EF_AD, EVENT_GET_AD_DONE, null);
+            replayRecord(snapshot, EF_SPDI, EVENT_GET_SPDI_DONE, null);
+            replayRecord(snapshot, EF_PNN, EVENT_GET_PNN_DONE, null);
+            replayRecord(snapshot, EF_SST, EVENT_GET_SST_DONE, null);
+            replayRecord(snapshot, EF_INFO_CPHS, EVENT_GET_INFO_CPHS_DONE, null);
+            replayRecord(snapshot, EF_CSP_CPHS, EVENT_GET_CSP_CPHS_DONE, null);
+            replayRecord(snapshot, EF_GID1, EVENT_GET_GID1_DONE, null);
+            replayRecord(snapshot, EF_GID2, EVENT_GET_GID2_DONE, null);
+            replayRecord(snapshot, EF_PLMN_W_ACT, EVENT_GET_PLMN_W_ACT_DONE, null);
+            replayRecord(snapshot, EF_OPLMN_W_ACT, EVENT_GET_OPLMN_W_ACT_DONE, null);
+            replayRecord(snapshot, EF_HPLMN_W_ACT, EVENT_GET_HPLMN_W_ACT_DONE, null);
+            replayRecord(snapshot, EF_EHPLMN, EVENT_GET_EHPLMN_DONE, null);
+            replayRecord(snapshot, EF_FPLMN, EVENT_GET_FPLMN_DONE, null);
+            replayRecord(snapshot, EF_LI, EVENT_GET_ICC_RECORD_DONE, new EfUsimLiLoaded());
+            replayRecord(snapshot, EF_PL, EVENT_GET_ICC_RECORD_DONE, new EfPlLoaded());
+
+            byte[] spn = snapshot.get(SimRecordSnapshot.KEY_SPN);
+            if (spn != null && getServiceProviderName() == null) {
+                setServiceProviderName(new String(spn));
+                mTelephonyManager.setSimOperatorNameForPhone(
+                        mParentApp.getPhoneId(), getServiceProviderName());
+            }
+            byte[] spnDisplayCondition = snapshot.get(SimRecordSnapshot.KEY_SPN_DISPLAY_CONDITION);
+            if (spnDisplayCondition != null) {
+                mSpnDisplayCondition = Integer.parseInt(new String(spnDisplayCondition));
+            }
+        } catch (RuntimeException exc) {
+            logw("Exception replaying snapshot", exc);
+        } finally {
+            mReplayingSnapshot = false;
+            mRecordsRequested = true;
+        }
+
+        mRecordsLoadTimeMs = SystemClock.elapsedRealtime() - mFetchStartTimeMs;
+        mRecordsLoadedFromSnapshot = true;
+        log("records loaded from snapshot in " + mRecordsLoadTimeMs + "ms");
+        onAllRecordsLoaded();
+    }
+
+    private void replayRecord(SimRecordSnapshot snapshot, int key, int what, Object userObj) {
+        byte[] data = snapshot.get(key);
+        if (data == null || mRecordsProcessedBeforeSnapshot.contains(key)) {
+            return;
+        }
+        mRecordsToLoad++;
+        handleMessage(obtainMessage(what, HANDLER_ACTION_NONE, -1,
+                new AsyncResult(userObj, data, null)));
+    }
+
+    /**
+     * @return the key of the record loaded by a message in snapshots, or
+     * {@link SimRecordSnapshot#NO_KEY} if the record is not kept in snapshots. The IMSI, the
+     * ICCID and the records of the subscriber, e.g. the mailbox and the voice mail and call
+     * forwarding indicators, are not kept in snapshots.
+     */
+    private int getSnapshotKey(Message msg) {
+        switch (msg.what) {
+            case EVENT_GET_AD_DONE: return EF_AD;
+            case EVENT_GET_SPDI_DONE: return EF_SPDI;
+            case EVENT_GET_PNN_DONE: return EF_PNN;
+            case EVENT_GET_SST_DONE: return EF_SST;
+            case EVENT_GET_INFO_CPHS_DONE: return EF_INFO_CPHS;
+            case EVENT_GET_CSP_CPHS_DONE: return EF_CSP_CPHS;
+            case EVENT_GET_GID1_DONE: return EF_GID1;
+            case EVENT_GET_GID2_DONE: return EF_GID2;
+            case EVENT_GET_PLMN_W_ACT_DONE: return EF_PLMN_W_ACT;
+            case EVENT_GET_OPLMN_W_ACT_DONE: return EF_OPLMN_W_ACT;
+            case EVENT_GET_HPLMN_W_ACT_DONE: return EF_HPLMN_W_ACT;
+            case EVENT_GET_EHPLMN_DONE: return EF_EHPLMN;
+            case EVENT_GET_FPLMN_DONE:
+                // Not when read for getForbiddenPlmns()
+                return (msg.arg1 == HANDLER_ACTION_SEND_RESPONSE)
+                        ? SimRecordSnapshot.NO_KEY : EF_FPLMN;
+            case EVENT_GET_ICC_RECORD_DONE:
+                Object recordLoaded = ((AsyncResult) msg.obj).userObj;
+                if (recordLoaded instanceof EfUsimLiLoaded) return EF_LI;
+                if (recordLoaded instanceof EfPlLoaded) return EF_PL;
+                return SimRecordSnapshot.NO_KEY;
+            default: return SimRecordSnapshot.NO_KEY;
+        }
+    }
+
+    /**
+     * Keep a record read from the card for the snapshot of the card.
+     * @return false if the record was already processed from the snapshot the records were
+     * published from, true if it must be processed
+     */
+    private boolean shouldProcessRecord(Message msg) {
+        if (mNewSnapshot == null || mReplayingSnapshot) {
+            return true;
+        }
+        int key = getSnapshotKey(msg);
+        if (key == SimRecordSnapshot.NO_KEY) {
+            return true;
+        }
+        AsyncResult ar = (AsyncResult) msg.obj;
+        byte[] data = null;
+        if (ar.exception == null && ar.result != null) {
+            data = (byte[]) ar.result;
+        }
+        mNewSnapshot.put(key, data);
+        if (!mRecordsLoadedFromSnapshot) {
+            // The snapshot is not published yet, so it does not replay this record
+            mRecordsProcessedBeforeSnapshot.add(key);
+            return true;
+        }
+        return mSnapshot == null || !mSnapshot.matches(key, data);
+    }
+
+    /**
+     * Called when all the requested records were read from the card. Stores the snapshot of
+     * the card if all its records were fetched.
+     * @return whether the records must be published, false if they were published from a
+     * snapshot, in which case only the records that changed since are notified
+     */
+    private boolean onAllRecordsRead() {
+        SimRecordSnapshot snapshot = mSnapshot;
+        SimRecordSnapshot newSnapshot = mNewSnapshot;
+        boolean published = mRecordsLoadedFromSnapshot;
+        mSnapshot = null;
+        mNewSnapshot = null;
+        mRecordsProcessedBeforeSnapshot.clear();
+        mRecordsLoadedFromSnapshot = false;
+        if (newSnapshot == null) {
+            return true;
+        }
+
+        String spn = getSimServiceProviderName();
+        newSnapshot.put(SimRecordSnapshot.KEY_SPN, (spn != null) ? spn.getBytes() : null);
+        newSnapshot.put(SimRecordSnapshot.KEY_SPN_DISPLAY_CONDITION,
+                Integer.toString(mSpnDisplayCondition).getBytes());
+        newSnapshot.save(mContext, mParentApp.getPhoneId());
+
+        mRecordsReadTimeMs = SystemClock.elapsedRealtime() - mFetchStartTimeMs;
+        if (snapshot == null || !published) {
+            mRecordsLoadTimeMs = mRecordsReadTimeMs;
+            log("records read from card in " + mRecordsReadTimeMs + "ms, "
+                    + (snapshot == null ? "no snapshot" : "snapshot not published"));
+            return true;
+        }
+
+        ArrayList<Integer> changedKeys = newSnapshot.getChangedKeys(snapshot);
+        log("records read from card in " + mRecordsReadTimeMs + "ms, changed since snapshot: "
+                + changedKeys);
+        onRecordsChangedSinceSnapshot(changedKeys);
+        return false;
+    }
+
+    /**
+     * Notify the records read from the card after the records were published from a snapshot:
+     * the records of the subscriber, which are not kept in snapshots, and the records that
+     * differ from the snapshot.
+     */
+    private void onRecordsChangedSinceSnapshot(ArrayList<Integer> changedKeys) {
+        setVoiceCallForwardingFlagFromSimRecords();
+        mRecordsEventsRegistrants.notifyResult(EVENT_MWI);
+        mRecordsEventsRegistrants.notifyResult(EVENT_CFI);
+
+        String operator = getOperatorNumeric();
+        if (changedKeys.contains(EF_AD) && !TextUtils.isEmpty(operator)) {
+            mTelephonyManager.setSimOperatorNumericForPhone(mParentApp.getPhoneId(), operator);
+        }
+        // The voice mail number read from the card replaces the one set by country
+        setVoiceMailByCountry(operator);
+
+        if ((changedKeys.contains(EF_LI) || changedKeys.contains(EF_PL))
+                && Resources.getSystem().getBoolean(
+                        com.android.internal.R.bool.config_use_sim_language_file)) {
+            setSimLanguage(mEfLi, mEfPl);
+        }
+
+        if (changedKeys.contains(SimRecordSnapshot.KEY_SPN)
+                || changedKeys.contains(SimRecordSnapshot.KEY_SPN_DISPLAY_CONDITION)
+                || changedKeys.contains(EF_SPDI) || changedKeys.contains(EF_PNN)) {
+            mRecordsEventsRegistrants.notifyResult(EVENT_SPN);
+        }
+    }
+
     /**
      * Returns the SpnDisplayRule based on settings on the SIM and the
      * specified plmn (currently-registered PLMN).  See TS 22.101 Annex A
@@ -2186,6 +2469,9 @@ public class SIMRecords extends IccRecords {
         pw.println(" mHplmnActRecords[]=" + Arrays.toString(mHplmnActRecords));
         pw.println(" mFplmns[]=" + Arrays.toString(mFplmns));
         pw.println(" mEhplmns[]=" + Arrays.toString(mEhplmns));
+        pw.println(" mRecordsLoadTimeMs=" + mRecordsLoadTimeMs);
+        pw.println(" mRecordsReadTimeMs=" + mRecordsReadTimeMs);
+        pw.println(" mSnapshot=" + mSnapshot);
         pw.flush();
     }
 }
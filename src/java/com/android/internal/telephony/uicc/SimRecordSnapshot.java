@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemProperties;
+import android.telephony.Rlog;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Contents of the SIM records read from a card, persisted with the ICCID of the card.
+ *
+ * {@link SIMRecords} publishes the records of a card from its snapshot as soon as the IMSI is
+ * read from the card, then reads the other records from the card anyway and notifies the
+ * records that differ from the snapshot. Records are stored as read from the card, by EF id,
+ * except for a few values that are not read from a single EF and are stored under negative
+ * keys. The IMSI and the records of the subscriber, e.g. the voice mail and call forwarding
+ * indicators, are not kept in snapshots; they are always read from the card.
+ *
+ * The snapshot of the card last read in each slot is kept, in a dedicated preferences file in
+ * device protected storage rather than in the default preferences, which may be backed up. It
+ * is kept while the radio is unavailable or the modem restarts, and replaced when a card with
+ * another ICCID is read in the slot.
+ *
+ * {@hide}
+ */
+class SimRecordSnapshot {
+    private static final String LOG_TAG = "SimRecordSnapshot";
+
+    /** Whether records are published from snapshots */
+    static final boolean ENABLED = SystemProperties.getBoolean("persist.radio.sim_snapshot", true);
+
+    /** Not a record kept in snapshots */
+    static final int NO_KEY = Integer.MIN_VALUE;
+    /** Service provider name, as resolved from EF_SPN and the CPHS operator name EFs */
+    static final int KEY_SPN = -2;
+    /** Display condition of the service provider name */
+    static final int KEY_SPN_DISPLAY_CONDITION = -3;
+
+    private static final String PREFS_FILE = "sim_record_snapshot";
+    /** Prefix of the ICCID of the card of a slot, followed by the slot id */
+    private static final String PREF_ICCID = "iccid";
+    /** Prefix of the records of the card of a slot, followed by the slot id */
+    private static final String PREF_RECORDS = "records";
+
+    private final String mIccId;
+    private final TreeMap<Integer, byte[]> mRecords = new TreeMap<Integer, byte[]>();
+
+    SimRecordSnapshot(String iccId) {
+        mIccId = iccId;
+    }
+
+    String getIccId() {
+        return mIccId;
+    }
+
+    /**
+     * Set the contents of a record. A null value removes the record.
+     */
+    void put(int key, byte[] data) {
+        if (data == null) {
+            mRecords.remove(key);
+        } else {
+            mRecords.put(key, data);
+        }
+    }
+
+    /**
+     * @return the contents of a record, or null if the record is not in the snapshot
+     */
+    byte[] get(int key) {
+        return mRecords.get(key);
+    }
+
+    /**
+     * @return whether a record read from the card is the one in the snapshot. A record that
+     * could not be read matches a record that is not in the snapshot.
+     */
+    boolean matches(int key, byte[] data) {
+        return Arrays.equals(mRecords.get(key), data);
+    }
+
+    int size() {
+        return mRecords.size();
+    }
+
+    /**
+     * @return the keys of the records that differ from the ones of another snapshot
+     */
+    ArrayList<Integer> getChangedKeys(SimRecordSnapshot other) {
+        TreeSet<Integer> keys = new TreeSet<Integer>(mRecords.keySet());
+        keys.addAll(other.mRecords.keySet());
+        ArrayList<Integer> changed = new ArrayList<Integer>();
+        for (int key : keys) {
+            if (!other.matches(key, mRecords.get(key))) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SimRecordSnapshot)) {
+            return false;
+        }
+        SimRecordSnapshot other = (SimRecordSnapshot) o;
+        if (!TextUtils.equals(mIccId, other.mIccId)
+                || mRecords.size() != other.mRecords.size()) {
+            return false;
+        }
+        for (Map.Entry<Integer, byte[]> record : mRecords.entrySet()) {
+            if (!other.matches(record.getKey(), record.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return mIccId == null ? 0 : mIccId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "SimRecordSnapshot{records=" + mRecords.keySet() + "}";
+    }
+
+    /**
+     * @return the records as "key:hex" pairs separated by commas
+     */
+    @VisibleForTesting
+    String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, byte[]> record : mRecords.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(record.getKey()).append(':')
+                    .append(IccUtils.bytesToHexString(record.getValue()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the snapshot of a card from its encoded records, or null if they are malformed
+     */
+    @VisibleForTesting
+    static SimRecordSnapshot decode(String iccId, String encoded) {
+        SimRecordSnapshot snapshot = new SimRecordSnapshot(iccId);
+        if (TextUtils.isEmpty(encoded)) {
+            return snapshot;
+        }
+        try {
+            for (String record : encoded.split(",")) {
+                int separator = record.indexOf(':');
+                int key = Integer.parseInt(record.substring(0, separator));
+                byte[] data = IccUtils.hexStringToBytes(record.substring(separator + 1));
+                if (data == null) {
+                    return null;
+                }
+                snapshot.put(key, data);
+            }
+        } catch (RuntimeException e) {
+            Rlog.e(LOG_TAG, "Malformed snapshot", e);
+            return null;
+        }
+        return snapshot;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.createDeviceProtectedStorageContext()
+                .getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the snapshot of the card in a slot, or null if there is none. The stored snapshot
+     * of the slot is cleared if it is the snapshot of another card.
+     */
+    static SimRecordSnapshot load(Context context, int slotId, String iccId) {
+        if (TextUtils.isEmpty(iccId)) {
+            return null;
+        }
+        SharedPreferences sp = getPreferences(context);
+        String storedIccId = sp.getString(PREF_ICCID + slotId, null);
+        if (storedIccId == null) {
+            return null;
+        }
+        if (!storedIccId.equals(iccId)) {
+            Rlog.d(LOG_TAG, "ICCID changed in slot " + slotId + ", clear the snapshot");
+            clear(context, slotId);
+            return null;
+        }
+        return decode(iccId, sp.getString(PREF_RECORDS + slotId, null));
+    }
+
+    /**
+     * Store the snapshot as the snapshot of the card in a slot, replacing the stored snapshot
+     * of the slot.
+     */
+    void save(Context context, int slotId) {
+        if (TextUtils.isEmpty(mIccId)) {
+            return;
+        }
+        getPreferences(context).edit()
+                .putString(PREF_ICCID + slotId, mIccId)
+                .putString(PREF_RECORDS + slotId, encode())
+                .apply();
+    }
+
+    /**
+     * Remove the stored snapshot of a slot.
+     */
+    static void clear(Context context, int slotId) {
+        getPreferences(context).edit()
+                .remove(PREF_ICCID + slotId)
+                .remove(PREF_RECORDS + slotId)
+                .apply();
+    }
+}
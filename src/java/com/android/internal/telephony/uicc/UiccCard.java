@@ -761,6 +761,17 @@ public class UiccCard {
                         packageManager, intent);
     }
 
+    /**
+     * Clears the carrier privilege status of packages cached by
+     * {@link UiccCarrierPrivilegeRules}. Called when packages are added, removed or replaced.
+     */
+    public void onPackagesChanged() {
+        UiccCarrierPrivilegeRules carrierPrivilegeRules = getCarrierPrivilegeRules();
+        if (carrierPrivilegeRules != null) {
+            carrierPrivilegeRules.clearCarrierPrivilegeStatusCache();
+        }
+    }
+
     /** Returns a reference to the current {@link UiccCarrierPrivilegeRules}. */
     private UiccCarrierPrivilegeRules getCarrierPrivilegeRules() {
         synchronized (mLock) {
@@ -890,6 +890,9 @@ public class UiccCardApplication {
         pw.println(" mCi=" + mCi);
         pw.println(" mIccRecords=" + mIccRecords);
         pw.println(" mIccFh=" + mIccFh);
+        if (mIccFh != null) {
+            mIccFh.dump(fd, pw, args);
+        }
         pw.println(" mDestroyed=" + mDestroyed);
         pw.println(" mReadyRegistrants: size=" + mReadyRegistrants.size());
         for (int i = 0; i < mReadyRegistrants.size(); i++) {
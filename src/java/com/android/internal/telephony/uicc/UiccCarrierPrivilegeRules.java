@@ -33,11 +33,15 @@ import android.text.TextUtils;
 
 import com.android.internal.telephony.CommandException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -85,15 +89,18 @@ public class UiccCarrierPrivilegeRules extends Handler {
      *       DB
      */
     // Values from the data standard.
-    private static final String TAG_ALL_REF_AR_DO = "FF40";
-    private static final String TAG_REF_AR_DO = "E2";
-    private static final String TAG_REF_DO = "E1";
-    private static final String TAG_DEVICE_APP_ID_REF_DO = "C1";
-    private static final String TAG_PKG_REF_DO = "CA";
-    private static final String TAG_AR_DO = "E3";
-    private static final String TAG_PERM_AR_DO = "DB";
-    private static final String TAG_AID_REF_DO = "4F";
-    private static final String CARRIER_PRIVILEGE_AID = "FFFFFFFFFFFF";
+    private static final int TAG_ALL_REF_AR_DO = 0xFF40;
+    private static final int TAG_REF_AR_DO = 0xE2;
+    private static final int TAG_REF_DO = 0xE1;
+    private static final int TAG_DEVICE_APP_ID_REF_DO = 0xC1;
+    private static final int TAG_PKG_REF_DO = 0xCA;
+    private static final int TAG_AR_DO = 0xE3;
+    private static final int TAG_PERM_AR_DO = 0xDB;
+    private static final int TAG_AID_REF_DO = 0x4F;
+    private static final byte[] CARRIER_PRIVILEGE_AID = IccUtils.hexStringToBytes("FFFFFFFFFFFF");
+
+    // Hash algorithms of the certificate hash of the rules, see UiccAccessRule.
+    private static final String[] CERT_HASH_ALGORITHMS = {"SHA-1", "SHA-256"};
 
     private static final int EVENT_OPEN_LOGICAL_CHANNEL_DONE = 1;
     private static final int EVENT_TRANSMIT_LOGICAL_CHANNEL_DONE = 2;
@@ -109,77 +116,21 @@ public class UiccCarrierPrivilegeRules extends Handler {
     private static final int MAX_RETRY = 1;
     private static final int RETRY_INTERVAL_MS = 10000;
 
-    // Used for parsing the data from the UICC.
-    public static class TLV {
-        private static final int SINGLE_BYTE_MAX_LENGTH = 0x80;
-        private String tag;
-        // Length encoding is in GPC_Specification_2.2.1: 11.1.5 APDU Message and Data Length.
-        // Length field could be either 1 byte if length < 128, or multiple bytes with first byte
-        // specifying how many bytes are used for length, followed by length bytes.
-        // Bytes for the length field, in ASCII HEX string form.
-        private String lengthBytes;
-        // Decoded length as integer.
-        private Integer length;
-        private String value;
-
-        public TLV(String tag) {
-            this.tag = tag;
-        }
-
-        public String getValue() {
-            if (value == null) return "";
-            return value;
-        }
-
-        public String parseLength(String data) {
-            int offset = tag.length();
-            int firstByte = Integer.parseInt(data.substring(offset, offset + 2), 16);
-            if (firstByte < SINGLE_BYTE_MAX_LENGTH) {
-                length = firstByte * 2;
-                lengthBytes = data.substring(offset, offset + 2);
-            } else {
-                int numBytes = firstByte - SINGLE_BYTE_MAX_LENGTH;
-                length = Integer.parseInt(data.substring(offset + 2, offset + 2 + numBytes * 2), 16) * 2;
-                lengthBytes = data.substring(offset, offset + 2 + numBytes * 2);
-            }
-            log("TLV parseLength length=" + length + "lenghtBytes: " + lengthBytes);
-            return lengthBytes;
-        }
-
-        public String parse(String data, boolean shouldConsumeAll) {
-            log("Parse TLV: " + tag);
-            if (!data.startsWith(tag)) {
-                throw new IllegalArgumentException("Tags don't match.");
-            }
-            int index = tag.length();
-            if (index + 2 > data.length()) {
-                throw new IllegalArgumentException("No length.");
-            }
-
-            parseLength(data);
-            index += lengthBytes.length();
-
-            log("index="+index+" length="+length+"data.length="+data.length());
-            int remainingLength = data.length() - (index + length);
-            if (remainingLength < 0) {
-                throw new IllegalArgumentException("Not enough data.");
-            }
-            if (shouldConsumeAll && (remainingLength != 0)) {
-                throw new IllegalArgumentException("Did not consume all.");
-            }
-            value = data.substring(index, index + length);
-
-            log("Got TLV: " + tag + "," + length + "," + value);
-
-            return data.substring(index + length);
-        }
-    }
-
     private UiccCard mUiccCard;  // Parent
     private UiccPkcs15 mUiccPkcs15; // ARF fallback
     private AtomicInteger mState;
     private List<UiccAccessRule> mAccessRules;
-    private String mRules;
+    // mAccessRules indexed by the hex string of their certificate hash
+    private Map<String, List<UiccAccessRule>> mAccessRulesByCertHash;
+    private ByteArrayOutputStream mRules;
+    // Carrier privilege status by package name, once the rules are loaded. Cleared when the
+    // rules are set and when packages are added, removed or replaced, which is the only way
+    // the signatures of a package change.
+    private final HashMap<String, Integer> mCarrierPrivilegeStatusCache = new HashMap<>();
+    // Incremented when the cache is cleared, so that a status computed before is not cached.
+    private int mCarrierPrivilegeStatusCacheGeneration;
+    private int mCarrierPrivilegeStatusCacheHits;
+    private int mCarrierPrivilegeStatusCacheMisses;
     private Message mLoadedCallback;
     private String mStatusMessage;  // Only used for debugging.
     private int mChannelId; // Channel Id for communicating with UICC.
@@ -204,8 +155,9 @@ public class UiccCarrierPrivilegeRules extends Handler {
         mState = new AtomicInteger(STATE_LOADING);
         mStatusMessage = "Not loaded.";
         mLoadedCallback = loadedCallback;
-        mRules = "";
+        mRules = new ByteArrayOutputStream();
         mAccessRules = new ArrayList<>();
+        mAccessRulesByCertHash = new HashMap<>();
 
         openChannel();
     }
@@ -256,14 +208,7 @@ public class UiccCarrierPrivilegeRules extends Handler {
             return TelephonyManager.CARRIER_PRIVILEGE_STATUS_ERROR_LOADING_RULES;
         }
 
-        for (UiccAccessRule ar : mAccessRules) {
-            int accessStatus = ar.getCarrierPrivilegeStatus(signature, packageName);
-            if (accessStatus != TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
-                return accessStatus;
-            }
-        }
-
-        return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        return getCarrierPrivilegeStatusByCertHash(signature, packageName);
     }
 
     /**
@@ -286,19 +231,67 @@ public class UiccCarrierPrivilegeRules extends Handler {
                 }
                 return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
             }
+            int generation;
+            synchronized (mCarrierPrivilegeStatusCache) {
+                Integer cachedStatus = mCarrierPrivilegeStatusCache.get(packageName);
+                if (cachedStatus != null) {
+                    mCarrierPrivilegeStatusCacheHits++;
+                    return cachedStatus;
+                }
+                mCarrierPrivilegeStatusCacheMisses++;
+                generation = mCarrierPrivilegeStatusCacheGeneration;
+            }
             // Include DISABLED_UNTIL_USED components. This facilitates cases where a carrier app
             // is disabled by default, and some other component wants to enable it when it has
             // gained carrier privileges (as an indication that a matching SIM has been inserted).
             PackageInfo pInfo = packageManager.getPackageInfo(packageName,
                     PackageManager.GET_SIGNATURES
                             | PackageManager.MATCH_DISABLED_UNTIL_USED_COMPONENTS);
-            return getCarrierPrivilegeStatus(pInfo);
+            int status = getCarrierPrivilegeStatus(pInfo);
+            if (status == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS
+                    || status == TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
+                synchronized (mCarrierPrivilegeStatusCache) {
+                    if (generation == mCarrierPrivilegeStatusCacheGeneration) {
+                        mCarrierPrivilegeStatusCache.put(packageName, status);
+                    }
+                }
+            }
+            return status;
         } catch (PackageManager.NameNotFoundException ex) {
             Rlog.e(LOG_TAG, "NameNotFoundException", ex);
         }
         return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
     }
 
+    /**
+     * Clears the carrier privilege status cached for packages. Must be called when packages
+     * are added, removed or replaced.
+     */
+    public void clearCarrierPrivilegeStatusCache() {
+        synchronized (mCarrierPrivilegeStatusCache) {
+            mCarrierPrivilegeStatusCache.clear();
+            mCarrierPrivilegeStatusCacheGeneration++;
+        }
+    }
+
+    /**
+     * Returns the number of carrier privilege statuses of packages found in the cache.
+     */
+    public int getCarrierPrivilegeStatusCacheHits() {
+        synchronized (mCarrierPrivilegeStatusCache) {
+            return mCarrierPrivilegeStatusCacheHits;
+        }
+    }
+
+    /**
+     * Returns the number of carrier privilege statuses of packages not found in the cache.
+     */
+    public int getCarrierPrivilegeStatusCacheMisses() {
+        synchronized (mCarrierPrivilegeStatusCache) {
+            return mCarrierPrivilegeStatusCacheMisses;
+        }
+    }
+
     /**
      * Returns the status of the carrier privileges for the input package info.
      *
@@ -313,8 +306,16 @@ public class UiccCarrierPrivilegeRules extends Handler {
             return TelephonyManager.CARRIER_PRIVILEGE_STATUS_ERROR_LOADING_RULES;
         }
 
-        for (UiccAccessRule ar : mAccessRules) {
-            int accessStatus = ar.getCarrierPrivilegeStatus(packageInfo);
+        if (mAccessRules.isEmpty()) {
+            return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        }
+        if (packageInfo.signatures == null || packageInfo.signatures.length == 0) {
+            throw new IllegalArgumentException(
+                    "Must use GET_SIGNATURES when looking up package info");
+        }
+        for (Signature signature : packageInfo.signatures) {
+            int accessStatus = getCarrierPrivilegeStatusByCertHash(signature,
+                    packageInfo.packageName);
             if (accessStatus != TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
                 return accessStatus;
             }
@@ -322,6 +323,43 @@ public class UiccCarrierPrivilegeRules extends Handler {
         return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
     }
 
+    /*
+     * Checks the signature against the rules for its certificate hashes only. The certificate
+     * is hashed once per algorithm, and the rules found by hash are matched on their package
+     * name only, as UiccAccessRule does once it has hashed the certificate itself.
+     */
+    private int getCarrierPrivilegeStatusByCertHash(Signature signature, String packageName) {
+        byte[] certificate = signature.toByteArray();
+        for (String algorithm : CERT_HASH_ALGORITHMS) {
+            List<UiccAccessRule> accessRules =
+                    mAccessRulesByCertHash.get(getCertHash(certificate, algorithm));
+            if (accessRules == null) {
+                continue;
+            }
+            for (UiccAccessRule ar : accessRules) {
+                String rulePackageName = ar.getPackageName();
+                if (rulePackageName == null || rulePackageName.equals(packageName)) {
+                    return TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
+                }
+            }
+        }
+        return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+    }
+
+    /*
+     * Returns the hex string of the hash of the certificate, or null if the algorithm is not
+     * supported.
+     */
+    private static String getCertHash(byte[] certificate, String algorithm) {
+        try {
+            return IccUtils.bytesToHexString(
+                    MessageDigest.getInstance(algorithm).digest(certificate));
+        } catch (NoSuchAlgorithmException ex) {
+            Rlog.e(LOG_TAG, "NoSuchAlgorithmException: " + ex);
+        }
+        return null;
+    }
+
     /**
      * Returns the status of the carrier privileges for the caller of the current transaction.
      *
@@ -429,10 +467,10 @@ public class UiccCarrierPrivilegeRules extends Handler {
                     if (response.sw1 == 0x90 && response.sw2 == 0x00
                             && response.payload != null && response.payload.length > 0) {
                         try {
-                            mRules += IccUtils.bytesToHexString(response.payload)
-                                    .toUpperCase(Locale.US);
-                            if (isDataComplete()) {
-                                mAccessRules = parseRules(mRules);
+                            mRules.write(response.payload, 0, response.payload.length);
+                            byte[] rules = mRules.toByteArray();
+                            if (isDataComplete(rules)) {
+                                setAccessRules(parseRules(rules));
                                 updateState(STATE_LOADED, "Success!");
                             } else {
                                 mUiccCard.iccTransmitApduLogicalChannel(mChannelId, CLA, COMMAND,
@@ -467,11 +505,13 @@ public class UiccCarrierPrivilegeRules extends Handler {
                 if (mUiccPkcs15 == null || mUiccPkcs15.getRules() == null) {
                     updateState(STATE_ERROR, "No ARA or ARF.");
                 } else {
+                    List<UiccAccessRule> accessRules = new ArrayList<>(mAccessRules);
                     for (String cert : mUiccPkcs15.getRules()) {
                         UiccAccessRule accessRule = new UiccAccessRule(
                                 IccUtils.hexStringToBytes(cert), "", 0x00);
-                        mAccessRules.add(accessRule);
+                        accessRules.add(accessRule);
                     }
+                    setAccessRules(accessRules);
                     updateState(STATE_LOADED, "Success!");
                 }
                 break;
@@ -485,44 +525,45 @@ public class UiccCarrierPrivilegeRules extends Handler {
      * Check if all rule bytes have been read from UICC.
      * For long payload, we need to fetch it repeatly before start parsing it.
      */
-    private boolean isDataComplete() {
-        log("isDataComplete mRules:" + mRules);
-        if (mRules.startsWith(TAG_ALL_REF_AR_DO)) {
-            TLV allRules = new TLV(TAG_ALL_REF_AR_DO);
-            String lengthBytes = allRules.parseLength(mRules);
-            log("isDataComplete lengthBytes: " + lengthBytes);
-            if (mRules.length() == TAG_ALL_REF_AR_DO.length() + lengthBytes.length() +
-                                   allRules.length) {
-                log("isDataComplete yes");
-                return true;
-            } else {
-                log("isDataComplete no");
-                return false;
-            }
-        } else {
+    private static boolean isDataComplete(byte[] rules) {
+        if (DBG) log("isDataComplete rules:" + IccUtils.bytesToHexString(rules));
+        BerTlvDecoder allRules = new BerTlvDecoder(rules);
+        if (allRules.peekTag() != TAG_ALL_REF_AR_DO) {
             throw new IllegalArgumentException("Tags don't match.");
         }
+        int length = allRules.peekEncodedLength();
+        log("isDataComplete length: " + length);
+        if (rules.length == length) {
+            log("isDataComplete yes");
+            return true;
+        } else {
+            log("isDataComplete no");
+            return false;
+        }
     }
 
     /*
-     * Parses the rules from the input string.
+     * Parses the rules from the input bytes.
      */
-    private static List<UiccAccessRule> parseRules(String rules) {
-        log("Got rules: " + rules);
+    private static List<UiccAccessRule> parseRules(byte[] rules) {
+        if (DBG) log("Got rules: " + IccUtils.bytesToHexString(rules));
 
-        TLV allRefArDo = new TLV(TAG_ALL_REF_AR_DO); //FF40
-        allRefArDo.parse(rules, true);
+        BerTlvDecoder allRefArDo = new BerTlvDecoder(rules);
+        allRefArDo.next(TAG_ALL_REF_AR_DO); //FF40
+        if (allRefArDo.hasNext()) {
+            throw new IllegalArgumentException("Did not consume all.");
+        }
 
-        String arDos = allRefArDo.value;
+        BerTlvDecoder arDos = allRefArDo.getValueDecoder();
         List<UiccAccessRule> accessRules = new ArrayList<>();
-        while (!arDos.isEmpty()) {
-            TLV refArDo = new TLV(TAG_REF_AR_DO); //E2
-            arDos = refArDo.parse(arDos, false);
-            UiccAccessRule accessRule = parseRefArdo(refArDo.value);
+        while (arDos.hasNext()) {
+            arDos.next(TAG_REF_AR_DO); //E2
+            UiccAccessRule accessRule = parseRefArdo(arDos.getValueDecoder());
             if (accessRule != null) {
                 accessRules.add(accessRule);
             } else {
-              Rlog.e(LOG_TAG, "Skip unrecognized rule." + refArDo.value);
+              Rlog.e(LOG_TAG, "Skip unrecognized rule."
+                      + IccUtils.bytesToHexString(arDos.getValue()));
             }
         }
         return accessRules;
@@ -531,75 +572,91 @@ public class UiccCarrierPrivilegeRules extends Handler {
     /*
      * Parses a single rule.
      */
-    private static UiccAccessRule parseRefArdo(String rule) {
-        log("Got rule: " + rule);
-
-        String certificateHash = null;
+    private static UiccAccessRule parseRefArdo(BerTlvDecoder rule) {
+        byte[] certificateHash = null;
         String packageName = null;
-        String tmp = null;
         long accessType = 0;
 
-        while (!rule.isEmpty()) {
-            if (rule.startsWith(TAG_REF_DO)) {
-                TLV refDo = new TLV(TAG_REF_DO); //E1
-                rule = refDo.parse(rule, false);
+        while (rule.hasNext()) {
+            int tag = rule.peekTag();
+            if (tag == TAG_REF_DO) {
+                rule.next(); //E1
+                BerTlvDecoder refDo = rule.getValueDecoder();
                 // Allow 4F tag with a default value "FF FF FF FF FF FF" to be compatible with
                 // devices having GP access control enforcer:
                 //  - If no 4F tag is present, it's a CP rule.
                 //  - If 4F tag has value "FF FF FF FF FF FF", it's a CP rule.
                 //  - If 4F tag has other values, it's not a CP rule and Android should ignore it.
-                TLV deviceDo = new TLV(TAG_DEVICE_APP_ID_REF_DO); //C1
-                if (refDo.value.startsWith(TAG_AID_REF_DO)) {
-                    TLV cpDo = new TLV(TAG_AID_REF_DO); //4F
-                    String remain = cpDo.parse(refDo.value, false);
-                    if (!cpDo.lengthBytes.equals("06") || !cpDo.value.equals(CARRIER_PRIVILEGE_AID)
-                            || remain.isEmpty() || !remain.startsWith(TAG_DEVICE_APP_ID_REF_DO)) {
+                if (!refDo.hasNext()) {
+                    return null;
+                }
+                if (refDo.peekTag() == TAG_AID_REF_DO) {
+                    refDo.next(); //4F
+                    if (!refDo.valueEquals(CARRIER_PRIVILEGE_AID) || !refDo.hasNext()
+                            || refDo.peekTag() != TAG_DEVICE_APP_ID_REF_DO) {
                         return null;
                     }
-                    tmp = deviceDo.parse(remain, false);
-                    certificateHash = deviceDo.value;
-                } else if (refDo.value.startsWith(TAG_DEVICE_APP_ID_REF_DO)) {
-                    tmp = deviceDo.parse(refDo.value, false);
-                    certificateHash = deviceDo.value;
-                } else {
+                } else if (refDo.peekTag() != TAG_DEVICE_APP_ID_REF_DO) {
                     return null;
                 }
-                if (!tmp.isEmpty()) {
-                    if (!tmp.startsWith(TAG_PKG_REF_DO)) {
+                refDo.next(); //C1
+                certificateHash = refDo.getValue();
+                if (refDo.hasNext()) {
+                    if (refDo.peekTag() != TAG_PKG_REF_DO) {
                         return null;
                     }
-                    TLV pkgDo = new TLV(TAG_PKG_REF_DO); //CA
-                    pkgDo.parse(tmp, true);
-                    packageName = new String(IccUtils.hexStringToBytes(pkgDo.value));
+                    refDo.next(); //CA
+                    if (refDo.hasNext()) {
+                        throw new IllegalArgumentException("Did not consume all.");
+                    }
+                    packageName = new String(refDo.getValue());
                 } else {
                     packageName = null;
                 }
-            } else if (rule.startsWith(TAG_AR_DO)) {
-                TLV arDo = new TLV(TAG_AR_DO); //E3
-                rule = arDo.parse(rule, false);
+            } else if (tag == TAG_AR_DO) {
+                rule.next(); //E3
                 // Skip all the irrelevant tags (All the optional tags here are two bytes
                 // according to the spec GlobalPlatform Secure Element Access Control).
-                String remain = arDo.value;
-                while (!remain.isEmpty() && !remain.startsWith(TAG_PERM_AR_DO)) {
-                    TLV tmpDo = new TLV(remain.substring(0, 2));
-                    remain = tmpDo.parse(remain, false);
+                BerTlvDecoder arDo = rule.getValueDecoder();
+                while (arDo.hasNext() && arDo.peekTag() != TAG_PERM_AR_DO) {
+                    arDo.next();
                 }
-                if (remain.isEmpty()) {
+                if (!arDo.hasNext()) {
                     return null;
                 }
-                TLV permDo = new TLV(TAG_PERM_AR_DO); //DB
-                permDo.parse(remain, true);
+                arDo.next(); //DB
+                if (arDo.hasNext()) {
+                    throw new IllegalArgumentException("Did not consume all.");
+                }
             } else  {
                 // Spec requires it must be either TAG_REF_DO or TAG_AR_DO.
                 throw new RuntimeException("Invalid Rule type");
             }
         }
 
-        UiccAccessRule accessRule = new UiccAccessRule(
-                IccUtils.hexStringToBytes(certificateHash), packageName, accessType);
+        UiccAccessRule accessRule = new UiccAccessRule(certificateHash, packageName, accessType);
         return accessRule;
     }
 
+    /*
+     * Sets the rules, and indexes them by certificate hash for getCarrierPrivilegeStatus.
+     */
+    private void setAccessRules(List<UiccAccessRule> accessRules) {
+        Map<String, List<UiccAccessRule>> accessRulesByCertHash = new HashMap<>();
+        for (UiccAccessRule ar : accessRules) {
+            String certHash = ar.getCertificateHexString();
+            List<UiccAccessRule> certHashRules = accessRulesByCertHash.get(certHash);
+            if (certHashRules == null) {
+                certHashRules = new ArrayList<>();
+                accessRulesByCertHash.put(certHash, certHashRules);
+            }
+            certHashRules.add(ar);
+        }
+        mAccessRulesByCertHash = accessRulesByCertHash;
+        mAccessRules = accessRules;
+        clearCarrierPrivilegeStatusCache();
+    }
+
     /*
      * Updates the state and notifies the UiccCard that the rules have finished loading.
      */
@@ -631,6 +688,11 @@ public class UiccCarrierPrivilegeRules extends Handler {
         } else {
             pw.println(" mAccessRules: null");
         }
+        synchronized (mCarrierPrivilegeStatusCache) {
+            pw.println(" mCarrierPrivilegeStatusCache: size=" + mCarrierPrivilegeStatusCache.size()
+                    + " hits=" + mCarrierPrivilegeStatusCacheHits
+                    + " misses=" + mCarrierPrivilegeStatusCacheMisses);
+        }
         if (mUiccPkcs15 != null) {
             pw.println(" mUiccPkcs15: " + mUiccPkcs15);
             mUiccPkcs15.dump(fd, pw, args);
@@ -16,13 +16,17 @@
 
 package com.android.internal.telephony.uicc;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Registrant;
 import android.os.RegistrantList;
 import android.os.SystemProperties;
+import android.os.UserHandle;
 import android.os.storage.StorageManager;
 import android.telephony.TelephonyManager;
 import android.telephony.Rlog;
@@ -105,6 +109,21 @@ public class UiccController extends Handler {
     private static final int MAX_PROACTIVE_COMMANDS_TO_LOG = 20;
     private LinkedList<String> mCardLogs = new LinkedList<String>();
 
+    // Receives broadcasts from the system involving changes to the installed applications, which
+    // may change the carrier privileges of the applications.
+    private final BroadcastReceiver mPackageChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (mLock) {
+                for (UiccCard card : mUiccCards) {
+                    if (card != null) {
+                        card.onPackagesChanged();
+                    }
+                }
+            }
+        }
+    };
+
     public static UiccController make(Context c, CommandsInterface[] ci) {
         synchronized (mLock) {
             if (mInstance != null) {
@@ -137,6 +156,14 @@ public class UiccController extends Handler {
         }
 
         mLauncher = new UiccStateChangedLauncher(c, this);
+
+        IntentFilter packageChangedFilter = new IntentFilter();
+        packageChangedFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageChangedFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageChangedFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageChangedFilter.addDataScheme("package");
+        c.registerReceiverAsUser(mPackageChangedReceiver, UserHandle.ALL, packageChangedFilter,
+                null, null);
     }
 
     public static UiccController getInstance() {
@@ -26,13 +26,11 @@ import android.telephony.TelephonyManager;
 import com.android.internal.telephony.CommandException;
 import com.android.internal.telephony.CommandsInterface;
 import com.android.internal.telephony.uicc.IccUtils;
-import com.android.internal.telephony.uicc.UiccCarrierPrivilegeRules.TLV;
 
 import java.io.ByteArrayInputStream;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.lang.IllegalArgumentException;
-import java.lang.IndexOutOfBoundsException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -58,7 +56,7 @@ public class UiccPkcs15 extends Handler {
     private static final boolean DBG = true;
 
     // File handler for PKCS15 files, select file and read binary,
-    // convert to String then send to callback message.
+    // then send the bytes to callback message.
     private class FileHandler extends Handler {
         // EF path for PKCS15 root, eg. "3F007F50"
         // null if logical channel is used for PKCS15 access.
@@ -123,9 +121,9 @@ public class UiccPkcs15 extends Handler {
 
                 case EVENT_READ_BINARY_DONE:
                     IccIoResult response = (IccIoResult) ar.result;
-                    String result = IccUtils.bytesToHexString(response.payload)
-                            .toUpperCase(Locale.US);
-                    log("IccIoResult: " + response + " payload: " + result);
+                    byte[] result = response.payload;
+                    log("IccIoResult: " + response + " payload: "
+                            + IccUtils.bytesToHexString(result));
                     AsyncResult.forMessage(mCallback, result, (result == null) ?
                             new IccException("Error: null response for " + mFileId) : null);
                     mCallback.sendToTarget();
@@ -221,7 +219,7 @@ public class UiccPkcs15 extends Handler {
 
           case EVENT_LOAD_ACRF_DONE:
               if (ar.exception == null && ar.result != null) {
-                  String idAccf = parseAcrf((String)ar.result);
+                  String idAccf = parseAcrf((byte[])ar.result);
                   if (!mFh.loadFile(idAccf, obtainMessage(EVENT_LOAD_ACCF_DONE))) {
                       cleanUp();
                   }
@@ -232,7 +230,7 @@ public class UiccPkcs15 extends Handler {
 
           case EVENT_LOAD_ACCF_DONE:
               if (ar.exception == null && ar.result != null) {
-                  parseAccf((String)ar.result);
+                  parseAccf((byte[])ar.result);
               }
               // We are done here, no more file to read
               cleanUp();
@@ -257,47 +255,47 @@ public class UiccPkcs15 extends Handler {
     }
 
     // Constants defined in specs, needed for parsing
-    private static final String CARRIER_RULE_AID = "FFFFFFFFFFFF"; // AID for carrier privilege rule
+    // AID for carrier privilege rule
+    private static final byte[] CARRIER_RULE_AID = IccUtils.hexStringToBytes("FFFFFFFFFFFF");
     private static final String ID_ACRF = "4300";
-    private static final String TAG_ASN_SEQUENCE = "30";
-    private static final String TAG_ASN_OCTET_STRING = "04";
-    private static final String TAG_TARGET_AID = "A0";
+    private static final int TAG_ASN_SEQUENCE = 0x30;
+    private static final int TAG_ASN_OCTET_STRING = 0x04;
+    private static final int TAG_TARGET_AID = 0xA0;
 
     // parse ACRF file to get file id for ACCF file
-    // data is hex string, return file id if parse success, null otherwise
-    private String parseAcrf(String data) {
+    // return file id as hex string if parse success, null otherwise
+    private String parseAcrf(byte[] data) {
         String ret = null;
 
-        String acRules = data;
-        while (!acRules.isEmpty()) {
-            TLV tlvRule = new TLV(TAG_ASN_SEQUENCE);
+        BerTlvDecoder acRules = new BerTlvDecoder(data);
+        while (acRules.hasNext()) {
             try {
-                acRules = tlvRule.parse(acRules, false);
-                String ruleString = tlvRule.getValue();
-                if (ruleString.startsWith(TAG_TARGET_AID)) {
-                    // rule string consists of target AID + path, example:
+                acRules.next(TAG_ASN_SEQUENCE);
+                BerTlvDecoder rule = acRules.getValueDecoder();
+                if (rule.hasNext() && rule.peekTag() == TAG_TARGET_AID) {
+                    // rule consists of target AID + path, example:
                     // [A0] 08 [04] 06 FF FF FF FF FF FF [30] 04 [04] 02 43 10
                     // bytes in [] are tags for the data
-                    TLV tlvTarget = new TLV(TAG_TARGET_AID); // A0
-                    TLV tlvAid = new TLV(TAG_ASN_OCTET_STRING); // 04
-                    TLV tlvAsnPath = new TLV(TAG_ASN_SEQUENCE); // 30
-                    TLV tlvPath = new TLV(TAG_ASN_OCTET_STRING);  // 04
-
-                    // populate tlvTarget.value with aid data,
-                    // ruleString has remaining data for path
-                    ruleString = tlvTarget.parse(ruleString, false);
-                    // parse tlvTarget.value to get actual strings for AID.
-                    // no other tags expected so shouldConsumeAll is true.
-                    tlvAid.parse(tlvTarget.getValue(), true);
-
-                    if (CARRIER_RULE_AID.equals(tlvAid.getValue())) {
-                        tlvAsnPath.parse(ruleString, true);
-                        tlvPath.parse(tlvAsnPath.getValue(), true);
-                        ret = tlvPath.getValue();
+                    rule.next(); // A0
+                    // no other tags expected in target AID and path.
+                    BerTlvDecoder aid = rule.getValueDecoder();
+                    aid.next(TAG_ASN_OCTET_STRING); // 04
+                    if (aid.hasNext()) {
+                        throw new IllegalArgumentException("Did not consume all.");
+                    }
+
+                    if (aid.valueEquals(CARRIER_RULE_AID)) {
+                        rule.next(TAG_ASN_SEQUENCE); // 30
+                        BerTlvDecoder path = rule.getValueDecoder();
+                        path.next(TAG_ASN_OCTET_STRING); // 04
+                        if (rule.hasNext() || path.hasNext()) {
+                            throw new IllegalArgumentException("Did not consume all.");
+                        }
+                        ret = IccUtils.bytesToHexString(path.getValue()).toUpperCase(Locale.US);
                     }
                 }
                 continue; // skip current rule as it doesn't have expected TAG
-            } catch (IllegalArgumentException|IndexOutOfBoundsException ex) {
+            } catch (IllegalArgumentException ex) {
                 log("Error: " + ex);
                 break; // Bad data, ignore all remaining ACRules
             }
@@ -306,18 +304,21 @@ public class UiccPkcs15 extends Handler {
     }
 
     // parse ACCF and add to mRules
-    private void parseAccf(String data) {
-        String acCondition = data;
-        while (!acCondition.isEmpty()) {
-            TLV tlvCondition = new TLV(TAG_ASN_SEQUENCE);
-            TLV tlvCert = new TLV(TAG_ASN_OCTET_STRING);
+    private void parseAccf(byte[] data) {
+        BerTlvDecoder acCondition = new BerTlvDecoder(data);
+        while (acCondition.hasNext()) {
             try {
-                acCondition = tlvCondition.parse(acCondition, false);
-                tlvCert.parse(tlvCondition.getValue(), true);
-                if (!tlvCert.getValue().isEmpty()) {
-                    mRules.add(tlvCert.getValue());
+                acCondition.next(TAG_ASN_SEQUENCE);
+                BerTlvDecoder cert = acCondition.getValueDecoder();
+                cert.next(TAG_ASN_OCTET_STRING);
+                if (cert.hasNext()) {
+                    throw new IllegalArgumentException("Did not consume all.");
+                }
+                if (cert.getValueLength() > 0) {
+                    mRules.add(IccUtils.bytesToHexString(cert.getValue())
+                            .toUpperCase(Locale.US));
                 }
-            } catch (IllegalArgumentException|IndexOutOfBoundsException ex) {
+            } catch (IllegalArgumentException ex) {
                 log("Error: " + ex);
                 break; // Bad data, ignore all remaining acCondition data
             }
@@ -25,6 +25,7 @@ import com.google.android.mms.InvalidHeaderValueException;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -90,6 +91,11 @@ public class PduParser {
      */
     private final boolean mParseContentDisposition;
 
+    /**
+     * Whether part data are views into the pdu data instead of copies
+     */
+    private final boolean mSlicePartData;
+
     /**
      * Constructor.
      *
@@ -97,8 +103,58 @@ public class PduParser {
      * @param parseContentDisposition whether to parse the Content-Disposition part header
      */
     public PduParser(byte[] pduDataStream, boolean parseContentDisposition) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        this(pduDataStream, parseContentDisposition, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * When slicePartData is set, the data of binary parts (including the parts
+     * nested in multipart/alternative parts) are read-only views into
+     * pduDataStream, see {@link PduPart#getDataBuffer}. They are only copied
+     * when {@link PduPart#getData} is called, so parts that are never accessed
+     * are never copied. pduDataStream must not be modified afterwards.
+     *
+     * @param pduDataStream pdu data to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     * @param slicePartData whether part data are views into pduDataStream
+     */
+    public PduParser(byte[] pduDataStream, boolean parseContentDisposition,
+            boolean slicePartData) {
+        mPduDataStream = new SliceableInputStream(pduDataStream);
         mParseContentDisposition = parseContentDisposition;
+        mSlicePartData = slicePartData;
+    }
+
+    /**
+     * Pdu data input stream that can hand out views of its data.
+     */
+    private static class SliceableInputStream extends ByteArrayInputStream {
+        SliceableInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        SliceableInputStream(byte[] buf, int offset, int length) {
+            super(buf, offset, length);
+        }
+
+        /**
+         * Return a view of the next length bytes and skip them.
+         */
+        ByteBuffer slice(int length) {
+            ByteBuffer slice = ByteBuffer.wrap(buf, pos, length).slice();
+            pos += length;
+            return slice;
+        }
+
+        /**
+         * Return a stream over the next length bytes and skip them.
+         */
+        SliceableInputStream subStream(int length) {
+            SliceableInputStream subStream = new SliceableInputStream(buf, pos, length);
+            pos += length;
+            return subStream;
+        }
     }
 
     /**
@@ -897,19 +953,38 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
+                // Truncated parts are read the old way, padded with zeros
+                SliceableInputStream sliceable = null;
+                if (mSlicePartData && (pduDataStream instanceof SliceableInputStream)
+                        && (dataLength <= pduDataStream.available())) {
+                    sliceable = (SliceableInputStream) pduDataStream;
+                }
+                byte[] partDataEncoding = part.getContentTransferEncoding();
+                String encoding = (null == partDataEncoding) ? null : new String(partDataEncoding);
                 if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    ByteArrayInputStream childStream;
+                    if (null != sliceable) {
+                        childStream = sliceable.subStream(dataLength);
+                    } else {
+                        byte[] partData = new byte[dataLength];
+                        pduDataStream.read(partData, 0, dataLength);
+                        childStream = new ByteArrayInputStream(partData);
+                    }
+                    PduBody childBody = parseParts(childStream);
                     // take the first part of children.
                     part = childBody.getPart(0);
+                } else if ((null != sliceable)
+                        && !PduPart.P_BASE64.equalsIgnoreCase(encoding)
+                        && !PduPart.P_QUOTED_PRINTABLE.equalsIgnoreCase(encoding)) {
+                    // "binary" part data need no decoding, keep a view of them.
+                    part.setDataBuffer(sliceable.slice(dataLength));
                 } else {
+                    byte[] partData = new byte[dataLength];
+                    pduDataStream.read(partData, 0, dataLength);
                     // Check Content-Transfer-Encoding.
-                    byte[] partDataEncoding = part.getContentTransferEncoding();
-                    if (null != partDataEncoding) {
-                        String encoding = new String(partDataEncoding);
+                    if (null != encoding) {
                         if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
                             // Decode "base64" into "binary".
                             partData = Base64.decodeBase64(partData);
@@ -1320,8 +1395,7 @@ public class PduParser {
      */
     protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
         assert(null != pduDataStream);
-        byte[] area = new byte[length];
-        int readLen = pduDataStream.read(area, 0, length);
+        int readLen = (int) pduDataStream.skip(length);
         if (readLen < length) { //The actually read length is lower than the length
             return -1;
         } else {
@@ -1698,8 +1772,7 @@ public class PduParser {
                                 thisEndPos = pduDataStream.available();
                                 if (thisStartPos - thisEndPos < len) {
                                     int last = len - (thisStartPos - thisEndPos);
-                                    byte[] temp = new byte[last];
-                                    pduDataStream.read(temp, 0, last);
+                                    pduDataStream.skip(last);
                                 }
                             }
 
@@ -19,6 +19,7 @@ package com.google.android.mms.pdu;
 
 import android.net.Uri;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -119,6 +120,12 @@ public class PduPart {
       */
      private byte[] mPartData = null;
 
+     /**
+      * Part data as a read-only view into a larger buffer, used instead of
+      * mPartData until the data are copied out.
+      */
+     private ByteBuffer mPartDataBuffer = null;
+
      private static final String TAG = "PduPart";
 
      /**
@@ -140,6 +147,38 @@ public class PduPart {
 
          mPartData = new byte[data.length];
          System.arraycopy(data, 0, mPartData, 0, data.length);
+         mPartDataBuffer = null;
+     }
+
+     /**
+      * Set part data as a view into a larger buffer, such as the pdu being
+      * parsed. The data are not copied, so the content of the buffer must
+      * not be modified afterwards.
+      *
+      * @param data the remaining bytes of the buffer are the part data
+      */
+     public void setDataBuffer(ByteBuffer data) {
+         if(data == null) {
+            return;
+        }
+
+         mPartDataBuffer = data.slice().asReadOnlyBuffer();
+         mPartData = null;
+     }
+
+     /**
+      * @return A read-only view of the part data, without copying them, or
+      *         null if the data wasn't set or the data is stored as Uri.
+      * @see #getData
+      */
+     public ByteBuffer getDataBuffer() {
+         if (mPartDataBuffer != null) {
+             return mPartDataBuffer.duplicate();
+         }
+         if (mPartData != null) {
+             return ByteBuffer.wrap(mPartData).asReadOnlyBuffer();
+         }
+         return null;
      }
 
      /**
@@ -148,6 +187,11 @@ public class PduPart {
       * @see #getDataUri
       */
      public byte[] getData() {
+         if (mPartDataBuffer != null) {
+             byte[] byteArray = new byte[mPartDataBuffer.remaining()];
+             mPartDataBuffer.duplicate().get(byteArray);
+             return byteArray;
+         }
          if(mPartData == null) {
             return null;
          }
@@ -161,7 +205,9 @@ public class PduPart {
      * @return The length of the data, if this object have data, else 0.
      */
      public int getDataLength() {
-         if(mPartData != null){
+         if (mPartDataBuffer != null) {
+             return mPartDataBuffer.remaining();
+         } else if(mPartData != null){
              return mPartData.length;
          } else {
              return 0;
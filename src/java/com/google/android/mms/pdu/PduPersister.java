@@ -529,25 +529,16 @@ public class PduPersister {
         PduCacheEntry cacheEntry = null;
         int msgBox = 0;
         long threadId = -1;
+        // Only wait for an update of this uri, loads of other messages go on
+        // in parallel. Once done, tell the cache to indicate to other callers
+        // that this item is currently being updated.
+        PduCache.Update update = PDU_CACHE_INSTANCE.beginUpdate(uri);
         try {
-            synchronized(PDU_CACHE_INSTANCE) {
-                if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, "load: " + uri + " blocked by isUpdating()");
-                    }
-                    try {
-                        PDU_CACHE_INSTANCE.wait();
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "load: ", e);
-                    }
-                    cacheEntry = PDU_CACHE_INSTANCE.get(uri);
-                    if (cacheEntry != null) {
-                        return cacheEntry.getPdu();
-                    }
+            if (update.waited()) {
+                cacheEntry = PDU_CACHE_INSTANCE.get(uri);
+                if (cacheEntry != null) {
+                    return cacheEntry.getPdu();
                 }
-                // Tell the cache to indicate to other callers that this item
-                // is currently being updated.
-                PDU_CACHE_INSTANCE.setUpdating(uri, true);
             }
 
             Cursor c = SqliteWrapper.query(mContext, mContentResolver, uri,
@@ -666,16 +657,13 @@ public class PduPersister {
                         "Unrecognized PDU type: " + Integer.toHexString(msgType));
             }
         } finally {
-            synchronized(PDU_CACHE_INSTANCE) {
-                if (pdu != null) {
-                    assert(PDU_CACHE_INSTANCE.get(uri) == null);
-                    // Update the cache entry with the real info
-                    cacheEntry = new PduCacheEntry(pdu, msgBox, threadId);
-                    PDU_CACHE_INSTANCE.put(uri, cacheEntry);
-                }
-                PDU_CACHE_INSTANCE.setUpdating(uri, false);
-                PDU_CACHE_INSTANCE.notifyAll(); // tell anybody waiting on this entry to go ahead
+            if (pdu != null) {
+                // Update the cache entry with the real info
+                cacheEntry = new PduCacheEntry(pdu, msgBox, threadId);
+                PDU_CACHE_INSTANCE.put(uri, cacheEntry);
             }
+            // tell anybody waiting on this entry to go ahead
+            PDU_CACHE_INSTANCE.endUpdate(uri, update);
         }
         return pdu;
     }
@@ -983,20 +971,9 @@ public class PduPersister {
      * @throws MmsException Bad URI or updating failed.
      */
     public void updateHeaders(Uri uri, SendReq sendReq) {
-        synchronized(PDU_CACHE_INSTANCE) {
-            // If the cache item is getting updated, wait until it's done updating before
-            // purging it.
-            if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                if (LOCAL_LOGV) {
-                    Log.v(TAG, "updateHeaders: " + uri + " blocked by isUpdating()");
-                }
-                try {
-                    PDU_CACHE_INSTANCE.wait();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "updateHeaders: ", e);
-                }
-            }
-        }
+        // If the cache item is getting updated, wait until it's done updating before
+        // purging it.
+        PDU_CACHE_INSTANCE.awaitUpdate(uri);
         PDU_CACHE_INSTANCE.purge(uri);
 
         ContentValues values = new ContentValues(10);
@@ -1151,26 +1128,16 @@ public class PduPersister {
      */
     public void updateParts(Uri uri, PduBody body, HashMap<Uri, InputStream> preOpenedFiles)
             throws MmsException {
+        // Wait for an update of this uri only, then tell the cache to indicate
+        // to other callers that this item is currently being updated.
+        PduCache.Update update = PDU_CACHE_INSTANCE.beginUpdate(uri);
         try {
             PduCacheEntry cacheEntry;
-            synchronized(PDU_CACHE_INSTANCE) {
-                if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, "updateParts: " + uri + " blocked by isUpdating()");
-                    }
-                    try {
-                        PDU_CACHE_INSTANCE.wait();
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "updateParts: ", e);
-                    }
-                    cacheEntry = PDU_CACHE_INSTANCE.get(uri);
-                    if (cacheEntry != null) {
-                        ((MultimediaMessagePdu) cacheEntry.getPdu()).setBody(body);
-                    }
+            if (update.waited()) {
+                cacheEntry = PDU_CACHE_INSTANCE.get(uri);
+                if (cacheEntry != null) {
+                    ((MultimediaMessagePdu) cacheEntry.getPdu()).setBody(body);
                 }
-                // Tell the cache to indicate to other callers that this item
-                // is currently being updated.
-                PDU_CACHE_INSTANCE.setUpdating(uri, true);
             }
 
             ArrayList<PduPart> toBeCreated = new ArrayList<PduPart>();
@@ -1217,10 +1184,7 @@ public class PduPersister {
                 updatePart(e.getKey(), e.getValue(), preOpenedFiles);
             }
         } finally {
-            synchronized(PDU_CACHE_INSTANCE) {
-                PDU_CACHE_INSTANCE.setUpdating(uri, false);
-                PDU_CACHE_INSTANCE.notifyAll();
-            }
+            PDU_CACHE_INSTANCE.endUpdate(uri, update);
         }
     }
 
@@ -1258,20 +1222,9 @@ public class PduPersister {
                     + "content://mms/drafts, content://mms/outbox, "
                     + "content://mms/temp.");
         }
-        synchronized(PDU_CACHE_INSTANCE) {
-            // If the cache item is getting updated, wait until it's done updating before
-            // purging it.
-            if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                if (LOCAL_LOGV) {
-                    Log.v(TAG, "persist: " + uri + " blocked by isUpdating()");
-                }
-                try {
-                    PDU_CACHE_INSTANCE.wait();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "persist1: ", e);
-                }
-            }
-        }
+        // If the cache item is getting updated, wait until it's done updating before
+        // purging it.
+        PDU_CACHE_INSTANCE.awaitUpdate(uri);
         PDU_CACHE_INSTANCE.purge(uri);
 
         PduHeaders header = pdu.getPduHeaders();
@@ -19,7 +19,8 @@ package com.google.android.mms.util;
 
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 public abstract class AbstractCache<K, V> {
     private static final String TAG = "AbstractCache";
@@ -28,10 +29,102 @@ public abstract class AbstractCache<K, V> {
 
     private static final int MAX_CACHED_ITEMS  = 500;
 
-    private final HashMap<K, CacheEntry<V>> mCacheMap;
+    /**
+     * Decides which cached entry to evict when the cache is full.
+     */
+    public interface EvictionPolicy<K, V> {
+        /**
+         * @param value the value to be cached
+         * @return the weight of the value, counted against the capacity of the cache
+         */
+        int weigh(V value);
+
+        /**
+         * @param entries the cached entries, from the least to the most recently used
+         * @return the entry to evict
+         */
+        CacheEntry<K, V> selectVictim(Iterator<CacheEntry<K, V>> entries);
+    }
+
+    /**
+     * Evicts the least recently used entry. Every entry weighs 1.
+     */
+    public static class LruPolicy<K, V> implements EvictionPolicy<K, V> {
+        @Override
+        public int weigh(V value) {
+            return 1;
+        }
+
+        @Override
+        public CacheEntry<K, V> selectVictim(Iterator<CacheEntry<K, V>> entries) {
+            return entries.next();
+        }
+    }
+
+    /**
+     * Evicts the least hit entry, or the least recently used one among the
+     * least hit entries. Every entry weighs 1.
+     */
+    public static class LfuPolicy<K, V> implements EvictionPolicy<K, V> {
+        @Override
+        public int weigh(V value) {
+            return 1;
+        }
+
+        @Override
+        public CacheEntry<K, V> selectVictim(Iterator<CacheEntry<K, V>> entries) {
+            CacheEntry<K, V> victim = entries.next();
+            while (victim.hit > 0 && entries.hasNext()) {
+                CacheEntry<K, V> entry = entries.next();
+                if (entry.hit < victim.hit) {
+                    victim = entry;
+                }
+            }
+            return victim;
+        }
+    }
+
+    // Iteration order is the access order, least recently used first
+    private final LinkedHashMap<K, CacheEntry<K, V>> mCacheMap;
+
+    // No eviction when null: new entries are refused once the cache is full
+    private EvictionPolicy<K, V> mPolicy;
+    private long mCapacity;
+    private long mWeight;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
 
     protected AbstractCache() {
-        mCacheMap = new HashMap<K, CacheEntry<V>>();
+        this(null, MAX_CACHED_ITEMS);
+    }
+
+    /**
+     * @param policy the eviction policy, or null to refuse new entries once the cache is full
+     * @param capacity the maximum total weight of the cached values
+     */
+    protected AbstractCache(EvictionPolicy<K, V> policy, long capacity) {
+        mCacheMap = new LinkedHashMap<K, CacheEntry<K, V>>(16, 0.75f, true /* accessOrder */);
+        mPolicy = policy;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Change the eviction policy and capacity, evicting entries as needed.
+     *
+     * @param policy the eviction policy, or null to refuse new entries once the cache is full
+     * @param capacity the maximum total weight of the cached values
+     */
+    public void setEvictionPolicy(EvictionPolicy<K, V> policy, long capacity) {
+        mPolicy = policy;
+        mCapacity = capacity;
+        mWeight = 0;
+        for (CacheEntry<K, V> entry : mCacheMap.values()) {
+            entry.weight = weigh(entry.value);
+            mWeight += entry.weight;
+        }
+        evict(0);
     }
 
     public boolean put(K key, V value) {
@@ -39,19 +132,25 @@ public abstract class AbstractCache<K, V> {
             Log.v(TAG, "Trying to put " + key + " into cache.");
         }
 
-        if (mCacheMap.size() >= MAX_CACHED_ITEMS) {
-            // TODO Should remove the oldest or least hit cached entry
-            // and then cache the new one.
-            if (LOCAL_LOGV) {
-                Log.v(TAG, "Failed! size limitation reached.");
+        if (key != null) {
+            CacheEntry<K, V> oldEntry = mCacheMap.remove(key);
+            if (oldEntry != null) {
+                mWeight -= oldEntry.weight;
             }
-            return false;
-        }
 
-        if (key != null) {
-            CacheEntry<V> cacheEntry = new CacheEntry<V>();
+            int weight = weigh(value);
+            if (!evict(weight)) {
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "Failed! size limitation reached.");
+                }
+                return false;
+            }
+
+            CacheEntry<K, V> cacheEntry = new CacheEntry<K, V>(key);
             cacheEntry.value = value;
+            cacheEntry.weight = weight;
             mCacheMap.put(key, cacheEntry);
+            mWeight += weight;
 
             if (LOCAL_LOGV) {
                 Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
@@ -67,15 +166,17 @@ public abstract class AbstractCache<K, V> {
         }
 
         if (key != null) {
-            CacheEntry<V> cacheEntry = mCacheMap.get(key);
+            CacheEntry<K, V> cacheEntry = mCacheMap.get(key);
             if (cacheEntry != null) {
                 cacheEntry.hit++;
+                mHitCount++;
                 if (LOCAL_LOGV) {
                     Log.v(TAG, key + " hit " + cacheEntry.hit + " times.");
                 }
                 return cacheEntry.value;
             }
         }
+        mMissCount++;
         return null;
     }
 
@@ -84,7 +185,10 @@ public abstract class AbstractCache<K, V> {
             Log.v(TAG, "Trying to purge " + key);
         }
 
-        CacheEntry<V> v = mCacheMap.remove(key);
+        CacheEntry<K, V> v = mCacheMap.remove(key);
+        if (v != null) {
+            mWeight -= v.weight;
+        }
 
         if (LOCAL_LOGV) {
             Log.v(TAG, mCacheMap.size() + " items cached.");
@@ -99,14 +203,105 @@ public abstract class AbstractCache<K, V> {
                     + " items dropped.");
         }
         mCacheMap.clear();
+        mWeight = 0;
     }
 
     public int size() {
         return mCacheMap.size();
     }
 
-    private static class CacheEntry<V> {
+    /**
+     * @return the total weight of the cached values
+     */
+    public long getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * @return the number of successful lookups
+     */
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of lookups that found nothing
+     */
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of entries evicted to make room for new ones
+     */
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Called when an entry was evicted to make room for another one.
+     *
+     * @param key the key of the evicted entry
+     * @param value the value of the evicted entry
+     */
+    protected void onEvicted(K key, V value) {
+    }
+
+    private int weigh(V value) {
+        return (mPolicy != null) ? mPolicy.weigh(value) : 1;
+    }
+
+    /**
+     * Evict entries until there is room for the given weight.
+     *
+     * @return false if there is no room
+     */
+    private boolean evict(int weight) {
+        if (weight > mCapacity) {
+            return false;
+        }
+        while (mWeight + weight > mCapacity) {
+            if (mPolicy == null || mCacheMap.isEmpty()) {
+                return false;
+            }
+            CacheEntry<K, V> victim = mPolicy.selectVictim(mCacheMap.values().iterator());
+            mCacheMap.remove(victim.key);
+            mWeight -= victim.weight;
+            mEvictionCount++;
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "Evicted " + victim.key + ", hit " + victim.hit + " times.");
+            }
+            onEvicted(victim.key, victim.value);
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{size=" + mCacheMap.size() + " weight=" + mWeight
+                + "/" + mCapacity + " hits=" + mHitCount + " misses=" + mMissCount
+                + " evictions=" + mEvictionCount + "}";
+    }
+
+    public static class CacheEntry<K, V> {
+        final K key;
         int hit;
+        int weight;
         V value;
+
+        CacheEntry(K key) {
+            this.key = key;
+        }
+
+        /**
+         * @return the number of times the entry was looked up
+         */
+        public int getHitCount() {
+            return hit;
+        }
+
+        public V getValue() {
+            return value;
+        }
     }
 }
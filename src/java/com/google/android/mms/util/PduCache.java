@@ -23,8 +23,16 @@ import android.net.Uri;
 import android.provider.Telephony.Mms;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.MultimediaMessagePdu;
+import com.google.android.mms.pdu.PduBody;
+
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private static final String TAG = "PduCache";
@@ -47,8 +55,46 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private static final UriMatcher URI_MATCHER;
     private static final HashMap<Integer, Integer> MATCH_TO_MSGBOX_ID_MAP;
 
+    /**
+     * Default capacity, in number of cached pdus.
+     */
+    @VisibleForTesting
+    static final int MAX_CACHED_PDUS = 500;
+
     private static PduCache sInstance;
 
+    /**
+     * Evicts the least recently used pdu, weighing pdus by the bytes of their
+     * body, for use with a capacity in bytes.
+     */
+    public static class MemoryWeightedPolicy implements EvictionPolicy<Uri, PduCacheEntry> {
+        /**
+         * Rough size of a pdu without its body: headers, entry and bookkeeping.
+         */
+        private static final int PDU_OVERHEAD_BYTES = 1024;
+
+        @Override
+        public int weigh(PduCacheEntry entry) {
+            int weight = PDU_OVERHEAD_BYTES;
+            GenericPdu pdu = entry.getPdu();
+            if (pdu instanceof MultimediaMessagePdu) {
+                PduBody body = ((MultimediaMessagePdu) pdu).getBody();
+                if (body != null) {
+                    for (int i = 0; i < body.getPartsNum(); i++) {
+                        weight += body.getPart(i).getDataLength();
+                    }
+                }
+            }
+            return weight;
+        }
+
+        @Override
+        public CacheEntry<Uri, PduCacheEntry> selectVictim(
+                Iterator<CacheEntry<Uri, PduCacheEntry>> entries) {
+            return entries.next();
+        }
+    }
+
     static {
         URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
         URI_MATCHER.addURI("mms", null,         MMS_ALL);
@@ -73,12 +119,35 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
 
     private final HashMap<Integer, HashSet<Uri>> mMessageBoxes;
     private final HashMap<Long, HashSet<Uri>> mThreads;
-    private final HashSet<Uri> mUpdating;
+
+    /**
+     * Uris being updated, each with the update of its owner.
+     * Kept out of the cache lock so that waiting for one uri never blocks
+     * callers working on other uris.
+     */
+    private final ConcurrentHashMap<Uri, Update> mUpdating;
+
+    /**
+     * The update of a uri by one caller, returned by {@link #beginUpdate} and
+     * handed back to {@link #endUpdate} by its owner.
+     */
+    public static final class Update {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private boolean mWaited;
+
+        /**
+         * @return true if the owner had to wait for another update to finish.
+         */
+        public boolean waited() {
+            return mWaited;
+        }
+    }
 
     private PduCache() {
+        super(new LruPolicy<Uri, PduCacheEntry>(), MAX_CACHED_PDUS);
         mMessageBoxes = new HashMap<Integer, HashSet<Uri>>();
         mThreads = new HashMap<Long, HashSet<Uri>>();
-        mUpdating = new HashSet<Uri>();
+        mUpdating = new ConcurrentHashMap<Uri, Update>();
     }
 
     synchronized public static final PduCache getInstance() {
@@ -113,20 +182,129 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
             msgBox.add(finalKey);
             thread.add(finalKey);
         }
-        setUpdating(uri, false);
         return result;
     }
 
-    synchronized public void setUpdating(Uri uri, boolean updating) {
+    @Override
+    synchronized public PduCacheEntry get(Uri uri) {
+        return super.get(uri);
+    }
+
+    @Override
+    synchronized public void setEvictionPolicy(EvictionPolicy<Uri, PduCacheEntry> policy,
+            long capacity) {
+        super.setEvictionPolicy(policy, capacity);
+    }
+
+    @Override
+    protected void onEvicted(Uri key, PduCacheEntry entry) {
+        removeFromThreads(key, entry);
+        removeFromMessageBoxes(key, entry);
+    }
+
+    /**
+     * @return the number of cached uris indexed in a message box
+     */
+    @VisibleForTesting
+    synchronized int getMessageBoxSize(int msgBoxId) {
+        HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
+        return (msgBox != null) ? msgBox.size() : 0;
+    }
+
+    @Override
+    synchronized public String toString() {
+        return super.toString();
+    }
+
+    /**
+     * Mark a uri as being updated, or not, without waiting for other updates
+     * and without owning the update: ending it ends whichever update is going on.
+     * Callers that wait on the cache itself are notified when the update ends.
+     */
+    public void setUpdating(Uri uri, boolean updating) {
         if (updating) {
-            mUpdating.add(uri);
+            mUpdating.putIfAbsent(uri, new Update());
         } else {
-            mUpdating.remove(uri);
+            Update update = mUpdating.remove(uri);
+            if (update != null) {
+                update.mDone.countDown();
+            }
+            synchronized (this) {
+                notifyAll();
+            }
         }
     }
 
-    synchronized public boolean isUpdating(Uri uri) {
-        return mUpdating.contains(uri);
+    public boolean isUpdating(Uri uri) {
+        return mUpdating.containsKey(uri);
+    }
+
+    /**
+     * Wait until nobody else is updating a uri, then mark it as being updated
+     * by the caller. Only callers working on the same uri are blocked.
+     * An interrupted caller keeps waiting, then returns with its interrupt
+     * status set.
+     *
+     * @param uri The uri to be updated.
+     * @return the update, to be passed to {@link #endUpdate} once done.
+     */
+    public Update beginUpdate(Uri uri) {
+        Update update = new Update();
+        boolean interrupted = false;
+        Update other;
+        while ((other = mUpdating.putIfAbsent(uri, update)) != null) {
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "beginUpdate: " + uri + " blocked by another update");
+            }
+            update.mWaited = true;
+            try {
+                other.mDone.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return update;
+    }
+
+    /**
+     * Wait until nobody is updating a uri.
+     *
+     * @param uri The uri to wait for.
+     * @return true if the caller had to wait for an update to finish.
+     */
+    public boolean awaitUpdate(Uri uri) {
+        Update update = mUpdating.get(uri);
+        if (update == null) {
+            return false;
+        }
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "awaitUpdate: " + uri + " blocked by another update");
+        }
+        try {
+            update.mDone.await();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "awaitUpdate: ", e);
+        }
+        return true;
+    }
+
+    /**
+     * Mark the end of an update of a uri and release whoever waits for it,
+     * including callers that wait on the cache itself, as with
+     * {@link #setUpdating}. Has no effect on the update of another owner.
+     *
+     * @param uri The uri that was updated.
+     * @param update The update returned by {@link #beginUpdate}.
+     */
+    public void endUpdate(Uri uri, Update update) {
+        mUpdating.remove(uri, update);
+        update.mDone.countDown();
+        synchronized (this) {
+            notifyAll();
+        }
     }
 
     @Override
@@ -161,7 +339,6 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     }
 
     private PduCacheEntry purgeSingleEntry(Uri key) {
-        mUpdating.remove(key);
         PduCacheEntry entry = super.purge(key);
         if (entry != null) {
             removeFromThreads(key, entry);
@@ -177,7 +354,6 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
 
         mMessageBoxes.clear();
         mThreads.clear();
-        mUpdating.clear();
     }
 
     /**
@@ -218,7 +394,6 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
             HashSet<Uri> msgBox = mMessageBoxes.remove(msgBoxId);
             if (msgBox != null) {
                 for (Uri key : msgBox) {
-                    mUpdating.remove(key);
                     PduCacheEntry entry = super.purge(key);
                     if (entry != null) {
                         removeFromThreads(key, entry);
@@ -243,7 +418,6 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         HashSet<Uri> thread = mThreads.remove(threadId);
         if (thread != null) {
             for (Uri key : thread) {
-                mUpdating.remove(key);
                 PduCacheEntry entry = super.purge(key);
                 if (entry != null) {
                     removeFromMessageBoxes(key, entry);
@@ -253,7 +427,7 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     }
 
     private void removeFromMessageBoxes(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> msgBox = mThreads.get(Long.valueOf(entry.getMessageBox()));
+        HashSet<Uri> msgBox = mMessageBoxes.get(entry.getMessageBox());
         if (msgBox != null) {
             msgBox.remove(key);
         }
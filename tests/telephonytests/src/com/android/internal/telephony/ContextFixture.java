@@ -460,6 +460,11 @@ public class ContextFixture implements TestFixture<Context> {
             return mSharedPreferences;
         }
 
+        @Override
+        public Context createDeviceProtectedStorageContext() {
+            return this;
+        }
+
         @Override
         public String getPackageName() {
             return "com.android.internal.telephony";
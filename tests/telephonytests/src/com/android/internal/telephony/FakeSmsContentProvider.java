@@ -87,6 +87,13 @@ public class FakeSmsContentProvider extends MockContentProvider {
         return Uri.parse("content://raw/" + rowId);
     }
 
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values,
+                      @Nullable String selection, @Nullable String[] selectionArgs) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.update(RAW_TABLE_NAME, values, selection, selectionArgs);
+    }
+
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection,
                       @Nullable String[] selectionArgs) {
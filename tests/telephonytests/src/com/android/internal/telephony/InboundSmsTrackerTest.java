@@ -16,8 +16,14 @@
 
 package com.android.internal.telephony;
 
+import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.provider.Telephony;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
 import com.android.internal.util.HexDump;
 
@@ -48,14 +54,18 @@ public class InboundSmsTrackerTest {
     }
 
     public static MatrixCursor createFakeCursor() {
+        return createFakeCursor(HexDump.toHexString(FAKE_PDU));
+    }
+
+    private static MatrixCursor createFakeCursor(Object pdu) {
         MatrixCursor mc = new MatrixCursor(
                 new String[]{"pdu", "seq", "dest", "date", "ref", "cnt", "addr", "id", "msg_body",
                         "display_originating_addr"});
-        mc.addRow(new Object[]{HexDump.toHexString(FAKE_PDU),
+        mc.addRow(new Object[]{pdu,
                 FAKE_SEQUENCE_NUMBER, FAKE_DEST_PORT, FAKE_TIMESTAMP,
                 FAKE_REFERENCE_NUMBER, FAKE_MESSAGE_COUNT, FAKE_ADDRESS, 1, FAKE_MESSAGE_BODY,
                 FAKE_DISPLAY_ADDRESS});
-        mc.addRow(new Object[]{HexDump.toHexString(FAKE_PDU),
+        mc.addRow(new Object[]{pdu,
                 FAKE_SEQUENCE_NUMBER, FAKE_DEST_PORT, FAKE_TIMESTAMP,
                 FAKE_REFERENCE_NUMBER, FAKE_MESSAGE_COUNT, FAKE_ADDRESS, 2, FAKE_MESSAGE_BODY,
                 FAKE_DISPLAY_ADDRESS});
@@ -91,4 +101,119 @@ public class InboundSmsTrackerTest {
         mInboundSmsTracker = new InboundSmsTracker(createFakeCursor(), false);
         testInitialization();
     }
-}
\ No newline at end of file
+
+    @Test
+    @SmallTest
+    public void testInitializationFromDbBinaryPdu() {
+        mInboundSmsTracker = new InboundSmsTracker(createFakeCursor(FAKE_PDU), false);
+        testInitialization();
+    }
+
+    @Test
+    @SmallTest
+    public void testContentValuesPduFormat() {
+        Object pdu = mInboundSmsTracker.getContentValues().get("pdu");
+        if (InboundSmsTracker.STORE_BINARY_PDU) {
+            assertTrue(Arrays.equals(FAKE_PDU, (byte[]) pdu));
+        } else {
+            assertEquals(HexDump.toHexString(FAKE_PDU), pdu);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testMigrateRawTablePdus() {
+        FakeSmsContentProvider provider = new FakeSmsContentProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(Telephony.Sms.CONTENT_URI.getAuthority(), provider);
+        try {
+            ContentValues legacy = mInboundSmsTracker.getContentValues();
+            legacy.put("pdu", HexDump.toHexString(FAKE_PDU));
+            resolver.insert(InboundSmsHandler.sRawUri, legacy);
+            resolver.insert(InboundSmsHandler.sRawUri, legacy);
+            ContentValues binary = mInboundSmsTracker.getContentValues();
+            binary.put("pdu", FAKE_PDU);
+            resolver.insert(InboundSmsHandler.sRawUri, binary);
+
+            assertEquals(2, SmsBroadcastUndelivered.migrateRawTablePdus(resolver));
+            assertEquals(0, SmsBroadcastUndelivered.migrateRawTablePdus(resolver));
+
+            Cursor cursor = resolver.query(InboundSmsHandler.sRawUri, new String[]{"pdu"}, null,
+                    null, null);
+            assertEquals(3, cursor.getCount());
+            while (cursor.moveToNext()) {
+                assertEquals(Cursor.FIELD_TYPE_BLOB, cursor.getType(0));
+                assertTrue(Arrays.equals(FAKE_PDU, InboundSmsTracker.getPdu(cursor, 0)));
+            }
+            cursor.close();
+        } finally {
+            provider.shutdown();
+        }
+    }
+
+    /**
+     * Compares the cost of inserting the segments of concatenated messages into the raw table
+     * and reading them back for reassembly, with hex string and BLOB PDUs.
+     */
+    @Test
+    @LargeTest
+    public void testRawTablePduStorageBenchmark() {
+        final int messages = 200;
+        final int segments = 4;
+        byte[] pdu = new byte[140];
+        for (int i = 0; i < pdu.length; i++) {
+            pdu[i] = (byte) i;
+        }
+
+        long[] hexTimes = runRawTableBenchmark(messages, segments, pdu, false);
+        long[] blobTimes = runRawTableBenchmark(messages, segments, pdu, true);
+        Log.d("InboundSmsTrackerTest", "raw table, " + messages + "x" + segments
+                + " segments: hex insert=" + hexTimes[0] / 1000 + "us reassembly="
+                + hexTimes[1] / 1000 + "us, blob insert=" + blobTimes[0] / 1000
+                + "us reassembly=" + blobTimes[1] / 1000 + "us");
+    }
+
+    private static long[] runRawTableBenchmark(int messages, int segments, byte[] pdu,
+            boolean binary) {
+        FakeSmsContentProvider provider = new FakeSmsContentProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(Telephony.Sms.CONTENT_URI.getAuthority(), provider);
+        try {
+            long start = System.nanoTime();
+            for (int ref = 0; ref < messages; ref++) {
+                for (int seq = 1; seq <= segments; seq++) {
+                    ContentValues values = new InboundSmsTracker(pdu, FAKE_TIMESTAMP, -1, false,
+                            FAKE_ADDRESS, FAKE_DISPLAY_ADDRESS, ref, seq, segments, false,
+                            FAKE_MESSAGE_BODY).getContentValues();
+                    if (binary) {
+                        values.put("pdu", pdu);
+                    } else {
+                        values.put("pdu", HexDump.toHexString(pdu));
+                    }
+                    resolver.insert(InboundSmsHandler.sRawUri, values);
+                }
+            }
+            long insertTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int ref = 0; ref < messages; ref++) {
+                Cursor cursor = resolver.query(InboundSmsHandler.sRawUri,
+                        new String[]{"pdu", "sequence"}, InboundSmsTracker.SELECT_BY_REFERENCE,
+                        new String[]{FAKE_ADDRESS, Integer.toString(ref),
+                                Integer.toString(segments)}, null);
+                byte[][] pdus = new byte[segments][];
+                while (cursor.moveToNext()) {
+                    pdus[cursor.getInt(1) - 1] = InboundSmsTracker.getPdu(cursor, 0);
+                }
+                cursor.close();
+                for (byte[] segment : pdus) {
+                    assertTrue(Arrays.equals(pdu, segment));
+                }
+            }
+            long reassemblyTime = System.nanoTime() - start;
+            return new long[]{insertTime, reassemblyTime};
+        } finally {
+            provider.shutdown();
+        }
+    }
+}
@@ -24,6 +24,8 @@ import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 
 /**
  * Test cases for the IntRangeManager class.
@@ -84,18 +86,6 @@ public class IntRangeManagerTest extends AndroidTestCase {
             flags = 0;
             mConfigList.clear();
         }
-
-        /** overwrite to not call populateAllRanges, so tryAddRanges called by enable
-         * do not populate previously added ranges
-         */
-        protected boolean tryAddRanges(int startId, int endId, boolean selected) {
-
-            startUpdate();
-            //populateAllRanges();
-            // This is the new range to be enabled
-            addRange(startId, endId, selected); // adds to mConfigList
-            return finishUpdate();
-        }
     }
 
     @Test @SmallTest
@@ -138,9 +128,10 @@ public class IntRangeManagerTest extends AndroidTestCase {
         assertEquals("configlist size", 1, testManager.mConfigList.size());
         testManager.reset();
         assertTrue("disabling range", testManager.disableRange(123, 123, "client1"));
-        assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
-                testManager.flags);
-        assertEquals("configlist size", 0, testManager.mConfigList.size());
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 123, 123, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
         assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
@@ -206,13 +197,14 @@ public class IntRangeManagerTest extends AndroidTestCase {
         assertTrue("disabling range 1", testManager.disableRange(100, 200, "client1"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
         assertEquals("configlist size", 1, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 150, 250, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(0), 100, 149, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("disabling range 2", testManager.disableRange(150, 250, "client2"));
-        assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
-                testManager.flags);
-        assertEquals("configlist size", 0, testManager.mConfigList.size());
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 150, 250, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
         assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
@@ -239,8 +231,8 @@ public class IntRangeManagerTest extends AndroidTestCase {
         assertTrue("disabling range 2", testManager.disableRange(150, 250, "client2"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
         assertEquals("configlist size", 1, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 100, 200, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(0), 201, 250, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
@@ -249,9 +241,10 @@ public class IntRangeManagerTest extends AndroidTestCase {
                 SMS_CB_CODE_SCHEME_MAX, true);
         testManager.reset();
         assertTrue("disabling range 1", testManager.disableRange(100, 200, "client1"));
-        assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
-                testManager.flags);
-        assertEquals("configlist size", 0, testManager.mConfigList.size());
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 100, 200, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
     }
 
     // new [3, 6]  existing [1, 2] [5, 7]
@@ -288,11 +281,9 @@ public class IntRangeManagerTest extends AndroidTestCase {
         testManager.reset();
         assertTrue("disabling range", testManager.disableRange(3, 6, "client3"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
-        assertEquals("configlist size", 2, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 1, 2, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(1), 5, 7, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 3, 4, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
 
     }
 
@@ -342,13 +333,11 @@ public class IntRangeManagerTest extends AndroidTestCase {
         testManager.reset();
         assertTrue("disabling range 1", testManager.disableRange(67, 9999, "client1"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
-        assertEquals("configlist size", 3, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 12, 500, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(1), 8000, 9998, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(2), 50000, 65535, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        assertEquals("configlist size", 2, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 501, 7999, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+        checkConfigInfo(testManager.mConfigList.get(1), 9999, 9999, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
@@ -362,15 +351,13 @@ public class IntRangeManagerTest extends AndroidTestCase {
         testManager.reset();
         assertTrue("disabling range 4", testManager.disableRange(12, 500, "client4"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
-        assertEquals("configlist size", 4, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 25, 75, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(1), 150, 250, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(2), 8000, 9998, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(3), 50000, 65535, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        assertEquals("configlist size", 3, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 12, 24, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+        checkConfigInfo(testManager.mConfigList.get(1), 76, 149, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+        checkConfigInfo(testManager.mConfigList.get(2), 251, 500, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
@@ -386,13 +373,9 @@ public class IntRangeManagerTest extends AndroidTestCase {
         testManager.reset();
         assertTrue("disabling range 5", testManager.disableRange(8000, 9998, "client5"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
-        assertEquals("configlist size", 3, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 25, 75, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(1), 150, 250, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(2), 50000, 65535, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 8000, 9998, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
@@ -406,11 +389,9 @@ public class IntRangeManagerTest extends AndroidTestCase {
         testManager.reset();
         assertTrue("disabling range 6", testManager.disableRange(50000, 65535, "client6"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
-        assertEquals("configlist size", 2, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 25, 75, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(1), 150, 250, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 50000, 65535, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
@@ -423,8 +404,8 @@ public class IntRangeManagerTest extends AndroidTestCase {
         assertTrue("disabling range 2", testManager.disableRange(150, 250, "client2"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
         assertEquals("configlist size", 1, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 25, 75, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(0), 150, 250, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
@@ -433,9 +414,10 @@ public class IntRangeManagerTest extends AndroidTestCase {
                 SMS_CB_CODE_SCHEME_MAX, true);
         testManager.reset();
         assertTrue("disabling range 3", testManager.disableRange(25, 75, "client3"));
-        assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
-                testManager.flags);
-        assertEquals("configlist size", 0, testManager.mConfigList.size());
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 25, 75, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
         assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
@@ -474,11 +456,9 @@ public class IntRangeManagerTest extends AndroidTestCase {
         testManager.reset();
         assertTrue("disable range 3", testManager.disableRange(6, 6, "client3"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
-        assertEquals("configlist size", 2, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 3, 5, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(1), 7, 8, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 6, 6, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         // enable
         testManager.reset();
         assertTrue("enabling range 4", testManager.enableRange(6, 12, "client3"));
@@ -507,13 +487,14 @@ public class IntRangeManagerTest extends AndroidTestCase {
         assertTrue("disable range 1", testManager.disableRange(3, 5, "client1"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
         assertEquals("configlist size", 1, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 6, 12, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(0), 3, 5, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("disable range 4", testManager.disableRange(6, 12, "client3"));
-        assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
-                testManager.flags);
-        assertEquals("configlist size", 0, testManager.mConfigList.size());
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 6, 12, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
     }
 
     @Test @SmallTest
@@ -571,8 +552,8 @@ public class IntRangeManagerTest extends AndroidTestCase {
         assertTrue("disabling range 1", testManager.disableRange(1, 1, "client1"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
         assertEquals("configlist size", 1, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 2, 5, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 1, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
     }
 
     @Test @SmallTest
@@ -631,21 +612,15 @@ public class IntRangeManagerTest extends AndroidTestCase {
         testManager.reset();
         assertTrue("disabling range", testManager.disableRange(2, 2, "client1"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
-        assertEquals("configlist size", 2, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 0, 1, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(1), 3, 10, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 2, 2, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("disabling range", testManager.disableRange(9, 9, "client1"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
-        assertEquals("configlist size", 3, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 0, 1, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(1), 3, 8, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(2), 10, 10, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 9, 9, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
 
         testManager.reset();
         assertTrue("enabling range 2", testManager.enableRange(2, 2, "client1"));
@@ -771,9 +746,10 @@ public class IntRangeManagerTest extends AndroidTestCase {
         testManager.reset();
         // delete "client1"
         assertTrue("disabling range 1", testManager.disableRange(1, 1, "client1"));
-        assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
-                testManager.flags);
-        assertEquals("configlist size", 0, testManager.mConfigList.size());
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 1, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
         assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
@@ -842,19 +818,20 @@ public class IntRangeManagerTest extends AndroidTestCase {
         assertTrue("disabling range 2", testManager.disableRange(7, 15, "client2"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
         assertEquals("configlist size", 1, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 1, 10, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(0), 11, 15, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("disabling range 1", testManager.disableRange(1, 4, "client1"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
         assertEquals("configlist size", 1, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 2, 10, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 1, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("disabling range 3", testManager.disableRange(2, 10, "client3"));
-        assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
-                testManager.flags);
-        assertEquals("configlist size", 0, testManager.mConfigList.size());
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 2, 10, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
     }
 
     @Test @SmallTest
@@ -890,11 +867,13 @@ public class IntRangeManagerTest extends AndroidTestCase {
         testManager.reset();
         assertTrue("disabling range 3", testManager.disableRange(1, 10, "client3"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
-        assertEquals("configlist size", 2, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 2, 3, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(1), 5, 6, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        assertEquals("configlist size", 3, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 1, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+        checkConfigInfo(testManager.mConfigList.get(1), 4, 4, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+        checkConfigInfo(testManager.mConfigList.get(2), 7, 10, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
 
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
@@ -947,12 +926,12 @@ public class IntRangeManagerTest extends AndroidTestCase {
         assertTrue("disabling range 4", testManager.disableRange(1, 10, "client4"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
         assertEquals("configlist size", 3, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 2, 3, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(1), 5, 6, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(2), 14, 15, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 1, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+        checkConfigInfo(testManager.mConfigList.get(1), 4, 4, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+        checkConfigInfo(testManager.mConfigList.get(2), 7, 10, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
     }
 
     @Test @SmallTest
@@ -987,17 +966,18 @@ public class IntRangeManagerTest extends AndroidTestCase {
         assertTrue("disabling range 2", testManager.disableRange(5, 15, "client2"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
         assertEquals("configlist size", 1, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 1, 10, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(0), 11, 15, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("disabling range 1", testManager.disableRange(2, 3, "client1"));
         assertEquals("flags after test", 0, testManager.flags);
         assertEquals("configlist size", 0, testManager.mConfigList.size());
         testManager.reset();
         assertTrue("disabling range 3", testManager.disableRange(1, 10, "client3"));
-        assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
-                testManager.flags);
-        assertEquals("configlist size", 0, testManager.mConfigList.size());
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 10, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
     }
 
     @Test @SmallTest
@@ -1098,13 +1078,11 @@ public class IntRangeManagerTest extends AndroidTestCase {
         testManager.reset();
         assertTrue("disabling range", testManager.disableRange(2, 10, "client5"));
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
-        assertEquals("configlist size", 3, testManager.mConfigList.size());
-        checkConfigInfo(testManager.mConfigList.get(0), 1, 4, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(1), 6, 6, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
-        checkConfigInfo(testManager.mConfigList.get(2), 12, 14, SMS_CB_CODE_SCHEME_MIN,
-                SMS_CB_CODE_SCHEME_MAX, true);
+        assertEquals("configlist size", 2, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 5, 5, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+        checkConfigInfo(testManager.mConfigList.get(1), 7, 10, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
         assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
@@ -1152,13 +1130,162 @@ public class IntRangeManagerTest extends AndroidTestCase {
                 SMS_CB_CODE_SCHEME_MAX, true);
         testManager.reset();
         assertTrue("disabling range", testManager.disableRange(1, 3, "client1"));
-        assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
-                testManager.flags);
-        assertEquals("configlist size", 0, testManager.mConfigList.size());
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 3, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
         testManager.reset();
         assertTrue("updating ranges", testManager.updateRanges());
         assertEquals("flags after test", FLAG_START_UPDATE_CALLED | FLAG_FINISH_UPDATE_CALLED,
                 testManager.flags);
         assertEquals("configlist size", 0, testManager.mConfigList.size());
     }
+
+    @Test @SmallTest
+    public void testInvalidRange() {
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        assertFalse("enabling range", testManager.enableRange(10, 1, "client1"));
+        assertEquals("flags after test", 0, testManager.flags);
+        assertTrue("empty", testManager.isEmpty());
+        assertFalse("disabling range", testManager.disableRange(10, 1, "client1"));
+        assertEquals("flags after test", 0, testManager.flags);
+    }
+
+    @Test @SmallTest
+    public void testRangeAtIntegerBounds() {
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        assertTrue("enabling range 1", testManager.enableRange(Integer.MAX_VALUE - 1,
+                Integer.MAX_VALUE, "client1"));
+        assertTrue("enabling range 2", testManager.enableRange(Integer.MIN_VALUE,
+                Integer.MIN_VALUE + 1, "client1"));
+        assertTrue("enabling range 3", testManager.enableRange(1, 2, "client1"));
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 3, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), Integer.MIN_VALUE, Integer.MIN_VALUE + 1,
+                SMS_CB_CODE_SCHEME_MIN, SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(1), 1, 2, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(2), Integer.MAX_VALUE - 1, Integer.MAX_VALUE,
+                SMS_CB_CODE_SCHEME_MIN, SMS_CB_CODE_SCHEME_MAX, true);
+
+        testManager.reset();
+        assertTrue("disabling range 1", testManager.disableRange(Integer.MAX_VALUE - 1,
+                Integer.MAX_VALUE, "client1"));
+        assertTrue("disabling range 2", testManager.disableRange(Integer.MIN_VALUE,
+                Integer.MIN_VALUE + 1, "client1"));
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 2, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        assertTrue("disabling range 3", testManager.disableRange(1, 2, "client1"));
+        assertTrue("empty", testManager.isEmpty());
+    }
+
+    @Test @SmallTest
+    public void testRangeStartingAtEndOfRange() {
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        assertTrue("enabling range 1", testManager.enableRange(1, 5, "client1"));
+        testManager.reset();
+        // only the ids that are not enabled yet are sent to the radio
+        assertTrue("enabling range 2", testManager.enableRange(5, 10, "client2"));
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 6, 10, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        testManager.reset();
+        // the ranges are coalesced, not reported as overlapping ranges
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 10, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+
+        testManager.reset();
+        assertTrue("disabling range 1", testManager.disableRange(1, 5, "client1"));
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 4, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+    }
+
+    private static int indexOfRange(ArrayList<int[]> ranges, int[] range) {
+        for (int i = 0; i < ranges.size(); i++) {
+            if (Arrays.equals(ranges.get(i), range)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test @SmallTest
+    public void testManyToggles() {
+        final int maxId = 300;
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        Random random = new Random(0);
+        // client ranges enabled so far, as {startId, endId, client}
+        ArrayList<int[]> clientRanges = new ArrayList<int[]>();
+        // ids enabled on the radio, as updated by each config
+        boolean[] radio = new boolean[maxId + 1];
+        int updates = 0;
+
+        for (int i = 0; i < 5000; i++) {
+            int[] range;
+            boolean enable = clientRanges.isEmpty() || random.nextInt(5) < 3;
+            if (enable) {
+                int startId = random.nextInt(maxId + 1);
+                int endId = startId + random.nextInt(Math.min(30, maxId - startId + 1));
+                range = new int[] {startId, endId, random.nextInt(4)};
+            } else {
+                range = clientRanges.get(random.nextInt(clientRanges.size()));
+            }
+            String client = "client" + range[2];
+
+            testManager.reset();
+            if (enable) {
+                assertTrue("enabling range", testManager.enableRange(range[0], range[1], client));
+                if (indexOfRange(clientRanges, range) < 0) {
+                    clientRanges.add(range);
+                }
+            } else {
+                assertTrue("disabling range",
+                        testManager.disableRange(range[0], range[1], client));
+                clientRanges.remove(indexOfRange(clientRanges, range));
+            }
+
+            boolean[] expected = new boolean[maxId + 1];
+            for (int[] clientRange : clientRanges) {
+                Arrays.fill(expected, clientRange[0], clientRange[1] + 1, true);
+            }
+            boolean[] before = radio.clone();
+            for (SmsBroadcastConfigInfo info : testManager.mConfigList) {
+                for (int id = info.getFromServiceId(); id <= info.getToServiceId(); id++) {
+                    // only the ids that change are disabled, and no disabled id is enabled
+                    assertEquals("selected id " + id, expected[id], info.isSelected());
+                    assertTrue("id out of range " + id, id >= range[0] && id <= range[1]);
+                    if (!info.isSelected()) {
+                        assertTrue("disabled id " + id, before[id]);
+                    }
+                    radio[id] = info.isSelected();
+                }
+            }
+            assertTrue("radio ids", Arrays.equals(expected, radio));
+            if (Arrays.equals(before, radio)) {
+                // no radio update when the enabled ids do not change
+                assertEquals("flags", 0, testManager.flags);
+            } else {
+                assertEquals("flags", ALL_FLAGS_SET, testManager.flags);
+                updates++;
+            }
+        }
+        assertTrue("radio updates", updates > 0);
+
+        // a full update sends the enabled ids
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        boolean[] full = new boolean[maxId + 1];
+        for (SmsBroadcastConfigInfo info : testManager.mConfigList) {
+            assertTrue("selected", info.isSelected());
+            Arrays.fill(full, info.getFromServiceId(), info.getToServiceId() + 1, true);
+        }
+        assertTrue("full update", Arrays.equals(radio, full));
+    }
 }
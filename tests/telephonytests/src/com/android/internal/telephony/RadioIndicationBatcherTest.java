@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.RIL_UNSOL_CELL_INFO_LIST;
+import static com.android.internal.telephony.RILConstants.RIL_UNSOL_RESPONSE_CALL_STATE_CHANGED;
+import static com.android.internal.telephony.RILConstants.RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED;
+import static com.android.internal.telephony.RILConstants.RIL_UNSOL_SIGNAL_STRENGTH;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.HandlerThread;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+public class RadioIndicationBatcherTest {
+    // Long enough that the window never closes by itself during a test
+    private static final long WINDOW_MS = 60 * 1000;
+
+    private HandlerThread mHandlerThread;
+    private RadioIndicationBatcher mBatcher;
+    private final ArrayList<Integer> mDispatchedTypes = new ArrayList<>();
+    private final ArrayList<Object> mDispatchedValues = new ArrayList<>();
+
+    private final RadioIndicationBatcher.Dispatcher mDispatcher =
+            (unsolResponse, value) -> {
+                mDispatchedTypes.add(unsolResponse);
+                mDispatchedValues.add(value);
+            };
+
+    @Before
+    public void setUp() throws Exception {
+        mHandlerThread = new HandlerThread("RadioIndicationBatcherTest");
+        mHandlerThread.start();
+        mBatcher = new RadioIndicationBatcher(WINDOW_MS, mDispatcher, mHandlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quit();
+    }
+
+    @Test
+    @SmallTest
+    public void testDisabled() {
+        mBatcher = new RadioIndicationBatcher(0, mDispatcher, mHandlerThread.getLooper());
+        assertFalse(mBatcher.offer(RIL_UNSOL_SIGNAL_STRENGTH, "ss"));
+        assertEquals(0, mBatcher.getReceivedCount(RIL_UNSOL_SIGNAL_STRENGTH));
+    }
+
+    @Test
+    @SmallTest
+    public void testStateChangingIndicationNotBatched() {
+        assertFalse(mBatcher.offer(RIL_UNSOL_RESPONSE_CALL_STATE_CHANGED, null));
+    }
+
+    @Test
+    @SmallTest
+    public void testFoldToLatestValue() {
+        assertTrue(mBatcher.offer(RIL_UNSOL_SIGNAL_STRENGTH, "ss1"));
+        assertTrue(mBatcher.offer(RIL_UNSOL_SIGNAL_STRENGTH, "ss2"));
+        assertTrue(mBatcher.offer(RIL_UNSOL_SIGNAL_STRENGTH, "ss3"));
+        assertTrue(mBatcher.offer(RIL_UNSOL_CELL_INFO_LIST, "cells"));
+        assertEquals(0, mDispatchedTypes.size());
+
+        mBatcher.flush();
+
+        assertEquals(2, mDispatchedTypes.size());
+        int ssIndex = mDispatchedTypes.indexOf(RIL_UNSOL_SIGNAL_STRENGTH);
+        assertEquals("ss3", mDispatchedValues.get(ssIndex));
+        int cellIndex = mDispatchedTypes.indexOf(RIL_UNSOL_CELL_INFO_LIST);
+        assertEquals("cells", mDispatchedValues.get(cellIndex));
+
+        assertEquals(3, mBatcher.getReceivedCount(RIL_UNSOL_SIGNAL_STRENGTH));
+        assertEquals(2, mBatcher.getFoldedCount(RIL_UNSOL_SIGNAL_STRENGTH));
+        assertEquals(0, mBatcher.getFoldedCount(RIL_UNSOL_CELL_INFO_LIST));
+    }
+
+    @Test
+    @SmallTest
+    public void testFlushWithNothingPending() {
+        mBatcher.flush();
+        assertEquals(0, mDispatchedTypes.size());
+
+        mBatcher.offer(RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED, null);
+        mBatcher.flush();
+        mBatcher.flush();
+        assertEquals(1, mDispatchedTypes.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testWindowCloses() throws Exception {
+        mBatcher = new RadioIndicationBatcher(10, mDispatcher, mHandlerThread.getLooper());
+        mBatcher.offer(RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED, null);
+        mBatcher.offer(RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED, null);
+
+        TelephonyTestUtils.waitForMs(200);
+
+        // The dispatcher runs on the handler thread here
+        synchronized (mBatcher) {
+            assertEquals(1, mDispatchedTypes.size());
+            assertEquals(RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED,
+                    (int) mDispatchedTypes.get(0));
+        }
+        assertEquals(1, mBatcher.getFoldedCount(RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED));
+    }
+}
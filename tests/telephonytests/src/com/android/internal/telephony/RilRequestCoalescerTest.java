@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_OPERATOR;
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_SIGNAL_STRENGTH;
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_SETUP_DATA_CALL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.WorkSource;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RilRequestCoalescerTest {
+    private static final WorkSource WORK_SOURCE = new WorkSource(1001, "com.android.phone");
+
+    private RilRequestCoalescer mCoalescer;
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private final ArrayList<AsyncResult> mResults = new ArrayList<>();
+    private CountDownLatch mLatch;
+
+    @Before
+    public void setUp() throws Exception {
+        mCoalescer = new RilRequestCoalescer(60 * 1000);
+        mHandlerThread = new HandlerThread("RilRequestCoalescerTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                synchronized (mResults) {
+                    mResults.add((AsyncResult) msg.obj);
+                }
+                mLatch.countDown();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quit();
+    }
+
+    private static RILRequest obtain(int request) {
+        return RILRequest.obtain(request, null, WORK_SOURCE);
+    }
+
+    @Test
+    @SmallTest
+    public void testNoOutstandingRequest() {
+        assertFalse(mCoalescer.attach(RIL_REQUEST_OPERATOR, null));
+        assertEquals(0, mCoalescer.getSavedCount(RIL_REQUEST_OPERATOR));
+    }
+
+    @Test
+    @SmallTest
+    public void testNonIdempotentRequestNotCoalesced() {
+        RILRequest rr = obtain(RIL_REQUEST_SETUP_DATA_CALL);
+        mCoalescer.onRequestAdded(rr);
+        assertFalse(mCoalescer.attach(RIL_REQUEST_SETUP_DATA_CALL, null));
+        assertNull(mCoalescer.onRequestRemoved(rr));
+    }
+
+    @Test
+    @SmallTest
+    public void testAttachToOutstandingRequest() {
+        RILRequest rr = obtain(RIL_REQUEST_OPERATOR);
+        mCoalescer.onRequestAdded(rr);
+
+        assertTrue(mCoalescer.attach(RIL_REQUEST_OPERATOR, mHandler.obtainMessage(1)));
+        assertTrue(mCoalescer.attach(RIL_REQUEST_OPERATOR, mHandler.obtainMessage(2)));
+        // a different query type is not affected
+        assertFalse(mCoalescer.attach(RIL_REQUEST_SIGNAL_STRENGTH, null));
+
+        assertEquals(1, mCoalescer.getSentCount(RIL_REQUEST_OPERATOR));
+        assertEquals(2, mCoalescer.getSavedCount(RIL_REQUEST_OPERATOR));
+        assertEquals(2, mCoalescer.onRequestRemoved(rr).size());
+
+        // once the response is in, new callers need a new request
+        assertFalse(mCoalescer.attach(RIL_REQUEST_OPERATOR, null));
+    }
+
+    @Test
+    @SmallTest
+    public void testStaleRequestNotJoined() {
+        RILRequest rr = obtain(RIL_REQUEST_OPERATOR);
+        rr.mStartTimeMs -= 2 * 60 * 1000;
+        mCoalescer.onRequestAdded(rr);
+        assertFalse(mCoalescer.attach(RIL_REQUEST_OPERATOR, null));
+    }
+
+    @Test
+    @SmallTest
+    public void testDisabled() {
+        mCoalescer = new RilRequestCoalescer(0);
+        RILRequest rr = obtain(RIL_REQUEST_OPERATOR);
+        mCoalescer.onRequestAdded(rr);
+        assertFalse(mCoalescer.attach(RIL_REQUEST_OPERATOR, null));
+    }
+
+    @Test
+    @SmallTest
+    public void testOnlyLatestRequestRemovesEntry() {
+        RILRequest older = obtain(RIL_REQUEST_OPERATOR);
+        RILRequest newer = obtain(RIL_REQUEST_OPERATOR);
+        mCoalescer.onRequestAdded(older);
+        mCoalescer.onRequestAdded(newer);
+
+        assertNull(mCoalescer.onRequestRemoved(older));
+        assertTrue(mCoalescer.attach(RIL_REQUEST_OPERATOR, null));
+    }
+
+    @Test
+    @SmallTest
+    public void testDeliverCopies() throws Exception {
+        RILRequest rr = obtain(RIL_REQUEST_OPERATOR);
+        mCoalescer.onRequestAdded(rr);
+        mCoalescer.attach(RIL_REQUEST_OPERATOR, mHandler.obtainMessage(1));
+        mCoalescer.attach(RIL_REQUEST_OPERATOR, mHandler.obtainMessage(2));
+
+        mLatch = new CountDownLatch(2);
+        String[] ret = new String[] {"Operator", "Op", "310260"};
+        RilRequestCoalescer.deliver(mCoalescer.onRequestRemoved(rr), ret, null);
+        assertTrue(mLatch.await(1, TimeUnit.SECONDS));
+
+        synchronized (mResults) {
+            assertEquals(2, mResults.size());
+            for (AsyncResult ar : mResults) {
+                assertNull(ar.exception);
+                assertNotSame(ret, ar.result);
+                assertEquals("310260", ((String[]) ar.result)[2]);
+            }
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testDeliverError() throws Exception {
+        RILRequest rr = obtain(RIL_REQUEST_SIGNAL_STRENGTH);
+        mCoalescer.onRequestAdded(rr);
+        mCoalescer.attach(RIL_REQUEST_SIGNAL_STRENGTH, mHandler.obtainMessage(1));
+
+        mLatch = new CountDownLatch(1);
+        RilRequestCoalescer.deliver(mCoalescer.onRequestRemoved(rr), null,
+                CommandException.fromRilErrno(RILConstants.RADIO_NOT_AVAILABLE));
+        assertTrue(mLatch.await(1, TimeUnit.SECONDS));
+
+        synchronized (mResults) {
+            assertEquals(CommandException.Error.RADIO_NOT_AVAILABLE,
+                    ((CommandException) mResults.get(0).exception).getCommandError());
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.os.WorkSource;
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.SparseArray;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RilRequestTableTest {
+    private static final String TAG = "RilRequestTableTest";
+
+    private static final WorkSource WORK_SOURCE = new WorkSource(1001, "com.android.phone");
+
+    private RilRequestTable mTable;
+
+    @Before
+    public void setUp() throws Exception {
+        mTable = new RilRequestTable(8);
+    }
+
+    private static RILRequest obtain(int serial) {
+        RILRequest rr = RILRequest.obtain(RILConstants.RIL_REQUEST_SIGNAL_STRENGTH, null,
+                WORK_SOURCE);
+        rr.mSerial = serial;
+        return rr;
+    }
+
+    @Test
+    @SmallTest
+    public void testCapacityRoundedToPowerOfTwo() {
+        assertEquals(8, mTable.getCapacity());
+        assertEquals(16, new RilRequestTable(9).getCapacity());
+        assertEquals(RilRequestTable.DEFAULT_CAPACITY, new RilRequestTable().getCapacity());
+    }
+
+    @Test
+    @SmallTest
+    public void testPutGetRemove() {
+        RILRequest rr = obtain(5);
+        mTable.put(rr);
+        assertEquals(1, mTable.size());
+        assertSame(rr, mTable.get(5));
+        assertNull(mTable.get(6));
+
+        assertSame(rr, mTable.remove(5));
+        assertNull(mTable.remove(5));
+        assertNull(mTable.get(5));
+        assertEquals(0, mTable.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testCollidingSerials() {
+        // 3, 11 and 19 all map to slot 3 of an 8 slot ring
+        RILRequest first = obtain(3);
+        RILRequest second = obtain(11);
+        RILRequest third = obtain(19);
+        mTable.put(first);
+        mTable.put(second);
+        mTable.put(third);
+
+        assertSame(second, mTable.remove(11));
+        assertSame(third, mTable.get(19));
+        assertSame(first, mTable.get(3));
+        assertEquals(2, mTable.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testNegativeSerials() {
+        RILRequest rr = obtain(Integer.MIN_VALUE + 1);
+        mTable.put(rr);
+        assertSame(rr, mTable.get(Integer.MIN_VALUE + 1));
+        assertSame(rr, mTable.remove(Integer.MIN_VALUE + 1));
+    }
+
+    @Test
+    @SmallTest
+    public void testOverflowWhenRingIsFull() {
+        for (int serial = 0; serial < 12; serial++) {
+            mTable.put(obtain(serial));
+        }
+        assertEquals(12, mTable.size());
+        assertEquals(12, mTable.snapshot().size());
+        for (int serial = 0; serial < 12; serial++) {
+            assertEquals(serial, mTable.get(serial).mSerial);
+        }
+
+        assertEquals(10, mTable.remove(10).mSerial);
+        assertEquals(3, mTable.remove(3).mSerial);
+        assertEquals(10, mTable.size());
+
+        List<RILRequest> removed = mTable.removeAll();
+        assertEquals(10, removed.size());
+        assertEquals(0, mTable.size());
+        assertEquals(0, mTable.snapshot().size());
+    }
+
+    @Test
+    @SmallTest
+    public void testSnapshot() {
+        mTable.put(obtain(1));
+        mTable.put(obtain(2));
+        mTable.put(obtain(4));
+        mTable.remove(2);
+
+        HashSet<Integer> serials = new HashSet<>();
+        for (RILRequest rr : mTable.snapshot()) {
+            serials.add(rr.mSerial);
+        }
+        assertEquals(2, serials.size());
+        assertTrue(serials.contains(1));
+        assertTrue(serials.contains(4));
+    }
+
+    /**
+     * Mimics the RIL traffic pattern: several client threads add requests while the same number
+     * of "binder" threads answer them. Every request must be removed exactly once.
+     */
+    @Test
+    @LargeTest
+    public void testConcurrentPutAndRemove() throws Exception {
+        final RilRequestTable table = new RilRequestTable();
+        final int threads = 4;
+        final int perThread = 20000;
+        final AtomicInteger nextSerial = new AtomicInteger(0);
+        final AtomicInteger removed = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(threads * 2);
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    table.put(obtain(nextSerial.getAndIncrement()));
+                }
+                done.countDown();
+            }).start();
+            final int offset = t;
+            new Thread(() -> {
+                for (int serial = offset; serial < threads * perThread; serial += threads) {
+                    // spin until some client thread has added this serial
+                    while (table.remove(serial) == null) {
+                        Thread.yield();
+                    }
+                    removed.incrementAndGet();
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+
+        assertEquals(threads * perThread, removed.get());
+        assertEquals(0, table.size());
+    }
+
+    /**
+     * Contention benchmark against the synchronized SparseArray that RIL used previously. Run
+     * with "-e size large" and check logcat for the numbers.
+     */
+    @Test
+    @LargeTest
+    public void testContentionBenchmark() throws Exception {
+        final int threads = 4;
+        final int iterations = 50000;
+
+        final RilRequestTable table = new RilRequestTable();
+        long tableMs = runBenchmark(threads, iterations, new Ops() {
+            @Override
+            public void put(RILRequest rr) {
+                table.put(rr);
+            }
+
+            @Override
+            public RILRequest remove(int serial) {
+                return table.remove(serial);
+            }
+        });
+
+        final SparseArray<RILRequest> list = new SparseArray<>();
+        long sparseArrayMs = runBenchmark(threads, iterations, new Ops() {
+            @Override
+            public void put(RILRequest rr) {
+                synchronized (list) {
+                    list.append(rr.mSerial, rr);
+                }
+            }
+
+            @Override
+            public RILRequest remove(int serial) {
+                synchronized (list) {
+                    RILRequest rr = list.get(serial);
+                    if (rr != null) {
+                        list.remove(serial);
+                    }
+                    return rr;
+                }
+            }
+        });
+
+        Rlog.d(TAG, "contention benchmark: RilRequestTable=" + tableMs
+                + "ms synchronized SparseArray=" + sparseArrayMs + "ms");
+        assertEquals(0, table.size());
+        assertEquals(0, list.size());
+    }
+
+    private interface Ops {
+        void put(RILRequest rr);
+        RILRequest remove(int serial);
+    }
+
+    private static long runBenchmark(int threads, final int iterations, final Ops ops)
+            throws Exception {
+        final AtomicInteger nextSerial = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                RILRequest[] window = new RILRequest[4];
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < iterations; i++) {
+                    // keep a few requests in flight per thread, like concurrent polls do
+                    int slot = i % window.length;
+                    if (window[slot] != null) {
+                        ops.remove(window[slot].mSerial);
+                    }
+                    window[slot] = obtain(nextSerial.getAndIncrement());
+                    ops.put(window[slot]);
+                }
+                for (RILRequest rr : window) {
+                    if (rr != null) ops.remove(rr.mSerial);
+                }
+                done.countDown();
+            }).start();
+        }
+        long startMs = SystemClock.elapsedRealtime();
+        start.countDown();
+        done.await();
+        return SystemClock.elapsedRealtime() - startMs;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_FREE_SHORT_CODE;
+import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE;
+import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_PREMIUM_SHORT_CODE;
+import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_STANDARD_SHORT_CODE;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class ShortCodeClassifierTest {
+    /** Patterns as found in the short code XML files: pattern, premium, free, standard. */
+    private static final String[][] PATTERNS = new String[][] {
+            {"\\d{4,5}", "15191|55[56]00", null, null},
+            {"\\d{5,6}", "20433|21(?:344|472)|22715|23(?:333|847)|24(?:15|28)0", "122|87902|611611",
+                    "44567|244444"},
+            {"\\d{4}(?:\\d{2})?", "[13-5]\\d{3}", "116\\d{3}", null},
+            {"[^0]\\d{2,4}", "9(?:1[0-9]|2[^5])\\d", "1[^\\D5]", "8.8"},
+            {"^0?1\\d+?$", "01[0-9]{2,}", null, "1(?:|2|3)*4"},
+            {null, null, null, null},
+    };
+
+    private static int classifyWithRegex(String[] patterns, String destAddress) {
+        int[] categories = {CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE, CATEGORY_PREMIUM_SHORT_CODE,
+                CATEGORY_FREE_SHORT_CODE, CATEGORY_STANDARD_SHORT_CODE};
+        for (int i : new int[] {2, 3, 1, 0}) {
+            if (patterns[i] != null && Pattern.compile(patterns[i]).matcher(destAddress)
+                    .matches()) {
+                return categories[i];
+            }
+        }
+        return CATEGORY_NOT_SHORT_CODE;
+    }
+
+    private static String randomAddress(Random random) {
+        String symbols = "0123456789012345678901234567890123456789+*#\n";
+        StringBuilder sb = new StringBuilder();
+        for (int i = random.nextInt(9); i > 0; i--) {
+            sb.append(symbols.charAt(random.nextInt(symbols.length())));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    @SmallTest
+    public void testClassify() {
+        ShortCodeClassifier classifier = ShortCodeClassifier.compile(PATTERNS[1][0],
+                PATTERNS[1][1], PATTERNS[1][2], PATTERNS[1][3]);
+        assertNotNull(classifier);
+        assertEquals(CATEGORY_FREE_SHORT_CODE, classifier.classify("611611"));
+        assertEquals(CATEGORY_STANDARD_SHORT_CODE, classifier.classify("44567"));
+        assertEquals(CATEGORY_PREMIUM_SHORT_CODE, classifier.classify("24280"));
+        assertEquals(CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE, classifier.classify("24281"));
+        assertEquals(CATEGORY_NOT_SHORT_CODE, classifier.classify("2428"));
+        assertEquals(CATEGORY_NOT_SHORT_CODE, classifier.classify("+24280"));
+    }
+
+    @Test
+    @SmallTest
+    public void testUnsupportedPatterns() {
+        assertNull(ShortCodeClassifier.compile("\\+\\d{5}", null, null, null));
+        assertNull(ShortCodeClassifier.compile(null, "(?=1)\\d{4}", null, null));
+        assertNull(ShortCodeClassifier.compile(null, null, "\\d{2}+", null));
+        assertNull(ShortCodeClassifier.compile(null, null, null, "(1)\\1"));
+    }
+
+    @Test
+    @SmallTest
+    public void testClassifyMatchesRegex() {
+        Random random = new Random(0);
+        for (String[] patterns : PATTERNS) {
+            ShortCodeClassifier classifier = ShortCodeClassifier.compile(patterns[0],
+                    patterns[1], patterns[2], patterns[3]);
+            assertNotNull(classifier);
+            for (int i = 0; i < 20000; i++) {
+                String destAddress = randomAddress(random);
+                assertEquals(patterns[0] + " " + destAddress,
+                        classifyWithRegex(patterns, destAddress),
+                        classifier.classify(destAddress));
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SmsSegmentCacheTest {
+    private static final String ADDRESS = "1234567890";
+    private static final String DISPLAY_ADDRESS = "0987654321";
+    private static final int REFERENCE_NUMBER = 42;
+    private static final int MESSAGE_COUNT = 3;
+
+    private SmsSegmentCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mCache = new SmsSegmentCache();
+    }
+
+    // 3GPP sequence numbers are 1-based
+    private static InboundSmsTracker segment(String address, int sequenceNumber) {
+        return new InboundSmsTracker(new byte[] {(byte) sequenceNumber}, 0, -1, false, address,
+                DISPLAY_ADDRESS, REFERENCE_NUMBER, sequenceNumber, MESSAGE_COUNT, false, null);
+    }
+
+    @Test
+    @SmallTest
+    public void testSegmentNotCachedWithoutEntry() {
+        InboundSmsTracker tracker = segment(ADDRESS, 1);
+        mCache.onSegmentStored(tracker);
+        assertNull(mCache.get(tracker));
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testSegmentsCompleteMessage() {
+        InboundSmsTracker first = segment(ADDRESS, 1);
+        SmsSegmentCache.Segments loaded = new SmsSegmentCache.Segments(MESSAGE_COUNT);
+        loaded.add(0, first.getPdu(), 2948, DISPLAY_ADDRESS);
+        mCache.put(first, loaded);
+
+        InboundSmsTracker third = segment(ADDRESS, 3);
+        mCache.onSegmentStored(third);
+        SmsSegmentCache.Segments segments = mCache.get(third);
+        assertSame(loaded, segments);
+        assertEquals(2, segments.getReceivedCount());
+        assertFalse(segments.isComplete());
+
+        // storing the same segment again does not count twice
+        mCache.onSegmentStored(third);
+        assertEquals(2, segments.getReceivedCount());
+
+        mCache.onSegmentStored(segment(ADDRESS, 2));
+        assertTrue(segments.isComplete());
+        assertEquals(2948, segments.getFirstSegmentDestPort());
+        byte[][] pdus = segments.getPdus();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            assertArrayEquals(new byte[] {(byte) (i + 1)}, pdus[i]);
+            assertEquals(DISPLAY_ADDRESS, segments.getDisplayAddresses()[i]);
+        }
+
+        mCache.remove(third);
+        assertNull(mCache.get(first));
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidIndexIgnored() {
+        SmsSegmentCache.Segments segments = new SmsSegmentCache.Segments(MESSAGE_COUNT);
+        segments.add(-1, new byte[1], -1, null);
+        segments.add(MESSAGE_COUNT, new byte[1], -1, null);
+        assertEquals(0, segments.getReceivedCount());
+        assertEquals(-1, segments.getFirstSegmentDestPort());
+    }
+
+    @Test
+    @SmallTest
+    public void testKeyIncludesWapPduFlag() {
+        InboundSmsTracker tracker = segment(ADDRESS, 1);
+        mCache.put(tracker, new SmsSegmentCache.Segments(MESSAGE_COUNT));
+
+        InboundSmsTracker wapTracker = new InboundSmsTracker(new byte[1], 0, -1, true, ADDRESS,
+                DISPLAY_ADDRESS, REFERENCE_NUMBER, 0, MESSAGE_COUNT, true, null);
+        assertNull(mCache.get(wapTracker));
+        assertNotNull(mCache.get(tracker));
+    }
+
+    @Test
+    @SmallTest
+    public void testEntriesBounded() {
+        for (int i = 0; i <= SmsSegmentCache.MAX_ENTRIES; i++) {
+            mCache.put(segment(ADDRESS + i, 1), new SmsSegmentCache.Segments(MESSAGE_COUNT));
+        }
+        assertEquals(SmsSegmentCache.MAX_ENTRIES, mCache.size());
+        // the least recently used entry is evicted
+        assertNull(mCache.get(segment(ADDRESS + 0, 1)));
+        assertNotNull(mCache.get(segment(ADDRESS + SmsSegmentCache.MAX_ENTRIES, 1)));
+    }
+}
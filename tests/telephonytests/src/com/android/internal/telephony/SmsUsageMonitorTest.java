@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Looper;
+import android.provider.Settings;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SmsUsageMonitorTest extends TelephonyTest {
+    private static final String APP = "com.example.sms";
+    private static final String OTHER_APP = "com.example.other";
+    private static final int MAX_ALLOWED = 3;
+    private static final int CHECK_PERIOD = 60000;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        // InstrumentationTestRunner prepares a looper, but AndroidJUnitRunner does not.
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        Settings.Global.putInt(mContext.getContentResolver(),
+                Settings.Global.SMS_OUTGOING_CHECK_INTERVAL_MS, CHECK_PERIOD);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private SmsUsageMonitor createMonitor(int maxAllowed) {
+        Settings.Global.putInt(mContext.getContentResolver(),
+                Settings.Global.SMS_OUTGOING_CHECK_MAX_COUNT, maxAllowed);
+        return new SmsUsageMonitor(mContext);
+    }
+
+    private static Object getRateLimiter(SmsUsageMonitor monitor, String appName)
+            throws Exception {
+        Field field = SmsUsageMonitor.class.getDeclaredField("mSmsRateLimiters");
+        field.setAccessible(true);
+        return ((Map<?, ?>) field.get(monitor)).get(appName);
+    }
+
+    @Test
+    @SmallTest
+    public void testCheckLimit() {
+        SmsUsageMonitor monitor = createMonitor(MAX_ALLOWED);
+        for (int i = 0; i < MAX_ALLOWED; i++) {
+            assertTrue(monitor.check(APP, 1, 1000 + i));
+        }
+        // The limit is reached at exactly maxAllowed
+        assertFalse(monitor.check(APP, 1, 2000));
+        // Each app has its own limit
+        assertTrue(monitor.check(OTHER_APP, MAX_ALLOWED, 2000));
+        assertFalse(monitor.check(OTHER_APP, 1, 2000));
+        assertFalse(monitor.check("com.example.third", MAX_ALLOWED + 1, 2000));
+    }
+
+    @Test
+    @SmallTest
+    public void testCheckWindowExpiry() {
+        SmsUsageMonitor monitor = createMonitor(MAX_ALLOWED);
+        assertTrue(monitor.check(APP, 1, 1000));
+        assertTrue(monitor.check(APP, MAX_ALLOWED - 1, 2000));
+        assertFalse(monitor.check(APP, 1, 1000 + CHECK_PERIOD));
+
+        // The first message leaves the checking period
+        assertTrue(monitor.check(APP, 1, 1001 + CHECK_PERIOD));
+        assertFalse(monitor.check(APP, 1, 1001 + CHECK_PERIOD));
+
+        // All of them do
+        assertTrue(monitor.check(APP, MAX_ALLOWED, 2002 + 2 * CHECK_PERIOD));
+    }
+
+    @Test
+    @SmallTest
+    public void testCheckMaxAllowedNotPositive() {
+        SmsUsageMonitor monitor = createMonitor(0);
+        assertFalse(monitor.check(APP, 1, 1000));
+
+        monitor = createMonitor(-1);
+        assertFalse(monitor.check(APP, 1, 1000));
+        assertFalse(monitor.check(APP, 1, 1001 + CHECK_PERIOD));
+    }
+
+    @Test
+    @SmallTest
+    public void testCheckRetriesWhenRateLimiterRemoved() throws Exception {
+        final SmsUsageMonitor monitor = createMonitor(MAX_ALLOWED);
+        assertTrue(monitor.check(APP, 1, 1000));
+        Object limiter = getRateLimiter(monitor, APP);
+        assertNotNull(limiter);
+
+        final AtomicBoolean allowed = new AtomicBoolean();
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                allowed.set(monitor.check(APP, 1, 2000));
+            }
+        });
+        synchronized (limiter) {
+            // The check waits for the limiter it looked up
+            sender.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sender.getState() != Thread.State.BLOCKED
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(Thread.State.BLOCKED, sender.getState());
+
+            // and the limiter is removed meanwhile
+            monitor.removeExpiredRateLimiters(1000 + CHECK_PERIOD, 1001);
+            assertNull(getRateLimiter(monitor, APP));
+        }
+        sender.join(5000);
+        assertFalse(sender.isAlive());
+
+        // The check retried with a new limiter
+        assertTrue(allowed.get());
+        Object newLimiter = getRateLimiter(monitor, APP);
+        assertNotNull(newLimiter);
+        assertNotSame(limiter, newLimiter);
+        assertTrue(monitor.check(APP, MAX_ALLOWED - 1, 2000));
+        assertFalse(monitor.check(APP, 1, 2000));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.telephony.Rlog;
+import android.telephony.ServiceState;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.PhoneConstants;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class ApnSettingIndexTest {
+    private static final String TAG = "ApnSettingIndexTest";
+
+    private static final String[] TYPES = {
+            PhoneConstants.APN_TYPE_DEFAULT, PhoneConstants.APN_TYPE_MMS,
+            PhoneConstants.APN_TYPE_SUPL, PhoneConstants.APN_TYPE_DUN,
+            PhoneConstants.APN_TYPE_HIPRI, PhoneConstants.APN_TYPE_FOTA,
+            PhoneConstants.APN_TYPE_IMS, PhoneConstants.APN_TYPE_CBS,
+            PhoneConstants.APN_TYPE_IA, PhoneConstants.APN_TYPE_EMERGENCY,
+            PhoneConstants.APN_TYPE_ALL, "xcap", "DEFAULT", "Ia",
+    };
+
+    private static ApnSetting createApnSetting(int id, String[] types, boolean carrierEnabled,
+            int bearerBitmask) {
+        return new ApnSetting(id, "310260", "carrier" + id, "apn" + id, "", "", "", "", "", "",
+                "", -1, types, "IP", "IP", carrierEnabled, 0, bearerBitmask, 0, false, 0, 0, 0,
+                0, "", "");
+    }
+
+    /** APNs with random types, bearers and carrier enabled state */
+    private static ArrayList<ApnSetting> createApnSettings(Random random, int count) {
+        ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>();
+        for (int i = 0; i < count; i++) {
+            String[] types = new String[random.nextInt(4)];
+            for (int j = 0; j < types.length; j++) {
+                types[j] = TYPES[random.nextInt(TYPES.length)];
+            }
+            int bearerBitmask = 0;
+            for (int j = random.nextInt(3); j > 0; j--) {
+                bearerBitmask |= ServiceState.getBitmaskForTech(1 + random.nextInt(19));
+            }
+            apns.add(createApnSetting(i, types, random.nextInt(8) != 0, bearerBitmask));
+        }
+        return apns;
+    }
+
+    /** The APNs that buildWaitingApns used to select with a scan of the APN list */
+    private static ArrayList<ApnSetting> scanApns(ArrayList<ApnSetting> apns, String type,
+            int radioTech) {
+        ArrayList<ApnSetting> result = new ArrayList<ApnSetting>();
+        for (ApnSetting apn : apns) {
+            if (apn.canHandleType(type)
+                    && ServiceState.bitmaskHasTech(apn.bearerBitmask, radioTech)) {
+                result.add(apn);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    @SmallTest
+    public void testGetApns() {
+        ApnSetting defaultApn = createApnSetting(1, new String[] {"default", "supl"}, true,
+                ServiceState.getBitmaskForTech(ServiceState.RIL_RADIO_TECHNOLOGY_LTE));
+        ApnSetting allApn = createApnSetting(2, new String[] {"*"}, true, 0);
+        ApnSetting disabledApn = createApnSetting(3, new String[] {"*"}, false, 0);
+        ApnSetting iaApn = createApnSetting(4, new String[] {"ia"}, true, 0);
+        ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>();
+        apns.add(defaultApn);
+        apns.add(allApn);
+        apns.add(disabledApn);
+        apns.add(iaApn);
+        ApnSettingIndex index = new ApnSettingIndex(apns);
+
+        assertTrue(index.isIndexOf(apns));
+        assertFalse(index.isIndexOf(new ArrayList<ApnSetting>(apns)));
+
+        ArrayList<ApnSetting> hipri = index.getApns(PhoneConstants.APN_TYPE_HIPRI);
+        assertEquals(2, hipri.size());
+        assertEquals(defaultApn, hipri.get(0));
+        assertEquals(allApn, hipri.get(1));
+
+        ArrayList<ApnSetting> supl = index.getApns(PhoneConstants.APN_TYPE_SUPL,
+                ServiceState.RIL_RADIO_TECHNOLOGY_UMTS);
+        assertEquals(1, supl.size());
+        assertEquals(allApn, supl.get(0));
+
+        ArrayList<ApnSetting> ia = index.getApns("IA");
+        assertEquals(1, ia.size());
+        assertEquals(iaApn, ia.get(0));
+
+        // not indexed
+        assertEquals(1, index.getApns("xcap").size());
+
+        assertEquals(0, new ApnSettingIndex(null).getApns(PhoneConstants.APN_TYPE_DEFAULT,
+                ServiceState.RIL_RADIO_TECHNOLOGY_LTE).size());
+    }
+
+    @Test
+    @SmallTest
+    public void testGetApnsMatchesScan() {
+        Random random = new Random(0);
+        for (int i = 0; i < 50; i++) {
+            ArrayList<ApnSetting> apns = createApnSettings(random, random.nextInt(40));
+            ApnSettingIndex index = new ApnSettingIndex(apns);
+            for (String type : TYPES) {
+                for (int radioTech = 0; radioTech <= 19; radioTech++) {
+                    assertEquals(scanApns(apns, type, radioTech),
+                            index.getApns(type, radioTech));
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares selecting the APNs of each type for LTE in a synthetic list of 200 APNs, with
+     * ApnSettingIndex and with the canHandleType scan of the list that buildWaitingApns used
+     * before. Both must select the same APNs.
+     */
+    @Test
+    @LargeTest
+    public void testGetApnsBenchmark() {
+        final int iterations = 20000;
+        ArrayList<ApnSetting> apns = createApnSettings(new Random(0), 200);
+        ApnSettingIndex index = new ApnSettingIndex(apns);
+
+        int indexCount = 0;
+        long startMs = SystemClock.elapsedRealtime();
+        for (int i = 0; i < iterations; i++) {
+            indexCount += index.getApns(TYPES[i % TYPES.length],
+                    ServiceState.RIL_RADIO_TECHNOLOGY_LTE).size();
+        }
+        long indexMs = SystemClock.elapsedRealtime() - startMs;
+
+        int scanCount = 0;
+        startMs = SystemClock.elapsedRealtime();
+        for (int i = 0; i < iterations; i++) {
+            scanCount += scanApns(apns, TYPES[i % TYPES.length],
+                    ServiceState.RIL_RADIO_TECHNOLOGY_LTE).size();
+        }
+        long scanMs = SystemClock.elapsedRealtime() - startMs;
+
+        Rlog.d(TAG, iterations + " selections among " + apns.size() + " APNs: ApnSettingIndex="
+                + indexMs + "ms canHandleType scan=" + scanMs + "ms");
+        assertEquals(scanCount, indexCount);
+    }
+}
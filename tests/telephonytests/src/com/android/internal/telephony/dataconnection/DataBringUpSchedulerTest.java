@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.PhoneConstants;
+
+import org.junit.Test;
+
+public class DataBringUpSchedulerTest {
+    private final DataBringUpScheduler mScheduler = new DataBringUpScheduler();
+
+    @Test
+    @SmallTest
+    public void testRound() {
+        assertTrue(mScheduler.canStart(0, 2, false));
+        mScheduler.onBringUpStarted(PhoneConstants.APN_TYPE_IMS, 1, 0, false);
+        assertTrue(mScheduler.canStart(0, 2, false));
+        mScheduler.onBringUpStarted(PhoneConstants.APN_TYPE_DEFAULT, 1, 10, false);
+        assertEquals(2, mScheduler.getInFlightCount());
+
+        // the others wait for a slot, highest priority first
+        assertFalse(mScheduler.canStart(10, 2, false));
+        mScheduler.defer(PhoneConstants.APN_TYPE_SUPL, 60);
+        mScheduler.defer(PhoneConstants.APN_TYPE_MMS, 70);
+        mScheduler.defer(PhoneConstants.APN_TYPE_MMS, 70);
+        assertEquals(PhoneConstants.APN_TYPE_MMS, mScheduler.peekDeferred());
+
+        // obsolete responses do not free a slot
+        assertFalse(mScheduler.onBringUpComplete(PhoneConstants.APN_TYPE_IMS, 0, true));
+        assertTrue(mScheduler.onBringUpComplete(PhoneConstants.APN_TYPE_IMS, 1, true));
+        assertFalse(mScheduler.finishRoundIfIdle(500));
+        assertTrue(mScheduler.canStart(500, 2, false));
+        mScheduler.onBringUpStarted(PhoneConstants.APN_TYPE_MMS, 1, 500, false);
+        assertFalse(mScheduler.isDeferred(PhoneConstants.APN_TYPE_MMS));
+        assertEquals(PhoneConstants.APN_TYPE_SUPL, mScheduler.peekDeferred());
+
+        assertTrue(mScheduler.onBringUpComplete(PhoneConstants.APN_TYPE_DEFAULT, 1, true));
+        mScheduler.onBringUpStarted(PhoneConstants.APN_TYPE_SUPL, 1, 700, false);
+        assertNull(mScheduler.peekDeferred());
+        assertTrue(mScheduler.onBringUpComplete(PhoneConstants.APN_TYPE_MMS, 1, false));
+        assertTrue(mScheduler.onBringUpComplete(PhoneConstants.APN_TYPE_SUPL, 1, true));
+
+        assertTrue(mScheduler.finishRoundIfIdle(1200));
+        assertEquals(1200, mScheduler.getLastRoundMillis());
+        assertEquals(4, mScheduler.getLastRoundApnCount());
+        assertEquals(3, mScheduler.getLastRoundConnectedCount());
+        assertEquals(2, mScheduler.getLastRoundMaxConcurrent());
+        assertFalse(mScheduler.finishRoundIfIdle(1300));
+    }
+
+    @Test
+    @SmallTest
+    public void testExclusive() {
+        mScheduler.onBringUpStarted(PhoneConstants.APN_TYPE_DEFAULT, 1, 0, false);
+        // DUN waits for the others, and the others wait for DUN
+        assertFalse(mScheduler.canStart(0, 4, true));
+        mScheduler.onBringUpComplete(PhoneConstants.APN_TYPE_DEFAULT, 1, true);
+        assertTrue(mScheduler.canStart(0, 4, true));
+        mScheduler.onBringUpStarted(PhoneConstants.APN_TYPE_DUN, 1, 0, true);
+        assertFalse(mScheduler.canStart(0, 4, false));
+        mScheduler.onBringUpComplete(PhoneConstants.APN_TYPE_DUN, 1, true);
+        assertTrue(mScheduler.canStart(0, 4, false));
+    }
+
+    @Test
+    @SmallTest
+    public void testTimeout() {
+        assertEquals(-1, mScheduler.getMillisUntilNextExpiry(0));
+        mScheduler.onBringUpStarted(PhoneConstants.APN_TYPE_DEFAULT, 1, 0, false);
+        mScheduler.onBringUpStarted(PhoneConstants.APN_TYPE_IMS, 1, 500, false);
+        assertEquals(DataBringUpScheduler.BRING_UP_TIMEOUT_MILLIS - 1000,
+                mScheduler.getMillisUntilNextExpiry(1000));
+        mScheduler.onBringUpComplete(PhoneConstants.APN_TYPE_IMS, 1, false);
+        assertFalse(mScheduler.canStart(1000, 1, false));
+        mScheduler.defer(PhoneConstants.APN_TYPE_MMS, 70);
+
+        // a bring-up without a response no longer holds its slot
+        assertTrue(mScheduler.canStart(DataBringUpScheduler.BRING_UP_TIMEOUT_MILLIS, 1, false));
+        assertEquals(0, mScheduler.getInFlightCount());
+        assertEquals(-1, mScheduler.getMillisUntilNextExpiry(
+                DataBringUpScheduler.BRING_UP_TIMEOUT_MILLIS));
+        assertFalse(mScheduler.onBringUpComplete(PhoneConstants.APN_TYPE_DEFAULT, 1, true));
+
+        mScheduler.removeDeferred(PhoneConstants.APN_TYPE_MMS);
+        assertTrue(mScheduler.finishRoundIfIdle(DataBringUpScheduler.BRING_UP_TIMEOUT_MILLIS));
+        assertEquals(0, mScheduler.getLastRoundConnectedCount());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import static org.junit.Assert.assertEquals;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class DataStallDetectorTest {
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+
+    /** Counters set by the test */
+    private static class Counter implements DataStallDetector.PacketCounter {
+        long mTxPkts;
+        long mRxPkts;
+
+        @Override
+        public long getTxPackets() {
+            return mTxPkts;
+        }
+
+        @Override
+        public long getRxPackets() {
+            return mRxPkts;
+        }
+    }
+
+    private final DataStallDetector mDetector = new DataStallDetector();
+
+    private int sample(long now) {
+        return mDetector.sample(now, true, 10, 30 * SECOND);
+    }
+
+    @Test
+    @SmallTest
+    public void testSample() {
+        Counter counter = new Counter();
+        mDetector.addSignal("mobile_tcp", counter, true);
+
+        assertEquals(DataStallDetector.RESULT_IDLE, sample(0));
+        counter.mTxPkts = 5;
+        counter.mRxPkts = 5;
+        assertEquals(DataStallDetector.RESULT_RECEIVED, sample(MINUTE));
+
+        // 12 packets are sent, but not for long enough
+        counter.mTxPkts = 17;
+        assertEquals(DataStallDetector.RESULT_SUSPECTED, sample(MINUTE + 15 * SECOND));
+        assertEquals(12, mDetector.getSentSinceLastRecv());
+        assertEquals(15 * SECOND, mDetector.getNextSampleDelayMillis(false, false,
+                15 * SECOND, MINUTE, 6 * MINUTE));
+        assertEquals(DataStallDetector.RESULT_STALLED, sample(MINUTE + 30 * SECOND));
+        // from the first sample that saw the unanswered packets
+        assertEquals(15 * SECOND, mDetector.getLastDetectionLatencyMillis());
+        assertEquals(0, mDetector.getMillisSinceLastStall(MINUTE + 30 * SECOND));
+
+        // the count starts over after a recovery action
+        mDetector.onRecovery();
+        assertEquals(0, mDetector.getSentSinceLastRecv());
+        counter.mTxPkts = 20;
+        assertEquals(DataStallDetector.RESULT_SUSPECTED, sample(2 * MINUTE));
+
+        // packets sent during a voice call do not count
+        counter.mTxPkts = 40;
+        assertEquals(DataStallDetector.RESULT_IDLE,
+                mDetector.sample(3 * MINUTE, false, 10, 30 * SECOND));
+        assertEquals(0, mDetector.getSentSinceLastRecv());
+    }
+
+    @Test
+    @SmallTest
+    public void testStatsSignal() {
+        Counter trigger = new Counter();
+        Counter iface = new Counter();
+        mDetector.addSignal("mobile_tcp", trigger, true);
+        mDetector.addSignal("iface:rmnet0", iface, false);
+        mDetector.addSignal("iface:rmnet0", new Counter(), false);
+        assertEquals(Arrays.asList("mobile_tcp", "iface:rmnet0"), mDetector.getSignalNames());
+
+        sample(0);
+        trigger.mRxPkts = 10;
+        iface.mTxPkts = 100;
+        // only trigger signals can detect a stall
+        assertEquals(DataStallDetector.RESULT_RECEIVED, sample(MINUTE));
+        assertEquals(DataStallDetector.RESULT_IDLE, sample(2 * MINUTE));
+        assertEquals(0, mDetector.getSentSinceLastRecv());
+
+        mDetector.removeSignal("iface:rmnet0");
+        assertEquals(Arrays.asList("mobile_tcp"), mDetector.getSignalNames());
+    }
+
+    @Test
+    @SmallTest
+    public void testShortStall() {
+        // a 90 second stall with light traffic
+        DataStallTraceSimulator trace = new DataStallTraceSimulator()
+                .add(10 * MINUTE, 60, 60)
+                .add(90 * SECOND, 8, 0)
+                .add(10 * MINUTE, 60, 60);
+
+        assertEquals(Arrays.asList(11 * MINUTE + 15 * SECOND),
+                trace.replay(new DataStallDetector(), true));
+        // missed by sampling every minute
+        assertEquals(0, trace.replayFixed(MINUTE).size());
+    }
+
+    @Test
+    @SmallTest
+    public void testLongStall() {
+        DataStallTraceSimulator trace = new DataStallTraceSimulator()
+                .add(10 * MINUTE, 60, 60)
+                .add(5 * MINUTE, 30, 0)
+                .add(10 * MINUTE, 60, 60);
+
+        DataStallDetector detector = new DataStallDetector();
+        // detected, then detected again after each recovery action until the stall is over
+        assertEquals(Arrays.asList(11 * MINUTE, 12 * MINUTE, 13 * MINUTE, 14 * MINUTE,
+                15 * MINUTE), trace.replay(detector, true));
+        // by the first sample that saw the unanswered packets
+        assertEquals(0, detector.getLastDetectionLatencyMillis());
+    }
+
+    @Test
+    @SmallTest
+    public void testBurstyTraffic() {
+        // packets are answered within 20 seconds
+        DataStallTraceSimulator trace = new DataStallTraceSimulator();
+        for (int i = 0; i < 50; i++) {
+            trace.add(20 * SECOND, 30, 0).add(20 * SECOND + i * SECOND, 0, 30);
+        }
+        assertEquals(0, trace.replay(new DataStallDetector(), true).size());
+        assertEquals(0, trace.replay(new DataStallDetector(), false).size());
+    }
+
+    @Test
+    @SmallTest
+    public void testIdleSampling() {
+        DataStallTraceSimulator trace = new DataStallTraceSimulator().add(120 * MINUTE, 0, 0);
+
+        trace.replayFixed(DataStallTraceSimulator.NON_AGGRESSIVE_DELAY_MILLIS);
+        assertEquals(21, trace.getSampleCount());
+        // sampling is never slower than the non-aggressive interval
+        trace.replay(new DataStallDetector(), false);
+        assertEquals(21, trace.getSampleCount());
+        trace.replay(new DataStallDetector(), true);
+        assertEquals(121, trace.getSampleCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testStallAfterIdle() {
+        DataStallTraceSimulator trace = new DataStallTraceSimulator()
+                .add(60 * MINUTE, 0, 0)
+                .add(10 * MINUTE, 30, 0);
+
+        DataStallDetector detector = new DataStallDetector();
+        ArrayList<Long> stalls = trace.replay(detector, false);
+        // not detected later than by sampling at the non-aggressive interval
+        assertEquals(trace.replayFixed(DataStallTraceSimulator.NON_AGGRESSIVE_DELAY_MILLIS)
+                .get(0), stalls.get(0));
+        assertEquals(0, detector.getLastDetectionLatencyMillis());
+    }
+
+    @Test
+    @SmallTest
+    public void testToString() {
+        Counter counter = new Counter();
+        mDetector.addSignal("mobile_tcp", counter, true);
+        sample(0);
+        counter.mTxPkts = 30;
+        counter.mRxPkts = 60;
+        sample(MINUTE);
+        counter.mTxPkts = 60;
+        sample(2 * MINUTE);
+        assertEquals("DataStallDetector{samples=3 stalls=1"
+                + " avgDetectionLatencyMs=0 maxDetectionLatencyMs=0"
+                + " mobile_tcp{tx=60 rx=60 sentSinceLastRecv=30 window=2/120s txPerMin=30"
+                + " rxPerMin=30 unanswered=1}}", mDetector.toString());
+        assertEquals(MINUTE, mDetector.getMillisSinceLastStall(3 * MINUTE));
+    }
+}
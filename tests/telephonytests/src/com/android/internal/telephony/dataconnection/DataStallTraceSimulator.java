@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import java.util.ArrayList;
+
+/**
+ * Replays a packet counter trace through a DataStallDetector, sampling at the delays picked by
+ * the detector like the data stall alarm of DcTracker, and records when stalls are detected.
+ *
+ * The trace is a sequence of periods with constant rates of packets sent and received.
+ */
+class DataStallTraceSimulator implements DataStallDetector.PacketCounter {
+    static final int TRIGGER_PACKET_COUNT = 10;
+    static final long MIN_STALL_MILLIS = 30 * 1000;
+    static final long SUSPECT_DELAY_MILLIS = 15 * 1000;
+    static final long AGGRESSIVE_DELAY_MILLIS = 60 * 1000;
+    static final long NON_AGGRESSIVE_DELAY_MILLIS = 6 * 60 * 1000;
+
+    /** Periods of the trace: start, end, packets sent and received per minute */
+    private final ArrayList<long[]> mPeriods = new ArrayList<long[]>();
+    private long mTraceEnd;
+    private long mNow;
+    private int mSampleCount;
+
+    /**
+     * Append a period to the trace.
+     */
+    DataStallTraceSimulator add(long durationMillis, long txPerMinute, long rxPerMinute) {
+        mPeriods.add(new long[] {mTraceEnd, mTraceEnd + durationMillis, txPerMinute,
+                rxPerMinute});
+        mTraceEnd += durationMillis;
+        return this;
+    }
+
+    @Override
+    public long getTxPackets() {
+        return getPackets(2);
+    }
+
+    @Override
+    public long getRxPackets() {
+        return getPackets(3);
+    }
+
+    private long getPackets(int rate) {
+        long packets = 0;
+        for (long[] period : mPeriods) {
+            long millis = Math.min(mNow, period[1]) - period[0];
+            if (millis > 0) {
+                packets += period[rate] * millis / (60 * 1000);
+            }
+        }
+        return packets;
+    }
+
+    /**
+     * Replay the trace with the sampling cadence picked by the detector.
+     *
+     * @param inUse true if the device is in use during the whole trace
+     * @return the times stalls were detected
+     */
+    ArrayList<Long> replay(DataStallDetector detector, boolean inUse) {
+        return replay(detector, inUse, 0);
+    }
+
+    /**
+     * Replay the trace with a fixed sampling interval and no minimum stall duration, like the
+     * data stall alarm of DcTracker used to.
+     *
+     * @return the times stalls were detected
+     */
+    ArrayList<Long> replayFixed(long intervalMillis) {
+        return replay(new DataStallDetector(), false, intervalMillis);
+    }
+
+    /**
+     * @return the number of samples taken by the last replay
+     */
+    int getSampleCount() {
+        return mSampleCount;
+    }
+
+    private ArrayList<Long> replay(DataStallDetector detector, boolean inUse,
+            long fixedIntervalMillis) {
+        detector.addSignal("trace", this, true);
+        ArrayList<Long> stalls = new ArrayList<Long>();
+        mSampleCount = 0;
+        for (mNow = 0; mNow <= mTraceEnd; ) {
+            mSampleCount++;
+            int result = detector.sample(mNow, true, TRIGGER_PACKET_COUNT,
+                    fixedIntervalMillis > 0 ? 0 : MIN_STALL_MILLIS);
+            boolean stalled = result == DataStallDetector.RESULT_STALLED;
+            if (stalled) {
+                stalls.add(mNow);
+                detector.onRecovery();
+            }
+            if (fixedIntervalMillis > 0) {
+                mNow += fixedIntervalMillis;
+            } else if (stalled) {
+                // DcTracker gives the recovery action time to work
+                mNow += AGGRESSIVE_DELAY_MILLIS;
+            } else {
+                mNow += detector.getNextSampleDelayMillis(inUse, false, SUSPECT_DELAY_MILLIS,
+                        AGGRESSIVE_DELAY_MILLIS, NON_AGGRESSIVE_DELAY_MILLIS);
+            }
+        }
+        return stalls;
+    }
+}
@@ -25,6 +25,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
@@ -46,10 +47,12 @@ import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import android.net.Uri;
 import android.os.AsyncResult;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.provider.Telephony;
 import android.support.test.filters.FlakyTest;
@@ -62,6 +65,7 @@ import android.test.mock.MockContentResolver;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.util.LocalLog;
+import android.util.Pair;
 
 import com.android.internal.telephony.DctConstants;
 import com.android.internal.telephony.ISub;
@@ -78,9 +82,14 @@ import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -150,6 +159,8 @@ public class DcTrackerTest extends TelephonyTest {
     }
 
     private class ApnSettingContentProvider extends MockContentProvider {
+        /** The apn of the first APN setting, changed by tests that edit the APN database */
+        private volatile String mApn1 = FAKE_APN1;
 
         @Override
         public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
@@ -197,7 +208,7 @@ public class DcTrackerTest extends TelephonyTest {
                             2163,                   // id
                             plmn,                   // numeric
                             "sp-mode",              // name
-                            FAKE_APN1,              // apn
+                            mApn1,                  // apn
                             "",                     // proxy
                             "",                     // port
                             "",                     // mmsc
@@ -471,6 +482,36 @@ public class DcTrackerTest extends TelephonyTest {
         assertEquals(FAKE_GATEWAY, linkProperties.getRoutes().get(0).getGateway().getHostAddress());
     }
 
+    private Object getDctField(String name) {
+        try {
+            Field field = DcTracker.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(mDct);
+        } catch (Exception e) {
+            fail(e.toString());
+            return null;
+        }
+    }
+
+    private void setupDefaultDataCall() {
+        mDct.setDataEnabled(true);
+
+        logd("Sending EVENT_RECORDS_LOADED");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_RECORDS_LOADED, null));
+        waitForMs(200);
+
+        logd("Sending EVENT_DATA_CONNECTION_ATTACHED");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_DATA_CONNECTION_ATTACHED, null));
+        waitForMs(200);
+
+        logd("Sending EVENT_ENABLE_NEW_APN");
+        // APN id 0 is APN_TYPE_DEFAULT
+        mDct.setEnabled(0, true);
+        waitForMs(200);
+
+        verifyDataConnected(FAKE_APN1);
+    }
+
     private boolean isDataAllowed(DataConnectionReasons dataConnectionReasons) {
         try {
             Method method = DcTracker.class.getDeclaredMethod("isDataAllowed",
@@ -1213,4 +1254,200 @@ public class DcTrackerTest extends TelephonyTest {
         assertEquals(FAKE_APN4, mDct.getActiveApnString(PhoneConstants.APN_TYPE_DEFAULT));
         assertEquals(DctConstants.State.CONNECTED, mDct.getOverallState());
     }
+
+    private static final String[] DEDUPE_TYPES = {PhoneConstants.APN_TYPE_DEFAULT,
+            PhoneConstants.APN_TYPE_MMS, PhoneConstants.APN_TYPE_SUPL, PhoneConstants.APN_TYPE_IMS,
+            PhoneConstants.APN_TYPE_DUN, PhoneConstants.APN_TYPE_ALL};
+
+    private static String pick(Random random, String... values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    /** APN settings drawn from few values, so that many of them are similar */
+    private static ArrayList<ApnSetting> createRandomApnSettings(Random random, int count) {
+        ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>();
+        for (int i = 0; i < count; i++) {
+            String[] types = new String[1 + random.nextInt(2)];
+            for (int j = 0; j < types.length; j++) {
+                types[j] = DEDUPE_TYPES[random.nextInt(DEDUPE_TYPES.length)];
+            }
+            // the fields that must be equal for similar APNs rarely differ
+            boolean rare = random.nextInt(4) == 0;
+            apns.add(new ApnSetting(i, "310260", "carrier" + i, rare ? "apn2" : "apn1",
+                    pick(random, "", "proxy1", "proxy2"), pick(random, "", "8080"),
+                    pick(random, "", "mmsc1", "mmsc2"), pick(random, "", "mmsproxy"),
+                    pick(random, "", "80"), "", "", -1, types,
+                    pick(random, "IP", "IPV6", "IPV4V6"), pick(random, "IP", "IPV4V6"),
+                    random.nextInt(8) != 0, 0,
+                    random.nextInt(4) == 0 ? EHRPD_BEARER_BITMASK : 0,
+                    random.nextInt(8) == 0 ? 1 : 0, random.nextBoolean(), 0, 0, 0, 0,
+                    rare ? "spn" : "", rare ? "Carrier" : ""));
+        }
+        return apns;
+    }
+
+    /** The quadratic dedupe that DcTracker used to do, for reference */
+    private static void dedupeApnSettingsPairwise(ArrayList<ApnSetting> apns) {
+        int i = 0;
+        while (i < apns.size() - 1) {
+            ApnSetting first = apns.get(i);
+            int j = i + 1;
+            while (j < apns.size()) {
+                ApnSetting second = apns.get(j);
+                if (first.similar(second)) {
+                    first = DcTracker.mergeApns(first, second);
+                    apns.set(i, first);
+                    apns.remove(j);
+                } else {
+                    j++;
+                }
+            }
+            i++;
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testDedupeApnSettings() {
+        Random random = new Random(0);
+        for (int iteration = 0; iteration < 500; iteration++) {
+            ArrayList<ApnSetting> apns = createRandomApnSettings(random, random.nextInt(30));
+            ArrayList<ApnSetting> expected = new ArrayList<ApnSetting>(apns);
+            dedupeApnSettingsPairwise(expected);
+            DcTracker.dedupeApnSettings(apns);
+            assertEquals("iteration " + iteration, expected, apns);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testGetChangedApns() {
+        ArrayList<ApnSetting> oldApns = createRandomApnSettings(new Random(0), 5);
+        ArrayList<ApnSetting> newApns = createRandomApnSettings(new Random(0), 5);
+        // same APNs loaded again
+        assertEquals(0, DcTracker.getChangedApns(oldApns, newApns).size());
+
+        newApns.remove(1);
+        ApnSetting edited = new ApnSetting(3, "310260", "carrier3", "edited", "", "", "", "",
+                "", "", "", -1, new String[] {PhoneConstants.APN_TYPE_DEFAULT}, "IP", "IP", true,
+                0, 0, 0, false, 0, 0, 0, 0, "", "");
+        newApns.set(2, edited);
+        ApnSetting added = createApnSetting(new String[] {PhoneConstants.APN_TYPE_IMS});
+        newApns.add(added);
+
+        assertEquals(Arrays.asList(edited, oldApns.get(3), added, oldApns.get(1)),
+                DcTracker.getChangedApns(oldApns, newApns));
+        assertEquals(newApns, DcTracker.getChangedApns(null, newApns));
+    }
+
+    // Test that an edit of the APN database, loaded off the DcTracker thread, tears down the
+    // data connection on the edited APN.
+    @Test
+    @MediumTest
+    public void testApnChanged() {
+        setupDefaultDataCall();
+
+        mApnSettingContentProvider.mApn1 = FAKE_APN1 + " edited";
+        logd("Sending EVENT_APN_CHANGED");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_APN_CHANGED, null));
+        waitForMs(200);
+
+        verify(mSimulatedCommandsVerifier, times(1)).deactivateDataCall(anyInt(), anyInt(),
+                any(Message.class));
+        assertEquals(1, getDctField("mApnBackgroundLoadCount"));
+        assertFalse((boolean) getDctField("mApnChangePending"));
+    }
+
+    // Test that the APN list loaded again while the load started by an APN change is in flight
+    // still tears down the data connection on the edited APN, and drops the superseded load.
+    @Test
+    @MediumTest
+    public void testApnChangedSupersededLoad() throws Exception {
+        setupDefaultDataCall();
+
+        // hold the APN loader thread so that the load started by the APN change is in flight
+        final CountDownLatch loaderLatch = new CountDownLatch(1);
+        ((Handler) getDctField("mApnLoaderHandler")).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loaderLatch.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+
+        mApnSettingContentProvider.mApn1 = FAKE_APN1 + " edited";
+        logd("Sending EVENT_APN_CHANGED");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_APN_CHANGED, null));
+        waitForMs(200);
+        verify(mSimulatedCommandsVerifier, never()).deactivateDataCall(anyInt(), anyInt(),
+                any(Message.class));
+        assertTrue((boolean) getDctField("mApnChangePending"));
+
+        logd("Sending EVENT_RECORDS_LOADED");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_RECORDS_LOADED, null));
+        waitForMs(200);
+        verify(mSimulatedCommandsVerifier, times(1)).deactivateDataCall(anyInt(), anyInt(),
+                any(Message.class));
+        assertFalse((boolean) getDctField("mApnChangePending"));
+
+        loaderLatch.countDown();
+        waitForMs(200);
+        verify(mSimulatedCommandsVerifier, times(1)).deactivateDataCall(anyInt(), anyInt(),
+                any(Message.class));
+        assertEquals(0, getDctField("mApnBackgroundLoadCount"));
+    }
+
+    // Test that a bring-up is deferred while the concurrent bring-ups are capped, and brought up
+    // once the bring-up in flight completes.
+    @Test
+    @MediumTest
+    public void testDataBringUpDeferredUntilComplete() {
+        Settings.Global.putInt(mContext.getContentResolver(), "data_bring_up_max_concurrent", 1);
+        final DataBringUpScheduler scheduler =
+                (DataBringUpScheduler) getDctField("mBringUpScheduler");
+        final ApnContext imsApnContext = ((Map<String, ApnContext>) getDctField("mApnContexts"))
+                .get(PhoneConstants.APN_TYPE_IMS);
+
+        // An IMS bring-up in flight takes the only slot
+        mDct.post(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.onBringUpStarted(PhoneConstants.APN_TYPE_IMS, 100,
+                        SystemClock.elapsedRealtime(), false);
+            }
+        });
+        waitForMs(200);
+
+        mDct.setDataEnabled(true);
+
+        logd("Sending EVENT_RECORDS_LOADED");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_RECORDS_LOADED, null));
+        waitForMs(200);
+
+        logd("Sending EVENT_ENABLE_NEW_APN");
+        // APN id 0 is APN_TYPE_DEFAULT
+        mDct.setEnabled(0, true);
+        waitForMs(200);
+
+        logd("Sending EVENT_DATA_CONNECTION_ATTACHED");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_DATA_CONNECTION_ATTACHED, null));
+        waitForMs(200);
+
+        verify(mSimulatedCommandsVerifier, never()).setupDataCall(anyInt(),
+                any(DataProfile.class), anyBoolean(), anyBoolean(), any(Message.class));
+        assertTrue(scheduler.isDeferred(PhoneConstants.APN_TYPE_DEFAULT));
+
+        logd("Sending EVENT_DATA_SETUP_COMPLETE_ERROR for the IMS bring-up");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_DATA_SETUP_COMPLETE_ERROR,
+                new AsyncResult(new Pair<ApnContext, Integer>(imsApnContext, 100), null, null)));
+        waitForMs(200);
+
+        verify(mSimulatedCommandsVerifier, times(1)).setupDataCall(
+                eq(mServiceState.getRilDataRadioTechnology()), any(DataProfile.class),
+                eq(false), eq(false), any(Message.class));
+        assertFalse(scheduler.isDeferred(PhoneConstants.APN_TYPE_DEFAULT));
+        verifyDataConnected(FAKE_APN1);
+    }
 }
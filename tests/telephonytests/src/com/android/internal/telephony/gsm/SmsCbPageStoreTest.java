@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.gsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import android.telephony.SmsCbLocation;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.metrics.TelephonyMetrics;
+
+import org.junit.Test;
+
+public class SmsCbPageStoreTest {
+    private static final int PDU_LENGTH = 88;
+
+    private static final SmsCbLocation sLocation = new SmsCbLocation("310260", 1234, 5678);
+
+    private final SmsCbPageStore mStore = new SmsCbPageStore();
+
+    /** GSM format page of a PLMN wide message with the given serial number */
+    private static byte[] page(int serialNumber, int pageIndex, int pageCount) {
+        byte[] pdu = new byte[PDU_LENGTH];
+        pdu[0] = (byte) (0x40 | (serialNumber >> 8));
+        pdu[1] = (byte) serialNumber;
+        pdu[2] = 0x00;
+        pdu[3] = 0x32;
+        pdu[4] = 0x01;
+        pdu[5] = (byte) ((pageIndex << 4) | pageCount);
+        return pdu;
+    }
+
+    private byte[][] addPage(byte[] pdu, SmsCbLocation location, long now) {
+        return mStore.addPage(new SmsCbHeader(pdu), location, pdu, now);
+    }
+
+    @Test
+    @SmallTest
+    public void testAssemble() {
+        byte[] page1 = page(1, 1, 3);
+        byte[] page2 = page(1, 2, 3);
+        byte[] page3 = page(1, 3, 3);
+        assertNull(addPage(page3, sLocation, 0));
+        assertNull(addPage(page1, sLocation, 0));
+        // repeated page
+        assertNull(addPage(page(1, 1, 3), sLocation, 0));
+        // same serial number from another location
+        assertNull(addPage(page2, new SmsCbLocation("310410"), 0));
+
+        byte[][] pdus = addPage(page2, sLocation, 0);
+        assertNotNull(pdus);
+        assertSame(page1, pdus[0]);
+        assertSame(page2, pdus[1]);
+        assertSame(page3, pdus[2]);
+        assertEquals(1, mStore.size());
+        assertEquals("SmsCbPageStore{messages=1 bytes=88 pagesReceived=5 messagesCompleted=1"
+                + " duplicatesDropped=1 pagesExpired=0 pagesEvicted=0 pagesOutOfLocation=0}",
+                mStore.toString());
+    }
+
+    @Test
+    @SmallTest
+    public void testExpiry() {
+        assertNull(addPage(page(1, 1, 2), sLocation, 0));
+        assertNull(addPage(page(2, 1, 2), sLocation, 1000));
+        assertNull(addPage(page(3, 1, 2), sLocation, SmsCbPageStore.EXPIRY_MILLIS));
+        assertEquals(2, mStore.size());
+        assertEquals(1, mStore.getDroppedPageCount());
+
+        // the first page of message 1 expired, so the message is incomplete again
+        assertNull(addPage(page(1, 2, 2), sLocation, SmsCbPageStore.EXPIRY_MILLIS));
+        assertNotNull(addPage(page(2, 2, 2), sLocation, SmsCbPageStore.EXPIRY_MILLIS));
+        assertEquals(1, mStore.getDroppedPageCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testEviction() {
+        for (int i = 0; i < SmsCbPageStore.MAX_MESSAGES + 5; i++) {
+            assertNull(addPage(page(i, 1, 2), sLocation, i));
+        }
+        assertEquals(SmsCbPageStore.MAX_MESSAGES, mStore.size());
+        assertEquals(5, mStore.getDroppedPageCount());
+
+        // the oldest messages were evicted
+        assertNull(addPage(page(0, 2, 2), sLocation, 100));
+        assertNotNull(addPage(page(6, 2, 2), sLocation, 100));
+    }
+
+    @Test
+    @SmallTest
+    public void testRemoveOutOfLocation() {
+        SmsCbLocation cellWide = new SmsCbLocation("310260", 1234, 5678);
+        SmsCbLocation laWide = new SmsCbLocation("310260", 1234, -1);
+        assertNull(addPage(page(1, 1, 2), cellWide, 0));
+        assertNull(addPage(page(2, 1, 2), laWide, 0));
+
+        mStore.removeOutOfLocation("310260", 1234, 4321);
+        assertEquals(1, mStore.size());
+        mStore.removeOutOfLocation("310410", 1234, 4321);
+        assertEquals(0, mStore.size());
+        assertEquals(2, mStore.getDroppedPageCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testWriteDroppedPages() {
+        TelephonyMetrics metrics = mock(TelephonyMetrics.class);
+        for (int i = 0; i < SmsCbPageStore.MAX_MESSAGES + 2; i++) {
+            assertNull(addPage(page(i, 1, 2), sLocation, 0));
+        }
+        assertNull(addPage(page(10, 1, 2), sLocation, 0));
+        assertNotNull(addPage(page(10, 2, 2), sLocation, 0));
+        mStore.writeDroppedPages(metrics, 1);
+        verify(metrics).writeCellBroadcastPagesDropped(1, SmsCbPageStore.MAX_MESSAGES + 4, 1, 1,
+                0, 2, 0);
+
+        // Only the pages since the previous call are written
+        assertNull(addPage(page(11, 2, 2), sLocation, SmsCbPageStore.EXPIRY_MILLIS));
+        mStore.removeOutOfLocation("310410", 1234, 5678);
+        mStore.writeDroppedPages(metrics, 1);
+        verify(metrics).writeCellBroadcastPagesDropped(1, 1, 0, 0,
+                SmsCbPageStore.MAX_MESSAGES - 1, 0, 1);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.metrics;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.nano.TelephonyProto;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    private LatencyHistogram mHistogram;
+
+    @Before
+    public void setUp() throws Exception {
+        mHistogram = new LatencyHistogram(1, 19);
+    }
+
+    // Test an empty histogram
+    @Test
+    @SmallTest
+    public void testEmpty() {
+        assertEquals(0, mHistogram.getCount());
+        assertEquals(0, mHistogram.getMinTimeMs());
+        assertEquals(0, mHistogram.getMaxTimeMs());
+        assertEquals(0, mHistogram.getAverageTimeMs());
+        assertEquals(0, mHistogram.getPercentileMs(50));
+    }
+
+    // Small values are counted exactly
+    @Test
+    @SmallTest
+    public void testExactSmallValues() {
+        for (int i = 1; i <= 10; i++) {
+            mHistogram.record(i);
+        }
+        assertEquals(10, mHistogram.getCount());
+        assertEquals(1, mHistogram.getMinTimeMs());
+        assertEquals(10, mHistogram.getMaxTimeMs());
+        assertEquals(5, mHistogram.getAverageTimeMs());
+        assertEquals(5, mHistogram.getPercentileMs(50));
+        assertEquals(10, mHistogram.getPercentileMs(95));
+        assertEquals(10, mHistogram.getPercentileMs(100));
+    }
+
+    // Larger values stay within the bucket precision
+    @Test
+    @SmallTest
+    public void testPercentilePrecision() {
+        for (int i = 1; i <= 1000; i++) {
+            mHistogram.record(i * 10);
+        }
+        assertPercentileNear(5000, mHistogram.getPercentileMs(50));
+        assertPercentileNear(9500, mHistogram.getPercentileMs(95));
+        assertPercentileNear(9900, mHistogram.getPercentileMs(99));
+        assertEquals(10000, mHistogram.getMaxTimeMs());
+        assertEquals(10000, mHistogram.getPercentileMs(100));
+    }
+
+    // Values beyond the trackable range are clamped
+    @Test
+    @SmallTest
+    public void testClamp() {
+        mHistogram.record(-5);
+        mHistogram.record(Long.MAX_VALUE);
+        assertEquals(0, mHistogram.getMinTimeMs());
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_MS, mHistogram.getMaxTimeMs());
+    }
+
+    // Test in-flight tracking
+    @Test
+    @SmallTest
+    public void testInFlight() {
+        mHistogram.onStart();
+        mHistogram.onStart();
+        mHistogram.onStart();
+        assertEquals(3, mHistogram.getInFlight());
+        mHistogram.onComplete(20);
+        mHistogram.onAbandon();
+        assertEquals(1, mHistogram.getInFlight());
+        assertEquals(3, mHistogram.getMaxInFlight());
+        assertEquals(1, mHistogram.getCount());
+    }
+
+    // Test proto output
+    @Test
+    @SmallTest
+    public void testWriteToProto() {
+        mHistogram.onStart();
+        mHistogram.onComplete(100);
+        mHistogram.onStart();
+
+        TelephonyProto.TelephonyHistogram proto = new TelephonyProto.TelephonyHistogram();
+        mHistogram.writeToProto(proto);
+        assertEquals(LatencyHistogram.CATEGORY_RIL_LATENCY, proto.category);
+        assertEquals(19, proto.id);
+        assertEquals(1, proto.phoneId);
+        assertEquals(1, proto.count);
+        assertEquals(100, proto.maxTimeMillis);
+        assertEquals(100, proto.p50TimeMillis);
+        assertEquals(100, proto.p99TimeMillis);
+        assertEquals(1, proto.inFlight);
+        assertEquals(2, proto.maxInFlight);
+    }
+
+    private static void assertPercentileNear(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / LatencyHistogram.SUB_BUCKET_COUNT);
+    }
+}
@@ -140,7 +140,7 @@ public class TelephonyMetricsTest extends TelephonyTest {
     @SmallTest
     public void testEventDropped() throws Exception {
         for (int i = 0; i < 1001; i++) {
-            mMetrics.writeDataStallEvent(mPhone.getPhoneId(), i);
+            mMetrics.writeDataStallEvent(mPhone.getPhoneId(), i, 0);
         }
         TelephonyLog log = buildProto();
         assertEquals(1000, log.events.length);
@@ -154,7 +154,7 @@ public class TelephonyMetricsTest extends TelephonyTest {
     @Test
     @SmallTest
     public void testWriteDataStallEvent() throws Exception {
-        mMetrics.writeDataStallEvent(mPhone.getPhoneId(), 3);
+        mMetrics.writeDataStallEvent(mPhone.getPhoneId(), 3, 0);
         TelephonyLog log = buildProto();
 
         assertEquals(1, log.events.length);
@@ -164,6 +164,53 @@ public class TelephonyMetricsTest extends TelephonyTest {
         assertEquals(3, log.events[0].dataStallAction);
     }
 
+    // Test write data stall event with detection latency
+    @Test
+    @SmallTest
+    public void testWriteDataStallEventWithLatency() throws Exception {
+        mMetrics.writeDataStallEvent(mPhone.getPhoneId(), 1, 75000);
+        TelephonyLog log = buildProto();
+
+        assertEquals(1, log.events.length);
+        assertEquals(mPhone.getPhoneId(), log.events[0].phoneId);
+        assertEquals(1, log.events[0].dataStallAction);
+        assertEquals(75000, log.events[0].dataStallDetectionLatencyMillis);
+    }
+
+    // Test write data bring-up event
+    @Test
+    @SmallTest
+    public void testWriteDataBringUpEvent() throws Exception {
+        mMetrics.writeDataBringUpEvent(mPhone.getPhoneId(), 1500, 3, 2, 2);
+        TelephonyLog log = buildProto();
+
+        assertEquals(1, log.events.length);
+        assertEquals(mPhone.getPhoneId(), log.events[0].phoneId);
+        assertEquals(TelephonyEvent.Type.DATA_BRING_UP, log.events[0].type);
+        assertEquals(1500, log.events[0].dataBringUp.durationMillis);
+        assertEquals(3, log.events[0].dataBringUp.apnCount);
+        assertEquals(2, log.events[0].dataBringUp.connectedCount);
+        assertEquals(2, log.events[0].dataBringUp.maxConcurrent);
+    }
+
+    // Test write cell broadcast pages dropped event
+    @Test
+    @SmallTest
+    public void testWriteCellBroadcastPagesDropped() throws Exception {
+        mMetrics.writeCellBroadcastPagesDropped(mPhone.getPhoneId(), 40, 3, 2, 5, 4, 1);
+        TelephonyLog log = buildProto();
+
+        assertEquals(1, log.events.length);
+        assertEquals(mPhone.getPhoneId(), log.events[0].phoneId);
+        assertEquals(TelephonyEvent.Type.CELL_BROADCAST_PAGES_DROPPED, log.events[0].type);
+        assertEquals(40, log.events[0].cellBroadcastPages.pagesReceived);
+        assertEquals(3, log.events[0].cellBroadcastPages.messagesCompleted);
+        assertEquals(2, log.events[0].cellBroadcastPages.duplicatesDropped);
+        assertEquals(5, log.events[0].cellBroadcastPages.pagesExpired);
+        assertEquals(4, log.events[0].cellBroadcastPages.pagesEvicted);
+        assertEquals(1, log.events[0].cellBroadcastPages.pagesOutOfLocation);
+    }
+
     // Test write modem restart event
     @Test
     @SmallTest
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.telephony.uicc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class AdnRecordIndexTest {
+    private static final String[] NAMES = new String[] {"", "Alice", "Bob", null};
+    private static final String[] NUMBERS = new String[] {"", "5551234", "5556789", null};
+
+    private static AdnRecord emptyRecord() {
+        return new AdnRecord("", "");
+    }
+
+    private static ArrayList<AdnRecord> newRecords() {
+        ArrayList<AdnRecord> records = new ArrayList<AdnRecord>();
+        records.add(new AdnRecord("Alice", "5551234"));
+        records.add(emptyRecord());
+        records.add(new AdnRecord("Bob", "5551234"));
+        records.add(new AdnRecord("Carol", ""));
+        records.add(emptyRecord());
+        return records;
+    }
+
+    /** The index of the record found by scanning the records in order */
+    private static int scan(ArrayList<AdnRecord> records, AdnRecord adn) {
+        for (int i = 0; i < records.size(); i++) {
+            if (adn.isEqual(records.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    @SmallTest
+    public void testIndexOf() {
+        AdnRecordIndex index = new AdnRecordIndex(newRecords());
+        assertEquals(0, index.indexOf(new AdnRecord("Alice", "5551234")));
+        assertEquals(2, index.indexOf(new AdnRecord("Bob", "5551234")));
+        assertEquals(3, index.indexOf(new AdnRecord("Carol", null)));
+        assertEquals(-1, index.indexOf(new AdnRecord("Alice", "5556789")));
+        // An empty record finds the first free record
+        assertEquals(1, index.indexOf(emptyRecord()));
+        assertEquals(2, index.getFreeCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testSet() {
+        ArrayList<AdnRecord> records = newRecords();
+        AdnRecordIndex index = new AdnRecordIndex(records);
+
+        AdnRecord dave = new AdnRecord("Dave", "5556789");
+        index.set(1, dave);
+        assertSame(dave, records.get(1));
+        assertEquals(1, index.indexOf(new AdnRecord("Dave", "5556789")));
+        assertEquals(4, index.indexOf(emptyRecord()));
+        assertEquals(1, index.getFreeCount());
+
+        // Deleting a record frees it
+        index.set(0, emptyRecord());
+        assertEquals(-1, index.indexOf(new AdnRecord("Alice", "5551234")));
+        assertEquals(0, index.indexOf(emptyRecord()));
+        assertEquals(2, index.indexOf(new AdnRecord("Bob", "5551234")));
+    }
+
+    @Test
+    @SmallTest
+    public void testRecordChangedInPlace() {
+        ArrayList<AdnRecord> records = newRecords();
+        AdnRecordIndex index = new AdnRecordIndex(records);
+
+        // Emails are added to USIM records after they are indexed
+        String[] emails = new String[] {"carol@example.com"};
+        records.get(1).setEmails(emails);
+        assertEquals(1, index.indexOf(new AdnRecord("", "", emails)));
+        assertEquals(4, index.indexOf(emptyRecord()));
+    }
+
+    @Test
+    @SmallTest
+    public void testIndexOfMatchesScan() {
+        Random random = new Random(0);
+        ArrayList<AdnRecord> records = new ArrayList<AdnRecord>();
+        ArrayList<AdnRecord> scanned = new ArrayList<AdnRecord>();
+        for (int i = 0; i < 50; i++) {
+            AdnRecord adn = randomRecord(random);
+            records.add(adn);
+            scanned.add(adn);
+        }
+        AdnRecordIndex index = new AdnRecordIndex(records);
+
+        for (int i = 0; i < 1000; i++) {
+            AdnRecord adn = randomRecord(random);
+            assertEquals(scan(scanned, adn), index.indexOf(adn));
+
+            int position = random.nextInt(records.size());
+            AdnRecord newAdn = randomRecord(random);
+            index.set(position, newAdn);
+            scanned.set(position, newAdn);
+        }
+    }
+
+    private static AdnRecord randomRecord(Random random) {
+        return new AdnRecord(NAMES[random.nextInt(NAMES.length)],
+                NUMBERS[random.nextInt(NUMBERS.length)]);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.telephony.uicc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+public class BerTlvDecoderTest {
+    private static BerTlvDecoder decoder(String hexString) {
+        return new BerTlvDecoder(IccUtils.hexStringToBytes(hexString));
+    }
+
+    private static void assertInvalid(String hexString) {
+        BerTlvDecoder decoder = decoder(hexString);
+        try {
+            decoder.next();
+            fail("Decoded invalid data " + hexString);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testNested() {
+        /**
+         * FF40 08
+         *   E2 06
+         *     C1 01 AB
+         *     CA 01 CD
+         */
+        BerTlvDecoder decoder = decoder("FF4008E206C101ABCA01CD");
+        assertEquals(0xFF40, decoder.peekTag());
+        assertEquals(11, decoder.peekEncodedLength());
+        assertEquals(0xFF40, decoder.next());
+        assertFalse(decoder.hasNext());
+
+        BerTlvDecoder refArDo = decoder.getValueDecoder();
+        refArDo.next(0xE2);
+        BerTlvDecoder refDo = refArDo.getValueDecoder();
+        refDo.next(0xC1);
+        assertArrayEquals(new byte[] {(byte) 0xAB}, refDo.getValue());
+        assertEquals(0xCA, refDo.next());
+        assertTrue(refDo.valueEquals(new byte[] {(byte) 0xCD}));
+        assertFalse(refDo.hasNext());
+    }
+
+    @Test
+    @SmallTest
+    public void testMultiByteLength() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 0x102; i++) {
+            value.append("5A");
+        }
+        BerTlvDecoder decoder = decoder("C1820102" + value + "DB00");
+        decoder.next(0xC1);
+        assertEquals(0x102, decoder.getValueLength());
+        decoder.next(0xDB);
+        assertEquals(0, decoder.getValueLength());
+        assertFalse(decoder.hasNext());
+
+        assertEquals(0x83, decoder("C18180").peekEncodedLength());
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalid() {
+        assertInvalid("C1");
+        assertInvalid("C102AB");
+        assertInvalid("C182");
+        assertInvalid("C180");
+        assertInvalid("FF");
+        assertInvalid("FFC0");
+
+        try {
+            decoder("C100").next(0xCA);
+            fail("Decoded unexpected tag");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
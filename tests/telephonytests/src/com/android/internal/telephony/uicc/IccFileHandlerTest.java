@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.telephony.uicc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.CommandException;
+import com.android.internal.telephony.CommandsInterface;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class IccFileHandlerTest {
+    private static final int RECORD_SIZE = 4;
+
+    private CommandsInterface mCi;
+    private IccFileHandler mFh;
+    private Message mOnLoaded;
+
+    @Before
+    public void setUp() throws Exception {
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mCi = mock(CommandsInterface.class);
+        mFh = new SIMFileHandler(mock(UiccCardApplication.class), "", mCi);
+        mOnLoaded = Message.obtain(new Handler());
+    }
+
+    private static byte[] record(int value) {
+        byte[] data = new byte[RECORD_SIZE];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private static byte[] emptyRecord() {
+        return record(0xff);
+    }
+
+    /**
+     * @return the requests sent to the card so far, in order
+     */
+    private List<Message> sentRequests(int count) {
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(mCi, times(count)).iccIOForApp(anyInt(), anyInt(), anyString(), anyInt(),
+                anyInt(), anyInt(), (String) isNull(), (String) isNull(), anyString(),
+                captor.capture());
+        return captor.getAllValues();
+    }
+
+    private void respond(Message request, byte[] payload) {
+        AsyncResult.forMessage(request, new IccIoResult(0x90, 0x00, payload), null);
+        mFh.handleMessage(request);
+    }
+
+    private void respondError(Message request) {
+        AsyncResult.forMessage(request, null,
+                new CommandException(CommandException.Error.GENERIC_FAILURE));
+        mFh.handleMessage(request);
+    }
+
+    /** Answer the GET RESPONSE of a linear fixed EF */
+    private void respondRecordSize(Message request, int countRecords) {
+        byte[] data = new byte[15];
+        int size = countRecords * RECORD_SIZE;
+        data[IccFileHandler.RESPONSE_DATA_FILE_SIZE_1] = (byte) (size >> 8);
+        data[IccFileHandler.RESPONSE_DATA_FILE_SIZE_2] = (byte) size;
+        data[IccFileHandler.RESPONSE_DATA_FILE_TYPE] = IccFileHandler.TYPE_EF;
+        data[IccFileHandler.RESPONSE_DATA_STRUCTURE] = IccFileHandler.EF_TYPE_LINEAR_FIXED;
+        data[IccFileHandler.RESPONSE_DATA_RECORD_LENGTH] = RECORD_SIZE;
+        respond(request, data);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ArrayList<byte[]> loadedRecords() {
+        AsyncResult ar = (AsyncResult) mOnLoaded.obj;
+        assertNotNull(ar);
+        assertNull(ar.exception);
+        return (ArrayList<byte[]>) ar.result;
+    }
+
+    @Test
+    @SmallTest
+    public void testLoadAllPipelinedInOrder() {
+        mFh.loadEFLinearFixedAll(IccConstants.EF_ADN, null, 3, 0, mOnLoaded);
+        respondRecordSize(sentRequests(1).get(0), 5);
+
+        // The window of records is requested at once
+        List<Message> requests = sentRequests(4);
+        assertEquals(1, requests.get(1).arg1);
+        assertEquals(3, requests.get(3).arg1);
+
+        // Answers out of order are put back in order
+        respond(requests.get(2), record(2));
+        respond(requests.get(1), record(1));
+        requests = sentRequests(6);
+        respond(requests.get(5), record(5));
+        respond(requests.get(3), record(3));
+        assertNull(mOnLoaded.obj);
+        respond(requests.get(4), record(4));
+
+        ArrayList<byte[]> records = loadedRecords();
+        assertEquals(5, records.size());
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(record(i + 1), records.get(i));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testLoadAllStopsAfterTrailingEmptyRecords() {
+        mFh.loadEFLinearFixedAll(IccConstants.EF_ADN, null, 2, 2, mOnLoaded);
+        respondRecordSize(sentRequests(1).get(0), 10);
+
+        List<Message> requests = sentRequests(3);
+        respond(requests.get(1), record(1));
+        respond(requests.get(2), emptyRecord());
+        requests = sentRequests(5);
+        respond(requests.get(3), emptyRecord());
+        // Record 4 was requested before the trailing empty records were found
+        assertNull(mOnLoaded.obj);
+        respond(requests.get(4), emptyRecord());
+        sentRequests(5);
+
+        ArrayList<byte[]> records = loadedRecords();
+        assertEquals(10, records.size());
+        assertArrayEquals(record(1), records.get(0));
+        for (int i = 1; i < 10; i++) {
+            assertArrayEquals(emptyRecord(), records.get(i));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testLoadAllErrorSentOnce() {
+        mFh.loadEFLinearFixedAll(IccConstants.EF_ADN, null, 3, 0, mOnLoaded);
+        respondRecordSize(sentRequests(1).get(0), 5);
+
+        List<Message> requests = sentRequests(4);
+        respondError(requests.get(1));
+        AsyncResult ar = (AsyncResult) mOnLoaded.obj;
+        assertNotNull(ar.exception);
+
+        // Outstanding records of the failed load are ignored
+        mOnLoaded.obj = null;
+        respond(requests.get(2), record(2));
+        respond(requests.get(3), record(3));
+        assertNull(mOnLoaded.obj);
+        sentRequests(4);
+    }
+
+    @Test
+    @SmallTest
+    public void testLoadAllWithoutWindowReadsOneRecordAtATime() {
+        mFh.loadEFLinearFixedAll(IccConstants.EF_ADN, mOnLoaded);
+        respondRecordSize(sentRequests(1).get(0), 2);
+
+        respond(sentRequests(2).get(1), record(1));
+        respond(sentRequests(3).get(2), record(2));
+
+        ArrayList<byte[]> records = loadedRecords();
+        assertEquals(2, records.size());
+        assertArrayEquals(record(2), records.get(1));
+    }
+
+    private void verifyGetResponses(int count) {
+        verify(mCi, times(count)).iccIOForApp(eq(IccFileHandler.COMMAND_GET_RESPONSE),
+                anyInt(), anyString(), anyInt(), anyInt(), anyInt(), (String) isNull(),
+                (String) isNull(), anyString(), (Message) anyObject());
+    }
+
+    private void refresh(int refreshResult, int efid) {
+        IccRefreshResponse refreshResponse = new IccRefreshResponse();
+        refreshResponse.refreshResult = refreshResult;
+        refreshResponse.efId = efid;
+        Message msg = mFh.obtainMessage(IccFileHandler.EVENT_ICC_REFRESH);
+        AsyncResult.forMessage(msg, refreshResponse, null);
+        mFh.handleMessage(msg);
+    }
+
+    @Test
+    @SmallTest
+    public void testRecordSizeCached() {
+        mFh.loadEFLinearFixed(IccConstants.EF_ADN, 1, mOnLoaded);
+        respondRecordSize(sentRequests(1).get(0), 5);
+        respond(sentRequests(2).get(1), record(1));
+
+        // The second read goes straight to READ RECORD
+        mOnLoaded = Message.obtain(new Handler());
+        mFh.loadEFLinearFixed(IccConstants.EF_ADN, 2, mOnLoaded);
+        Message request = sentRequests(3).get(2);
+        verifyGetResponses(1);
+        IccFileHandler.LoadLinearFixedContext lc =
+                (IccFileHandler.LoadLinearFixedContext) request.obj;
+        assertEquals(RECORD_SIZE, lc.mRecordSize);
+        respond(request, record(2));
+        assertArrayEquals(record(2), (byte[]) ((AsyncResult) mOnLoaded.obj).result);
+    }
+
+    @Test
+    @SmallTest
+    public void testRecordSizeCacheInvalidatedOnRefresh() {
+        mFh.loadEFLinearFixed(IccConstants.EF_ADN, 1, mOnLoaded);
+        respondRecordSize(sentRequests(1).get(0), 5);
+
+        // Another file was updated
+        refresh(IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE, IccConstants.EF_FDN);
+        mFh.loadEFLinearFixed(IccConstants.EF_ADN, 2, Message.obtain(new Handler()));
+        verifyGetResponses(1);
+
+        refresh(IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE, IccConstants.EF_ADN);
+        mFh.loadEFLinearFixed(IccConstants.EF_ADN, 2, Message.obtain(new Handler()));
+        verifyGetResponses(2);
+        respondRecordSize(sentRequests(4).get(3), 5);
+
+        refresh(IccRefreshResponse.REFRESH_RESULT_INIT, 0);
+        mFh.loadEFLinearFixed(IccConstants.EF_ADN, 2, Message.obtain(new Handler()));
+        verifyGetResponses(3);
+    }
+}
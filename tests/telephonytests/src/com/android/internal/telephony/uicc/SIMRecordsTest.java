@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.telephony.uicc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.MessageQueue;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Pair;
+
+import com.android.internal.telephony.CommandException;
+import com.android.internal.telephony.CommandsInterface;
+import com.android.internal.telephony.TelephonyTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SIMRecordsTest extends TelephonyTest {
+    private static final int EVENT_RECORDS_LOADED = 1;
+    private static final int EVENT_RECORDS_EVENT = 2;
+
+    /** Pseudo EF id of the IMSI, which is read with a RIL request */
+    private static final int IMSI = -1;
+    private static final String IMSI_VALUE = "310260000000000";
+    private static final byte[] ICCID_1 = IccUtils.hexStringToBytes("98101430121181157002");
+    private static final byte[] ICCID_2 = IccUtils.hexStringToBytes("98101430121181157012");
+    private static final byte[] GID1 = new byte[] {(byte) 0xBA, (byte) 0xFF};
+    private static final byte[] SPDI = new byte[] {
+            (byte) 0xA3, 0x05, (byte) 0x80, 0x03, 0x13, 0x00, 0x14};
+
+    private SIMRecordsTestHandlerThread mTestHandlerThread;
+    private Handler mHandler;
+    private int mRecordsLoadedCount;
+    private int mSpnEventCount;
+
+    /** Requests sent to the card and not answered yet, with the EF they read */
+    private final ArrayList<Pair<Integer, Message>> mPendingRequests =
+            new ArrayList<Pair<Integer, Message>>();
+
+    private class SIMRecordsTestHandlerThread extends HandlerThread {
+        private SIMRecordsTestHandlerThread(String name) {
+            super(name);
+        }
+
+        @Override
+        public void onLooperPrepared() {
+            mHandler = new Handler(getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    switch (msg.what) {
+                        case EVENT_RECORDS_LOADED:
+                            mRecordsLoadedCount++;
+                            break;
+                        case EVENT_RECORDS_EVENT:
+                            if ((int) ((AsyncResult) msg.obj).result == IccRecords.EVENT_SPN) {
+                                mSpnEventCount++;
+                            }
+                            break;
+                        default:
+                            logd("Unknown Event " + msg.what);
+                    }
+                }
+            };
+            setReady(true);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mTestHandlerThread = new SIMRecordsTestHandlerThread(TAG);
+        mTestHandlerThread.start();
+        waitUntilReady();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mTestHandlerThread.quit();
+        super.tearDown();
+    }
+
+    private Answer<Void> pendingRequest(final int messageIndex, final int efIndex) {
+        return new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                int ef = (efIndex < 0) ? IMSI : (int) args[efIndex];
+                synchronized (mPendingRequests) {
+                    mPendingRequests.add(new Pair<Integer, Message>(ef,
+                            (Message) args[messageIndex]));
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @return SIMRecords reading the card of a slot through mocks that keep the requests
+     * pending until they are answered by {@link #respond}
+     */
+    private SIMRecords createSimRecords(int slotId) {
+        UiccCardApplication app = mock(UiccCardApplication.class);
+        IccFileHandler fh = mock(IccFileHandler.class);
+        CommandsInterface ci = mock(CommandsInterface.class);
+        doReturn(fh).when(app).getIccFileHandler();
+        doReturn(slotId).when(app).getPhoneId();
+        doAnswer(pendingRequest(1, 0)).when(fh).loadEFTransparent(anyInt(),
+                any(Message.class));
+        doAnswer(pendingRequest(2, 0)).when(fh).loadEFLinearFixed(anyInt(), anyInt(),
+                any(Message.class));
+        doAnswer(pendingRequest(3, 0)).when(fh).loadEFLinearFixed(anyInt(),
+                nullable(String.class), anyInt(), any(Message.class));
+        doAnswer(pendingRequest(1, -1)).when(ci).getIMSIForApp(nullable(String.class),
+                any(Message.class));
+
+        final SIMRecords[] records = new SIMRecords[1];
+        mHandler.post(() -> {
+            records[0] = new SIMRecords(app, mContext, ci);
+            records[0].registerForRecordsLoaded(mHandler, EVENT_RECORDS_LOADED, null);
+            records[0].registerForRecordsEvents(mHandler, EVENT_RECORDS_EVENT, null);
+            records[0].fetchSimRecords();
+        });
+        processAllMessages();
+        return records[0];
+    }
+
+    /**
+     * Answer the pending requests that read an EF, or all the pending requests if ef is null,
+     * and the requests they trigger. EFs missing from the card are answered with an error.
+     */
+    private void respond(HashMap<Integer, byte[]> card, Integer ef) {
+        while (true) {
+            ArrayList<Message> requests = new ArrayList<Message>();
+            synchronized (mPendingRequests) {
+                Iterator<Pair<Integer, Message>> it = mPendingRequests.iterator();
+                while (it.hasNext()) {
+                    Pair<Integer, Message> request = it.next();
+                    if (ef == null || ef.equals(request.first)) {
+                        it.remove();
+                        Object result = (request.first == IMSI)
+                                ? IMSI_VALUE : card.get(request.first);
+                        AsyncResult.forMessage(request.second, result, (result == null)
+                                ? new CommandException(CommandException.Error.GENERIC_FAILURE)
+                                : null);
+                        requests.add(request.second);
+                    }
+                }
+            }
+            if (requests.isEmpty()) {
+                return;
+            }
+            for (Message request : requests) {
+                request.sendToTarget();
+            }
+            processAllMessages();
+        }
+    }
+
+    /**
+     * Wait until the handler thread has no message left, including the messages sent while
+     * waiting, e.g. a response relayed by an AdnRecordLoader.
+     */
+    private void processAllMessages() {
+        final MessageQueue queue = mTestHandlerThread.getLooper().getQueue();
+        final AtomicBoolean idle = new AtomicBoolean();
+        do {
+            final CountDownLatch lock = new CountDownLatch(1);
+            mHandler.post(() -> {
+                idle.set(queue.isIdle());
+                lock.countDown();
+            });
+            try {
+                assertTrue(lock.await(1000, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        } while (!idle.get());
+    }
+
+    private static HashMap<Integer, byte[]> newCard(byte[] iccId) {
+        HashMap<Integer, byte[]> card = new HashMap<Integer, byte[]>();
+        card.put(IccConstants.EF_ICCID, iccId);
+        card.put(IccConstants.EF_GID1, GID1);
+        return card;
+    }
+
+    /** Read a card until all its records are loaded, storing its snapshot */
+    private void readCard(int slotId, HashMap<Integer, byte[]> card) {
+        SIMRecords records = createSimRecords(slotId);
+        respond(card, null);
+        assertTrue(records.getRecordsLoaded());
+        // As on a radio reset, which keeps the snapshot
+        mHandler.post(records::dispose);
+        processAllMessages();
+        mRecordsLoadedCount = 0;
+        mSpnEventCount = 0;
+    }
+
+    @Test
+    @SmallTest
+    public void testRecordsPublishedFromSnapshotOnceImsiRead() {
+        HashMap<Integer, byte[]> card = newCard(ICCID_1);
+        readCard(0, card);
+
+        SIMRecords records = createSimRecords(0);
+        respond(card, IccConstants.EF_ICCID);
+        assertFalse(records.getRecordsLoaded());
+
+        // The IMSI is always read from the card, the other records come from the snapshot
+        respond(card, IMSI);
+        assertTrue(records.getRecordsLoaded());
+        assertEquals(1, mRecordsLoadedCount);
+        assertEquals(IccUtils.bytesToHexString(GID1), records.getGid1());
+
+        // Reading the same records from the card does not publish them again
+        respond(card, null);
+        assertTrue(records.getRecordsLoaded());
+        assertEquals(1, mRecordsLoadedCount);
+        assertEquals(0, mSpnEventCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testChangedRecordsNotifiedAfterSnapshot() {
+        HashMap<Integer, byte[]> card = newCard(ICCID_1);
+        readCard(0, card);
+
+        card.put(IccConstants.EF_GID1, new byte[] {0x01});
+        card.put(IccConstants.EF_SPDI, SPDI);
+        SIMRecords records = createSimRecords(0);
+        respond(card, IccConstants.EF_ICCID);
+        respond(card, IMSI);
+        assertEquals(IccUtils.bytesToHexString(GID1), records.getGid1());
+
+        respond(card, null);
+        assertEquals(1, mRecordsLoadedCount);
+        assertEquals("01", records.getGid1());
+        // The records that differ from the snapshot are notified
+        assertEquals(1, mSpnEventCount);
+
+        // The card as read is the snapshot of the next read
+        records = createSimRecords(0);
+        respond(card, IccConstants.EF_ICCID);
+        respond(card, IMSI);
+        assertEquals("01", records.getGid1());
+    }
+
+    @Test
+    @SmallTest
+    public void testSnapshotsKeptPerSlot() {
+        HashMap<Integer, byte[]> card1 = newCard(ICCID_1);
+        HashMap<Integer, byte[]> card2 = newCard(ICCID_2);
+        card2.put(IccConstants.EF_GID1, new byte[] {0x02});
+        readCard(0, card1);
+        readCard(1, card2);
+
+        SIMRecords records = createSimRecords(0);
+        respond(card1, IccConstants.EF_ICCID);
+        respond(card1, IMSI);
+        assertTrue(records.getRecordsLoaded());
+        assertEquals(IccUtils.bytesToHexString(GID1), records.getGid1());
+        respond(card1, null);
+
+        records = createSimRecords(1);
+        respond(card2, IccConstants.EF_ICCID);
+        respond(card2, IMSI);
+        assertTrue(records.getRecordsLoaded());
+        assertEquals("02", records.getGid1());
+    }
+
+    @Test
+    @SmallTest
+    public void testSnapshotNotReplayedForAnotherCard() {
+        readCard(0, newCard(ICCID_1));
+
+        HashMap<Integer, byte[]> card = newCard(ICCID_2);
+        SIMRecords records = createSimRecords(0);
+        respond(card, IccConstants.EF_ICCID);
+        respond(card, IMSI);
+        assertFalse(records.getRecordsLoaded());
+
+        respond(card, null);
+        assertTrue(records.getRecordsLoaded());
+        assertEquals(1, mRecordsLoadedCount);
+    }
+}
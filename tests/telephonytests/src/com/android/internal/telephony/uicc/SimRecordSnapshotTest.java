@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.telephony.uicc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class SimRecordSnapshotTest {
+    private static final String ICCID = "89014103211118510720";
+
+    private static final byte[] AD = new byte[] {0x00, 0x00, 0x00, 0x02};
+    private static final byte[] GID1 = new byte[] {(byte) 0xBA, (byte) 0xFF};
+
+    private static SimRecordSnapshot newSnapshot() {
+        SimRecordSnapshot snapshot = new SimRecordSnapshot(ICCID);
+        snapshot.put(SimRecordSnapshot.KEY_SPN, "Carrier".getBytes());
+        snapshot.put(IccConstants.EF_AD, AD);
+        snapshot.put(IccConstants.EF_GID1, GID1);
+        return snapshot;
+    }
+
+    @Test
+    @SmallTest
+    public void testEncodeDecode() {
+        SimRecordSnapshot snapshot = newSnapshot();
+        SimRecordSnapshot decoded = SimRecordSnapshot.decode(ICCID, snapshot.encode());
+        assertNotNull(decoded);
+        assertEquals(snapshot, decoded);
+        assertEquals(3, decoded.size());
+        assertArrayEquals(AD, decoded.get(IccConstants.EF_AD));
+        assertEquals("Carrier", new String(decoded.get(SimRecordSnapshot.KEY_SPN)));
+    }
+
+    @Test
+    @SmallTest
+    public void testDecodeEmptyAndMalformed() {
+        SimRecordSnapshot empty = SimRecordSnapshot.decode(ICCID, "");
+        assertNotNull(empty);
+        assertEquals(0, empty.size());
+
+        assertNull(SimRecordSnapshot.decode(ICCID, "28589"));
+        assertNull(SimRecordSnapshot.decode(ICCID, "ad:00"));
+    }
+
+    @Test
+    @SmallTest
+    public void testMatches() {
+        SimRecordSnapshot snapshot = newSnapshot();
+        assertTrue(snapshot.matches(IccConstants.EF_GID1, GID1.clone()));
+        assertFalse(snapshot.matches(IccConstants.EF_GID1, AD));
+        // A record that failed to load matches only a record missing from the snapshot
+        assertFalse(snapshot.matches(IccConstants.EF_GID1, null));
+        assertTrue(snapshot.matches(IccConstants.EF_GID2, null));
+    }
+
+    @Test
+    @SmallTest
+    public void testEquals() {
+        SimRecordSnapshot snapshot = newSnapshot();
+        SimRecordSnapshot other = newSnapshot();
+        assertEquals(snapshot, other);
+
+        other.put(IccConstants.EF_GID1, new byte[] {0x01});
+        assertFalse(snapshot.equals(other));
+
+        other = newSnapshot();
+        other.put(IccConstants.EF_GID1, null);
+        assertFalse(snapshot.equals(other));
+
+        assertFalse(snapshot.equals(new SimRecordSnapshot("89014103211118510721")));
+    }
+
+    @Test
+    @SmallTest
+    public void testGetChangedKeys() {
+        SimRecordSnapshot snapshot = newSnapshot();
+        SimRecordSnapshot other = newSnapshot();
+        assertTrue(other.getChangedKeys(snapshot).isEmpty());
+
+        other.put(IccConstants.EF_GID1, new byte[] {0x01});
+        other.put(IccConstants.EF_GID2, GID1);
+        other.put(IccConstants.EF_AD, null);
+        assertEquals(Arrays.asList(IccConstants.EF_GID1, IccConstants.EF_GID2,
+                IccConstants.EF_AD), other.getChangedKeys(snapshot));
+    }
+}
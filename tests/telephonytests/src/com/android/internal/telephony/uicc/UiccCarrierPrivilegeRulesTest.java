@@ -18,15 +18,21 @@ package com.android.internal.telephony.uicc;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
+import android.content.pm.PackageInfo;
 import android.content.pm.Signature;
 import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.telephony.TelephonyManager;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.internal.telephony.TelephonyTest;
@@ -38,6 +44,8 @@ import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.security.MessageDigest;
+
 public class UiccCarrierPrivilegeRulesTest extends TelephonyTest {
     private UiccCarrierPrivilegeRules mUiccCarrierPrivilegeRules;
     public UiccCarrierPrivilegeRulesTest() {
@@ -289,4 +297,96 @@ public class UiccCarrierPrivilegeRulesTest extends TelephonyTest {
         assertTrue(!mUiccCarrierPrivilegeRules.hasCarrierPrivilegeRules());
         assertEquals(0, mUiccCarrierPrivilegeRules.getPackageNames().size());
     }
+
+    private static String getRulesForSignature(Signature signature) throws Exception {
+        String certHash = IccUtils.bytesToHexString(
+                MessageDigest.getInstance("SHA-256").digest(signature.toByteArray()));
+        /**
+         * FF40 32
+         *   E2 30
+         *      E1 22
+         *         C1 20 <SHA-256 of signature>
+         *      E3 0A
+         *         DB 08 0000000000000001
+         */
+        return "FF4032E230E122C120" + certHash + "E30ADB080000000000000001";
+    }
+
+    @Test
+    @SmallTest
+    public void testGetCarrierPrivilegeStatus_PackageInfo() throws Exception {
+        Signature signature = new Signature("abcdef");
+        Signature otherSignature = new Signature("123456");
+        testHelper(getRulesForSignature(signature));
+
+        assertTrue(mUiccCarrierPrivilegeRules.hasCarrierPrivilegeRules());
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = "com.example.app";
+        packageInfo.signatures = new Signature[] {otherSignature, signature};
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS,
+                mUiccCarrierPrivilegeRules.getCarrierPrivilegeStatus(packageInfo));
+
+        packageInfo.signatures = new Signature[] {otherSignature};
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS,
+                mUiccCarrierPrivilegeRules.getCarrierPrivilegeStatus(packageInfo));
+    }
+
+    @Test
+    @SmallTest
+    public void testGetCarrierPrivilegeStatus_PackageName() throws Exception {
+        Signature signature = new Signature("abcdef");
+        String certHash = IccUtils.bytesToHexString(
+                MessageDigest.getInstance("SHA-256").digest(signature.toByteArray()));
+        /**
+         * FF40 43
+         *   E2 41
+         *      E1 33
+         *         C1 20 <SHA-256 of signature>
+         *         CA 0F 636F6D2E6578616D706C652E617070 (com.example.app)
+         *      E3 0A
+         *         DB 08 0000000000000001
+         */
+        testHelper("FF4043E241E133C120" + certHash + "CA0F636F6D2E6578616D706C652E617070"
+                + "E30ADB080000000000000001");
+
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS,
+                mUiccCarrierPrivilegeRules.getCarrierPrivilegeStatus(signature,
+                        "com.example.app"));
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS,
+                mUiccCarrierPrivilegeRules.getCarrierPrivilegeStatus(signature,
+                        "com.example.other"));
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS,
+                mUiccCarrierPrivilegeRules.getCarrierPrivilegeStatus(new Signature("123456"),
+                        "com.example.app"));
+    }
+
+    @Test
+    @SmallTest
+    public void testGetCarrierPrivilegeStatus_Cached() throws Exception {
+        Signature signature = new Signature("abcdef");
+        testHelper(getRulesForSignature(signature));
+
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = "com.example.app";
+        packageInfo.signatures = new Signature[] {signature};
+        doReturn(packageInfo).when(mPackageManager).getPackageInfo(eq("com.example.app"),
+                anyInt());
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS,
+                    mUiccCarrierPrivilegeRules.getCarrierPrivilegeStatus(mPackageManager,
+                            "com.example.app"));
+        }
+        verify(mPackageManager, times(1)).getPackageInfo(eq("com.example.app"), anyInt());
+        assertEquals(1, mUiccCarrierPrivilegeRules.getCarrierPrivilegeStatusCacheHits());
+        assertEquals(1, mUiccCarrierPrivilegeRules.getCarrierPrivilegeStatusCacheMisses());
+
+        // The package was replaced
+        packageInfo.signatures = new Signature[] {new Signature("123456")};
+        mUiccCarrierPrivilegeRules.clearCarrierPrivilegeStatusCache();
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS,
+                mUiccCarrierPrivilegeRules.getCarrierPrivilegeStatus(mPackageManager,
+                        "com.example.app"));
+        verify(mPackageManager, times(2)).getPackageInfo(eq("com.example.app"), anyInt());
+    }
 }
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.mms.pdu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class PduParserTest {
+    private static final String TAG = "PduParserTest";
+
+    private static final int CONTENT_TYPE_TEXT_PLAIN = 0x83;
+    private static final int CONTENT_TYPE_TEXT_HTML = 0x82;
+    private static final int CONTENT_TYPE_IMAGE_JPEG = 0x9E;
+    private static final int CONTENT_TYPE_MULTIPART_ALTERNATIVE = 0xA6;
+    private static final int CONTENT_TYPE_MULTIPART_RELATED = 0xB3;
+
+    private static void writeUintvar(ByteArrayOutputStream out, int value) {
+        int shift = 28;
+        while (shift > 0 && (value >>> shift) == 0) {
+            shift -= 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            out.write(0x80 | ((value >>> shift) & 0x7F));
+        }
+        out.write(value & 0x7F);
+    }
+
+    private static void writeTextString(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes();
+        out.write(bytes, 0, bytes.length);
+        out.write(0);
+    }
+
+    private static byte[] filledData(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    /**
+     * @param contentType a well-known content type, or a String
+     */
+    private static void writePart(ByteArrayOutputStream out, Object contentType,
+            String location, byte[] data) {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        if (contentType instanceof String) {
+            writeTextString(headers, (String) contentType);
+        } else {
+            headers.write((Integer) contentType);
+        }
+        headers.write(PduPart.P_CONTENT_LOCATION);
+        writeTextString(headers, location);
+
+        writeUintvar(out, headers.size());
+        writeUintvar(out, data.length);
+        out.write(headers.toByteArray(), 0, headers.size());
+        out.write(data, 0, data.length);
+    }
+
+    /**
+     * Build a retrieve-conf with a text part, a multipart/alternative part, a picture and a
+     * video.
+     */
+    private static byte[] buildRetrieveConf(int imageSize, int videoSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PduHeaders.MESSAGE_TYPE);
+        out.write(PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF);
+        out.write(PduHeaders.MMS_VERSION);
+        out.write(0x80 | PduHeaders.MMS_VERSION_1_2);
+        out.write(PduHeaders.DATE);
+        out.write(4);
+        out.write(new byte[] {0x59, 0x00, 0x00, 0x00}, 0, 4);
+        out.write(PduHeaders.CONTENT_TYPE);
+        out.write(CONTENT_TYPE_MULTIPART_RELATED);
+
+        writeUintvar(out, 4);
+        writePart(out, CONTENT_TYPE_TEXT_PLAIN, "text.txt", "Hello world".getBytes());
+
+        ByteArrayOutputStream alternative = new ByteArrayOutputStream();
+        writeUintvar(alternative, 2);
+        writePart(alternative, CONTENT_TYPE_TEXT_PLAIN, "alt.txt", "plain".getBytes());
+        writePart(alternative, CONTENT_TYPE_TEXT_HTML, "alt.html", "<b>html</b>".getBytes());
+        writePart(out, CONTENT_TYPE_MULTIPART_ALTERNATIVE, "alt", alternative.toByteArray());
+
+        writePart(out, CONTENT_TYPE_IMAGE_JPEG, "image.jpg", filledData(imageSize, 1));
+        writePart(out, "video/3gpp", "video.3gp", filledData(videoSize, 2));
+        return out.toByteArray();
+    }
+
+    private static PduBody parseBody(byte[] pdu, boolean slicePartData) {
+        GenericPdu parsed = new PduParser(pdu, true, slicePartData).parse();
+        assertNotNull(parsed);
+        return ((RetrieveConf) parsed).getBody();
+    }
+
+    @Test
+    @SmallTest
+    public void testSlicedPartsMatchCopiedParts() {
+        byte[] pdu = buildRetrieveConf(1000, 5000);
+        PduBody copied = parseBody(pdu, false);
+        PduBody sliced = parseBody(pdu, true);
+
+        assertEquals(4, copied.getPartsNum());
+        assertEquals(copied.getPartsNum(), sliced.getPartsNum());
+        for (int i = 0; i < copied.getPartsNum(); i++) {
+            PduPart expected = copied.getPart(i);
+            PduPart actual = sliced.getPart(i);
+            assertArrayEquals(expected.getContentType(), actual.getContentType());
+            assertArrayEquals(expected.getContentLocation(), actual.getContentLocation());
+            assertEquals(expected.getDataLength(), actual.getDataLength());
+            assertArrayEquals(expected.getData(), actual.getData());
+        }
+
+        // only the first part of multipart/alternative is kept
+        assertArrayEquals("plain".getBytes(), sliced.getPartByContentLocation("alt.txt").getData());
+        assertArrayEquals(filledData(5000, 2),
+                sliced.getPartByContentLocation("video.3gp").getData());
+    }
+
+    @Test
+    @SmallTest
+    public void testSlicedPartDataIsReadOnlyView() {
+        byte[] pdu = buildRetrieveConf(1000, 5000);
+        PduPart image = parseBody(pdu, true).getPartByContentLocation("image.jpg");
+
+        ByteBuffer view = image.getDataBuffer();
+        assertTrue(view.isReadOnly());
+        assertEquals(1000, view.remaining());
+        assertEquals(filledData(1000, 1)[10], view.get(10));
+
+        // getData() still returns independent copies
+        byte[] data = image.getData();
+        assertNotSame(data, image.getData());
+        data[0]++;
+        assertArrayEquals(filledData(1000, 1), image.getData());
+
+        // replacing the data drops the view
+        image.setData(new byte[] {1, 2});
+        assertEquals(2, image.getDataLength());
+        assertEquals(2, image.getDataBuffer().remaining());
+    }
+
+    @Test
+    @SmallTest
+    public void testTruncatedPartDataPadded() {
+        byte[] full = buildRetrieveConf(1000, 5000);
+        byte[] pdu = new byte[full.length - 100];
+        System.arraycopy(full, 0, pdu, 0, pdu.length);
+
+        PduPart copied = parseBody(pdu, false).getPartByContentLocation("video.3gp");
+        PduPart sliced = parseBody(pdu, true).getPartByContentLocation("video.3gp");
+        assertEquals(5000, sliced.getDataLength());
+        assertArrayEquals(copied.getData(), sliced.getData());
+    }
+
+    /**
+     * Compares parsing a retrieve-conf with a 300 KB picture and a 1 MB video when part data
+     * are copied and when they are sliced. The parts are not accessed, as when a message is
+     * only inspected before being persisted or dropped.
+     */
+    @Test
+    @LargeTest
+    public void testParseRetrieveConfBenchmark() {
+        final int warmupIterations = 20;
+        final int iterations = 100;
+        byte[] pdu = buildRetrieveConf(300 * 1024, 1024 * 1024);
+
+        long[] copiedNs = new long[iterations];
+        long[] slicedNs = new long[iterations];
+        for (int i = 0; i < warmupIterations; i++) {
+            parseBody(pdu, false);
+            parseBody(pdu, true);
+        }
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            parseBody(pdu, false);
+            copiedNs[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            parseBody(pdu, true);
+            slicedNs[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(copiedNs);
+        Arrays.sort(slicedNs);
+        Log.d(TAG, "retrieve-conf of " + pdu.length + " bytes, median parse time: copied="
+                + copiedNs[iterations / 2] / 1000 + "us sliced="
+                + slicedNs[iterations / 2] / 1000 + "us");
+    }
+
+    private static void writeEncodedString(ByteArrayOutputStream out, int field, String text) {
+        out.write(field);
+        writeTextString(out, text);
+    }
+
+    /**
+     * Build an m-notification-ind, as received by WAP push.
+     */
+    private static byte[] buildNotificationInd(int sequence) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PduHeaders.MESSAGE_TYPE);
+        out.write(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND);
+        writeEncodedString(out, PduHeaders.TRANSACTION_ID, "T" + sequence);
+        out.write(PduHeaders.MMS_VERSION);
+        out.write(0x80 | PduHeaders.MMS_VERSION_1_2);
+
+        byte[] from = "+15551234567/TYPE=PLMN".getBytes();
+        out.write(PduHeaders.FROM);
+        out.write(from.length + 2);
+        out.write(PduHeaders.FROM_ADDRESS_PRESENT_TOKEN);
+        writeTextString(out, "+15551234567/TYPE=PLMN");
+
+        writeEncodedString(out, PduHeaders.SUBJECT, "Holiday pictures " + sequence);
+        out.write(PduHeaders.MESSAGE_CLASS);
+        out.write(PduHeaders.MESSAGE_CLASS_PERSONAL);
+        out.write(PduHeaders.MESSAGE_SIZE);
+        out.write(new byte[] {0x03, 0x01, 0x00, 0x00}, 0, 4);
+        out.write(PduHeaders.EXPIRY);
+        out.write(5);
+        out.write(PduHeaders.VALUE_RELATIVE_TOKEN);
+        out.write(new byte[] {0x03, 0x01, 0x51, (byte) 0x80}, 0, 4);
+        writeEncodedString(out, PduHeaders.CONTENT_LOCATION,
+                "http://mmsc.example.com/m" + sequence);
+        out.write(PduHeaders.DELIVERY_REPORT);
+        out.write(PduHeaders.VALUE_NO);
+        return out.toByteArray();
+    }
+
+    private static NotificationInd parseNotificationInd(byte[] pdu) {
+        GenericPdu parsed = new PduParser(pdu, true).parse();
+        assertNotNull(parsed);
+        return (NotificationInd) parsed;
+    }
+
+    @Test
+    @SmallTest
+    public void testParseNotificationInd() {
+        long now = System.currentTimeMillis() / 1000;
+        NotificationInd ind = parseNotificationInd(buildNotificationInd(7));
+        assertEquals("T7", new String(ind.getTransactionId()));
+        assertEquals("http://mmsc.example.com/m7", new String(ind.getContentLocation()));
+        assertEquals(0x10000, ind.getMessageSize());
+        assertArrayEquals(PduHeaders.MESSAGE_CLASS_PERSONAL_STR.getBytes(),
+                ind.getMessageClass());
+        // The address type is stripped from the address
+        assertEquals("+15551234567", ind.getFrom().getString());
+        assertEquals("Holiday pictures 7", ind.getSubject().getString());
+        assertEquals(PduHeaders.VALUE_NO, ind.getDeliveryReport());
+        // The relative expiry of one day is converted to an absolute time
+        assertTrue(ind.getExpiry() >= now + 86400);
+    }
+
+    /**
+     * Measures parsing a burst of m-notification-ind pdus, where only the headers needed to
+     * download the messages are then read, as WapPushOverSms does.
+     *
+     * Decoding the header values of these pdus on demand instead was measured with this
+     * benchmark and not adopted: the mean parse time went from about 18.8us to about 17.1us
+     * per notification in a standalone run. Only three of the ten header values were never
+     * decoded, since the check of the mandatory headers decodes most of them.
+     */
+    @Test
+    @LargeTest
+    public void testNotificationBurstBenchmark() {
+        final int burst = 200;
+        final int rounds = 20;
+        byte[][] pdus = new byte[burst][];
+        for (int i = 0; i < burst; i++) {
+            pdus[i] = buildNotificationInd(i);
+        }
+
+        long parseNs = 0;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < burst; i++) {
+                NotificationInd ind = parseNotificationInd(pdus[i]);
+                ind.getTransactionId();
+                assertEquals("http://mmsc.example.com/m" + i,
+                        new String(ind.getContentLocation()));
+                ind.getMessageSize();
+            }
+            parseNs += System.nanoTime() - start;
+        }
+        Log.d(TAG, "burst of " + burst + " notifications, mean parse time: "
+                + parseNs / (rounds * burst) + "ns");
+    }
+
+    /**
+     * Build an m-delivery-ind, as received by WAP push.
+     */
+    private static byte[] buildDeliveryInd(int sequence) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PduHeaders.MESSAGE_TYPE);
+        out.write(PduHeaders.MESSAGE_TYPE_DELIVERY_IND);
+        out.write(PduHeaders.MMS_VERSION);
+        out.write(0x80 | PduHeaders.MMS_VERSION_1_2);
+        writeEncodedString(out, PduHeaders.MESSAGE_ID, "M" + sequence + "@mmsc.example.com");
+        writeEncodedString(out, PduHeaders.TO, "+15557654321/TYPE=PLMN");
+        out.write(PduHeaders.DATE);
+        out.write(4);
+        out.write(new byte[] {0x59, 0x00, 0x00, (byte) sequence}, 0, 4);
+        out.write(PduHeaders.STATUS);
+        out.write(PduHeaders.STATUS_RETRIEVED);
+        return out.toByteArray();
+    }
+
+    private static DeliveryInd parseDeliveryInd(byte[] pdu) {
+        GenericPdu parsed = new PduParser(pdu, true).parse();
+        assertNotNull(parsed);
+        return (DeliveryInd) parsed;
+    }
+
+    @Test
+    @SmallTest
+    public void testParseDeliveryInd() {
+        DeliveryInd ind = parseDeliveryInd(buildDeliveryInd(7));
+        assertEquals("M7@mmsc.example.com", new String(ind.getMessageId()));
+        assertEquals(1, ind.getTo().length);
+        assertEquals("+15557654321", ind.getTo()[0].getString());
+        assertEquals(0x59000007L, ind.getDate());
+        assertEquals(PduHeaders.STATUS_RETRIEVED, ind.getStatus());
+    }
+
+    /**
+     * Measures parsing a burst of m-delivery-ind pdus, where only the message id is then read
+     * to find the thread of the message, as WapPushOverSms does.
+     *
+     * Decoding header values on demand cannot save anything here: Date, Message-ID, Status
+     * and To are all mandatory, so the check of the mandatory headers decodes every value of
+     * the pdu and an index of the header offsets would only add to the parse time. This
+     * benchmark measured about 7.5us per delivery report in a standalone run.
+     */
+    @Test
+    @LargeTest
+    public void testDeliveryBurstBenchmark() {
+        final int burst = 200;
+        final int rounds = 20;
+        byte[][] pdus = new byte[burst][];
+        for (int i = 0; i < burst; i++) {
+            pdus[i] = buildDeliveryInd(i);
+        }
+
+        long parseNs = 0;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < burst; i++) {
+                DeliveryInd ind = parseDeliveryInd(pdus[i]);
+                assertEquals("M" + i + "@mmsc.example.com", new String(ind.getMessageId()));
+            }
+            parseNs += System.nanoTime() - start;
+        }
+        Log.d(TAG, "burst of " + burst + " delivery reports, mean parse time: "
+                + parseNs / (rounds * burst) + "ns");
+    }
+}
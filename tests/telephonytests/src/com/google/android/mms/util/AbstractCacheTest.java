@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.mms.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+public class AbstractCacheTest {
+    private static class TestCache extends AbstractCache<String, String> {
+        final ArrayList<String> mEvicted = new ArrayList<String>();
+
+        TestCache() {
+            super();
+        }
+
+        TestCache(EvictionPolicy<String, String> policy, long capacity) {
+            super(policy, capacity);
+        }
+
+        @Override
+        protected void onEvicted(String key, String value) {
+            mEvicted.add(key);
+        }
+    }
+
+    /** Weighs values by their length */
+    private static class LengthPolicy implements AbstractCache.EvictionPolicy<String, String> {
+        @Override
+        public int weigh(String value) {
+            return value.length();
+        }
+
+        @Override
+        public AbstractCache.CacheEntry<String, String> selectVictim(
+                Iterator<AbstractCache.CacheEntry<String, String>> entries) {
+            return entries.next();
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testNoPolicyRefusesWhenFull() {
+        TestCache cache = new TestCache(null, 2);
+        assertTrue(cache.put("a", "1"));
+        assertTrue(cache.put("b", "2"));
+        assertFalse(cache.put("c", "3"));
+        // replacing an entry needs no room
+        assertTrue(cache.put("a", "4"));
+        assertEquals("4", cache.get("a"));
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testLruEviction() {
+        TestCache cache = new TestCache(new AbstractCache.LruPolicy<String, String>(), 2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        assertTrue(cache.put("c", "3"));
+
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals("b", cache.mEvicted.get(0));
+    }
+
+    @Test
+    @SmallTest
+    public void testLfuEviction() {
+        TestCache cache = new TestCache(new AbstractCache.LfuPolicy<String, String>(), 3);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        cache.get("c");
+        cache.get("c");
+
+        // "b" is the least hit entry even though "a" was used before it
+        cache.put("d", "4");
+        assertEquals("b", cache.mEvicted.get(0));
+
+        // among entries that were never hit, the least recently used one goes first
+        cache.put("e", "5");
+        assertEquals("d", cache.mEvicted.get(1));
+    }
+
+    @Test
+    @SmallTest
+    public void testWeightedEviction() {
+        TestCache cache = new TestCache(new LengthPolicy(), 10);
+        cache.put("a", "12345");
+        cache.put("b", "1234");
+        assertEquals(9, cache.getWeight());
+
+        assertTrue(cache.put("c", "123"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(7, cache.getWeight());
+
+        // values heavier than the whole cache are refused without evicting anything
+        assertFalse(cache.put("d", "12345678901"));
+        assertEquals(2, cache.size());
+
+        cache.purge("b");
+        assertEquals(3, cache.getWeight());
+        cache.purgeAll();
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    @SmallTest
+    public void testCounters() {
+        TestCache cache = new TestCache();
+        cache.put("a", "1");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testSetEvictionPolicyShrinks() {
+        TestCache cache = new TestCache();
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        cache.setEvictionPolicy(new AbstractCache.LruPolicy<String, String>(), 4);
+        assertEquals(4, cache.size());
+        assertEquals(6, cache.getEvictionCount());
+        assertEquals("v9", cache.get("k9"));
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.mms.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.google.android.mms.pdu.GenericPdu;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PduCacheTest {
+    private static final String TAG = "PduCacheTest";
+
+    private PduCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mCache = PduCache.getInstance();
+        mCache.purgeAll();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.purgeAll();
+        mCache.setEvictionPolicy(new AbstractCache.LruPolicy<Uri, PduCacheEntry>(),
+                PduCache.MAX_CACHED_PDUS);
+    }
+
+    private static Uri messageUri(int id) {
+        return Uri.withAppendedPath(Mms.CONTENT_URI, Integer.toString(id));
+    }
+
+    private static PduCacheEntry newEntry() {
+        return new PduCacheEntry(new GenericPdu(), Mms.MESSAGE_BOX_INBOX, 1);
+    }
+
+    @Test
+    @SmallTest
+    public void testEvictionUpdatesMessageBoxIndex() {
+        mCache.setEvictionPolicy(new AbstractCache.LruPolicy<Uri, PduCacheEntry>(), 2);
+        mCache.put(messageUri(1), newEntry());
+        mCache.put(messageUri(2), newEntry());
+        assertEquals(2, mCache.getMessageBoxSize(Mms.MESSAGE_BOX_INBOX));
+
+        long evictions = mCache.getEvictionCount();
+        for (int i = 3; i < 10; i++) {
+            mCache.put(messageUri(i), newEntry());
+        }
+        assertEquals(2, mCache.size());
+        assertEquals(7, mCache.getEvictionCount() - evictions);
+        // Evicted uris are dropped from the message box
+        assertEquals(2, mCache.getMessageBoxSize(Mms.MESSAGE_BOX_INBOX));
+    }
+
+    /**
+     * Thread that calls beginUpdate on a uri, and counts down its latch once it got the update.
+     */
+    private class Updater extends Thread {
+        private final Uri mUri;
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        volatile PduCache.Update mUpdate;
+        volatile boolean mInterrupted;
+
+        Updater(Uri uri) {
+            mUri = uri;
+            start();
+        }
+
+        @Override
+        public void run() {
+            mUpdate = mCache.beginUpdate(mUri);
+            mInterrupted = isInterrupted();
+            mStarted.countDown();
+        }
+
+        boolean awaitStarted(long timeoutMs) throws InterruptedException {
+            return mStarted.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testUpdatesOfDifferentUrisDoNotBlock() throws Exception {
+        Uri first = messageUri(1);
+        PduCache.Update update = mCache.beginUpdate(first);
+        assertFalse(update.waited());
+        assertTrue(mCache.isUpdating(first));
+
+        Updater other = new Updater(messageUri(2));
+        assertTrue(other.awaitStarted(1000));
+        assertFalse(other.mUpdate.waited());
+        assertFalse(mCache.awaitUpdate(messageUri(3)));
+
+        mCache.endUpdate(first, update);
+        mCache.endUpdate(messageUri(2), other.mUpdate);
+        assertFalse(mCache.isUpdating(first));
+    }
+
+    @Test
+    @SmallTest
+    public void testUpdateOfSameUriWaits() throws Exception {
+        Uri uri = messageUri(1);
+        PduCache.Update update = mCache.beginUpdate(uri);
+
+        Updater second = new Updater(uri);
+        assertFalse(second.awaitStarted(100));
+
+        // Putting the loaded entry does not end the update, its owner does
+        mCache.put(uri, newEntry());
+        assertFalse(second.awaitStarted(100));
+        mCache.endUpdate(uri, update);
+        assertTrue(second.awaitStarted(1000));
+        assertTrue(second.mUpdate.waited());
+        assertTrue(mCache.isUpdating(uri));
+        assertNotNull(mCache.get(uri));
+
+        // Ending an update that is over leaves the update of the next owner alone
+        mCache.endUpdate(uri, update);
+        assertTrue(mCache.isUpdating(uri));
+        mCache.endUpdate(uri, second.mUpdate);
+        assertFalse(mCache.isUpdating(uri));
+    }
+
+    @Test
+    @SmallTest
+    public void testInterruptedUpdateKeepsWaiting() throws Exception {
+        Uri uri = messageUri(1);
+        PduCache.Update update = mCache.beginUpdate(uri);
+
+        Updater second = new Updater(uri);
+        assertFalse(second.awaitStarted(100));
+        second.interrupt();
+        // The interrupted caller does not take the update over
+        assertFalse(second.awaitStarted(100));
+
+        Updater third = new Updater(uri);
+        mCache.endUpdate(uri, update);
+        assertTrue(second.awaitStarted(1000) || third.awaitStarted(1000));
+
+        // Only one of the waiters runs at a time, whatever the owner before did
+        Updater owner = (second.mStarted.getCount() == 0) ? second : third;
+        Updater waiter = (owner == second) ? third : second;
+        mCache.endUpdate(uri, update);
+        assertFalse(waiter.awaitStarted(100));
+
+        mCache.endUpdate(uri, owner.mUpdate);
+        assertTrue(waiter.awaitStarted(1000));
+        assertTrue(second.mInterrupted);
+        assertFalse(third.mInterrupted);
+        mCache.endUpdate(uri, waiter.mUpdate);
+        assertFalse(mCache.isUpdating(uri));
+    }
+
+    @Test
+    @SmallTest
+    public void testPurgeDuringUpdateKeepsWaiters() throws Exception {
+        Uri uri = messageUri(1);
+        mCache.put(uri, newEntry());
+        PduCache.Update update = mCache.beginUpdate(uri);
+
+        Updater waiter = new Updater(uri);
+        assertFalse(waiter.awaitStarted(100));
+        // Purges drop the cached entry and leave the update going on
+        assertNotNull(mCache.purge(uri));
+        mCache.purge(Uri.withAppendedPath(Mms.CONTENT_URI, "inbox"));
+        mCache.purge(Mms.CONTENT_URI);
+        assertFalse(waiter.awaitStarted(100));
+        assertTrue(mCache.isUpdating(uri));
+
+        mCache.endUpdate(uri, update);
+        assertTrue(waiter.awaitStarted(1000));
+        mCache.endUpdate(uri, waiter.mUpdate);
+    }
+
+    @Test
+    @SmallTest
+    public void testEndUpdateWakesCacheWaiters() throws Exception {
+        final Uri uri = messageUri(1);
+        PduCache.Update update = mCache.beginUpdate(uri);
+
+        // A caller still using the former protocol, waiting on the whole cache
+        final CountDownLatch woken = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                synchronized (mCache) {
+                    while (mCache.isUpdating(uri)) {
+                        try {
+                            mCache.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                woken.countDown();
+            }
+        };
+        waiter.start();
+        assertFalse(woken.await(100, TimeUnit.MILLISECONDS));
+
+        mCache.endUpdate(uri, update);
+        assertTrue(woken.await(1000, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Load uris picked from a small set with several threads, the way PduPersister.load does,
+     * using either per-uri updates or the former protocol of waiting on the whole cache.
+     *
+     * @return the time taken, in milliseconds
+     */
+    private long runLoads(final boolean perUri, int threadCount, final int loadsPerThread,
+            final int uriCount, final long queryMs) throws Exception {
+        mCache.purgeAll();
+        final AtomicInteger loaded = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        long start = System.nanoTime();
+        for (int t = 0; t < threadCount; t++) {
+            final Random random = new Random(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < loadsPerThread; i++) {
+                            load(messageUri(random.nextInt(uriCount)));
+                        }
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "load interrupted", e);
+                    }
+                    done.countDown();
+                }
+
+                private void load(Uri uri) throws InterruptedException {
+                    boolean waited = false;
+                    PduCache.Update update = null;
+                    if (perUri) {
+                        update = mCache.beginUpdate(uri);
+                        waited = update.waited();
+                    } else {
+                        synchronized (mCache) {
+                            if (mCache.isUpdating(uri)) {
+                                mCache.wait();
+                                waited = true;
+                            }
+                            mCache.setUpdating(uri, true);
+                        }
+                    }
+                    // A load that waited for another one gets its result from the cache
+                    if (waited && mCache.get(uri) != null) {
+                        if (perUri) {
+                            mCache.endUpdate(uri, update);
+                        } else {
+                            synchronized (mCache) {
+                                mCache.setUpdating(uri, false);
+                                mCache.notifyAll();
+                            }
+                        }
+                        loaded.incrementAndGet();
+                        return;
+                    }
+                    // Stands for the provider query
+                    Thread.sleep(queryMs);
+                    if (perUri) {
+                        mCache.put(uri, newEntry());
+                        mCache.endUpdate(uri, update);
+                    } else {
+                        synchronized (mCache) {
+                            mCache.put(uri, newEntry());
+                            mCache.setUpdating(uri, false);
+                            mCache.notifyAll();
+                        }
+                    }
+                    loaded.incrementAndGet();
+                }
+            }.start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        assertEquals(threadCount * loadsPerThread, loaded.get());
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    @LargeTest
+    public void testConcurrentLoadBenchmark() throws Exception {
+        final int threadCount = 8;
+        final int loadsPerThread = 200;
+        final int uriCount = 32;
+        final long queryMs = 1;
+
+        // Warm up
+        runLoads(false, threadCount, 20, uriCount, queryMs);
+        runLoads(true, threadCount, 20, uriCount, queryMs);
+
+        long globalMs = runLoads(false, threadCount, loadsPerThread, uriCount, queryMs);
+        long perUriMs = runLoads(true, threadCount, loadsPerThread, uriCount, queryMs);
+        Log.d(TAG, threadCount + " threads x " + loadsPerThread + " loads over " + uriCount
+                + " uris: global wait=" + globalMs + "ms per-uri wait=" + perUriMs + "ms");
+    }
+}